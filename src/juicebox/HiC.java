@@ -615,6 +615,37 @@ public class HiC {
         }
     }
 
+    public boolean isEigenvectorCached(final int chrIdx, final int n, boolean isControl) {
+        Dataset ds = isControl ? controlDataset : dataset;
+        if (ds == null) return true;
+
+        Chromosome chr = chromosomeHandler.getChromosomeFromIndex(chrIdx);
+        return ds.isEigenvectorCached(chr, currentZoom, n, isControl ? ctrlNormalizationType : obsNormalizationType);
+    }
+
+    /**
+     * @return task computing the eigenvector for the current zoom and normalization into the dataset's cache,
+     * to be run off the EDT; the zoom data and expected values are looked up here
+     */
+    public Runnable getEigenvectorLoader(final int chrIdx, final int n, boolean isControl) {
+        final Dataset ds = isControl ? controlDataset : dataset;
+        if (ds == null) return null;
+
+        final Chromosome chr = chromosomeHandler.getChromosomeFromIndex(chrIdx);
+        final HiCZoom zoom = currentZoom;
+        final NormalizationType norm = isControl ? ctrlNormalizationType : obsNormalizationType;
+        final ExpectedValueFunction df = ds.getExpectedValues(zoom, norm);
+        Matrix matrix = ds.getMatrix(chr, chr);
+        if (matrix == null) return null;
+        final MatrixZoomData mzd = matrix.getZoomData(zoom);
+        if (mzd == null) return null;
+        return () -> ds.getEigenvector(chr, zoom, n, norm, df, mzd);
+    }
+
+    public void repaintTrackPanels() {
+        superAdapter.repaintTrackPanels();
+    }
+
     public ExpectedValueFunction getExpectedValues() {
         if (dataset == null) return null;
         return dataset.getExpectedValues(currentZoom, obsNormalizationType);
@@ -63,8 +63,10 @@ public class HiCGlobals {
     public static final String defaultPropertiesURL = "http://hicfiles.tc4ga.com/juicebox.properties";
     public static final Color diffGrayColor = new Color(238, 238, 238);
     // for state saving
-    public static int MAX_PEARSON_ZOOM = 50000;
+    public static int MAX_PEARSON_ZOOM = 25000;
+    public static int MAX_IN_MEMORY_PEARSON_DIM = 6000;
     public static int MAX_EIGENVECTOR_ZOOM = 250000;
+    public static int MIN_EIGENVECTOR_ZOOM = 5000;
     // implement Map scaling with this global variable
     public static double hicMapScale = 1;
     // whether MatrixZoomData should cache or not
@@ -94,6 +96,15 @@ public class HiCGlobals {
     // for norm/pre, save contact records into memory
     public static boolean USE_ITERATOR_NOT_ALL_IN_RAM = false;
     public static boolean CHECK_RAM_USAGE = false;
+    // for norm/pre, vectors with at least this many entries are kept off the java heap
+    public static long OFF_HEAP_VECTOR_THRESHOLD = Long.MAX_VALUE;
+    // if set, off-heap vectors are memory-mapped temp files in this directory rather than direct buffers
+    public static File OFF_HEAP_VECTOR_DIRECTORY = null;
+    // if set, rendered heatmap tiles are also cached in this directory across sessions
+    public static File TILE_DISK_CACHE_DIRECTORY = null;
+    // Pearson's too large for memory are written here (system temp directory if null), up to this many bytes in all
+    public static File PEARSONS_TEMP_DIRECTORY = null;
+    public static long MAX_PEARSONS_DISK_BYTES = 2L * 1024 * 1024 * 1024;
 
     public static void verifySupportedHiCFileVersion(int version) throws RuntimeException {
         if (version < minVersion) {
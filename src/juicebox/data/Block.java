@@ -28,7 +28,9 @@ package juicebox.data;
 //import java.util.List;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 
 /**
@@ -37,9 +39,13 @@ import java.util.List;
  */
 public class Block {
 
+    public static final int COUNT_SAMPLE_SIZE = 256;
     private final int number;
     private final String uniqueRegionID;
     private final List<ContactRecord> records;
+    // off-diagonal counts drawn uniformly from the records, each standing for sampledRecordCount / COUNT_SAMPLE_SIZE records
+    private float[] countSample;
+    private int sampledRecordCount = -1;
 
     public Block(int number, String regionID) {
         this.number = number;
@@ -51,6 +57,8 @@ public class Block {
         this.number = number;
         this.records = records;
         this.uniqueRegionID = regionID + "_" + number;
+        // sample while the block is being decoded, off the thread that will need the color range
+        if (records != null) getCountSample();
     }
 
     public int getNumber() {
@@ -64,4 +72,42 @@ public class Block {
     public List<ContactRecord> getContactRecords() {
         return records;
     }
+
+    /**
+     * Sample of the off-diagonal counts of this block for estimating quantiles: all of them for small blocks,
+     * otherwise COUNT_SAMPLE_SIZE records drawn at random (diagonal draws are dropped).  Redrawn if records
+     * were added since the last sample.
+     */
+    public synchronized float[] getCountSample() {
+        List<ContactRecord> records = getContactRecords();
+        int n = records.size();
+        if (countSample == null || sampledRecordCount != n) {
+            float[] sample;
+            int size = 0;
+            if (n <= COUNT_SAMPLE_SIZE) {
+                sample = new float[n];
+                for (ContactRecord rec : records) {
+                    if (rec.getBinX() != rec.getBinY()) sample[size++] = rec.getCounts();
+                }
+            } else {
+                sample = new float[COUNT_SAMPLE_SIZE];
+                Random random = new Random(number);
+                for (int i = 0; i < COUNT_SAMPLE_SIZE; i++) {
+                    ContactRecord rec = records.get(random.nextInt(n));
+                    if (rec.getBinX() != rec.getBinY()) sample[size++] = rec.getCounts();
+                }
+            }
+            countSample = size == sample.length ? sample : Arrays.copyOf(sample, size);
+            sampledRecordCount = n;
+        }
+        return countSample;
+    }
+
+    /**
+     * @return number of records each value of the count sample stands for
+     */
+    public synchronized double getCountSampleWeight() {
+        getCountSample();
+        return Math.max(1.0, sampledRecordCount / (double) COUNT_SAMPLE_SIZE);
+    }
 }
@@ -0,0 +1,96 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.data;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Block loads made on behalf of a view.  Every change of view starts a new generation; a request that has not
+ * been renewed for the latest generation is superseded, so its queued block reads are dropped and its caller is
+ * not kept waiting for the reads already in flight (those still finish and fill the block cache).
+ * <p>
+ * Requests are attached to the thread that loads the blocks; loads on threads without a request are never
+ * superseded.
+ */
+public class BlockLoadRequest {
+    private static final AtomicLong latestGeneration = new AtomicLong();
+    private static final ThreadLocal<BlockLoadRequest> currentRequest = new ThreadLocal<>();
+    private volatile long generation;
+
+    public BlockLoadRequest(long generation) {
+        this.generation = generation;
+    }
+
+    public static long getLatestGeneration() {
+        return latestGeneration.get();
+    }
+
+    /**
+     * Supersede all requests that were not renewed for this generation (or a later one)
+     */
+    public static void publishGeneration(long generation) {
+        latestGeneration.accumulateAndGet(generation, Math::max);
+    }
+
+    public static BlockLoadRequest getCurrent() {
+        return currentRequest.get();
+    }
+
+    /**
+     * @param request request to make the loads of this thread for, or null
+     */
+    public static void setCurrent(BlockLoadRequest request) {
+        if (request == null) {
+            currentRequest.remove();
+        } else {
+            currentRequest.set(request);
+        }
+    }
+
+    /**
+     * Throws if the request of this thread has been superseded
+     */
+    public static void checkCurrent() {
+        BlockLoadRequest request = currentRequest.get();
+        if (request != null && request.isSuperseded()) {
+            throw new CancellationException("Block load superseded by a newer view");
+        }
+    }
+
+    /**
+     * The request is still wanted in the given generation
+     */
+    public void renew(long generation) {
+        if (generation > this.generation) {
+            this.generation = generation;
+        }
+    }
+
+    public boolean isSuperseded() {
+        return generation < latestGeneration.get();
+    }
+}
@@ -77,6 +77,10 @@ public class Dataset {
         normalizationTypes = new ArrayList<>();
     }
 
+    public String getPath() {
+        return reader == null ? null : reader.getPath();
+    }
+
     public Matrix getMatrix(Chromosome chr1, Chromosome chr2) {
 
         // order is arbitrary, convention is lower # chr first
@@ -869,28 +873,56 @@ public class Dataset {
     }
 
 
-    public double[] getEigenvector(Chromosome chr, HiCZoom zoom, int number, NormalizationType type) {
+    /**
+     * @return true if getEigenvector will return right away, without computing the eigenvector
+     */
+    public boolean isEigenvectorCached(Chromosome chr, HiCZoom zoom, int number, NormalizationType type) {
+        synchronized (eigenvectorCache) {
+            return eigenvectorCache.containsKey(getEigenvectorKey(chr, zoom, number, type));
+        }
+    }
 
-        String key = chr.getName() + "_" + zoom.getKey() + "_" + number + "_" + type;
-        if (!eigenvectorCache.containsKey(key)) {
+    private String getEigenvectorKey(Chromosome chr, HiCZoom zoom, int number, NormalizationType type) {
+        return chr.getName() + "_" + zoom.getKey() + "_" + number + "_" + type;
+    }
 
-            double[] eigenvector;
-            //eigenvector = reader.readEigenvector(chr.getName(), zoom, number, type.toString());
+    public double[] getEigenvector(Chromosome chr, HiCZoom zoom, int number, NormalizationType type) {
+        synchronized (eigenvectorCache) {
+            String key = getEigenvectorKey(chr, zoom, number, type);
+            if (eigenvectorCache.containsKey(key)) return eigenvectorCache.get(key);
+        }
+        Matrix m = getMatrix(chr, chr);
+        return getEigenvector(chr, zoom, number, type, getExpectedValues(zoom, type), m.getZoomData(zoom));
+    }
 
-            ExpectedValueFunction df = getExpectedValues(zoom, type);
-            Matrix m = getMatrix(chr, chr);
-            MatrixZoomData mzd = m.getZoomData(zoom);
-            if (df != null && mzd.getPearsons(df) != null && zoom.getBinSize() >= HiCGlobals.MAX_EIGENVECTOR_ZOOM) {
-                eigenvector = mzd.computeEigenvector(df, number);
-            } else {
-                eigenvector = new double[0];
-            }
+    /**
+     * Same as above with the zoom data and expected values already looked up, so that the eigenvector can be
+     * computed on another thread (the matrix and expected value maps are not thread safe)
+     */
+    public double[] getEigenvector(Chromosome chr, HiCZoom zoom, int number, NormalizationType type,
+                                   ExpectedValueFunction df, MatrixZoomData mzd) {
 
-            eigenvectorCache.put(key, eigenvector);
+        String key = getEigenvectorKey(chr, zoom, number, type);
+        synchronized (eigenvectorCache) {
+            if (eigenvectorCache.containsKey(key)) return eigenvectorCache.get(key);
         }
 
-        return eigenvectorCache.get(key);
+        double[] eigenvector;
+        //eigenvector = reader.readEigenvector(chr.getName(), zoom, number, type.toString());
 
+        if (df != null && zoom.getBinSize() >= HiCGlobals.MAX_EIGENVECTOR_ZOOM && mzd.getPearsons(df) != null) {
+            eigenvector = mzd.computeEigenvector(df, number);
+        } else if (df != null && zoom.getUnit() == HiC.Unit.BP && zoom.getBinSize() >= HiCGlobals.MIN_EIGENVECTOR_ZOOM) {
+            // too fine for the dense Pearson's; solve on the sparse O/E instead
+            eigenvector = mzd.computeSparseEigenvector(df, number);
+        } else {
+            eigenvector = new double[0];
+        }
+
+        synchronized (eigenvectorCache) {
+            eigenvectorCache.put(key, eigenvector);
+        }
+        return eigenvector;
     }
 
     public NormalizationVector getNormalizationVector(int chrIdx, HiCZoom zoom, NormalizationType type) {
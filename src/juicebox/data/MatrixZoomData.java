@@ -38,6 +38,9 @@ import juicebox.data.v9depth.LogDepth;
 import juicebox.data.v9depth.V9Depth;
 import juicebox.gui.SuperAdapter;
 import juicebox.matrix.BasicMatrix;
+import juicebox.matrix.DiskResidentBlockMatrix;
+import juicebox.matrix.ImplicitPearsonsMatrix;
+import juicebox.matrix.LanczosEigenSolver;
 import juicebox.matrix.RealMatrixWrapper;
 import juicebox.tools.clt.old.Pearsons;
 import juicebox.track.HiCFixedGridAxis;
@@ -52,9 +55,11 @@ import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 import org.broad.igv.util.collections.LRUCache;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -79,7 +84,9 @@ public class MatrixZoomData {
     protected final int blockColumnCount;     // number of block columns
     // Cache the last 20 blocks loaded
     protected final LRUCache<String, Block> blockCache = new LRUCache<>(500);
-    private final HashMap<NormalizationType, BasicMatrix> pearsonsMap;
+    private final Map<NormalizationType, BasicMatrix> pearsonsMap;
+    // temporary files of disk-resident Pearson's of all maps, oldest first
+    private static final LinkedList<PearsonsFile> pearsonsFiles = new LinkedList<>();
     private final HashMap<NormalizationType, BasicMatrix> normSquaredMaps;
     //private List<List<ContactRecord>> localCacheOfRecords = null;
     private final V9Depth v9Depth;
@@ -144,7 +151,7 @@ public class MatrixZoomData {
             this.yGridAxis = null;
         }
 
-        pearsonsMap = new HashMap<>();
+        pearsonsMap = new ConcurrentHashMap<>();
         normSquaredMaps = new HashMap<>();
     }
 
@@ -184,6 +191,10 @@ public class MatrixZoomData {
         return blockColumnCount;
     }
 
+    public int getBlockBinCount() {
+        return blockBinCount;
+    }
+
     public String getKey() {
         return chr1.getName() + "_" + chr2.getName() + "_" + zoom.getKey();
     }
@@ -241,6 +252,40 @@ public class MatrixZoomData {
         }
     }
 
+    /**
+     * Same values as HiCFileTools.extractLocalBoundedRegion, written straight from the blocks into
+     * a caller supplied row major buffer (numRows x numCols) so it can be reused across regions.
+     * The left upper corner (binXStart, binYStart) is the reference for 0,0.
+     */
+    public void fillLocalBoundedRegion(float[] buffer, long binXStart, long binXEnd, long binYStart, long binYEnd,
+                                       int numRows, int numCols, NormalizationType normalizationType,
+                                       boolean fillUnderDiagonal) throws IOException {
+        Arrays.fill(buffer, 0, numRows * numCols, 0);
+
+        List<Block> blocks = HiCFileTools.getAllRegionBlocks(this, binXStart, binXEnd, binYStart, binYEnd,
+                normalizationType, fillUnderDiagonal);
+        for (Block b : blocks) {
+            if (b != null) {
+                for (ContactRecord rec : b.getContactRecords()) {
+                    // only called for small regions - should not exceed int
+                    int relativeX = (int) (rec.getBinX() - binXStart);
+                    int relativeY = (int) (rec.getBinY() - binYStart);
+                    if (relativeX >= 0 && relativeX < numRows && relativeY >= 0 && relativeY < numCols) {
+                        buffer[relativeX * numCols + relativeY] += rec.getCounts();
+                    }
+
+                    if (fillUnderDiagonal) {
+                        relativeX = (int) (rec.getBinY() - binXStart);
+                        relativeY = (int) (rec.getBinX() - binYStart);
+                        if (relativeX >= 0 && relativeX < numRows && relativeY >= 0 && relativeY < numCols) {
+                            buffer[relativeX * numCols + relativeY] += rec.getCounts();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * // for reference
      * public int getBlockNumberVersion9(int binI, int binJ) {
@@ -516,6 +561,9 @@ public class MatrixZoomData {
     private void actuallyLoadGivenBlocks(final List<Block> blockList, Set<Integer> blocksToLoad,
                                          final NormalizationType no) {
         final AtomicInteger errorCounter = new AtomicInteger();
+        final BlockLoadRequest request = BlockLoadRequest.getCurrent();
+        // blocks still arriving after a superseded request has stopped waiting must not touch blockList
+        final List<Block> loadedBlocks = Collections.synchronizedList(new ArrayList<>());
 
         ExecutorService service = HiCGlobals.newFixedThreadPool();
 
@@ -527,6 +575,8 @@ public class MatrixZoomData {
             Runnable loader = new Runnable() {
                 @Override
                 public void run() {
+                    // dropped from the queue
+                    if (request != null && request.isSuperseded()) return;
                     try {
                         String key = getBlockKey(blockNumber, no);
                         Block b = reader.readNormalizedBlock(blockNumber, MatrixZoomData.this, no);
@@ -540,7 +590,7 @@ public class MatrixZoomData {
                         if (HiCGlobals.useCache) {
                             blockCache.put(key, b);
                         }
-                        blockList.add(b);
+                        loadedBlocks.add(b);
                     } catch (IOException e) {
                         errorCounter.incrementAndGet();
                     }
@@ -553,25 +603,44 @@ public class MatrixZoomData {
         // done submitting all jobs
         service.shutdown();
 
-        // wait for all to finish
+        awaitBlockLoads(service, request);
+        synchronized (loadedBlocks) {
+            blockList.addAll(loadedBlocks);
+        }
+        BlockLoadRequest.checkCurrent();
+
+        // error printing
+        if (errorCounter.get() > 0) {
+            System.err.println(errorCounter.get() + " errors while reading blocks");
+        }
+    }
+
+    /**
+     * Wait for all loads to finish, or only until the request they were made for is superseded
+     */
+    private void awaitBlockLoads(ExecutorService service, BlockLoadRequest request) {
         try {
-            service.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            if (request == null) {
+                service.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } else {
+                while (!service.awaitTermination(50, TimeUnit.MILLISECONDS)) {
+                    if (request.isSuperseded()) return;
+                }
+            }
         } catch (InterruptedException e) {
             System.err.println("Error loading mzd data " + e.getLocalizedMessage());
             if (HiCGlobals.printVerboseComments) {
                 e.printStackTrace();
             }
         }
-
-        // error printing
-        if (errorCounter.get() > 0) {
-            System.err.println(errorCounter.get() + " errors while reading blocks");
-        }
     }
 
     private void actuallyLoadGivenBlocks(final List<Block> blockList, Set<Integer> blocksToLoad,
                                          final NormalizationType no, final int chr1Id, final int chr2Id) {
         final AtomicInteger errorCounter = new AtomicInteger();
+        final BlockLoadRequest request = BlockLoadRequest.getCurrent();
+        // blocks still arriving after a superseded request has stopped waiting must not touch blockList
+        final List<Block> loadedBlocks = Collections.synchronizedList(new ArrayList<>());
 
         ExecutorService service = Executors.newFixedThreadPool(200);
 
@@ -581,6 +650,8 @@ public class MatrixZoomData {
             Runnable loader = new Runnable() {
                 @Override
                 public void run() {
+                    // dropped from the queue
+                    if (request != null && request.isSuperseded()) return;
                     try {
                         String key = getBlockKey(blockNumber, no, chr1Id, chr2Id);
                         Block b = reader.readNormalizedBlock(blockNumber, MatrixZoomData.this, no);
@@ -594,7 +665,7 @@ public class MatrixZoomData {
                         if (HiCGlobals.useCache) {
                             blockCache.put(key, b);
                         }
-                        blockList.add(b);
+                        loadedBlocks.add(b);
                     } catch (IOException e) {
                         errorCounter.incrementAndGet();
                     }
@@ -607,15 +678,11 @@ public class MatrixZoomData {
         // done submitting all jobs
         service.shutdown();
 
-        // wait for all to finish
-        try {
-            service.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            System.err.println("Error loading mzd data " + e.getLocalizedMessage());
-            if (HiCGlobals.printVerboseComments) {
-                e.printStackTrace();
-            }
+        awaitBlockLoads(service, request);
+        synchronized (loadedBlocks) {
+            blockList.addAll(loadedBlocks);
         }
+        BlockLoadRequest.checkCurrent();
 
         // error printing
         if (errorCounter.get() > 0) {
@@ -725,6 +792,168 @@ public class MatrixZoomData {
         return eigenvector;
     }
 
+    /**
+     * Computes eigenvector from Pearson's without materializing the correlation matrix.  Only the sparse O/E
+     * values are held in memory, so this works at resolutions where getPearsons is unavailable.
+     *
+     * @param df    Expected values
+     * @param which Which eigenvector; 0 is principal.
+     * @return Eigenvector
+     */
+    public double[] computeSparseEigenvector(ExpectedValueFunction df, int which) {
+        if (chr1 != chr2) {
+            throw new RuntimeException("Cannot compute eigenvector for non-diagonal matrices");
+        }
+
+        ImplicitPearsonsMatrix pearsons = getImplicitPearsons(df);
+        int dim = pearsons.getMatrixDimension();
+
+        double[] eigenvector = new double[dim];
+        Arrays.fill(eigenvector, Double.NaN);
+        double[][] ev = LanczosEigenSolver.computeTopEigenvectors(pearsons, which + 1);
+        if (ev.length <= which) {
+            return eigenvector;
+        }
+
+        int[] validBins = pearsons.getValidBins();
+        for (int k = 0; k < validBins.length; k++) {
+            eigenvector[validBins[k]] = ev[which][k];
+        }
+        return eigenvector;
+    }
+
+    private ImplicitPearsonsMatrix getImplicitPearsons(ExpectedValueFunction df) {
+        ImplicitPearsonsMatrix pearsons = new ImplicitPearsonsMatrix(getPearsonsDimension());
+        Iterator<ContactRecord> iterator = getNewContactRecordIterator();
+        while (iterator.hasNext()) {
+            ContactRecord record = iterator.next();
+            float counts = record.getCounts();
+            if (Float.isNaN(counts)) continue;
+
+            int i = record.getBinX();
+            int j = record.getBinY();
+            double expected = df.getExpectedValue(chr1.getIndex(), Math.abs(i - j));
+            pearsons.addEntry(i, j, (float) (counts / expected));
+        }
+        pearsons.prepare();
+        return pearsons;
+    }
+
+    private int getPearsonsDimension() {
+        if (zoom.getUnit() == HiC.Unit.BP) {
+            return (int) (chr1.getLength() / zoom.getBinSize()) + 1;
+        } else {
+            return ((DatasetReaderV2) reader).getFragCount(chr1) / zoom.getBinSize() + 1;
+        }
+    }
+
+    /**
+     * Write the Pearson's to disk in the blocked layout read by DiskResidentBlockMatrix, computing it tile by tile
+     * so the dense matrix is never held in memory.
+     *
+     * @param df       Expected value
+     * @param path     Output file
+     * @param genomeId Genome recorded in the file header
+     */
+    public void writePearsons(ExpectedValueFunction df, String path, String genomeId) throws IOException {
+        if (chr1 != chr2) {
+            throw new RuntimeException("Cannot compute pearsons for non-diagonal matrices");
+        }
+        Pearsons.writeBlockFile(getImplicitPearsons(df), path, genomeId, chr1.getName(), zoom.getBinSize());
+    }
+
+    /**
+     * Pearson's for maps too large to correlate in memory; streamed to a temporary file (in
+     * HiCGlobals.PEARSONS_TEMP_DIRECTORY) and read back by tile.  Once the files of all maps exceed
+     * HiCGlobals.MAX_PEARSONS_DISK_BYTES, the oldest are dropped from their maps and deleted.
+     */
+    private BasicMatrix computeDiskResidentPearsons(ExpectedValueFunction df) {
+        File file = null;
+        try {
+            file = File.createTempFile("pearsons_" + chr1.getName() + "_" + zoom.getKey() + "_", ".bin",
+                    HiCGlobals.PEARSONS_TEMP_DIRECTORY);
+            writePearsons(df, file.getAbsolutePath(), "NA");
+            BasicMatrix pearsons = new DiskResidentBlockMatrix(file.getAbsolutePath());
+            addPearsonsFile(new PearsonsFile(this, df.getNormalizationType(), pearsons, file));
+            return pearsons;
+        } catch (IOException e) {
+            if (file != null) {
+                deleteFile(file);
+            }
+            System.err.println("Unable to compute Pearson's for " + getDescription() + " " + e.getLocalizedMessage());
+            if (HiCGlobals.printVerboseComments) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    private static void addPearsonsFile(PearsonsFile newFile) {
+        List<PearsonsFile> evicted = new ArrayList<>();
+        synchronized (pearsonsFiles) {
+            pearsonsFiles.add(newFile);
+            long totalBytes = 0;
+            for (PearsonsFile pearsonsFile : pearsonsFiles) {
+                totalBytes += pearsonsFile.file.length();
+            }
+            while (totalBytes > HiCGlobals.MAX_PEARSONS_DISK_BYTES && pearsonsFiles.size() > 1) {
+                PearsonsFile oldest = pearsonsFiles.removeFirst();
+                totalBytes -= oldest.file.length();
+                evicted.add(oldest);
+            }
+        }
+        for (PearsonsFile pearsonsFile : evicted) {
+            pearsonsFile.zd.pearsonsMap.remove(pearsonsFile.type, pearsonsFile.pearsons);
+            deleteFile(pearsonsFile.file);
+        }
+    }
+
+    /**
+     * Replace or drop the Pearson's of a normalization, deleting its file if it had one
+     */
+    private void removePearsons(NormalizationType type) {
+        BasicMatrix pearsons = pearsonsMap.remove(type);
+        if (pearsons == null) return;
+        PearsonsFile removed = null;
+        synchronized (pearsonsFiles) {
+            for (Iterator<PearsonsFile> iterator = pearsonsFiles.iterator(); iterator.hasNext(); ) {
+                PearsonsFile pearsonsFile = iterator.next();
+                if (pearsonsFile.pearsons == pearsons) {
+                    iterator.remove();
+                    removed = pearsonsFile;
+                    break;
+                }
+            }
+        }
+        if (removed != null) {
+            deleteFile(removed.file);
+        }
+    }
+
+    /**
+     * Local Pearson's files are mapped, which keeps them readable after they are unlinked; where a mapped file
+     * can not be deleted (Windows) it is left for exit.
+     */
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static class PearsonsFile {
+        private final MatrixZoomData zd;
+        private final NormalizationType type;
+        private final BasicMatrix pearsons;
+        private final File file;
+
+        PearsonsFile(MatrixZoomData zd, NormalizationType type, BasicMatrix pearsons, File file) {
+            this.zd = zd;
+            this.type = type;
+            this.pearsons = pearsons;
+            this.file = file;
+        }
+    }
+
     private RealMatrix getSubsetOfMatrix(int[] newPosToOrig, int subsetN, BasicMatrix pearsons) {
         double[][] data = new double[subsetN][subsetN];
 
@@ -782,11 +1011,12 @@ public class MatrixZoomData {
 
     /**
      * Returns the Pearson's matrix; read if available (currently commented out), calculate if small enough.
+     * Synchronized so that tiles rendering in parallel compute it only once.
      *
      * @param df Expected values
      * @return Pearson's matrix or null if not able to calculate or read
      */
-    public BasicMatrix getPearsons(ExpectedValueFunction df) {
+    public synchronized BasicMatrix getPearsons(ExpectedValueFunction df) {
         boolean readPearsons = false; // check if were able to read in
         // try to get from local cache
         BasicMatrix pearsons = pearsonsMap.get(df.getNormalizationType());
@@ -796,8 +1026,15 @@ public class MatrixZoomData {
         // we weren't able to read in the Pearsons. check that the resolution is low enough to calculate
         if (!readPearsons && (zoom.getUnit() == HiC.Unit.BP && zoom.getBinSize() >= HiCGlobals.MAX_PEARSON_ZOOM) ||
                 (zoom.getUnit() == HiC.Unit.FRAG && zoom.getBinSize() >= HiCGlobals.MAX_PEARSON_ZOOM/1000)) {
-            pearsons = computePearsons(df);
-            pearsonsMap.put(df.getNormalizationType(), pearsons);
+            if (getPearsonsDimension() <= HiCGlobals.MAX_IN_MEMORY_PEARSON_DIM) {
+                pearsons = computePearsons(df);
+            } else {
+                pearsons = computeDiskResidentPearsons(df);
+            }
+            if (pearsons != null) {
+                removePearsons(df.getNormalizationType());
+                pearsonsMap.put(df.getNormalizationType(), pearsons);
+            }
         }
 
         return pearsonsMap.get(df.getNormalizationType());
@@ -832,26 +1069,14 @@ public class MatrixZoomData {
             throw new RuntimeException("Cannot compute pearsons for non-diagonal matrices");
         }
 
-        int dim;
-        if (zoom.getUnit() == HiC.Unit.BP) {
-            dim = (int) (chr1.getLength() / zoom.getBinSize()) + 1;
-        } else {
-            dim = ((DatasetReaderV2) reader).getFragCount(chr1) / zoom.getBinSize() + 1;
-        }
+        int dim = getPearsonsDimension();
 
         // Compute O/E column vectors
         double[][] oeMatrix = new double[dim][dim];
         BitSet bitSet = new BitSet(dim);
         populateOEMatrixAndBitset(oeMatrix, bitSet, df);
 
-        BasicMatrix pearsons;
-        if (HiCGlobals.guiIsCurrentlyActive) { // todo ask Neva
-            pearsons = Pearsons.computeParallelizedPearsons(oeMatrix, dim, bitSet);
-        } else {
-            pearsons = Pearsons.computePearsons(oeMatrix, dim, bitSet);
-        }
-        pearsonsMap.put(df.getNormalizationType(), pearsons);
-        return pearsons;
+        return Pearsons.computePearsons(oeMatrix, dim, bitSet);
     }
 
     private void populateOEMatrixAndBitset(double[][] oeMatrix, BitSet bitSet, ExpectedValueFunction df) {
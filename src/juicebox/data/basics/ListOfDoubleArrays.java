@@ -30,15 +30,24 @@ import java.util.List;
 
 /**
  * can't use <T> because we need to instantiate the array, otherwise that would have been nice
+ * <p/>
+ * Vectors of at least HiCGlobals.OFF_HEAP_VECTOR_THRESHOLD entries are stored off-heap;
+ * for those, getValues() returns a copy
  */
-public class ListOfDoubleArrays {
+public class ListOfDoubleArrays implements AutoCloseable {
 	
 	private final long DEFAULT_LENGTH = Integer.MAX_VALUE - 10;
 	private final long overallLength;
 	private final List<double[]> internalList = new ArrayList<>();
+	private final OffHeapStorage offHeap;
 	
 	public ListOfDoubleArrays(long length) {
 		this.overallLength = length;
+		if (OffHeapStorage.shouldUse(length)) {
+			offHeap = new OffHeapStorage(length, 8);
+			return;
+		}
+		offHeap = null;
 		long tempLength = length;
 		while (tempLength > 0) {
 			if (tempLength < DEFAULT_LENGTH) {
@@ -53,6 +62,14 @@ public class ListOfDoubleArrays {
 	
 	public ListOfDoubleArrays(long totSize, double defaultValue) {
 		this(totSize);
+		if (offHeap != null) {
+			if (defaultValue != 0) {
+				for (long i = 0; i < overallLength; i++) {
+					offHeap.putDouble(i, defaultValue);
+				}
+			}
+			return;
+		}
 		for (double[] array : internalList) {
 			Arrays.fill(array, defaultValue);
 		}
@@ -60,10 +77,27 @@ public class ListOfDoubleArrays {
 	
 	public void clear() {
 		internalList.clear();
+		if (offHeap != null) {
+			offHeap.clear();
+		}
+	}
+
+	/**
+	 * Frees off-heap storage right away rather than when the vector is garbage collected
+	 */
+	@Override
+	public void close() {
+		internalList.clear();
+		if (offHeap != null) {
+			offHeap.close();
+		}
 	}
 	
 	public double get(long index) {
 		if (index < overallLength) {
+			if (offHeap != null) {
+				return offHeap.getDouble(index);
+			}
 			int pseudoRow = (int) (index / DEFAULT_LENGTH);
 			int pseudoCol = (int) (index % DEFAULT_LENGTH);
 			return internalList.get(pseudoRow)[pseudoCol];
@@ -77,6 +111,10 @@ public class ListOfDoubleArrays {
 	
 	public void set(long index, double value) {
 		if (index < overallLength) {
+			if (offHeap != null) {
+				offHeap.putDouble(index, value);
+				return;
+			}
 			int pseudoRow = (int) (index / DEFAULT_LENGTH);
 			int pseudoCol = (int) (index % DEFAULT_LENGTH);
 			internalList.get(pseudoRow)[pseudoCol] = value;
@@ -89,16 +127,38 @@ public class ListOfDoubleArrays {
 		return overallLength;
 	}
 	
+	boolean isOffHeap() {
+		return offHeap != null;
+	}
+	
 	public ListOfDoubleArrays deepClone() {
 		ListOfDoubleArrays clone = new ListOfDoubleArrays(overallLength);
+		if (offHeap != null || clone.offHeap != null) {
+			clone.copyFrom(this);
+			return clone;
+		}
 		for (int k = 0; k < internalList.size(); k++) {
 			System.arraycopy(internalList.get(k), 0, clone.internalList.get(k), 0, internalList.get(k).length);
 		}
 		return clone;
 	}
 	
+	private void copyFrom(ListOfDoubleArrays other) {
+		if (offHeap != null && other.offHeap != null) {
+			offHeap.copyFrom(other.offHeap);
+		} else {
+			for (long i = 0; i < overallLength; i++) {
+				set(i, other.get(i));
+			}
+		}
+	}
+	
 	public void divideBy(long index, double value) {
 		if (index < overallLength) {
+			if (offHeap != null) {
+				offHeap.putDouble(index, offHeap.getDouble(index) / value);
+				return;
+			}
 			int pseudoRow = (int) (index / DEFAULT_LENGTH);
 			int pseudoCol = (int) (index % DEFAULT_LENGTH);
 			internalList.get(pseudoRow)[pseudoCol] /= value;
@@ -109,6 +169,10 @@ public class ListOfDoubleArrays {
 	
 	public void multiplyBy(long index, double value) {
 		if (index < overallLength) {
+			if (offHeap != null) {
+				offHeap.putDouble(index, offHeap.getDouble(index) * value);
+				return;
+			}
 			int pseudoRow = (int) (index / DEFAULT_LENGTH);
 			int pseudoCol = (int) (index % DEFAULT_LENGTH);
 			internalList.get(pseudoRow)[pseudoCol] *= value;
@@ -119,6 +183,10 @@ public class ListOfDoubleArrays {
 	
 	public void addTo(long index, double value) {
 		if (index < overallLength) {
+			if (offHeap != null) {
+				offHeap.putDouble(index, offHeap.getDouble(index) + value);
+				return;
+			}
 			int pseudoRow = (int) (index / DEFAULT_LENGTH);
 			int pseudoCol = (int) (index % DEFAULT_LENGTH);
 			try {
@@ -136,6 +204,12 @@ public class ListOfDoubleArrays {
 	
 	public void addValuesFrom(ListOfDoubleArrays other) {
 		if (overallLength == other.overallLength) {
+			if (offHeap != null || other.offHeap != null) {
+				for (long i = 0; i < overallLength; i++) {
+					addTo(i, other.get(i));
+				}
+				return;
+			}
 			for (int i = 0; i < internalList.size(); i++) {
 				for (int j = 0; j < internalList.get(i).length; j++) {
 					internalList.get(i)[j] += other.internalList.get(i)[j];
@@ -147,19 +221,34 @@ public class ListOfDoubleArrays {
 	}
 	
 	public double getFirstValue() {
+		if (offHeap != null) {
+			return offHeap.getDouble(0);
+		}
 		return internalList.get(0)[0];
 	}
 	
 	public double getLastValue() {
+		if (offHeap != null) {
+			return offHeap.getDouble(overallLength - 1);
+		}
 		double[] temp = internalList.get(internalList.size() - 1);
 		return temp[temp.length - 1];
 	}
 	
 	public List<double[]> getValues() {
+		if (offHeap != null) {
+			return offHeap.toDoubleArrays((int) DEFAULT_LENGTH);
+		}
 		return internalList;
 	}
 	
 	public void multiplyEverythingBy(double val) {
+		if (offHeap != null) {
+			for (long i = 0; i < overallLength; i++) {
+				offHeap.putDouble(i, offHeap.getDouble(i) * val);
+			}
+			return;
+		}
 		for (double[] array : internalList) {
 			for (int k = 0; k < array.length; k++) {
 				array[k] *= val;
@@ -169,6 +258,12 @@ public class ListOfDoubleArrays {
 
 	public ListOfFloatArrays convertToFloats() {
 		ListOfFloatArrays newList = new ListOfFloatArrays(overallLength);
+		if (offHeap != null || newList.isOffHeap()) {
+			for (long i = 0; i < overallLength; i++) {
+				newList.set(i, (float) get(i));
+			}
+			return newList;
+		}
 		for (int j = 0; j < internalList.size(); j++) {
 			for (int k = 0; k < internalList.get(j).length; k++) {
 				newList.getValues().get(j)[k] = (float) internalList.get(j)[k];
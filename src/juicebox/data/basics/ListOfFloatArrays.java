@@ -30,15 +30,24 @@ import java.util.List;
 
 /**
  * can't use <T> because we need to instantiate the array, otherwise that would have been nice
+ * <p/>
+ * Vectors of at least HiCGlobals.OFF_HEAP_VECTOR_THRESHOLD entries are stored off-heap;
+ * for those, getValues() returns a copy
  */
-public class ListOfFloatArrays {
+public class ListOfFloatArrays implements AutoCloseable {
 
     private final long DEFAULT_LENGTH = Integer.MAX_VALUE - 10;
     private final long overallLength;
     private final List<float[]> internalList = new ArrayList<>();
+    private final OffHeapStorage offHeap;
 
     public ListOfFloatArrays(long length) {
         this.overallLength = length;
+        if (OffHeapStorage.shouldUse(length)) {
+            offHeap = new OffHeapStorage(length, 4);
+            return;
+        }
+        offHeap = null;
         long tempLength = length;
         while (tempLength > 0) {
             if (tempLength < DEFAULT_LENGTH) {
@@ -53,6 +62,14 @@ public class ListOfFloatArrays {
 
     public ListOfFloatArrays(long totSize, float defaultValue) {
         this(totSize);
+        if (offHeap != null) {
+            if (defaultValue != 0) {
+                for (long i = 0; i < overallLength; i++) {
+                    offHeap.putFloat(i, defaultValue);
+                }
+            }
+            return;
+        }
         for (float[] array : internalList) {
             Arrays.fill(array, defaultValue);
         }
@@ -60,10 +77,27 @@ public class ListOfFloatArrays {
 
     public void clear() {
         internalList.clear();
+        if (offHeap != null) {
+            offHeap.clear();
+        }
+    }
+
+    /**
+     * Frees off-heap storage right away rather than when the vector is garbage collected
+     */
+    @Override
+    public void close() {
+        internalList.clear();
+        if (offHeap != null) {
+            offHeap.close();
+        }
     }
 
     public float get(long index) {
         if (index < overallLength) {
+            if (offHeap != null) {
+                return offHeap.getFloat(index);
+            }
             int pseudoRow = (int) (index / DEFAULT_LENGTH);
             int pseudoCol = (int) (index % DEFAULT_LENGTH);
             return internalList.get(pseudoRow)[pseudoCol];
@@ -77,6 +111,10 @@ public class ListOfFloatArrays {
 
     public void set(long index, float value) {
         if (index < overallLength) {
+            if (offHeap != null) {
+                offHeap.putFloat(index, value);
+                return;
+            }
             int pseudoRow = (int) (index / DEFAULT_LENGTH);
             int pseudoCol = (int) (index % DEFAULT_LENGTH);
             internalList.get(pseudoRow)[pseudoCol] = value;
@@ -89,9 +127,22 @@ public class ListOfFloatArrays {
         return overallLength;
     }
 
+    boolean isOffHeap() {
+        return offHeap != null;
+    }
+
     public long getMaxRow() {
         long maxIndex = 0;
         float maxVal = 0;
+        if (offHeap != null) {
+            for (long index = 0; index < overallLength; index++) {
+                if (maxVal < offHeap.getFloat(index)) {
+                    maxVal = offHeap.getFloat(index);
+                    maxIndex = index;
+                }
+            }
+            return maxIndex;
+        }
         for (int index = 0; index < overallLength; index++) {
             int pseudoRow = (int) (index / DEFAULT_LENGTH);
             int pseudoCol = (int) (index % DEFAULT_LENGTH);
@@ -105,14 +156,32 @@ public class ListOfFloatArrays {
 
     public ListOfFloatArrays deepClone() {
         ListOfFloatArrays clone = new ListOfFloatArrays(overallLength);
+        if (offHeap != null || clone.offHeap != null) {
+            clone.copyFrom(this);
+            return clone;
+        }
         for (int k = 0; k < internalList.size(); k++) {
             System.arraycopy(internalList.get(k), 0, clone.internalList.get(k), 0, internalList.get(k).length);
         }
         return clone;
     }
 
+    private void copyFrom(ListOfFloatArrays other) {
+        if (offHeap != null && other.offHeap != null) {
+            offHeap.copyFrom(other.offHeap);
+        } else {
+            for (long i = 0; i < overallLength; i++) {
+                set(i, other.get(i));
+            }
+        }
+    }
+
     public void divideBy(long index, float value) {
         if (index < overallLength) {
+            if (offHeap != null) {
+                offHeap.putFloat(index, offHeap.getFloat(index) / value);
+                return;
+            }
             int pseudoRow = (int) (index / DEFAULT_LENGTH);
             int pseudoCol = (int) (index % DEFAULT_LENGTH);
             internalList.get(pseudoRow)[pseudoCol] /= value;
@@ -123,6 +192,10 @@ public class ListOfFloatArrays {
 
     public void multiplyBy(long index, float value) {
         if (index < overallLength) {
+            if (offHeap != null) {
+                offHeap.putFloat(index, offHeap.getFloat(index) * value);
+                return;
+            }
             int pseudoRow = (int) (index / DEFAULT_LENGTH);
             int pseudoCol = (int) (index % DEFAULT_LENGTH);
             internalList.get(pseudoRow)[pseudoCol] *= value;
@@ -133,6 +206,10 @@ public class ListOfFloatArrays {
 
     public void addTo(long index, float value) {
         if (index < overallLength) {
+            if (offHeap != null) {
+                offHeap.putFloat(index, offHeap.getFloat(index) + value);
+                return;
+            }
             int pseudoRow = (int) (index / DEFAULT_LENGTH);
             int pseudoCol = (int) (index % DEFAULT_LENGTH);
             try {
@@ -150,6 +227,12 @@ public class ListOfFloatArrays {
 
     public void addValuesFrom(ListOfFloatArrays other) {
         if (overallLength == other.overallLength) {
+            if (offHeap != null || other.offHeap != null) {
+                for (long i = 0; i < overallLength; i++) {
+                    addTo(i, other.get(i));
+                }
+                return;
+            }
             for (int i = 0; i < internalList.size(); i++) {
                 for (int j = 0; j < internalList.get(i).length; j++) {
                     internalList.get(i)[j] += other.internalList.get(i)[j];
@@ -161,19 +244,34 @@ public class ListOfFloatArrays {
     }
 
     public float getFirstValue() {
+        if (offHeap != null) {
+            return offHeap.getFloat(0);
+        }
         return internalList.get(0)[0];
     }
 
     public float getLastValue() {
+        if (offHeap != null) {
+            return offHeap.getFloat(overallLength - 1);
+        }
         float[] temp = internalList.get(internalList.size() - 1);
         return temp[temp.length - 1];
     }
 
     public List<float[]> getValues() {
+        if (offHeap != null) {
+            return offHeap.toFloatArrays((int) DEFAULT_LENGTH);
+        }
         return internalList;
     }
 
     public void multiplyEverythingBy(double val) {
+        if (offHeap != null) {
+            for (long i = 0; i < overallLength; i++) {
+                offHeap.putFloat(i, (float) (offHeap.getFloat(i) * val));
+            }
+            return;
+        }
         for (float[] array : internalList) {
             for (int k = 0; k < array.length; k++) {
                 array[k] *= val;
@@ -183,6 +281,12 @@ public class ListOfFloatArrays {
 
     public ListOfDoubleArrays convertToDoubles() {
         ListOfDoubleArrays newList = new ListOfDoubleArrays(overallLength);
+        if (offHeap != null || newList.isOffHeap()) {
+            for (long i = 0; i < overallLength; i++) {
+                newList.set(i, get(i));
+            }
+            return newList;
+        }
         for (int j = 0; j < internalList.size(); j++) {
             for (int k = 0; k < internalList.get(j).length; k++) {
                 newList.getValues().get(j)[k] = internalList.get(j)[k];
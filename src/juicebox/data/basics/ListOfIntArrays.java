@@ -30,15 +30,24 @@ import java.util.List;
 
 /**
  * can't use <T> because we need to instantiate the array, otherwise that would have been nice
+ * <p/>
+ * Vectors of at least HiCGlobals.OFF_HEAP_VECTOR_THRESHOLD entries are stored off-heap;
+ * for those, getValues() returns a copy
  */
-public class ListOfIntArrays {
+public class ListOfIntArrays implements AutoCloseable {
 	
 	private final int DEFAULT_LENGTH = Integer.MAX_VALUE - 10;
 	private final long overallLength;
 	private final List<int[]> internalList = new ArrayList<>();
+	private final OffHeapStorage offHeap;
 	
 	public ListOfIntArrays(long length) {
 		this.overallLength = length;
+		if (OffHeapStorage.shouldUse(length)) {
+			offHeap = new OffHeapStorage(length, 4);
+			return;
+		}
+		offHeap = null;
 		long tempLength = length;
 		while (tempLength > 0) {
 			if (tempLength < DEFAULT_LENGTH) {
@@ -53,6 +62,14 @@ public class ListOfIntArrays {
 	
 	public ListOfIntArrays(long totSize, int defaultValue) {
 		this(totSize);
+		if (offHeap != null) {
+			if (defaultValue != 0) {
+				for (long i = 0; i < overallLength; i++) {
+					offHeap.putInt(i, defaultValue);
+				}
+			}
+			return;
+		}
 		for (int[] array : internalList) {
 			Arrays.fill(array, defaultValue);
 		}
@@ -60,10 +77,27 @@ public class ListOfIntArrays {
 	
 	public void clear() {
 		internalList.clear();
+		if (offHeap != null) {
+			offHeap.clear();
+		}
+	}
+
+	/**
+	 * Frees off-heap storage right away rather than when the vector is garbage collected
+	 */
+	@Override
+	public void close() {
+		internalList.clear();
+		if (offHeap != null) {
+			offHeap.close();
+		}
 	}
 	
 	public int get(long index) {
 		if (index < overallLength) {
+			if (offHeap != null) {
+				return offHeap.getInt(index);
+			}
 			int pseudoRow = (int) (index / DEFAULT_LENGTH);
 			int pseudoCol = (int) (index % DEFAULT_LENGTH);
 			return internalList.get(pseudoRow)[pseudoCol];
@@ -76,6 +110,10 @@ public class ListOfIntArrays {
 	public void set(long index, int value) {
 		long tempIndex = index;
 		if (index < overallLength) {
+			if (offHeap != null) {
+				offHeap.putInt(index, value);
+				return;
+			}
 			int pseudoRow = (int) (index / DEFAULT_LENGTH);
 			int pseudoCol = (int) (index % DEFAULT_LENGTH);
 			internalList.get(pseudoRow)[pseudoCol] = value;
@@ -92,6 +130,16 @@ public class ListOfIntArrays {
 	
 	public ListOfIntArrays deepClone() {
 		ListOfIntArrays clone = new ListOfIntArrays(overallLength);
+		if (offHeap != null || clone.offHeap != null) {
+			if (offHeap != null && clone.offHeap != null) {
+				clone.offHeap.copyFrom(offHeap);
+			} else {
+				for (long i = 0; i < overallLength; i++) {
+					clone.set(i, get(i));
+				}
+			}
+			return clone;
+		}
 		for (int k = 0; k < internalList.size(); k++) {
 			System.arraycopy(internalList.get(k), 0, clone.internalList.get(k), 0, internalList.get(k).length);
 		}
@@ -100,6 +148,10 @@ public class ListOfIntArrays {
 	
 	public void divideBy(long index, int value) {
 		if (index < overallLength) {
+			if (offHeap != null) {
+				offHeap.putInt(index, offHeap.getInt(index) / value);
+				return;
+			}
 			int pseudoRow = (int) (index / DEFAULT_LENGTH);
 			int pseudoCol = (int) (index % DEFAULT_LENGTH);
 			internalList.get(pseudoRow)[pseudoCol] /= value;
@@ -112,6 +164,12 @@ public class ListOfIntArrays {
 	
 	public void addValuesFrom(ListOfIntArrays other) {
 		if (overallLength == other.overallLength) {
+			if (offHeap != null || other.offHeap != null) {
+				for (long i = 0; i < overallLength; i++) {
+					addTo(i, other.get(i));
+				}
+				return;
+			}
 			for (int i = 0; i < internalList.size(); i++) {
 				for (int j = 0; j < internalList.get(i).length; j++) {
 					internalList.get(i)[j] += other.internalList.get(i)[j];
@@ -124,6 +182,10 @@ public class ListOfIntArrays {
 	
 	public void addTo(long index, int value) {
 		if (index < overallLength) {
+			if (offHeap != null) {
+				offHeap.putInt(index, offHeap.getInt(index) + value);
+				return;
+			}
 			int pseudoRow = (int) (index / DEFAULT_LENGTH);
 			int pseudoCol = (int) (index % DEFAULT_LENGTH);
 			internalList.get(pseudoRow)[pseudoCol] += value;
@@ -133,6 +195,9 @@ public class ListOfIntArrays {
 	}
 	
 	public List<int[]> getValues() {
+		if (offHeap != null) {
+			return offHeap.toIntArrays(DEFAULT_LENGTH);
+		}
 		return internalList;
 	}
 }
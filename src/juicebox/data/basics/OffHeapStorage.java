@@ -0,0 +1,226 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.data.basics;
+
+import juicebox.HiCGlobals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Backing for very large ListOf*Arrays vectors (e.g. genome-wide norm, row sum, and offset vectors at
+ * high resolution) outside of the java heap, so they don't fill the old generation and drag out full GCs.
+ * Uses direct buffers, or a memory-mapped temporary file if HiCGlobals.OFF_HEAP_VECTOR_DIRECTORY is set.
+ * Only absolute gets and puts are used, so distinct indices can be written from different threads.
+ * <p>
+ * close() frees the buffers right away; otherwise the JDK frees them once the vector is garbage collected.
+ * Mapped files are unlinked as soon as they are mapped, so their disk space goes with the mapping rather than
+ * staying until the JVM exits.
+ */
+class OffHeapStorage {
+
+    private static final int ELEMENTS_PER_CHUNK = 1 << 27;
+    private final int bytesPerElement;
+    private final long length;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+
+    OffHeapStorage(long length, int bytesPerElement) {
+        this.length = length;
+        this.bytesPerElement = bytesPerElement;
+        if (HiCGlobals.OFF_HEAP_VECTOR_DIRECTORY != null) {
+            try {
+                mapChunks();
+                return;
+            } catch (IOException e) {
+                System.err.println("Unable to memory-map vector in " + HiCGlobals.OFF_HEAP_VECTOR_DIRECTORY + ", using direct memory: " + e.getLocalizedMessage());
+                chunks.clear();
+            }
+        }
+        for (long start = 0; start < length; start += ELEMENTS_PER_CHUNK) {
+            chunks.add(ByteBuffer.allocateDirect(getChunkBytes(start)).order(ByteOrder.nativeOrder()));
+        }
+    }
+
+    static boolean shouldUse(long length) {
+        return length >= HiCGlobals.OFF_HEAP_VECTOR_THRESHOLD;
+    }
+
+    private void mapChunks() throws IOException {
+        File file = File.createTempFile("vector", "bin", HiCGlobals.OFF_HEAP_VECTOR_DIRECTORY);
+        // mappings stay valid after the channel is closed and the file is unlinked
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(length * bytesPerElement);
+            for (long start = 0; start < length; start += ELEMENTS_PER_CHUNK) {
+                chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, start * bytesPerElement,
+                        getChunkBytes(start)).order(ByteOrder.nativeOrder()));
+            }
+        } finally {
+            // not possible while mapped on some platforms (Windows)
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private int getChunkBytes(long start) {
+        return (int) (Math.min(ELEMENTS_PER_CHUNK, length - start) * bytesPerElement);
+    }
+
+    private ByteBuffer getChunk(long index) {
+        return chunks.get((int) (index / ELEMENTS_PER_CHUNK));
+    }
+
+    private int getByteOffset(long index) {
+        return (int) (index % ELEMENTS_PER_CHUNK) * bytesPerElement;
+    }
+
+    float getFloat(long index) {
+        return getChunk(index).getFloat(getByteOffset(index));
+    }
+
+    void putFloat(long index, float value) {
+        getChunk(index).putFloat(getByteOffset(index), value);
+    }
+
+    double getDouble(long index) {
+        return getChunk(index).getDouble(getByteOffset(index));
+    }
+
+    void putDouble(long index, double value) {
+        getChunk(index).putDouble(getByteOffset(index), value);
+    }
+
+    int getInt(long index) {
+        return getChunk(index).getInt(getByteOffset(index));
+    }
+
+    void putInt(long index, int value) {
+        getChunk(index).putInt(getByteOffset(index), value);
+    }
+
+    void copyFrom(OffHeapStorage other) {
+        for (int k = 0; k < chunks.size(); k++) {
+            ByteBuffer destination = chunks.get(k).duplicate();
+            ByteBuffer source = other.chunks.get(k).duplicate();
+            destination.clear();
+            source.clear();
+            destination.put(source);
+        }
+    }
+
+    /**
+     * Copy into heap arrays with the same layout as the on-heap ListOf*Arrays
+     */
+    List<float[]> toFloatArrays(int arrayLength) {
+        List<float[]> arrays = new ArrayList<>();
+        for (long start = 0; start < length; start += arrayLength) {
+            float[] array = new float[(int) Math.min(arrayLength, length - start)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = getFloat(start + i);
+            }
+            arrays.add(array);
+        }
+        return arrays;
+    }
+
+    List<double[]> toDoubleArrays(int arrayLength) {
+        List<double[]> arrays = new ArrayList<>();
+        for (long start = 0; start < length; start += arrayLength) {
+            double[] array = new double[(int) Math.min(arrayLength, length - start)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = getDouble(start + i);
+            }
+            arrays.add(array);
+        }
+        return arrays;
+    }
+
+    List<int[]> toIntArrays(int arrayLength) {
+        List<int[]> arrays = new ArrayList<>();
+        for (long start = 0; start < length; start += arrayLength) {
+            int[] array = new int[(int) Math.min(arrayLength, length - start)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = getInt(start + i);
+            }
+            arrays.add(array);
+        }
+        return arrays;
+    }
+
+    void clear() {
+        chunks.clear();
+    }
+
+    /**
+     * Free the buffers now instead of when they are garbage collected; the storage can not be used afterwards
+     */
+    void close() {
+        for (ByteBuffer chunk : chunks) {
+            free(chunk);
+        }
+        chunks.clear();
+    }
+
+    /**
+     * Runs the cleaner of a direct or mapped buffer, as sun.misc.Unsafe.invokeCleaner (java 9+) or
+     * DirectBuffer.cleaner().clean() (java 8); if neither is accessible the buffer is left to the collector
+     */
+    private static void free(ByteBuffer buffer) {
+        if (!buffer.isDirect()) return;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (NoSuchMethodException e) {
+            // java 8
+        } catch (Exception e) {
+            return;
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            if (HiCGlobals.printVerboseComments) {
+                System.err.println("Unable to free off-heap vector, leaving it to the garbage collector " + e.getLocalizedMessage());
+            }
+        }
+    }
+}
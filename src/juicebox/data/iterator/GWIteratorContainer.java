@@ -50,7 +50,7 @@ public class GWIteratorContainer extends IteratorContainer {
 
     }
 
-    private static long calculateMatrixSize(ChromosomeHandler handler, HiCZoom zoom) {
+    static long calculateMatrixSize(ChromosomeHandler handler, HiCZoom zoom) {
         long totalSize = 0;
         for (Chromosome c1 : handler.getChromosomeArrayWithoutAllByAll()) {
             totalSize += (c1.getLength() / zoom.getBinSize()) + 1;
@@ -25,8 +25,13 @@
 package juicebox.data.iterator;
 
 import juicebox.data.ContactRecord;
+import juicebox.data.basics.ListOfDoubleArrays;
+import juicebox.data.basics.ListOfFloatArrays;
+import juicebox.data.basics.ListOfIntArrays;
 
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 public abstract class IteratorContainer {
 
@@ -56,6 +61,14 @@ public abstract class IteratorContainer {
         return numberOfContactRecords;
     }
 
+    /**
+     * Split the contact records into independent iterators that can be consumed on separate threads;
+     * containers that cannot be split return a single iterator over everything
+     */
+    public List<Iterator<ContactRecord>> getPartitionedIterators(int numPartitions) {
+        return Collections.singletonList(getNewContactRecordIterator());
+    }
+
     public long getMatrixSize() {
         return matrixSize;
     }
@@ -66,4 +79,53 @@ public abstract class IteratorContainer {
         // float is 4 bytes; one for each row
         return matrixSize * 4 < Runtime.getRuntime().maxMemory();
     }
+
+    /**
+     * Multiply the (symmetric) matrix by the vector; contacts off the diagonal
+     * contribute to both their row and their column
+     */
+    public ListOfFloatArrays sparseMultiply(ListOfFloatArrays vector, long vectorLength) {
+        ListOfFloatArrays sumVector = new ListOfFloatArrays(vectorLength);
+
+        Iterator<ContactRecord> iterator = getNewContactRecordIterator();
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            int x = cr.getBinX();
+            int y = cr.getBinY();
+            float counts = cr.getCounts();
+            if (x == y) {
+                counts *= .5;
+            }
+
+            sumVector.addTo(x, counts * vector.get(y));
+            sumVector.addTo(y, counts * vector.get(x));
+        }
+
+        return sumVector;
+    }
+
+    /**
+     * Multiply the submatrix of rows/columns with a non-negative offset by the vector,
+     * with indices remapped through the offset
+     */
+    public ListOfDoubleArrays sparseMultiply(ListOfIntArrays offset, ListOfDoubleArrays vector) {
+        ListOfDoubleArrays result = new ListOfDoubleArrays(vector.getLength());
+
+        Iterator<ContactRecord> iterator = getNewContactRecordIterator();
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            int row = offset.get(cr.getBinX());
+            int col = offset.get(cr.getBinY());
+            float value = cr.getCounts();
+
+            if (row != -1 && col != -1) {
+                result.addTo(row, vector.get(col) * value);
+                if (row != col) {
+                    result.addTo(col, vector.get(row) * value);
+                }
+            }
+        }
+
+        return result;
+    }
 }
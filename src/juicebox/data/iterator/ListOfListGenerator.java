@@ -46,6 +46,25 @@ public class ListOfListGenerator {
         return tryToCreateIteratorInRAM(ic);
     }
 
+    public static IteratorContainer createForWholeGenome(Dataset dataset, ChromosomeHandler chromosomeHandler,
+                                                         HiCZoom zoom, boolean includeIntraData, int numCPUThreads) {
+        if (numCPUThreads > 1 && !HiCGlobals.USE_ITERATOR_NOT_ALL_IN_RAM) {
+            // same checks and fallback to the streaming iterator as tryToCreateIteratorInRAM
+            IteratorContainer ic0 = new GWIteratorContainer(dataset, chromosomeHandler, zoom, includeIntraData);
+            if (HiCGlobals.CHECK_RAM_USAGE && !checkMemory(ic0)) {
+                return ic0;
+            }
+            try {
+                return new ParallelGWIteratorContainer(dataset, chromosomeHandler, zoom, includeIntraData, numCPUThreads);
+            } catch (Exception e) {
+                System.err.println(e.getLocalizedMessage());
+                System.err.println("Will use default iterator");
+                return ic0;
+            }
+        }
+        return createForWholeGenome(dataset, chromosomeHandler, zoom, includeIntraData);
+    }
+
     private static IteratorContainer tryToCreateIteratorInRAM(IteratorContainer ic0) {
         if (HiCGlobals.USE_ITERATOR_NOT_ALL_IN_RAM) {
             return ic0;
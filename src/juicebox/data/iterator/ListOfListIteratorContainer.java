@@ -26,6 +26,7 @@ package juicebox.data.iterator;
 
 import juicebox.data.ContactRecord;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -45,6 +46,35 @@ public class ListOfListIteratorContainer extends IteratorContainer {
         return new ListOfListIterator(allContactRecords);
     }
 
+    /**
+     * Partitions are views over consecutive ranges of the records, so nothing is copied
+     */
+    @Override
+    public List<Iterator<ContactRecord>> getPartitionedIterators(int numPartitions) {
+        long partitionSize = Math.max(1, (getNumberOfContactRecords() + numPartitions - 1) / numPartitions);
+        List<Iterator<ContactRecord>> iterators = new ArrayList<>();
+        List<List<ContactRecord>> partition = new ArrayList<>();
+        long partitionCount = 0;
+        for (List<ContactRecord> records : allContactRecords) {
+            int start = 0;
+            while (start < records.size()) {
+                int end = (int) Math.min(records.size(), start + partitionSize - partitionCount);
+                partition.add(records.subList(start, end));
+                partitionCount += end - start;
+                start = end;
+                if (partitionCount == partitionSize) {
+                    iterators.add(new ListOfListIterator(partition));
+                    partition = new ArrayList<>();
+                    partitionCount = 0;
+                }
+            }
+        }
+        if (partitionCount > 0) {
+            iterators.add(new ListOfListIterator(partition));
+        }
+        return iterators;
+    }
+
     @Override
     public boolean getIsThereEnoughMemoryForNormCalculation() {
         // float is 4 bytes; one for each row (row sums)
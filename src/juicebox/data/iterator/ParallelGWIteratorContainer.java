@@ -0,0 +1,321 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.data.iterator;
+
+import juicebox.HiCGlobals;
+import juicebox.data.ChromosomeHandler;
+import juicebox.data.ContactRecord;
+import juicebox.data.Dataset;
+import juicebox.data.HiCFileTools;
+import juicebox.data.MatrixZoomData;
+import juicebox.data.basics.Chromosome;
+import juicebox.data.basics.ListOfDoubleArrays;
+import juicebox.data.basics.ListOfFloatArrays;
+import juicebox.data.basics.ListOfIntArrays;
+import juicebox.tools.dev.ParallelizedJuicerTools;
+import juicebox.windowui.HiCZoom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Genome-wide container which loads every chromosome pair concurrently into primitive
+ * arrays (already shifted to genome-wide bin coordinates), so that the repeated
+ * matrix-vector products of the balancing algorithms can be split across threads.
+ * <p>
+ * Records are iterated in the same order as {@link GenomeWideIterator}.
+ */
+public class ParallelGWIteratorContainer extends IteratorContainer {
+
+    private static final int MAX_CHUNK_SIZE = 10000000;
+    private final int numCPUThreads;
+    private final List<ContactChunk> chunks = new ArrayList<>();
+
+    public ParallelGWIteratorContainer(Dataset dataset, ChromosomeHandler handler,
+                                       HiCZoom zoom, boolean includeIntra, int numCPUThreads) {
+        super(GWIteratorContainer.calculateMatrixSize(handler, zoom));
+        this.numCPUThreads = numCPUThreads;
+
+        Chromosome[] chromosomes = handler.getChromosomeArrayWithoutAllByAll();
+        int[] offsets = new int[chromosomes.length];
+        for (int i = 1; i < chromosomes.length; i++) {
+            offsets[i] = offsets[i - 1] + (int) (chromosomes[i - 1].getLength() / zoom.getBinSize()) + 1;
+        }
+
+        // matrix headers are read up front since the dataset's matrix map isn't thread safe
+        final List<PairToLoad> pairs = new ArrayList<>();
+        for (int i = 0; i < chromosomes.length; i++) {
+            for (int j = 0; j < chromosomes.length; j++) {
+                Chromosome c1 = chromosomes[i];
+                Chromosome c2 = chromosomes[j];
+                if (c1.getIndex() < c2.getIndex() || (c1.equals(c2) && includeIntra)) {
+                    MatrixZoomData zd = HiCFileTools.getMatrixZoomData(dataset, c1, c2, zoom);
+                    if (zd != null) {
+                        pairs.add(new PairToLoad(c1.getName() + "-" + c2.getName(), zd, offsets[i], offsets[j]));
+                    }
+                }
+            }
+        }
+
+        final List<List<ContactChunk>> loadedChunks = new ArrayList<>(pairs.size());
+        for (int i = 0; i < pairs.size(); i++) {
+            loadedChunks.add(null);
+        }
+        final AtomicInteger pairIndex = new AtomicInteger(0);
+        final AtomicInteger numPairsDone = new AtomicInteger(0);
+        final AtomicLong numRecords = new AtomicLong(0);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        ParallelizedJuicerTools.launchParallelizedCode(numCPUThreads, () -> {
+            int i = pairIndex.getAndIncrement();
+            while (i < pairs.size() && failure.get() == null) {
+                long currentTime = System.currentTimeMillis();
+                PairToLoad pair = pairs.get(i);
+                List<ContactChunk> pairChunks;
+                try {
+                    pairChunks = pair.load();
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    // the other workers stop at their next pair; rethrown below, so the caller can fall back
+                    // to streaming the records
+                    failure.compareAndSet(null, new RuntimeException("Error loading " + pair.name, e));
+                    return;
+                }
+                synchronized (loadedChunks) {
+                    loadedChunks.set(i, pairChunks);
+                }
+                long numPairRecords = 0;
+                for (ContactChunk chunk : pairChunks) {
+                    numPairRecords += chunk.size;
+                }
+                numRecords.addAndGet(numPairRecords);
+                int numDone = numPairsDone.incrementAndGet();
+                if (HiCGlobals.printVerboseComments) {
+                    System.out.println("Loaded " + pair.name + " (" + numDone + "/" + pairs.size() + ") with "
+                            + numPairRecords + " records in " + (System.currentTimeMillis() - currentTime) + " milliseconds");
+                } else {
+                    System.out.print(".");
+                }
+                i = pairIndex.getAndIncrement();
+            }
+        });
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        for (int i = 0; i < pairs.size(); i++) {
+            if (loadedChunks.get(i) == null) {
+                // e.g. a worker that ran out of memory
+                throw new RuntimeException("Error loading " + pairs.get(i).name);
+            }
+            chunks.addAll(loadedChunks.get(i));
+        }
+        setNumberOfContactRecords(numRecords.get());
+    }
+
+    @Override
+    public Iterator<ContactRecord> getNewContactRecordIterator() {
+        return new ChunkIterator();
+    }
+
+    @Override
+    public boolean getIsThereEnoughMemoryForNormCalculation() {
+        // float is 4 bytes; one for each row (row sums)
+        // 12 bytes (2 ints, 1 float) for contact record
+        return 4 * getMatrixSize() + 12 * getNumberOfContactRecords() < Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * Each worker accumulates the product of its share of the chunks in its own vector;
+     * these are summed at the end, so no locking is needed while multiplying.
+     */
+    @Override
+    public ListOfFloatArrays sparseMultiply(ListOfFloatArrays vector, long vectorLength) {
+        final List<ListOfFloatArrays> partialSums = new ArrayList<>();
+        final AtomicInteger chunkIndex = new AtomicInteger(0);
+
+        ParallelizedJuicerTools.launchParallelizedCode(numCPUThreads, () -> {
+            ListOfFloatArrays sumVector = new ListOfFloatArrays(vectorLength);
+            int i = chunkIndex.getAndIncrement();
+            while (i < chunks.size()) {
+                chunks.get(i).multiply(vector, sumVector);
+                i = chunkIndex.getAndIncrement();
+            }
+            synchronized (partialSums) {
+                partialSums.add(sumVector);
+            }
+        });
+
+        ListOfFloatArrays sumVector = partialSums.get(0);
+        for (int k = 1; k < partialSums.size(); k++) {
+            try (ListOfFloatArrays partialSum = partialSums.get(k)) {
+                sumVector.addValuesFrom(partialSum);
+            }
+        }
+        return sumVector;
+    }
+
+    @Override
+    public ListOfDoubleArrays sparseMultiply(ListOfIntArrays offset, ListOfDoubleArrays vector) {
+        final List<ListOfDoubleArrays> partialSums = new ArrayList<>();
+        final AtomicInteger chunkIndex = new AtomicInteger(0);
+
+        ParallelizedJuicerTools.launchParallelizedCode(numCPUThreads, () -> {
+            ListOfDoubleArrays result = new ListOfDoubleArrays(vector.getLength());
+            int i = chunkIndex.getAndIncrement();
+            while (i < chunks.size()) {
+                chunks.get(i).multiply(offset, vector, result);
+                i = chunkIndex.getAndIncrement();
+            }
+            synchronized (partialSums) {
+                partialSums.add(result);
+            }
+        });
+
+        ListOfDoubleArrays result = partialSums.get(0);
+        for (int k = 1; k < partialSums.size(); k++) {
+            try (ListOfDoubleArrays partialSum = partialSums.get(k)) {
+                result.addValuesFrom(partialSum);
+            }
+        }
+        return result;
+    }
+
+    private static class PairToLoad {
+        private final String name;
+        private final MatrixZoomData zd;
+        private final int xOffset, yOffset;
+
+        PairToLoad(String name, MatrixZoomData zd, int xOffset, int yOffset) {
+            this.name = name;
+            this.zd = zd;
+            this.xOffset = xOffset;
+            this.yOffset = yOffset;
+        }
+
+        List<ContactChunk> load() {
+            List<ContactChunk> pairChunks = new ArrayList<>();
+            ContactChunk chunk = new ContactChunk();
+            Iterator<ContactRecord> iterator = zd.getIteratorContainer().getNewContactRecordIterator();
+            while (iterator.hasNext()) {
+                ContactRecord cr = iterator.next();
+                if (chunk.size == MAX_CHUNK_SIZE) {
+                    pairChunks.add(chunk.trim());
+                    chunk = new ContactChunk();
+                }
+                chunk.add(cr.getBinX() + xOffset, cr.getBinY() + yOffset, cr.getCounts());
+            }
+            if (chunk.size > 0) {
+                pairChunks.add(chunk.trim());
+            }
+            return pairChunks;
+        }
+    }
+
+    private static class ContactChunk {
+        private int[] binXs = new int[1024];
+        private int[] binYs = new int[1024];
+        private float[] counts = new float[1024];
+        private int size = 0;
+
+        void add(int binX, int binY, float value) {
+            if (size == counts.length) {
+                int newLength = (int) Math.min((long) counts.length * 2, MAX_CHUNK_SIZE);
+                binXs = Arrays.copyOf(binXs, newLength);
+                binYs = Arrays.copyOf(binYs, newLength);
+                counts = Arrays.copyOf(counts, newLength);
+            }
+            binXs[size] = binX;
+            binYs[size] = binY;
+            counts[size] = value;
+            size++;
+        }
+
+        ContactChunk trim() {
+            binXs = Arrays.copyOf(binXs, size);
+            binYs = Arrays.copyOf(binYs, size);
+            counts = Arrays.copyOf(counts, size);
+            return this;
+        }
+
+        void multiply(ListOfFloatArrays vector, ListOfFloatArrays sumVector) {
+            for (int p = 0; p < size; p++) {
+                int x = binXs[p];
+                int y = binYs[p];
+                float value = counts[p];
+                if (x == y) {
+                    value *= .5;
+                }
+                sumVector.addTo(x, value * vector.get(y));
+                sumVector.addTo(y, value * vector.get(x));
+            }
+        }
+
+        void multiply(ListOfIntArrays offset, ListOfDoubleArrays vector, ListOfDoubleArrays result) {
+            for (int p = 0; p < size; p++) {
+                int row = offset.get(binXs[p]);
+                int col = offset.get(binYs[p]);
+                float value = counts[p];
+                if (row != -1 && col != -1) {
+                    result.addTo(row, vector.get(col) * value);
+                    if (row != col) {
+                        result.addTo(col, vector.get(row) * value);
+                    }
+                }
+            }
+        }
+    }
+
+    private class ChunkIterator implements Iterator<ContactRecord> {
+        private int chunkIndex = 0;
+        private int recordIndex = 0;
+
+        @Override
+        public boolean hasNext() {
+            while (chunkIndex < chunks.size() && recordIndex >= chunks.get(chunkIndex).size) {
+                chunkIndex++;
+                recordIndex = 0;
+            }
+            return chunkIndex < chunks.size();
+        }
+
+        @Override
+        public ContactRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ContactChunk chunk = chunks.get(chunkIndex);
+            ContactRecord cr = new ContactRecord(chunk.binXs[recordIndex], chunk.binYs[recordIndex], chunk.counts[recordIndex]);
+            recordIndex++;
+            return cr;
+        }
+    }
+}
@@ -612,9 +612,23 @@ public class MainMenuBar extends JMenuBar {
       }
     });
 
+    final JCheckBoxMenuItem persistTiles = new JCheckBoxMenuItem("Cache Tiles on Disk");
+    persistTiles.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        if (persistTiles.isSelected()) {
+          HiCGlobals.TILE_DISK_CACHE_DIRECTORY = new File(DirectoryManager.getHiCDirectory(), "tile_cache");
+        } else {
+          HiCGlobals.TILE_DISK_CACHE_DIRECTORY = null;
+        }
+      }
+    });
+
     displayTiles.setSelected(HiCGlobals.displayTiles);
+    persistTiles.setSelected(HiCGlobals.TILE_DISK_CACHE_DIRECTORY != null);
     if (HiCGlobals.isDevAssemblyToolsAllowedPublic) {
       devMenu.add(displayTiles);
+      devMenu.add(persistTiles);
       devMenu.add(hackColorScaleEqual);
       devMenu.add(hackColorScale);
       devMenu.add(hackLinearColorScale);
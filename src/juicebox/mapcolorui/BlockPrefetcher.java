@@ -0,0 +1,226 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.mapcolorui;
+
+import juicebox.HiC;
+import juicebox.HiCGlobals;
+import juicebox.data.BlockLoadRequest;
+import juicebox.data.Matrix;
+import juicebox.data.MatrixZoomData;
+import juicebox.gui.SuperAdapter;
+import juicebox.windowui.HiCZoom;
+import juicebox.windowui.MatrixType;
+import juicebox.windowui.NormalizationType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Loads the blocks the user is likely to look at next into the block caches of the zoom datas, so that panning
+ * and zooming on remote files does not have to wait for them.  In order: a viewport ahead in the direction of
+ * panning, a ring of half a viewport around the current view, then the same region at the next zoom in and out
+ * (the last zoom direction first).
+ * <p>
+ * Prefetching runs on a single low priority thread, waits while tiles for the current view are still being
+ * rendered, and gives up as soon as the view changes again, also dropping its queued block reads.
+ */
+class BlockPrefetcher {
+    private static final long SETTLE_DELAY_MS = 100;
+    private static final long BACK_OFF_MS = 100;
+    private static final ExecutorService prefetchService = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Block prefetching");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final AtomicInteger requestGeneration = new AtomicInteger();
+    private final BooleanSupplier foregroundBusy;
+    private String lastViewKey = null;
+    private MatrixZoomData lastZd = null;
+    private double lastOriginX, lastOriginY;
+    private boolean lastZoomWasIn = true;
+
+    /**
+     * @param foregroundBusy whether blocks for the current view are still being loaded
+     */
+    BlockPrefetcher(BooleanSupplier foregroundBusy) {
+        this.foregroundBusy = foregroundBusy;
+    }
+
+    /**
+     * Called with the view of every paint; only a changed view starts a new round of prefetching
+     */
+    void prefetch(HiC hic, MatrixZoomData zd, MatrixZoomData controlZd, double binOriginX, double binOriginY,
+                  double bRight, double bBottom) {
+        MatrixType displayOption = hic.getDisplayOption();
+        if (!HiCGlobals.useCache || zd == null || hic.isWholeGenome() || SuperAdapter.assemblyModeCurrentlyActive
+                || MatrixType.isPearsonType(displayOption) || hic.getDataset() == null) {
+            return;
+        }
+
+        final NormalizationType obsNormalizationType = hic.getObsNormalizationType();
+        final NormalizationType ctrlNormalizationType = hic.getControlNormalizationType();
+        String viewKey = zd.getKey() + "_" + (long) binOriginX + "_" + (long) binOriginY + "_" + (long) bRight + "_"
+                + (long) bBottom + "_" + obsNormalizationType + "_" + ctrlNormalizationType + "_" + (controlZd != null);
+        if (viewKey.equals(lastViewKey)) return;
+        lastViewKey = viewKey;
+
+        double dx = 0, dy = 0;
+        if (lastZd == zd) {
+            dx = binOriginX - lastOriginX;
+            dy = binOriginY - lastOriginY;
+        } else if (lastZd != null && lastZd.getZoom().getUnit() == zd.getZoom().getUnit()
+                && lastZd.getBinSize() != zd.getBinSize()) {
+            lastZoomWasIn = zd.getBinSize() < lastZd.getBinSize();
+        }
+        lastZd = zd;
+        lastOriginX = binOriginX;
+        lastOriginY = binOriginY;
+
+        final List<Region> regions = new ArrayList<>();
+        double width = bRight - binOriginX;
+        double height = bBottom - binOriginY;
+
+        if (dx != 0 || dy != 0) {
+            double aheadX = binOriginX + Math.signum(dx) * width;
+            double aheadY = binOriginY + Math.signum(dy) * height;
+            addRegion(regions, zd, controlZd, aheadX, aheadY, aheadX + width, aheadY + height);
+        }
+        addRegion(regions, zd, controlZd, binOriginX - width / 2, binOriginY - height / 2,
+                bRight + width / 2, bBottom + height / 2);
+
+        HiCZoom zoomIn = hic.getDataset().getNextZoom(zd.getZoom(), true);
+        HiCZoom zoomOut = hic.getDataset().getNextZoom(zd.getZoom(), false);
+        if (lastZoomWasIn) {
+            addZoomRegion(regions, hic, zd, zoomIn, binOriginX, binOriginY, width, height);
+            addZoomRegion(regions, hic, zd, zoomOut, binOriginX, binOriginY, width, height);
+        } else {
+            addZoomRegion(regions, hic, zd, zoomOut, binOriginX, binOriginY, width, height);
+            addZoomRegion(regions, hic, zd, zoomIn, binOriginX, binOriginY, width, height);
+        }
+
+        final int generation = requestGeneration.incrementAndGet();
+        final BlockLoadRequest request = new BlockLoadRequest(BlockLoadRequest.getLatestGeneration());
+        prefetchService.execute(() -> {
+            // tasks queued behind a newer view drop out before waiting, so only the latest one settles
+            if (generation != requestGeneration.get()) return;
+            BlockLoadRequest.setCurrent(request);
+            try {
+                Thread.sleep(SETTLE_DELAY_MS);
+                for (Region region : regions) {
+                    while (foregroundBusy.getAsBoolean()) {
+                        if (generation != requestGeneration.get()) return;
+                        Thread.sleep(BACK_OFF_MS);
+                    }
+                    if (generation != requestGeneration.get()) return;
+                    region.load(obsNormalizationType, ctrlNormalizationType);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (CancellationException e) {
+                // superseded by a newer view
+            } catch (Exception e) {
+                // prefetching is only an optimization, the tiles will report any real problem
+                if (HiCGlobals.printVerboseComments) {
+                    System.err.println("Error prefetching blocks " + e.getLocalizedMessage());
+                    e.printStackTrace();
+                }
+            } finally {
+                BlockLoadRequest.setCurrent(null);
+            }
+        });
+    }
+
+    /**
+     * Stop prefetching for the previous view, e.g. when the dataset is closed
+     */
+    void cancel() {
+        requestGeneration.incrementAndGet();
+        lastViewKey = null;
+        lastZd = null;
+    }
+
+    /**
+     * The region around the same center at the given zoom, the same number of bins across as the current view
+     */
+    private void addZoomRegion(List<Region> regions, HiC hic, MatrixZoomData zd, HiCZoom zoom,
+                               double binOriginX, double binOriginY, double width, double height) {
+        if (zoom == null || zoom.getBinSize() == zd.getBinSize()) return;
+        Matrix matrix = hic.getMatrix();
+        if (matrix == null) return;
+        MatrixZoomData nextZd = matrix.getZoomData(zoom);
+        if (nextZd == null || nextZd.getBinSize() == zd.getBinSize()) return;
+        Matrix controlMatrix = hic.getControlMatrix();
+        MatrixZoomData nextControlZd = controlMatrix == null ? null : controlMatrix.getZoomData(zoom);
+
+        double ratio = zd.getBinSize() / (double) nextZd.getBinSize();
+        double centerX = (binOriginX + width / 2) * ratio;
+        double centerY = (binOriginY + height / 2) * ratio;
+        addRegion(regions, nextZd, nextControlZd, centerX - width / 2, centerY - height / 2,
+                centerX + width / 2, centerY + height / 2);
+    }
+
+    private void addRegion(List<Region> regions, MatrixZoomData zd, MatrixZoomData controlZd,
+                           double x1, double y1, double x2, double y2) {
+        long maxX = zd.getXGridAxis().getBinCount() - 1;
+        long maxY = zd.getYGridAxis().getBinCount() - 1;
+        long binX1 = Math.max(0, (long) x1);
+        long binY1 = Math.max(0, (long) y1);
+        long binX2 = Math.min(maxX, (long) Math.ceil(x2));
+        long binY2 = Math.min(maxY, (long) Math.ceil(y2));
+        if (binX1 > binX2 || binY1 > binY2) return;
+        regions.add(new Region(zd, controlZd, binX1, binY1, binX2, binY2));
+    }
+
+    private static class Region {
+        private final MatrixZoomData zd, controlZd;
+        private final long binX1, binY1, binX2, binY2;
+
+        Region(MatrixZoomData zd, MatrixZoomData controlZd, long binX1, long binY1, long binX2, long binY2) {
+            this.zd = zd;
+            this.controlZd = controlZd;
+            this.binX1 = binX1;
+            this.binY1 = binY1;
+            this.binX2 = binX2;
+            this.binY2 = binY2;
+        }
+
+        /**
+         * Blocks end up in the block caches, already cached blocks are not read again
+         */
+        void load(NormalizationType obsNormalizationType, NormalizationType ctrlNormalizationType) {
+            zd.getNormalizedBlocksOverlapping(binX1, binY1, binX2, binY2, obsNormalizationType, false, false);
+            if (controlZd != null) {
+                controlZd.getNormalizedBlocksOverlapping(binX1, binY1, binX2, binY2, ctrlNormalizationType, false, false);
+            }
+        }
+    }
+}
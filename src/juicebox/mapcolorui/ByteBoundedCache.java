@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.mapcolorui;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache bounded by the total size of its values rather than by their number
+ */
+class ByteBoundedCache<V> {
+
+    private final LinkedHashMap<String, V> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final Weigher<V> weigher;
+    private final long maxBytes;
+    private long currentBytes = 0;
+
+    ByteBoundedCache(long maxBytes, Weigher<V> weigher) {
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+    }
+
+    public synchronized V get(String key) {
+        return map.get(key);
+    }
+
+    public synchronized void put(String key, V value) {
+        V previous = map.put(key, value);
+        if (previous != null) {
+            currentBytes -= weigher.getBytes(previous);
+        }
+        currentBytes += weigher.getBytes(value);
+
+        // evict least recently used entries, but never the one just added
+        Iterator<Map.Entry<String, V>> iterator = map.entrySet().iterator();
+        while (currentBytes > maxBytes && map.size() > 1) {
+            Map.Entry<String, V> eldest = iterator.next();
+            currentBytes -= weigher.getBytes(eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized long getBytes() {
+        return currentBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    interface Weigher<V> {
+        long getBytes(V value);
+    }
+}
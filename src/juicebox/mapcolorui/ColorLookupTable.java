@@ -0,0 +1,171 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.mapcolorui;
+
+import org.broad.igv.renderer.ColorScale;
+
+import java.awt.*;
+
+/**
+ * Precomputed colors of a ColorScale over a quantized score domain, so that rendering a contact is an index
+ * computation and an array read instead of a getColor call (interpolation, logs, and usually a new Color).
+ * Tables are built when the display range changes and are read-only afterwards.
+ * <p>
+ * Linear tables split [min, max] into equal buckets.  Logarithmic tables index positive scores by the top bits of
+ * their float representation, which are monotonic and evenly spaced in log(score), so scales that take the log of
+ * the score internally (e.g. observed/expected) need no Math.log per contact.
+ */
+class ColorLookupTable {
+
+    public static final int NOT_IN_TABLE = -1;
+    private static final int LINEAR_TABLE_SIZE = 4096;
+    private static final int MAX_LOG_TABLE_SIZE = 1 << 16;
+    // 2048 buckets per power of two, i.e. a relative bucket width of ~0.05%
+    private static final int MIN_LOG_SHIFT = 12;
+
+    private static final int LOG_MANTISSA_BITS = 11;
+    private static final int LOG_FRACTION_BITS = 23 - LOG_MANTISSA_BITS;
+    private static final float LOG_FRACTION_SCALE = 1f / (1 << LOG_FRACTION_BITS);
+    private static final float LN2 = (float) Math.log(2);
+    private static final float[] LOG_MANTISSA = new float[(1 << LOG_MANTISSA_BITS) + 1];
+
+    static {
+        for (int i = 0; i < LOG_MANTISSA.length; i++) {
+            LOG_MANTISSA[i] = (float) Math.log(1 + (double) i / (1 << LOG_MANTISSA_BITS));
+        }
+    }
+
+    private final int[] argb;
+    private final Color[] colors;
+    private final boolean isLogarithmic;
+    private final boolean clampToEnds;
+    private final double min, max, scale;
+    private final int shift, firstBucket;
+
+    private ColorLookupTable(ColorScale cs, boolean isLogarithmic, double min, double max, boolean clampToEnds) {
+        this.isLogarithmic = isLogarithmic;
+        this.clampToEnds = clampToEnds;
+        this.min = min;
+        this.max = max;
+
+        float[] bucketCenters;
+        if (isLogarithmic) {
+            int lowBits = Float.floatToRawIntBits((float) min);
+            int highBits = Float.floatToRawIntBits((float) max);
+            int bucketShift = MIN_LOG_SHIFT;
+            while (((highBits >> bucketShift) - (lowBits >> bucketShift)) + 1 > MAX_LOG_TABLE_SIZE) {
+                bucketShift++;
+            }
+            shift = bucketShift;
+            firstBucket = lowBits >> shift;
+            scale = 0;
+            bucketCenters = new float[(highBits >> shift) - firstBucket + 1];
+            for (int i = 0; i < bucketCenters.length; i++) {
+                bucketCenters[i] = Float.intBitsToFloat(((firstBucket + i) << shift) | (1 << (shift - 1)));
+            }
+        } else {
+            shift = 0;
+            firstBucket = 0;
+            scale = LINEAR_TABLE_SIZE / (max - min);
+            bucketCenters = new float[LINEAR_TABLE_SIZE];
+            for (int i = 0; i < bucketCenters.length; i++) {
+                bucketCenters[i] = (float) (min + (i + 0.5) / scale);
+            }
+        }
+
+        colors = new Color[bucketCenters.length];
+        argb = new int[bucketCenters.length];
+        for (int i = 0; i < bucketCenters.length; i++) {
+            colors[i] = cs.getColor(bucketCenters[i]);
+            argb[i] = colors[i].getRGB();
+        }
+    }
+
+    /**
+     * @return table over [min, max] in equal steps, or null if the range is empty
+     */
+    public static ColorLookupTable createLinear(ColorScale cs, double min, double max, boolean clampToEnds) {
+        if (!(max > min) || Double.isInfinite(max - min)) return null;
+        return new ColorLookupTable(cs, false, min, max, clampToEnds);
+    }
+
+    /**
+     * @return table over [min, max] in equal steps of log(score), or null if the range is empty or not positive
+     */
+    public static ColorLookupTable createLogarithmic(ColorScale cs, double min, double max, boolean clampToEnds) {
+        if (!(min > 0) || !(max > min) || Float.isInfinite((float) max) || (float) min == 0) return null;
+        return new ColorLookupTable(cs, true, min, max, clampToEnds);
+    }
+
+    /**
+     * @return index of the score's color, or NOT_IN_TABLE if the scale itself has to be asked
+     * (NaN, or outside the range of a table that does not clamp)
+     */
+    public int getIndex(float score) {
+        if (score >= min && score <= max) {
+            int index;
+            if (isLogarithmic) {
+                index = (Float.floatToRawIntBits(score) >> shift) - firstBucket;
+            } else {
+                index = (int) ((score - min) * scale);
+            }
+            return Math.max(0, Math.min(index, argb.length - 1));
+        } else if (clampToEnds) {
+            if (score < min) return 0;
+            if (score > max) return argb.length - 1;
+        }
+        return NOT_IN_TABLE;
+    }
+
+    public int getARGB(int index) {
+        return argb[index];
+    }
+
+    public Color getColor(int index) {
+        return colors[index];
+    }
+
+    public Color getColor(ColorScale cs, float score) {
+        int index = getIndex(score);
+        return index == NOT_IN_TABLE ? cs.getColor(score) : colors[index];
+    }
+
+    /**
+     * Natural log from the float's exponent and a table of log(mantissa) with linear interpolation, accurate to
+     * float precision.  Non-positive, infinite, NaN and subnormal inputs go through Math.log.
+     */
+    public static float fastLog(float x) {
+        int bits = Float.floatToRawIntBits(x);
+        int exponent = (bits >>> 23) - 127;
+        if (bits <= 0 || exponent == -127 || exponent == 128) {
+            return (float) Math.log(x);
+        }
+        int mantissa = bits & 0x7FFFFF;
+        int index = mantissa >>> LOG_FRACTION_BITS;
+        float fraction = (mantissa & ((1 << LOG_FRACTION_BITS) - 1)) * LOG_FRACTION_SCALE;
+        float low = LOG_MANTISSA[index];
+        return exponent * LN2 + low + fraction * (LOG_MANTISSA[index + 1] - low);
+    }
+}
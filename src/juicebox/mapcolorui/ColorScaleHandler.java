@@ -26,7 +26,6 @@ package juicebox.mapcolorui;
 
 import juicebox.HiCGlobals;
 import juicebox.data.Block;
-import juicebox.data.ContactRecord;
 import juicebox.gui.SuperAdapter;
 import juicebox.matrix.BasicMatrix;
 import juicebox.windowui.MatrixType;
@@ -35,23 +34,44 @@ import org.broad.igv.renderer.ColorScale;
 import org.broad.igv.renderer.ContinuousColorScale;
 
 import java.awt.*;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 public class ColorScaleHandler {
     private final PearsonColorScale pearsonColorScale = new PearsonColorScale();
     private final Map<String, ContinuousColorScale> observedColorScaleMap = new HashMap<>();
     private final Map<String, OEColorScale> ratioColorScaleMap = new HashMap<>();
+    private final Map<ColorScale, ColorLookupTable> observedLookupTableMap = Collections.synchronizedMap(new IdentityHashMap<>());
     public static Color HIC_MAP_COLOR = Color.RED;
+    private static final int MAX_MATRIX_SAMPLES = 1 << 16;
 
     public PearsonColorScale getPearsonColorScale() {
         return pearsonColorScale;
     }
 
-    public void reset() {
+    public synchronized void reset() {
         observedColorScaleMap.clear();
         ratioColorScaleMap.clear();
+        observedLookupTableMap.clear();
+    }
+
+    /**
+     * @return precomputed colors for the scale's current range, or null if the scale has to be asked directly
+     */
+    public ColorLookupTable getColorLookupTable(ColorScale colorScale) {
+        if (colorScale instanceof OEColorScale) {
+            return ((OEColorScale) colorScale).getColorLookupTable();
+        }
+        return observedLookupTableMap.get(colorScale);
+    }
+
+    private void updateColorLookupTable(ContinuousColorScale observedColorScale, double min, double max) {
+        ColorLookupTable table = ColorLookupTable.createLinear(observedColorScale, min, max, false);
+        if (table == null) {
+            observedLookupTableMap.remove(observedColorScale);
+        } else {
+            observedLookupTableMap.put(observedColorScale, table);
+        }
     }
 
     public Color getDenseMatrixColor(String key, float score, PearsonColorScale pearsonColorScale, ColorScale genericColorScale) {
@@ -62,13 +82,14 @@ public class ColorScaleHandler {
             if (pearsonColorScale != null) {
                 color = score == 0 ? Color.black : pearsonColorScale.getColor(key, score);
             } else {
-                color = genericColorScale.getColor(score);
+                ColorLookupTable table = getColorLookupTable(genericColorScale);
+                color = table == null ? genericColorScale.getColor(score) : table.getColor(genericColorScale, score);
             }
         }
         return color;
     }
 
-    public void setNewDisplayRange(MatrixType displayOption, double min, double max, String key) {
+    public synchronized void setNewDisplayRange(MatrixType displayOption, double min, double max, String key) {
 
         if (MatrixType.isOEColorScaleType(displayOption)) {
 
@@ -92,6 +113,7 @@ public class ColorScaleHandler {
             }
             observedColorScale.setNegEnd(min);
             observedColorScale.setPosEnd(max);
+            updateColorLookupTable(observedColorScale, min, max);
         }
     }
 
@@ -106,37 +128,62 @@ public class ColorScaleHandler {
     public ColorScale getColorScale(String key, MatrixType displayOption, boolean wholeGenome, List<Block> blocks, float givenMax) {
 
         if (MatrixType.isOEColorScaleType(displayOption)) {
-            OEColorScale oeColorScale = ratioColorScaleMap.get(key);
-            if (oeColorScale == null) {
-                oeColorScale = new OEColorScale(displayOption);
-                ratioColorScaleMap.put(key, oeColorScale);
+            synchronized (this) {
+                OEColorScale oeColorScale = ratioColorScaleMap.get(key);
+                if (oeColorScale == null) {
+                    oeColorScale = new OEColorScale(displayOption);
+                    ratioColorScaleMap.put(key, oeColorScale);
+                }
+                return oeColorScale;
             }
-            return oeColorScale;
         } else {
 
             //todo: why is the key flicking between resolutions when rendering a switch from "whole genome" to chromosome view?
-            ContinuousColorScale observedColorScale = observedColorScaleMap.get(key);
-            if (observedColorScale == null) {
-                double percentile = wholeGenome ? 99 : 95;
-                float max = givenMax;
-                if (blocks != null) {
-                    max = computePercentile(blocks, percentile);
-                }
+            ColorScale existingColorScale = getExistingColorScale(key, displayOption);
+            if (existingColorScale != null) {
+                return existingColorScale;
+            }
 
-                //observedColorScale = new ContinuousColorScale(0, max, Color.white, Color.red);
-                if (HiCGlobals.isDarkulaModeEnabled) {
-                    observedColorScale = new ContinuousColorScale(0, max, Color.black, HIC_MAP_COLOR);
-                } else {
-                    observedColorScale = new ContinuousColorScale(0, max, Color.white, HIC_MAP_COLOR);
+            // estimated outside the lock so tiles of other maps are not held up
+            double percentile = wholeGenome ? 99 : 95;
+            float max = givenMax;
+            if (blocks != null) {
+                max = computePercentile(blocks, percentile);
+            }
+
+            synchronized (this) {
+                ContinuousColorScale observedColorScale = observedColorScaleMap.get(key);
+                if (observedColorScale == null) {
+                    //observedColorScale = new ContinuousColorScale(0, max, Color.white, Color.red);
+                    if (HiCGlobals.isDarkulaModeEnabled) {
+                        observedColorScale = new ContinuousColorScale(0, max, Color.black, HIC_MAP_COLOR);
+                    } else {
+                        observedColorScale = new ContinuousColorScale(0, max, Color.white, HIC_MAP_COLOR);
+                    }
+                    observedColorScaleMap.put(key, observedColorScale);
+                    updateColorLookupTable(observedColorScale, 0, max);
+                    //mainWindow.updateColorSlider(0, 2 * max, max);
                 }
-                observedColorScaleMap.put(key, observedColorScale);
-                //mainWindow.updateColorSlider(0, 2 * max, max);
+                return observedColorScale;
             }
-            return observedColorScale;
         }
     }
 
-    public void updateColorSliderFromColorScale(SuperAdapter superAdapter, MatrixType displayOption, String key) {
+    /**
+     * @return the color scale already used for this key, or null if no map has been rendered with it yet
+     */
+    public synchronized ColorScale getExistingColorScale(String key, MatrixType displayOption) {
+        if (MatrixType.isOEColorScaleType(displayOption)) {
+            return ratioColorScaleMap.get(key);
+        } else {
+            return observedColorScaleMap.get(key);
+        }
+    }
+
+    /**
+     * @return false if the map has no color scale yet (its first tiles are still rendering)
+     */
+    public synchronized boolean updateColorSliderFromColorScale(SuperAdapter superAdapter, MatrixType displayOption, String key) {
 
         if (MatrixType.isOEColorScaleType(displayOption)) {
             OEColorScale oeColorScale = ratioColorScaleMap.get(key);
@@ -151,34 +198,88 @@ public class ColorScaleHandler {
             ContinuousColorScale observedColorScale = observedColorScaleMap.get(key);
             if ((observedColorScale != null)) {
                 superAdapter.updateColorSlider(observedColorScale.getMinimum(), observedColorScale.getMaximum());
+            } else {
+                return false;
             }
         }
+        return true;
     }
 
+    /**
+     * Percentile of the off-diagonal counts, estimated from the count samples the blocks drew when they were
+     * decoded (weighted by how many records each sample value stands for), so the cost does not grow with
+     * the number of records.
+     */
     public float computePercentile(List<Block> blocks, double p) {
-        DescriptiveStatistics stats = new DescriptiveStatistics();
-        if (blocks != null) {
-            for (Block b : blocks) {
-                for (int i = 0; i < b.getContactRecords().size(); i += 10) {
-                    ContactRecord rec = b.getContactRecords().get(i);
-                    if (rec.getBinX() != rec.getBinY()) { // Filter diagonal
-                        stats.addValue(rec.getCounts());
-                    }
-                }
+        if (blocks == null || blocks.isEmpty()) return 1;
+
+        int numSamples = 0;
+        float[][] samples = new float[blocks.size()][];
+        double[] weights = new double[blocks.size()];
+        for (int b = 0; b < blocks.size(); b++) {
+            samples[b] = blocks.get(b).getCountSample();
+            weights[b] = blocks.get(b).getCountSampleWeight();
+            numSamples += samples[b].length;
+        }
+
+        // sort values together with the index of their block: sortable float bits in the high half
+        long[] sorted = new long[numSamples];
+        int n = 0;
+        double totalWeight = 0;
+        for (int b = 0; b < samples.length; b++) {
+            for (float value : samples[b]) {
+                if (Float.isNaN(value) || Float.isInfinite(value)) continue;
+                int bits = Float.floatToIntBits(value);
+                bits ^= (bits >> 31) & 0x7FFFFFFF;
+                sorted[n++] = ((long) bits << 32) | b;
+                totalWeight += weights[b];
             }
         }
-        return stats.getN() == 0 ? 1 : (float) stats.getPercentile(p);
+        if (n == 0) return 1;
+        Arrays.sort(sorted, 0, n);
+
+        double target = totalWeight * p / 100.0;
+        double cumulativeWeight = 0;
+        int i = 0;
+        for (; i < n - 1; i++) {
+            cumulativeWeight += weights[(int) sorted[i]];
+            if (cumulativeWeight >= target) break;
+        }
+        int bits = (int) (sorted[i] >> 32);
+        bits ^= (bits >> 31) & 0x7FFFFFFF;
+        return Float.intBitsToFloat(bits);
     }
 
+    /**
+     * Percentile of the upper triangle, from at most MAX_MATRIX_SAMPLES entries drawn at random for large matrices
+     */
     public float computePercentile(BasicMatrix bm, double p) {
+        int rows = bm.getRowDimension();
+        int columns = bm.getColumnDimension();
+        long numEntries = 0;
+        for (int i = 0; i < rows; i++) {
+            numEntries += Math.max(0, columns - i - 1);
+        }
+
         DescriptiveStatistics stats = new DescriptiveStatistics();
-        for (int i = 0; i < bm.getRowDimension(); i++) {
-            for (int j = i + 1; j < bm.getColumnDimension(); j++) {
-                stats.addValue(bm.getEntry(i, j));
+        if (numEntries <= MAX_MATRIX_SAMPLES) {
+            for (int i = 0; i < rows; i++) {
+                for (int j = i + 1; j < columns; j++) {
+                    stats.addValue(bm.getEntry(i, j));
+                }
+            }
+        } else {
+            Random random = new Random(0);
+            while (stats.getN() < MAX_MATRIX_SAMPLES) {
+                int i = random.nextInt(rows);
+                int j = random.nextInt(columns);
+                if (j > i) {
+                    stats.addValue(bm.getEntry(i, j));
+                }
             }
         }
 
-        return stats.getN() == 0 ? 1 : (float) stats.getPercentile( p);
+        return stats.getN() == 0 ? 1 : (float) stats.getPercentile(p);
     }
 
     public float computePercentile(BasicMatrix bm1, BasicMatrix bm2, double percentile) {
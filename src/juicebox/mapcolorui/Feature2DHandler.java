@@ -35,7 +35,9 @@ import net.sf.jsi.SpatialIndex;
 import net.sf.jsi.rtree.RTree;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -49,6 +51,11 @@ public class Feature2DHandler {
     //private static final float MAX_DIST_NEIGHBOR = 1000f;
     private static final int offsetPX = 4;
     public static int numberOfLoopsToFind = 1000;
+    // with more features than this in view, a layer is drawn as a density raster instead (see FeatureRenderer)
+    public static int maxFeaturesToDrawIndividually = 10000;
+    private static final long densityTileCacheBytes = 32L * 1024 * 1024;
+    private final ByteBoundedCache<BufferedImage> densityTileCache = new ByteBoundedCache<>(densityTileCacheBytes,
+            image -> 4L * image.getWidth() * image.getHeight());
     private final Map<String, SpatialIndex> featureRtrees = new HashMap<>();
     protected Feature2DList loopList;
     private boolean isTranslucentPlottingEnabled = false;
@@ -109,6 +116,7 @@ public class Feature2DHandler {
         loopList = new Feature2DList();
         layerVisible = true;
         featureRtrees.clear();
+        densityTileCache.clear();
     }
 
     public boolean getLayerVisibility() {
@@ -122,6 +130,7 @@ public class Feature2DHandler {
 
     protected void remakeRTree() {
         featureRtrees.clear();
+        densityTileCache.clear();
 
         loopList.processLists(new FeatureFunction() {
             @Override
@@ -289,6 +298,86 @@ public class Feature2DHandler {
         return foundFeatures;
     }
 
+    /**
+     * Features overlapping the bins in view (with a margin for enlarged plotting), or whose reflection across the
+     * diagonal does, for intrachromosomal maps.  Reflections are not created here.
+     */
+    public List<Feature2D> getFeaturesInView(MatrixZoomData zd, int chrIdx1, int chrIdx2, double binOriginX,
+                                             double binOriginY, double bRight, double bBottom, double scale) {
+        double margin = (offsetPX + 2) / scale;
+        return getFeaturesOverlapping(zd, chrIdx1, chrIdx2, binOriginX - margin, binOriginY - margin,
+                bRight + margin, bBottom + margin);
+    }
+
+    List<Feature2D> getFeaturesOverlapping(MatrixZoomData zd, int chrIdx1, int chrIdx2, double binX1, double binY1,
+                                           double binX2, double binY2) {
+        final List<Feature2D> foundFeatures = new ArrayList<>();
+        final String key = Feature2DList.getKey(chrIdx1, chrIdx2);
+        if (!layerVisible || !featureRtrees.containsKey(key)) return foundFeatures;
+
+        net.sf.jsi.Rectangle window = getGenomicWindow(zd, binX1, binY1, binX2, binY2);
+        BitSet indices = getIntersectingIndices(key, window, chrIdx1 == chrIdx2, Integer.MAX_VALUE);
+        List<Feature2D> features = loopList.get(key);
+        for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) {
+            foundFeatures.add(features.get(i));
+        }
+        return foundFeatures;
+    }
+
+    /**
+     * Whether more than the given number of features (or their reflections) overlap the bins in view
+     */
+    public boolean hasMoreFeaturesInViewThan(MatrixZoomData zd, int chrIdx1, int chrIdx2, double binOriginX,
+                                             double binOriginY, double bRight, double bBottom, int limit) {
+        final String key = Feature2DList.getKey(chrIdx1, chrIdx2);
+        if (!layerVisible || !featureRtrees.containsKey(key) || loopList.get(key).size() <= limit) return false;
+
+        net.sf.jsi.Rectangle window = getGenomicWindow(zd, binOriginX, binOriginY, bRight, bBottom);
+        return getIntersectingIndices(key, window, chrIdx1 == chrIdx2, limit + 1).cardinality() > limit;
+    }
+
+    /**
+     * @param maxCount stop searching once this many features have been found
+     */
+    private BitSet getIntersectingIndices(String key, net.sf.jsi.Rectangle window, boolean includeReflections, final int maxCount) {
+        final BitSet indices = new BitSet();
+        final int[] count = new int[1];
+        TIntProcedure procedure = new TIntProcedure() {
+            public boolean execute(int i) {
+                if (!indices.get(i)) {
+                    indices.set(i);
+                    count[0]++;
+                }
+                return count[0] < maxCount;
+            }
+        };
+        try {
+            SpatialIndex rtree = featureRtrees.get(key);
+            rtree.intersects(window, procedure);
+            if (includeReflections && count[0] < maxCount) {
+                rtree.intersects(new net.sf.jsi.Rectangle(window.minY, window.minX, window.maxY, window.maxX), procedure);
+            }
+        } catch (Exception e) {
+            System.err.println("Error encountered getting features in view" + e.getLocalizedMessage());
+        }
+        return indices;
+    }
+
+    private net.sf.jsi.Rectangle getGenomicWindow(MatrixZoomData zd, double binX1, double binY1, double binX2, double binY2) {
+        HiCGridAxis xAxis = zd.getXGridAxis();
+        HiCGridAxis yAxis = zd.getYGridAxis();
+        return new net.sf.jsi.Rectangle(xAxis.getGenomicStart(Math.max(0, binX1)), yAxis.getGenomicStart(Math.max(0, binY1)),
+                xAxis.getGenomicEnd(Math.max(0, binX2)), yAxis.getGenomicEnd(Math.max(0, binY2)));
+    }
+
+    BufferedImage getDensityTile(String key) {
+        return densityTileCache.get(key);
+    }
+
+    void cacheDensityTile(String key, BufferedImage image) {
+        densityTileCache.put(key, image);
+    }
+
     private net.sf.jsi.Point getGenomicPointFromXYCoordinate(double x, double y, HiCGridAxis xAxis, HiCGridAxis yAxis,
                                                              double binOriginX, double binOriginY, double scale) {
         float x2 = (float) (((x / scale) + binOriginX) * xAxis.getBinSize());
@@ -310,6 +399,7 @@ public class Feature2DHandler {
 
     public void setIsTransparent(boolean status) {
         isTranslucentPlottingEnabled = status;
+        densityTileCache.clear();
     }
 
     public boolean getIsEnlarged() {
@@ -322,6 +412,7 @@ public class Feature2DHandler {
 
     public void setColorOfAllAnnotations(Color color) {
         loopList.setColor(color);
+        densityTileCache.clear();
 
     }
 
@@ -31,7 +31,12 @@ import juicebox.track.feature.AnnotationLayerHandler;
 import juicebox.track.feature.Feature2D;
 
 import java.awt.*;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by muhammadsaadshamim on 6/4/15.
@@ -39,6 +44,7 @@ import java.util.List;
 public class FeatureRenderer {
 
     public static final Color HIGHLIGHT_COLOR = Color.BLACK;
+    private static final int densityTileWidth = 500;
 
     public static void render(Graphics2D g2, AnnotationLayerHandler annotationHandler, List<Feature2D> loops, MatrixZoomData zd,
                               double binOriginX, double binOriginY, double scaleFactor,
@@ -57,6 +63,8 @@ public class FeatureRenderer {
         HiCGridAxis yAxis = zd.getYGridAxis();
 
         if (loops != null) {
+            // one outline per color, drawn in a single call
+            Map<Color, Path2D> outlines = new LinkedHashMap<>();
             for (Feature2D feature : loops) {
 
                 if (!feature.isOnDiagonal()) {
@@ -71,10 +79,11 @@ public class FeatureRenderer {
                     }
                 }
 
-                if (feature2DHandler.getIsTransparent()) {
-                    g2.setColor(feature.getTranslucentColor());
-                } else {
-                    g2.setColor(feature.getColor());
+                Color color = feature2DHandler.getIsTransparent() ? feature.getTranslucentColor() : feature.getColor();
+                Path2D outline = outlines.get(color);
+                if (outline == null) {
+                    outline = new Path2D.Float();
+                    outlines.put(color, outline);
                 }
 
                 Rectangle rect = feature2DHandler.getRectangleFromFeature(xAxis, yAxis, feature, binOriginX, binOriginY, scaleFactor);
@@ -85,16 +94,21 @@ public class FeatureRenderer {
 
                 if (feature.isOnDiagonal()) { // contact domains
                     if (enablePlottingOption == PlottingOption.ONLY_LOWER_LEFT) {
-                        plotInLowerLeft(g2, x, y, w, h);
+                        plotInLowerLeft(outline, x, y, w, h);
                     } else if (enablePlottingOption == PlottingOption.ONLY_UPPER_RIGHT) {
-                        plotInUpperRight(g2, x, y, w, h);
+                        plotInUpperRight(outline, x, y, w, h);
                     } else if (enablePlottingOption == PlottingOption.EVERYTHING) {
-                        plotSimple(g2, x, y, w, h);
+                        plotSimple(outline, x, y, w, h);
                     }
                 } else {
-                    plotSimple(g2, x, y, w, h);
+                    plotSimple(outline, x, y, w, h);
                 }
             }
+
+            for (Map.Entry<Color, Path2D> entry : outlines.entrySet()) {
+                g2.setColor(entry.getKey());
+                g2.draw(entry.getValue());
+            }
         }
 
         if (highlightedFeatures != null && highlightedFeatures.size() != 0 && showFeatureHighlight) {
@@ -125,30 +139,152 @@ public class FeatureRenderer {
         }
     }
 
-    private static void plotSimple(Graphics2D g2, int x, int y, int w, int h) {
-        g2.drawRect(x, y, w, h);
+    private static void plotSimple(Path2D outline, int x, int y, int w, int h) {
+        addRect(outline, x, y, w, h);
         if (w > 5) {
-            g2.drawRect(x + 1, y + 1, w - 2, h - 2);
+            addRect(outline, x + 1, y + 1, w - 2, h - 2);
         } else {
-            g2.drawRect(x - 1, y - 1, w + 2, h + 2);
+            addRect(outline, x - 1, y - 1, w + 2, h + 2);
         }
     }
 
-    private static void plotInUpperRight(Graphics2D g2, int x, int y, int w, int h) {
-        g2.drawLine(x, y, x + w, y);
-        g2.drawLine(x + w, y, x + w, y + h);
+    private static void plotInUpperRight(Path2D outline, int x, int y, int w, int h) {
+        addLine(outline, x, y, x + w, y);
+        addLine(outline, x + w, y, x + w, y + h);
         if (w > 5) {
-            g2.drawLine(x + 1, y + 1, x + w + 1, y + 1);
-            g2.drawLine(x + w + 1, y + 1, x + w + 1, y + h - 1);
+            addLine(outline, x + 1, y + 1, x + w + 1, y + 1);
+            addLine(outline, x + w + 1, y + 1, x + w + 1, y + h - 1);
         }
     }
 
-    private static void plotInLowerLeft(Graphics2D g2, int x, int y, int w, int h) {
-        g2.drawLine(x, y, x, y + h);
-        g2.drawLine(x, y + h, x + w, y + h);
+    private static void plotInLowerLeft(Path2D outline, int x, int y, int w, int h) {
+        addLine(outline, x, y, x, y + h);
+        addLine(outline, x, y + h, x + w, y + h);
         if (w > 5) {
-            g2.drawLine(x + 1, y + 1, x + 1, y + h + 1);
-            g2.drawLine(x + 1, y + h + 1, x + w + 1, y + h + 1);
+            addLine(outline, x + 1, y + 1, x + 1, y + h + 1);
+            addLine(outline, x + 1, y + h + 1, x + w + 1, y + h + 1);
+        }
+    }
+
+    private static void addRect(Path2D outline, int x, int y, int w, int h) {
+        outline.moveTo(x, y);
+        outline.lineTo(x + w, y);
+        outline.lineTo(x + w, y + h);
+        outline.lineTo(x, y + h);
+        outline.closePath();
+    }
+
+    private static void addLine(Path2D outline, int x1, int y1, int x2, int y2) {
+        outline.moveTo(x1, y1);
+        outline.lineTo(x2, y2);
+    }
+
+    /**
+     * Layers with too many features in view to draw individually (e.g. enriched pixel lists, when zoomed out)
+     * are drawn as a density raster instead: the features centered in each bin, shaded by their number in the
+     * color of the first of them.  Rasters are cached per tile of 500x500 bins until the layer changes.
+     *
+     * @return false if the layer has few enough features in view to draw them individually
+     */
+    public static boolean renderDensityIfCrowded(Graphics2D g2, AnnotationLayerHandler annotationHandler, MatrixZoomData zd,
+                                                 double binOriginX, double binOriginY, double bRight, double bBottom,
+                                                 double scaleFactor) {
+        Feature2DHandler feature2DHandler = annotationHandler.getFeatureHandler();
+        int chrIdx1 = zd.getChr1Idx();
+        int chrIdx2 = zd.getChr2Idx();
+        if (!feature2DHandler.hasMoreFeaturesInViewThan(zd, chrIdx1, chrIdx2, binOriginX, binOriginY, bRight, bBottom,
+                Feature2DHandler.maxFeaturesToDrawIndividually)) {
+            return false;
+        }
+
+        PlottingOption plottingOption = annotationHandler.getPlottingStyle();
+        int tLeft = (int) (binOriginX / densityTileWidth);
+        int tRight = (int) Math.ceil(bRight / densityTileWidth);
+        int tTop = (int) (binOriginY / densityTileWidth);
+        int tBottom = (int) Math.ceil(bBottom / densityTileWidth);
+        for (int tileRow = tTop; tileRow <= tBottom; tileRow++) {
+            for (int tileColumn = tLeft; tileColumn <= tRight; tileColumn++) {
+                String key = zd.getKey() + "_" + tileRow + "_" + tileColumn + "_" + plottingOption;
+                BufferedImage image = feature2DHandler.getDensityTile(key);
+                if (image == null) {
+                    image = createDensityTile(feature2DHandler, plottingOption, zd, tileRow, tileColumn);
+                    if (image == null) continue;
+                    feature2DHandler.cacheDensityTile(key, image);
+                }
+                int bx0 = tileColumn * densityTileWidth;
+                int by0 = tileRow * densityTileWidth;
+                int xDest0 = (int) ((bx0 - binOriginX) * scaleFactor);
+                int yDest0 = (int) ((by0 - binOriginY) * scaleFactor);
+                int xDest1 = (int) ((bx0 + image.getWidth() - binOriginX) * scaleFactor);
+                int yDest1 = (int) ((by0 + image.getHeight() - binOriginY) * scaleFactor);
+                g2.drawImage(image, xDest0, yDest0, xDest1, yDest1, 0, 0, image.getWidth(), image.getHeight(), null);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the raster of the tile, or null if the tile is outside the map
+     */
+    private static BufferedImage createDensityTile(Feature2DHandler feature2DHandler, PlottingOption plottingOption,
+                                                   MatrixZoomData zd, int tileRow, int tileColumn) {
+        HiCGridAxis xAxis = zd.getXGridAxis();
+        HiCGridAxis yAxis = zd.getYGridAxis();
+        int bx0 = tileColumn * densityTileWidth;
+        int by0 = tileRow * densityTileWidth;
+        int width = (int) Math.min(densityTileWidth, xAxis.getBinCount() - bx0);
+        int height = (int) Math.min(densityTileWidth, yAxis.getBinCount() - by0);
+        if (width <= 0 || height <= 0) return null;
+
+        int chrIdx1 = zd.getChr1Idx();
+        int chrIdx2 = zd.getChr2Idx();
+        boolean isIntra = chrIdx1 == chrIdx2;
+        boolean transparent = feature2DHandler.getIsTransparent();
+        int[] counts = new int[width * height];
+        int[] colors = new int[width * height];
+
+        for (Feature2D feature : feature2DHandler.getFeaturesOverlapping(zd, chrIdx1, chrIdx2, bx0, by0,
+                bx0 + width, by0 + height)) {
+            Color color = transparent ? feature.getTranslucentColor() : feature.getColor();
+            long mid1 = feature.getMidPt1();
+            long mid2 = feature.getMidPt2();
+            boolean isOffDiagonal = isIntra && !feature.isOnDiagonal();
+            addToDensity(counts, colors, color.getRGB(), xAxis.getBinNumberForGenomicPosition(mid1) - bx0,
+                    yAxis.getBinNumberForGenomicPosition(mid2) - by0, width, height,
+                    !isOffDiagonal || isPlotted(plottingOption, mid2 > mid1));
+            if (isOffDiagonal) {
+                // its reflection across the diagonal
+                addToDensity(counts, colors, color.getRGB(), xAxis.getBinNumberForGenomicPosition(mid2) - bx0,
+                        yAxis.getBinNumberForGenomicPosition(mid1) - by0, width, height,
+                        isPlotted(plottingOption, mid1 > mid2));
+            }
+        }
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                int alpha = (int) Math.min(255, 80 + 40 * (Math.log(counts[i]) / Math.log(2)));
+                if (transparent) alpha /= 2;
+                pixels[i] = (alpha << 24) | (colors[i] & 0xFFFFFF);
+            }
+        }
+        return image;
+    }
+
+    private static boolean isPlotted(PlottingOption plottingOption, boolean isInLowerLeft) {
+        if (isInLowerLeft) {
+            return plottingOption != PlottingOption.ONLY_UPPER_RIGHT;
+        }
+        return plottingOption != PlottingOption.ONLY_LOWER_LEFT;
+    }
+
+    private static void addToDensity(int[] counts, int[] colors, int rgb, int x, int y, int width, int height,
+                                     boolean isPlotted) {
+        if (!isPlotted || x < 0 || y < 0 || x >= width || y >= height) return;
+        int index = y * width + x;
+        if (counts[index]++ == 0) {
+            colors[index] = rgb;
         }
     }
 
@@ -26,6 +26,7 @@ package juicebox.mapcolorui;
 
 import juicebox.HiC;
 import juicebox.HiCGlobals;
+import juicebox.data.BlockLoadRequest;
 import juicebox.data.MatrixZoomData;
 import juicebox.gui.SuperAdapter;
 import juicebox.windowui.MatrixType;
@@ -33,14 +34,22 @@ import juicebox.windowui.NormalizationType;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.HashSet;
+import java.util.Set;
 
 public class GeneralTileManager {
     private static final int imageTileWidth = 500;
 
     private final HiCMapTileManager mapTileManager;
+    private final BlockPrefetcher blockPrefetcher;
+    // the color range of a new map is estimated by its first rendered tiles, the slider follows once it exists
+    private boolean colorSliderUpdatePending = false;
+    // tiles in view; a change supersedes the block loads of the tiles that left it
+    private String lastViewKey = null;
 
     public GeneralTileManager(ColorScaleHandler colorScaleHandler) {
         mapTileManager = new HiCMapTileManager(colorScaleHandler);
+        blockPrefetcher = new BlockPrefetcher(mapTileManager::isRenderingTiles);
     }
 
     public boolean renderHiCTiles(HeatmapRenderer renderer, double binOriginX, double binOriginY, double bRight, double bBottom,
@@ -57,14 +66,22 @@ public class GeneralTileManager {
         int tRight = (int) Math.ceil(bRight / imageTileWidth);
         int tTop = (int) (binOriginY / imageTileWidth);
         int tBottom = (int) Math.ceil(bBottom / imageTileWidth);
+        Set<String> tileKeysInView = new HashSet<>();
+
+        // tiles still in view are renewed for the new generation before it is published
+        String viewKey = zd.getKey() + "_" + displayOption + "_" + observedNormalizationType + "_" + controlNormalizationType
+                + "_" + tLeft + "_" + tRight + "_" + tTop + "_" + tBottom;
+        boolean viewChanged = !viewKey.equals(lastViewKey);
+        long viewGeneration = BlockLoadRequest.getLatestGeneration() + (viewChanged ? 1 : 0);
 
         for (int tileRow = tTop; tileRow <= tBottom; tileRow++) {
             for (int tileColumn = tLeft; tileColumn <= tRight; tileColumn++) {
 
                 ImageTile tile = null;
+                tileKeysInView.add(zd.getTileKey(tileRow, tileColumn, displayOption));
                 try {
                     tile = mapTileManager.getImageTile(zd, controlZd, tileRow, tileColumn, displayOption,
-                            observedNormalizationType, controlNormalizationType, hic, parent);
+                            observedNormalizationType, controlNormalizationType, hic, parent, viewGeneration);
                 } catch (Exception e) {
                     System.err.println(e.getMessage());
 
@@ -72,6 +89,8 @@ public class GeneralTileManager {
 
                 if (tile != null) {
                     allTilesNull = false;
+                    // still rendering, with nothing coarser to show in the meantime
+                    if (tile.image == null) continue;
 
                     int imageWidth = tile.image.getWidth(null);
                     int imageHeight = tile.image.getHeight(null);
@@ -142,13 +161,25 @@ public class GeneralTileManager {
             }
         }
 
+        mapTileManager.cancelStaleTiles(tileKeysInView);
+        if (viewChanged) {
+            lastViewKey = viewKey;
+            BlockLoadRequest.publishGeneration(viewGeneration);
+        }
+        if (!parent.isPaintingForPrint()) {
+            blockPrefetcher.prefetch(hic, zd, controlZd, binOriginX, binOriginY, bRight, bBottom);
+        }
+
         //In case of change to map settings, get map color limits and update slider:
         //TODO: || might not catch all changed at once, if more then one parameter changed...
         if (hic.testZoomChanged() || hic.testDisplayOptionChanged() || hic.testNormalizationTypeChanged()) {
+            colorSliderUpdatePending = true;
+        }
+        if (colorSliderUpdatePending) {
             //In case render is called as a result of zoom change event, check if
             //We need to update slider with map range:
             String cacheKey = HeatmapRenderer.getColorScaleCacheKey(zd, displayOption, observedNormalizationType, controlNormalizationType);
-            mapTileManager.updateColorSliderFromColorScale(superAdapter, displayOption, cacheKey);
+            colorSliderUpdatePending = !mapTileManager.updateColorSliderFromColorScale(superAdapter, displayOption, cacheKey);
             //debrisFeatureSize = (int) (debrisFeatureSize * scaleFactor);
         }
 
@@ -206,9 +237,14 @@ public class GeneralTileManager {
     }
 
     public void clearTileCache() {
+        blockPrefetcher.cancel();
         mapTileManager.clearTileCache();
     }
 
+    public void clearTileImages() {
+        mapTileManager.clearTileImages();
+    }
+
     static class ImageTile {
         final int bLeft;
         final int bTop;
@@ -184,9 +184,30 @@ public class HeatmapPanel extends JComponent {
                 handlers = superAdapter.getAllLayers();
             }
 
+            final List<Feature2D> highlightedFeatures = mouseHandler.getHighlightedFeature();
+            final boolean showFeatureHighlight = mouseHandler.getShouldShowHighlight();
+
             for (AnnotationLayerHandler handler : handlers) {
-                List<Feature2D> loops = handler.getNearbyFeatures(zd, zd.getChr1Idx(), zd.getChr2Idx(),
-                        centerX, centerY, Feature2DHandler.numberOfLoopsToFind, binOriginX, binOriginY, scaleFactor);
+                Feature2DHandler featureHandler = handler.getFeatureHandler();
+                // assembly editing and sparse plotting need the features outside the view as well
+                boolean cullToView = !SuperAdapter.assemblyModeCurrentlyActive && !featureHandler.getIsSparsePlottingEnabled();
+
+                // crowded layers are drawn as a density and their features can not be hovered individually
+                if (cullToView && FeatureRenderer.renderDensityIfCrowded(g2, handler, zd, binOriginX, binOriginY,
+                        bRight, bBottom, scaleFactor)) {
+                    FeatureRenderer.render(g2, handler, null, zd, binOriginX, binOriginY, scaleFactor,
+                            highlightedFeatures, showFeatureHighlight, this.getWidth(), this.getHeight());
+                    continue;
+                }
+
+                List<Feature2D> loops;
+                if (cullToView) {
+                    loops = featureHandler.getFeaturesInView(zd, zd.getChr1Idx(), zd.getChr2Idx(),
+                            binOriginX, binOriginY, bRight, bBottom, scaleFactor);
+                } else {
+                    loops = handler.getNearbyFeatures(zd, zd.getChr1Idx(), zd.getChr2Idx(),
+                            centerX, centerY, Feature2DHandler.numberOfLoopsToFind, binOriginX, binOriginY, scaleFactor);
+                }
                 List<Feature2D> cLoopsReflected = new ArrayList<>();
                 for (Feature2D feature2D : loops) {
                     if (zd.getChr1Idx() == zd.getChr2Idx() && !feature2D.isOnDiagonal()) {
@@ -198,9 +219,6 @@ public class HeatmapPanel extends JComponent {
                 mouseHandler.addAllFeatures(handler, loops, zd,
                         binOriginX, binOriginY, scaleFactor, activelyEditingAssembly);
 
-                final List<Feature2D> highlightedFeatures = mouseHandler.getHighlightedFeature();
-                final boolean showFeatureHighlight = mouseHandler.getShouldShowHighlight();
-
                 FeatureRenderer.render(g2, handler, loops, zd, binOriginX, binOriginY, scaleFactor,
                         highlightedFeatures, showFeatureHighlight, this.getWidth(), this.getHeight());
             }
@@ -229,7 +247,7 @@ public class HeatmapPanel extends JComponent {
             g.fillRect(0, 0, wh, wh);
         }
 
-        HeatmapRenderer renderer = new HeatmapRenderer(g, colorScaleHandler);
+        HeatmapRenderer renderer = new HeatmapRenderer(image, colorScaleHandler);
         boolean success = renderer.render(0,
                 0,
                 maxBinCountX,
@@ -242,6 +260,7 @@ public class HeatmapPanel extends JComponent {
                 hic.getExpectedValues(),
                 hic.getExpectedControlValues(),
                 false);
+        renderer.dispose();
 
         if (!success) return null;
 
@@ -352,7 +371,8 @@ public class HeatmapPanel extends JComponent {
 
     public void setNewDisplayRange(MatrixType displayOption, double min, double max, String key) {
         colorScaleHandler.setNewDisplayRange(displayOption, min, max, key);
-        clearTileCache();
+        // the scores behind the tiles are unchanged, only recolor them
+        tileManager.clearTileImages();
         repaint();
     }
 
@@ -36,8 +36,13 @@ import juicebox.windowui.NormalizationType;
 import org.broad.igv.renderer.ColorScale;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 
 /**
  * @author jrobinso
@@ -48,11 +53,66 @@ public class HeatmapRenderer {
     public static float PSEUDO_COUNT = 1f;
     protected static final int PIXEL_WIDTH = 1, PIXEL_HEIGHT = 1;
     private final ColorScaleHandler colorScaleHandler;
-    private final Graphics2D g;
+    // created lazily from image for the Graphics2D fallback, and then owned (and disposed) by the renderer
+    private Graphics2D g;
+    private final BufferedImage image;
+    // backing pixels of the target image when contacts can be written without going through Graphics2D
+    private final int[] pixels;
+    private final int imageWidth, imageHeight, scanlineStride;
+    private final boolean imageHasAlpha;
+    private int currentARGB;
+    // color table of the last scale passed to setColor(cs, score); looked up again for each render call
+    private ColorScale lookupColorScale;
+    private ColorLookupTable lookupTable;
+    // when set, the score behind each pixel written is kept so the tile can be recolored later
+    private TileScores recordedScores;
+    private float currentScore;
 
     public HeatmapRenderer(Graphics2D g, ColorScaleHandler colorScaleHandler) {
         this.g = g;
+        this.image = null;
         this.colorScaleHandler = colorScaleHandler;
+        this.pixels = null;
+        this.imageWidth = 0;
+        this.imageHeight = 0;
+        this.scanlineStride = 0;
+        this.imageHasAlpha = false;
+    }
+
+    /**
+     * Render into an image.  INT_RGB and INT_ARGB images are written directly as ARGB ints, one array store per
+     * pixel (mirror included) instead of a setColor/fillRect pair; other image types fall back to Graphics2D.
+     * Call {@link #dispose()} when done rendering.
+     */
+    public HeatmapRenderer(BufferedImage image, ColorScaleHandler colorScaleHandler) {
+        this.image = image;
+        this.colorScaleHandler = colorScaleHandler;
+
+        WritableRaster raster = image.getRaster();
+        boolean isIntImage = (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)
+                && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+        if (isIntImage) {
+            this.pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+            this.scanlineStride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            this.imageWidth = image.getWidth();
+            this.imageHeight = image.getHeight();
+            this.imageHasAlpha = image.getType() == BufferedImage.TYPE_INT_ARGB;
+        } else {
+            this.pixels = null;
+            this.imageWidth = 0;
+            this.imageHeight = 0;
+            this.scanlineStride = 0;
+            this.imageHasAlpha = false;
+        }
+    }
+
+    /**
+     * Render settings that change the scores of a tile for the same data, normalizations and display option
+     */
+    public static String getScoreSettingsKey() {
+        return "pseudocount_" + PSEUDO_COUNT;
     }
 
     public static String getColorScaleCacheKey(MatrixZoomData zd, MatrixType displayOption, NormalizationType obsNorm, NormalizationType ctrlNorm) {
@@ -67,10 +127,12 @@ public class HeatmapRenderer {
                           final ExpectedValueFunction df, final ExpectedValueFunction controlDF,
                           boolean isImportant) {
         if (g != null) {
-            g.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_SPEED);
-            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+            setRenderingHints(g);
         }
 
+        lookupColorScale = null;
+        lookupTable = null;
+
         int chr1 = zd.getChr1Idx();
         int chr2 = zd.getChr2Idx();
         int x = originX;
@@ -445,8 +507,8 @@ public class HeatmapRenderer {
                 for (ContactRecord rec : recs) {
                     ContactRecord ctrlRecord = controlRecords.get(rec.getKey(controlNormalizationType));
                     if (ctrlRecord != null) {
-                        float num = (float) Math.log(rec.getCounts() / averageCount + 1);
-                        float den = (float) Math.log(ctrlRecord.getCounts() / ctrlAverageCount + 1);
+                        float num = ColorLookupTable.fastLog(rec.getCounts() / averageCount + 1);
+                        float den = ColorLookupTable.fastLog(ctrlRecord.getCounts() / ctrlAverageCount + 1);
                         ratioPainting(originX, originY, width, height, cs, sameChr, rec, num, den);
                     }
                 }
@@ -477,7 +539,7 @@ public class HeatmapRenderer {
                         float den = ctrlRecord.getCounts() / ctrlAverageCount;
                         float score = (num - den) * averageAcrossMapAndControl;
                         if (Float.isNaN(score) || Float.isInfinite(score)) continue;
-                        setColor(cs.getColor(score));
+                        setColor(cs, score);
                         intraPainting2(originX, originY, width, height, sameChr, rec);
                     }
                 }
@@ -570,7 +632,7 @@ public class HeatmapRenderer {
                             float score = (num / obsExpected) - (den / ctrlExpected);
                             if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                            setColor(cs.getColor(score));
+                            setColor(cs, score);
 
                             intraPainting(originX, originY, width, height, rec);
                         }
@@ -598,7 +660,7 @@ public class HeatmapRenderer {
                             float score = (num / obsExpected) - (den / ctrlExpected);
                             if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                            setColor(cs.getColor(score));
+                            setColor(cs, score);
 
                             aboveDiagonalPainting(originX, originY, width, height, rec);
                         }
@@ -646,7 +708,7 @@ public class HeatmapRenderer {
                             float score = (num / obsExpected) / (den / ctrlExpected);
                             if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                            setColor(cs.getColor(score));
+                            setColor(cs, score);
 
                             intraPainting(originX, originY, width, height, rec);
                         }
@@ -676,7 +738,7 @@ public class HeatmapRenderer {
                             float score = (num / obsExpected) / (den / ctrlExpected);
                             if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                            setColor(cs.getColor(score));
+                            setColor(cs, score);
 
                             aboveDiagonalPainting(originX, originY, width, height, rec);
                         }
@@ -696,10 +758,10 @@ public class HeatmapRenderer {
                         for (ContactRecord rec : recs) {
                             float expected = getExpectedValue(df, chr1, rec);
 
-                            float score = (float) Math.exp((Math.log(rec.getCounts() + 1) / Math.log(expected + 1)));
+                            float score = (float) Math.exp(ColorLookupTable.fastLog(rec.getCounts() + 1) / ColorLookupTable.fastLog(expected + 1));
                             if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                            setColor(cs.getColor(score));
+                            setColor(cs, score);
 
                             intraPainting(originX, originY, width, height, rec);
                         }
@@ -714,10 +776,10 @@ public class HeatmapRenderer {
                 if (recs != null) {
 
                     for (ContactRecord rec : recs) {
-                        float score = (float) Math.exp((Math.log(rec.getCounts() + 1) / Math.log(expected + 1)));
+                        float score = (float) Math.exp(ColorLookupTable.fastLog(rec.getCounts() + 1) / ColorLookupTable.fastLog(expected + 1));
                         if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                        setColor(cs.getColor(score));
+                        setColor(cs, score);
 
                         interPainting(originX, originY, width, height, rec);
                     }
@@ -736,7 +798,7 @@ public class HeatmapRenderer {
                         int binX = px + originX;
                         int binY = py + originY;
                         float expected = getExpectedValue(df, chr1, binX, binY);
-                        setColor(cs.getColor(expected));
+                        setColor(cs, expected);
                         directPixelPainting(px, py);
                     }
                 }
@@ -744,7 +806,7 @@ public class HeatmapRenderer {
         } else {
             float averageCount = (float) zd.getAverageCount();
             float expected = (averageCount > 0 ? averageCount : 1);
-            setColor(cs.getColor(expected));
+            setColor(cs, expected);
             for (int px = 0; px <= width; px++) {
                 for (int py = 0; py <= height; py++) {
                     directPixelPainting(px, py);
@@ -768,7 +830,7 @@ public class HeatmapRenderer {
 
                         float expected = getExpectedValue(df, chr1, rec);
                         score = rec.getCounts() - expected;
-                        setColor(cs.getColor(score));
+                        setColor(cs, score);
 
                         aboveDiagonalPainting(originX, originY, width, height, rec);
                     }
@@ -791,7 +853,7 @@ public class HeatmapRenderer {
                             float expected = getExpectedValue(controlDF, chr1, rec);
                             score = rec.getCounts() - expected;
 
-                            setColor(cs.getColor(score));
+                            setColor(cs, score);
                             belowDiagonalPainting(originX, originY, width, height, rec);
                         }
                     }
@@ -810,9 +872,9 @@ public class HeatmapRenderer {
                 if (recs != null) {
                     for (ContactRecord rec : recs) {
                         float expected = getExpectedValue(df, chr1, rec);
-                        float score = (float) (Math.log(rec.getCounts() + 1) / Math.log(expected + 1));
+                        float score = ColorLookupTable.fastLog(rec.getCounts() + 1) / ColorLookupTable.fastLog(expected + 1);
                         if (Float.isNaN(score) || Float.isInfinite(score)) continue;
-                        setColor(cs.getColor(score));
+                        setColor(cs, score);
 
                         aboveDiagonalPainting(originX, originY, width, height, rec);
                     }
@@ -829,10 +891,10 @@ public class HeatmapRenderer {
 
                         if (binX != binY) {
                             float expected = getExpectedValue(controlDF, chr1, rec);
-                            float score = (float) (Math.log(rec.getCounts() + 1) / Math.log(expected + 1));
+                            float score = ColorLookupTable.fastLog(rec.getCounts() + 1) / ColorLookupTable.fastLog(expected + 1);
                             if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                            setColor(cs.getColor(score));
+                            setColor(cs, score);
                             belowDiagonalPainting(originX, originY, width, height, rec);
                         }
                     }
@@ -855,10 +917,10 @@ public class HeatmapRenderer {
                 if (recs != null) {
                     for (ContactRecord rec : recs) {
 
-                        float score = (float) Math.log(averageAcrossMapAndControl * (rec.getCounts() / averageCount) + 1);
+                        float score = ColorLookupTable.fastLog(averageAcrossMapAndControl * (rec.getCounts() / averageCount) + 1);
                         if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                        setColor(cs.getColor(score));
+                        setColor(cs, score);
 
                         aboveDiagonalPainting(originX, originY, width, height, rec);
                     }
@@ -871,10 +933,10 @@ public class HeatmapRenderer {
                 if (recs != null) {
                     for (ContactRecord rec : recs) {
 
-                        float score = (float) Math.log(averageAcrossMapAndControl * (rec.getCounts() / ctrlAverageCount) + 1);
+                        float score = ColorLookupTable.fastLog(averageAcrossMapAndControl * (rec.getCounts() / ctrlAverageCount) + 1);
                         if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                        setColor(cs.getColor(score));
+                        setColor(cs, score);
 
                         belowDiagonalPainting(originX, originY, width, height, rec);
                     }
@@ -901,7 +963,7 @@ public class HeatmapRenderer {
                         if (Float.isNaN(score) || Float.isInfinite(score)) continue;
                         score = (score / averageCount) * averageAcrossMapAndControl;
 
-                        setColor(cs.getColor(score));
+                        setColor(cs, score);
 
                         aboveDiagonalPainting(originX, originY, width, height, rec);
                     }
@@ -918,7 +980,7 @@ public class HeatmapRenderer {
                         if (Float.isNaN(score) || Float.isInfinite(score)) continue;
                         score = (score / ctrlAverageCount) * averageAcrossMapAndControl;
 
-                        setColor(cs.getColor(score));
+                        setColor(cs, score);
                         belowDiagonalPainting(originX, originY, width, height, rec);
                     }
                 }
@@ -937,10 +999,10 @@ public class HeatmapRenderer {
                         for (ContactRecord rec : recs) {
                             float expected = getExpectedValue(df, chromosome, rec);
 
-                            float score = (float) (Math.log(rec.getCounts() + 1) / Math.log(expected + 1));
+                            float score = ColorLookupTable.fastLog(rec.getCounts() + 1) / ColorLookupTable.fastLog(expected + 1);
                             if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                            setColor(cs.getColor(score));
+                            setColor(cs, score);
 
                             intraPainting(originX, originY, width, height, rec);
                         }
@@ -955,10 +1017,10 @@ public class HeatmapRenderer {
                 Collection<ContactRecord> recs = b.getContactRecords();
                 if (recs != null) {
                     for (ContactRecord rec : recs) {
-                        float score = (float) (Math.log(rec.getCounts() + 1) / Math.log(expected + 1));
+                        float score = ColorLookupTable.fastLog(rec.getCounts() + 1) / ColorLookupTable.fastLog(expected + 1);
                         if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                        setColor(cs.getColor(score));
+                        setColor(cs, score);
 
                         interPainting(originX, originY, width, height, rec);
                     }
@@ -984,7 +1046,7 @@ public class HeatmapRenderer {
                         float expected = getExpectedValue(df, chromosome, rec);
                         score = (rec.getCounts() + pseudoCountObs) / (expected + pseudoCountObs);
 
-                        setColor(cs.getColor(score));
+                        setColor(cs, score);
                         aboveDiagonalPainting(originX, originY, width, height, rec);
                     }
                 }
@@ -1006,7 +1068,7 @@ public class HeatmapRenderer {
                             float expected = getExpectedValue(controlDF, chromosome, rec);
                             score = (rec.getCounts() + pseudoCountCtrl) / (expected + pseudoCountCtrl);
 
-                            setColor(cs.getColor(score));
+                            setColor(cs, score);
                             belowDiagonalPainting(originX, originY, width, height, rec);
                         }
                     }
@@ -1038,7 +1100,7 @@ public class HeatmapRenderer {
                             float score = (rec.getCounts() + pseudoCount) / (expected + pseudoCount);
                             if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                            setColor(cs.getColor(score));
+                            setColor(cs, score);
 
                             intraPainting(originX, originY, width, height, rec);
                         }
@@ -1056,7 +1118,7 @@ public class HeatmapRenderer {
                         float score = (rec.getCounts() + pseudoCount) / (expected + pseudoCount);
                         if (Float.isNaN(score) || Float.isInfinite(score)) continue;
 
-                        setColor(cs.getColor(score));
+                        setColor(cs, score);
 
                         interPainting(originX, originY, width, height, rec);
                     }
@@ -1066,8 +1128,8 @@ public class HeatmapRenderer {
     }
 
 
-    private void renderSimpleMap(List<Block> blocks, ColorScale cs,
-                                 int width, int height, boolean sameChr, int originX, int originY) {
+    void renderSimpleMap(List<Block> blocks, ColorScale cs,
+                         int width, int height, boolean sameChr, int originX, int originY) {
         for (Block b : blocks) {
             Collection<ContactRecord> recs = b.getContactRecords();
             if (recs != null) {
@@ -1085,7 +1147,7 @@ public class HeatmapRenderer {
             Collection<ContactRecord> recs = b.getContactRecords();
             if (recs != null) {
                 for (ContactRecord rec : recs) {
-                    float score = (float) Math.log(1 + rec.getCounts());
+                    float score = ColorLookupTable.fastLog(1 + rec.getCounts());
                     simplePainting(cs, width, height, sameChr, originX, originY, rec, score);
                 }
             }
@@ -1146,6 +1208,9 @@ public class HeatmapRenderer {
         if (zd != null) {
             try {
                 return zd.getNormalizedBlocksOverlapping(x, y, maxX, maxY, normType, isImportant, false);
+            } catch (CancellationException ce) {
+                // superseded by a newer view, an empty tile would be wrong
+                throw ce;
             } catch (Exception ee) {
                 if (HiCGlobals.printVerboseComments) ee.printStackTrace();
             }
@@ -1202,23 +1267,24 @@ public class HeatmapRenderer {
 
     private void simplePainting(ColorScale cs, int width, int height, boolean sameChr, int originX, int originY, ContactRecord rec, float score) {
         if (Float.isNaN(score) || Float.isInfinite(score)) return;
-        setColor(cs.getColor(score));
+        setColor(cs, score);
 
         aboveDiagonalPainting(originX, originY, width, height, rec);
         if (sameChr) belowDiagonalPainting(originX, originY, width, height, rec);
     }
 
     private boolean logPainting(ColorScale cs, float num, float den, float obsExpected, float ctrlExpected) {
-        float score = (float) ((Math.log(num + 1) / Math.log(obsExpected + 1)) / (Math.log(den + 1) / Math.log(ctrlExpected + 1)));
+        float score = (ColorLookupTable.fastLog(num + 1) / ColorLookupTable.fastLog(obsExpected + 1))
+                / (ColorLookupTable.fastLog(den + 1) / ColorLookupTable.fastLog(ctrlExpected + 1));
         if (Float.isNaN(score) || Float.isInfinite(score)) return true;
-        setColor(cs.getColor(score));
+        setColor(cs, score);
         return false;
     }
 
     private void ratioPainting(int originX, int originY, int width, int height, ColorScale cs, boolean sameChr, ContactRecord rec, float num, float den) {
         float score = num / den;
         if (Float.isNaN(score) || Float.isInfinite(score)) return;
-        setColor(cs.getColor(score));
+        setColor(cs, score);
         intraPainting2(originX, originY, width, height, sameChr, rec);
     }
 
@@ -1260,27 +1326,145 @@ public class HeatmapRenderer {
         directPixelPainting(px, py);
     }
 
+    /**
+     * Keep the score of every pixel written by subsequent render calls.  Only the direct raster path records;
+     * rendering through Graphics2D leaves the scores not recolorable.
+     */
+    public void recordScores(TileScores tileScores) {
+        this.recordedScores = tileScores;
+        if (tileScores != null && pixels == null) {
+            tileScores.markNotRecolorable();
+        }
+    }
+
+    /**
+     * Color a tile from previously recorded scores, e.g. after the color range of their scale changed
+     */
+    public void renderScores(TileScores tileScores) {
+        ColorScale cs = tileScores.getColorScale();
+        int width = Math.min(tileScores.width, pixels == null ? tileScores.width : imageWidth);
+        int height = Math.min(tileScores.height, pixels == null ? tileScores.height : imageHeight);
+        for (int py = 0; py < height; py++) {
+            int offset = py * tileScores.width;
+            for (int px = 0; px < width; px++) {
+                float score = tileScores.scores[offset + px];
+                if (!Float.isNaN(score)) {
+                    setColor(cs, score);
+                    directPixelPainting(px, py);
+                }
+            }
+        }
+    }
+
+    private void setColor(ColorScale cs, float score) {
+        if (recordedScores != null) {
+            recordedScores.setColorScale(cs);
+            if (Float.isNaN(score)) recordedScores.markNotRecolorable();
+            currentScore = score;
+        }
+        if (cs != lookupColorScale) {
+            lookupColorScale = cs;
+            lookupTable = colorScaleHandler.getColorLookupTable(cs);
+        }
+        int index = lookupTable == null ? ColorLookupTable.NOT_IN_TABLE : lookupTable.getIndex(score);
+        if (index == ColorLookupTable.NOT_IN_TABLE) {
+            applyColor(cs.getColor(score));
+        } else if (pixels == null) {
+            getGraphics().setColor(lookupTable.getColor(index));
+        } else {
+            currentARGB = lookupTable.getARGB(index);
+        }
+    }
+
     protected void setColor(Color color) {
-        g.setColor(color);
+        if (recordedScores != null) {
+            // colors that do not come from a single color scale can not be recolored
+            recordedScores.markNotRecolorable();
+        }
+        applyColor(color);
+    }
+
+    private void applyColor(Color color) {
+        if (pixels == null) {
+            getGraphics().setColor(color);
+        } else {
+            currentARGB = color.getRGB();
+        }
     }
 
     protected void directPixelPainting(int px, int py) {
-        g.fillRect(px, py, PIXEL_WIDTH, PIXEL_HEIGHT);
+        if (pixels == null) {
+            getGraphics().fillRect(px, py, PIXEL_WIDTH, PIXEL_HEIGHT);
+            return;
+        }
+        if (px < 0 || py < 0 || px >= imageWidth || py >= imageHeight) return;
+
+        if (recordedScores != null && px < recordedScores.width && py < recordedScores.height) {
+            recordedScores.scores[py * recordedScores.width + px] = currentScore;
+        }
+        int index = py * scanlineStride + px;
+        int alpha = currentARGB >>> 24;
+        if (alpha == 255) {
+            pixels[index] = imageHasAlpha ? currentARGB : currentARGB & 0xFFFFFF;
+        } else if (alpha > 0) {
+            pixels[index] = blendOver(currentARGB, pixels[index]);
+        }
+    }
+
+    /**
+     * Source-over compositing of a translucent color, as fillRect would do with the default composite
+     */
+    private int blendOver(int src, int dst) {
+        int srcAlpha = src >>> 24;
+        int dstAlpha = imageHasAlpha ? dst >>> 24 : 255;
+        int dstWeight = (dstAlpha * (255 - srcAlpha) + 127) / 255;
+        int outAlpha = srcAlpha + dstWeight;
+        if (outAlpha == 0) return 0;
+
+        int result = imageHasAlpha ? outAlpha << 24 : 0;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int channel = (((src >> shift) & 0xFF) * srcAlpha + ((dst >> shift) & 0xFF) * dstWeight + outAlpha / 2) / outAlpha;
+            result |= channel << shift;
+        }
+        return result;
     }
 
     public void translate(int x, int y) {
-        g.translate(x, y);
+        getGraphics().translate(x, y);
     }
 
     public void scale(double sx, double sy) {
-        g.scale(sx, sy);
+        getGraphics().scale(sx, sy);
     }
 
     public void drawImage(Image image, int xDest0, int yDest0, int xDest1, int yDest1, int xSrc0, int ySrc0, int xSrc1, int ySrc1) {
-        g.drawImage(image, xDest0, yDest0, xDest1, yDest1, xSrc0, ySrc0, xSrc1, ySrc1, null);
+        getGraphics().drawImage(image, xDest0, yDest0, xDest1, yDest1, xSrc0, ySrc0, xSrc1, ySrc1, null);
     }
 
     public void drawRect(int x, int y, int width, int height) {
-        g.drawRect(x, y, width, height);
+        getGraphics().drawRect(x, y, width, height);
+    }
+
+    private Graphics2D getGraphics() {
+        if (g == null) {
+            g = image.createGraphics();
+            setRenderingHints(g);
+        }
+        return g;
+    }
+
+    private static void setRenderingHints(Graphics2D g) {
+        g.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_SPEED);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+    }
+
+    /**
+     * Release the Graphics2D created for an image; a Graphics2D passed in stays with the caller
+     */
+    public void dispose() {
+        if (image != null && g != null) {
+            g.dispose();
+            g = null;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.mapcolorui;
+
+import juicebox.data.Block;
+import juicebox.data.ContactRecord;
+import juicebox.windowui.MatrixType;
+import org.broad.igv.renderer.ColorScale;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Renders a dense synthetic intra-chromosomal tile through the Graphics2D path and the direct raster path,
+ * checks that both produce the same pixels, and reports the time per tile for each.  Also compares the
+ * precomputed color tables against ColorScale.getColor.
+ */
+class HeatmapRenderingBenchmark {
+
+    public static void main(String[] args) {
+        int tileWidth = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        test(tileWidth, repeats);
+        testColorLookup(new OEColorScale(MatrixType.OE), 0.01f, 100f, repeats);
+        testColorLookup(new OEColorScale(MatrixType.DIFF), -10f, 10f, repeats);
+    }
+
+    public static void testColorLookup(ColorScale cs, float min, float max, int repeats) {
+        ColorLookupTable table = new ColorScaleHandler().getColorLookupTable(cs);
+        Random random = new Random(0);
+        float[] scores = new float[1 << 20];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = min + (max - min) * random.nextFloat();
+        }
+
+        int maxChannelDiff = 0, mismatches = 0;
+        for (float score : scores) {
+            int expected = cs.getColor(score).getRGB();
+            int actual = table.getColor(cs, score).getRGB();
+            if (expected != actual) {
+                mismatches++;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int diff = Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+                    maxChannelDiff = Math.max(maxChannelDiff, diff);
+                }
+            }
+        }
+
+        long scaleTime = 0, tableTime = 0;
+        int checksum = 0;
+        for (int r = 0; r < repeats; r++) {
+            long start = System.nanoTime();
+            for (float score : scores) checksum += cs.getColor(score).getRGB();
+            scaleTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (float score : scores) checksum -= table.getARGB(table.getIndex(score));
+            tableTime += System.nanoTime() - start;
+        }
+
+        System.out.println("Color scale " + cs.getClass().getSimpleName() + " over [" + min + ", " + max + "]");
+        System.out.println("getColor:     " + scaleTime / 1e6 / repeats + " ms per " + scores.length + " scores");
+        System.out.println("Lookup table: " + tableTime / 1e6 / repeats + " ms per " + scores.length + " scores");
+        System.out.println("Mismatches: " + mismatches + ", max channel difference " + maxChannelDiff
+                + (checksum == 0 ? "" : " (checksum " + checksum + ")"));
+    }
+
+    public static void test(int tileWidth, int repeats) {
+        List<Block> blocks = Collections.singletonList(new Block(0, generateRecords(tileWidth), "benchmark"));
+        ColorScale cs = new OEColorScale(MatrixType.OE);
+
+        BufferedImage graphicsImage = new BufferedImage(tileWidth, tileWidth, BufferedImage.TYPE_INT_RGB);
+        BufferedImage rasterImage = new BufferedImage(tileWidth, tileWidth, BufferedImage.TYPE_INT_RGB);
+        long graphicsTime = 0, rasterTime = 0;
+        for (int r = 0; r < repeats; r++) {
+            graphicsImage = new BufferedImage(tileWidth, tileWidth, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = graphicsImage.createGraphics();
+            long start = System.nanoTime();
+            new HeatmapRenderer(g, new ColorScaleHandler()).renderSimpleMap(blocks, cs, tileWidth, tileWidth, true, 0, 0);
+            graphicsTime += System.nanoTime() - start;
+            g.dispose();
+
+            rasterImage = new BufferedImage(tileWidth, tileWidth, BufferedImage.TYPE_INT_RGB);
+            start = System.nanoTime();
+            HeatmapRenderer rasterRenderer = new HeatmapRenderer(rasterImage, new ColorScaleHandler());
+            rasterRenderer.renderSimpleMap(blocks, cs, tileWidth, tileWidth, true, 0, 0);
+            rasterRenderer.dispose();
+            rasterTime += System.nanoTime() - start;
+        }
+
+        int mismatches = 0;
+        for (int y = 0; y < tileWidth; y++) {
+            for (int x = 0; x < tileWidth; x++) {
+                if (graphicsImage.getRGB(x, y) != rasterImage.getRGB(x, y)) mismatches++;
+            }
+        }
+
+        System.out.println("Tile " + tileWidth + "x" + tileWidth + ", " + repeats + " repeats");
+        System.out.println("Graphics2D: " + graphicsTime / 1e6 / repeats + " ms per tile");
+        System.out.println("Raster:     " + rasterTime / 1e6 / repeats + " ms per tile");
+        System.out.println(mismatches == 0 ? "Pixels identical" : "Pixel mismatches: " + mismatches);
+    }
+
+    private static List<ContactRecord> generateRecords(int n) {
+        Random random = new Random(0);
+        List<ContactRecord> records = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                records.add(new ContactRecord(i, j, (float) (0.2 + 5 * random.nextDouble())));
+            }
+        }
+        return records;
+    }
+}
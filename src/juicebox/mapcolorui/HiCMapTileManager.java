@@ -26,84 +26,387 @@ package juicebox.mapcolorui;
 
 import juicebox.HiC;
 import juicebox.HiCGlobals;
+import juicebox.data.BlockLoadRequest;
+import juicebox.data.Dataset;
 import juicebox.data.ExpectedValueFunction;
+import juicebox.data.Matrix;
 import juicebox.data.MatrixZoomData;
 import juicebox.gui.SuperAdapter;
+import juicebox.windowui.HiCZoom;
 import juicebox.windowui.MatrixType;
 import juicebox.windowui.NormalizationType;
-import org.broad.igv.util.ObjectCache;
+import org.broad.igv.renderer.ColorScale;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
+/**
+ * Tiles are rendered on a background pool.  Until a tile is done, the panel gets a placeholder, upscaled from
+ * the tiles of the next coarser zoom that are still cached, or an empty one; the panel is repainted as each
+ * tile completes.  Queued tiles that are no longer in view are cancelled, and tiles already rendering stop
+ * waiting for their blocks once a newer view supersedes their BlockLoadRequest.
+ * <p>
+ * Tile images and the scores behind them are cached separately, each bounded in bytes by the screen size and
+ * the heap, so that a change of color range only recolors the cached scores.  Optionally
+ * (HiCGlobals.TILE_DISK_CACHE_DIRECTORY), scores are also kept on disk across sessions.
+ */
 public class HiCMapTileManager {
     private static final int imageTileWidth = 500;
-    private final ObjectCache<String, GeneralTileManager.ImageTile> tileCache = new ObjectCache<>(30);
+    private static final long tileBytes = 4L * imageTileWidth * imageTileWidth;
+    private static final ExecutorService tileRenderingService = Executors.newFixedThreadPool(HiCGlobals.getIdealThreadCount(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "Heatmap tile rendering");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static TileDiskCache diskCache;
+    // tiles with a null image could not be rendered
+    private final ByteBoundedCache<GeneralTileManager.ImageTile> tileCache = new ByteBoundedCache<>(getCacheBudget(),
+            tile -> tile.image == null ? 64 : 4L * tile.image.getWidth(null) * tile.image.getHeight(null));
+    private final ByteBoundedCache<TileScores> scoreCache = new ByteBoundedCache<>(getCacheBudget(), TileScores::getBytes);
+    private final Map<String, PendingTile> pendingTiles = new ConcurrentHashMap<>();
     private final ColorScaleHandler colorScaleHandler;
+    // tiles rendered for settings that have since been cleared are dropped instead of cached
+    private int cacheGeneration = 0;
 
     public HiCMapTileManager(ColorScaleHandler colorScaleHandler) {
         this.colorScaleHandler = colorScaleHandler;
     }
 
-    public void clearTileCache() {
+    /**
+     * Enough for a few screens of tiles (panning back and forth, plus the coarser zoom for placeholders),
+     * but at most an eighth of the heap, and never fewer than 30 tiles.
+     */
+    private static long getCacheBudget() {
+        long tilesPerScreen = 16;
+        if (!GraphicsEnvironment.isHeadless()) {
+            Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
+            tilesPerScreen = (long) (screenSize.width / imageTileWidth + 2) * (screenSize.height / imageTileWidth + 2);
+        }
+        long wanted = 4 * tilesPerScreen * tileBytes;
+        return Math.max(30 * tileBytes, Math.min(wanted, Runtime.getRuntime().maxMemory() / 8));
+    }
+
+    private static synchronized TileDiskCache getDiskCache() {
+        File directory = HiCGlobals.TILE_DISK_CACHE_DIRECTORY;
+        if (directory == null) {
+            diskCache = null;
+        } else if (diskCache == null || !diskCache.getDirectory().equals(directory)) {
+            diskCache = new TileDiskCache(directory);
+        }
+        return diskCache;
+    }
+
+    public synchronized void clearTileCache() {
+        scoreCache.clear();
+        clearTileImages();
+    }
+
+    /**
+     * Drop the colored tiles but keep their scores, for changes that only affect coloring
+     */
+    public synchronized void clearTileImages() {
+        cacheGeneration++;
         tileCache.clear();
+        for (PendingTile pending : pendingTiles.values()) {
+            pending.task.cancel(false);
+        }
+        pendingTiles.clear();
+    }
+
+    /**
+     * Cancel tiles that have not started rendering and are no longer in view.  Tiles already being rendered are
+     * left to finish (and be cached), since interrupting them would close the file channels they read from.
+     */
+    public void cancelStaleTiles(Set<String> tileKeysInView) {
+        for (Map.Entry<String, PendingTile> entry : pendingTiles.entrySet()) {
+            if (!tileKeysInView.contains(entry.getKey())) {
+                entry.getValue().task.cancel(false);
+                pendingTiles.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return whether tiles are still queued or rendering, i.e. blocks for the view are still being loaded
+     */
+    public boolean isRenderingTiles() {
+        return !pendingTiles.isEmpty();
     }
 
+    private synchronized GeneralTileManager.ImageTile getCachedTile(String key) {
+        return tileCache.get(key);
+    }
+
+    private synchronized void cacheTile(String key, GeneralTileManager.ImageTile tile, TileScores tileScores, int generation) {
+        if (generation == cacheGeneration) {
+            tileCache.put(key, tile);
+            if (tileScores != null && tileScores.isRecolorable()) {
+                scoreCache.put(key, tileScores);
+            }
+        }
+    }
+
+    private synchronized int getCacheGeneration() {
+        return cacheGeneration;
+    }
+
+    /**
+     * @param viewGeneration BlockLoadRequest generation of the view the tile is wanted for
+     * @return the rendered tile, a placeholder (possibly with a null image) while it is rendering, or null if
+     * the tile can not be rendered
+     */
     public GeneralTileManager.ImageTile getImageTile(MatrixZoomData zd, MatrixZoomData controlZd, int tileRow, int tileColumn, MatrixType displayOption,
                                                      NormalizationType obsNormalizationType, NormalizationType ctrlNormalizationType,
-                                                     HiC hic, JComponent parent) {
+                                                     HiC hic, JComponent parent, long viewGeneration) {
 
-        String key = zd.getTileKey(tileRow, tileColumn, displayOption);
-        GeneralTileManager.ImageTile tile = tileCache.get(key);
+        final String key = zd.getTileKey(tileRow, tileColumn, displayOption);
+        GeneralTileManager.ImageTile tile = getCachedTile(key);
+        if (tile != null) {
+            return tile.image == null ? null : tile;
+        }
 
-        if (tile == null) {
+        PendingTile pending = pendingTiles.get(key);
+        if (pending != null) {
+            pending.request.renew(viewGeneration);
+            return pending.placeholder;
+        }
 
-            // Image size can be smaller than tile width when zoomed out, or near the edges.
+        // Image size can be smaller than tile width when zoomed out, or near the edges.
 
-            long maxBinCountX = zd.getXGridAxis().getBinCount();
-            long maxBinCountY = zd.getYGridAxis().getBinCount();
+        long maxBinCountX = zd.getXGridAxis().getBinCount();
+        long maxBinCountY = zd.getYGridAxis().getBinCount();
 
-            if (maxBinCountX < 0 || maxBinCountY < 0) return null;
+        if (maxBinCountX < 0 || maxBinCountY < 0) return null;
 
-            int imageWidth = maxBinCountX < imageTileWidth ? (int) maxBinCountX : imageTileWidth;
-            int imageHeight = maxBinCountY < imageTileWidth ? (int) maxBinCountY : imageTileWidth;
-            final int bx0 = tileColumn * imageTileWidth;
-            final int by0 = tileRow * imageTileWidth;
+        final int imageWidth = maxBinCountX < imageTileWidth ? (int) maxBinCountX : imageTileWidth;
+        final int imageHeight = maxBinCountY < imageTileWidth ? (int) maxBinCountY : imageTileWidth;
+        final int bx0 = tileColumn * imageTileWidth;
+        final int by0 = tileRow * imageTileWidth;
+        final BufferedImage image = (BufferedImage) parent.createImage(imageWidth, imageHeight);
+        final ExpectedValueFunction expectedValues = hic.getExpectedValues();
+        final ExpectedValueFunction expectedControlValues = hic.getExpectedControlValues();
+        final int generation = getCacheGeneration();
 
-            Image image = renderDataWithCPU(parent, bx0, by0, imageWidth, imageHeight,
+        // only the color range changed since this tile was rendered
+        TileScores cachedScores = scoreCache.get(key);
+        if (cachedScores != null && cachedScores.width == imageWidth && cachedScores.height == imageHeight) {
+            tile = new GeneralTileManager.ImageTile(renderScores(image, cachedScores), bx0, by0);
+            cacheTile(key, tile, cachedScores, generation);
+            return tile;
+        }
+
+        if (parent.isPaintingForPrint()) {
+            // image export needs the finished tiles
+            TileScores tileScores = new TileScores(imageWidth, imageHeight);
+            BufferedImage result = renderDataWithCPU(image, tileScores, bx0, by0, imageWidth, imageHeight,
                     zd, controlZd, displayOption, obsNormalizationType, ctrlNormalizationType,
-                    hic.getExpectedValues(), hic.getExpectedControlValues());
+                    expectedValues, expectedControlValues);
+            tile = new GeneralTileManager.ImageTile(result, bx0, by0);
+            cacheTile(key, tile, result == null ? null : tileScores, generation);
+            return result == null ? null : tile;
+        }
 
-            // if (scaleFactor > 0.999 && scaleFactor < 1.001) {
-            tile = new GeneralTileManager.ImageTile(image, bx0, by0);
-            tileCache.put(key, tile);
+        final TileDiskCache tileDiskCache = SuperAdapter.assemblyModeCurrentlyActive ? null : getDiskCache();
+        final String diskKey = tileDiskCache == null ? null : getDiskKey(hic, key, obsNormalizationType, ctrlNormalizationType);
+        final String colorScaleKey = HeatmapRenderer.getColorScaleCacheKey(zd, displayOption, obsNormalizationType, ctrlNormalizationType);
+
+        final PendingTile newPending = new PendingTile(createPlaceholder(zd, displayOption, hic, parent, bx0, by0, imageWidth, imageHeight),
+                new BlockLoadRequest(viewGeneration));
+        newPending.task = new FutureTask<>(() -> {
+            BufferedImage result = null;
+            TileScores tileScores = null;
+            BlockLoadRequest.setCurrent(newPending.request);
+            try {
+                if (diskKey != null) {
+                    tileScores = loadFromDisk(tileDiskCache, diskKey, colorScaleKey, displayOption, imageWidth, imageHeight);
+                    if (tileScores != null) {
+                        result = renderScores(image, tileScores);
+                    }
+                }
+                if (result == null) {
+                    tileScores = new TileScores(imageWidth, imageHeight);
+                    result = renderDataWithCPU(image, tileScores, bx0, by0, imageWidth, imageHeight,
+                            zd, controlZd, displayOption, obsNormalizationType, ctrlNormalizationType,
+                            expectedValues, expectedControlValues);
+                    if (result != null && diskKey != null && tileScores.isRecolorable()) {
+                        tileDiskCache.save(diskKey, tileScores);
+                    }
+                }
+            } catch (CancellationException e) {
+                // no longer in view, it is rendered again if it comes back
+                pendingTiles.remove(key, newPending);
+                return;
+            } catch (Exception e) {
+                System.err.println(e.getMessage());
+                if (HiCGlobals.printVerboseComments) e.printStackTrace();
+            } finally {
+                BlockLoadRequest.setCurrent(null);
+            }
+            cacheTile(key, new GeneralTileManager.ImageTile(result, bx0, by0), result == null ? null : tileScores, generation);
+            pendingTiles.remove(key, newPending);
+            parent.repaint();
+        }, null);
+        pendingTiles.put(key, newPending);
+        tileRenderingService.execute(newPending.task);
+        return newPending.placeholder;
+    }
+
+    /**
+     * Scores on disk can only be colored once the color scale they were rendered with exists in this session
+     */
+    private TileScores loadFromDisk(TileDiskCache tileDiskCache, String diskKey, String colorScaleKey, MatrixType displayOption,
+                                    int imageWidth, int imageHeight) {
+        ColorScale cs = colorScaleHandler.getExistingColorScale(colorScaleKey, displayOption);
+        if (cs == null) return null;
+        TileScores tileScores = tileDiskCache.load(diskKey);
+        if (tileScores == null || tileScores.width != imageWidth || tileScores.height != imageHeight) return null;
+        tileScores.setColorScale(cs);
+        return tileScores;
+    }
+
+    private static String getDiskKey(HiC hic, String tileKey, NormalizationType obsNormalizationType, NormalizationType ctrlNormalizationType) {
+        return getDatasetKey(hic.getDataset()) + "|" + getDatasetKey(hic.getControlDataset()) + "|" + tileKey
+                + "|" + obsNormalizationType + "|" + ctrlNormalizationType + "|" + HeatmapRenderer.getScoreSettingsKey();
+    }
+
+    private static String getDatasetKey(Dataset dataset) {
+        if (dataset == null) return "";
+        String path = dataset.getPath();
+        if (path == null) return "";
+        File file = new File(path);
+        // local files that change get new keys
+        return file.exists() ? path + "_" + file.length() + "_" + file.lastModified() : path;
+    }
+
+    /**
+     * Upscale whatever tiles of the next coarser zoom (that has any cached) overlap the requested tile.
+     *
+     * @return placeholder tile, with a null image if nothing coarser is cached
+     */
+    private GeneralTileManager.ImageTile createPlaceholder(MatrixZoomData zd, MatrixType displayOption, HiC hic, JComponent parent,
+                                                           int bx0, int by0, int imageWidth, int imageHeight) {
+        Matrix matrix = hic.getMatrix();
+        boolean isWholeGenome = zd.getChr1Idx() == 0 && zd.getChr2Idx() == 0;
+        if (matrix == null || isWholeGenome || hic.getDataset() == null) {
+            return new GeneralTileManager.ImageTile(null, bx0, by0);
+        }
+
+        List<HiCZoom> coarserZooms = new ArrayList<>();
+        List<HiCZoom> zooms = zd.getZoom().getUnit() == HiC.Unit.BP ? hic.getDataset().getBpZooms() : hic.getDataset().getFragZooms();
+        for (HiCZoom zoom : zooms) {
+            if (zoom.getBinSize() > zd.getBinSize()) {
+                coarserZooms.add(zoom);
+            }
+        }
+        Collections.sort(coarserZooms);
+
+        for (HiCZoom zoom : coarserZooms) {
+            MatrixZoomData coarseZd = matrix.getZoomData(zoom);
+            if (coarseZd == null || coarseZd.getChr1Idx() != zd.getChr1Idx() || coarseZd.getChr2Idx() != zd.getChr2Idx()) {
+                continue;
+            }
+            double ratio = coarseZd.getBinSize() / (double) zd.getBinSize();
+            int firstColumn = (int) (bx0 / ratio) / imageTileWidth;
+            int lastColumn = (int) ((bx0 + imageWidth - 1) / ratio) / imageTileWidth;
+            int firstRow = (int) (by0 / ratio) / imageTileWidth;
+            int lastRow = (int) ((by0 + imageHeight - 1) / ratio) / imageTileWidth;
+
+            List<GeneralTileManager.ImageTile> coarseTiles = new ArrayList<>();
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    GeneralTileManager.ImageTile coarseTile = getCachedTile(coarseZd.getTileKey(row, column, displayOption));
+                    if (coarseTile != null && coarseTile.image != null) {
+                        coarseTiles.add(coarseTile);
+                    }
+                }
+            }
+            if (coarseTiles.isEmpty()) continue;
+
+            Image placeholder = parent.createImage(imageWidth, imageHeight);
+            if (placeholder == null) break;
+            Graphics2D g = (Graphics2D) placeholder.getGraphics();
+            if (HiCGlobals.isDarkulaModeEnabled) {
+                g.setColor(Color.darkGray);
+                g.fillRect(0, 0, imageWidth, imageHeight);
+            }
+            for (GeneralTileManager.ImageTile coarseTile : coarseTiles) {
+                int width = coarseTile.image.getWidth(null);
+                int height = coarseTile.image.getHeight(null);
+                int xDest0 = (int) Math.round(coarseTile.bLeft * ratio) - bx0;
+                int xDest1 = (int) Math.round((coarseTile.bLeft + width) * ratio) - bx0;
+                int yDest0 = (int) Math.round(coarseTile.bTop * ratio) - by0;
+                int yDest1 = (int) Math.round((coarseTile.bTop + height) * ratio) - by0;
+                g.drawImage(coarseTile.image, xDest0, yDest0, xDest1, yDest1, 0, 0, width, height, null);
+            }
+            g.dispose();
+            return new GeneralTileManager.ImageTile(placeholder, bx0, by0);
         }
-        return tile;
+        return new GeneralTileManager.ImageTile(null, bx0, by0);
     }
 
-    private BufferedImage renderDataWithCPU(JComponent parent, int bx0, int by0, int imageWidth, int imageHeight,
+    private BufferedImage renderDataWithCPU(BufferedImage image, TileScores tileScores, int bx0, int by0, int imageWidth, int imageHeight,
                                             MatrixZoomData zd, MatrixZoomData controlZd, MatrixType displayOption,
                                             NormalizationType obsNormalizationType, NormalizationType ctrlNormalizationType,
                                             ExpectedValueFunction expectedValues, ExpectedValueFunction expectedControlValues) {
-        BufferedImage image = (BufferedImage) parent.createImage(imageWidth, imageHeight);
-        Graphics2D g2D = (Graphics2D) image.getGraphics();
+        fillBackground(image, imageWidth, imageHeight);
+
+        HeatmapRenderer renderer = new HeatmapRenderer(image, colorScaleHandler);
+        renderer.recordScores(tileScores);
+        try {
+            if (!renderer.render(bx0, by0, imageWidth, imageHeight,
+                    zd, controlZd, displayOption,
+                    obsNormalizationType, ctrlNormalizationType,
+                    expectedValues, expectedControlValues, true)) {
+                return null;
+            }
+        } finally {
+            renderer.dispose();
+        }
+        return image;
+    }
+
+    private BufferedImage renderScores(BufferedImage image, TileScores tileScores) {
+        fillBackground(image, tileScores.width, tileScores.height);
+        HeatmapRenderer renderer = new HeatmapRenderer(image, colorScaleHandler);
+        renderer.renderScores(tileScores);
+        renderer.dispose();
+        return image;
+    }
+
+    private void fillBackground(BufferedImage image, int imageWidth, int imageHeight) {
         if (HiCGlobals.isDarkulaModeEnabled) {
+            Graphics2D g2D = (Graphics2D) image.getGraphics();
             g2D.setColor(Color.darkGray);
             g2D.fillRect(0, 0, imageWidth, imageHeight);
+            g2D.dispose();
         }
+    }
 
-        HeatmapRenderer renderer = new HeatmapRenderer(g2D, colorScaleHandler);
-        if (!renderer.render(bx0, by0, imageWidth, imageHeight,
-                zd, controlZd, displayOption,
-                obsNormalizationType, ctrlNormalizationType,
-                expectedValues, expectedControlValues, true)) {
-            return null;
-        }
-        return image;
+    public boolean updateColorSliderFromColorScale(SuperAdapter superAdapter, MatrixType displayOption, String cacheKey) {
+        return colorScaleHandler.updateColorSliderFromColorScale(superAdapter, displayOption, cacheKey);
     }
 
-    public void updateColorSliderFromColorScale(SuperAdapter superAdapter, MatrixType displayOption, String cacheKey) {
-        colorScaleHandler.updateColorSliderFromColorScale(superAdapter, displayOption, cacheKey);
+    private static class PendingTile {
+        final GeneralTileManager.ImageTile placeholder;
+        final BlockLoadRequest request;
+        FutureTask<Void> task;
+
+        PendingTile(GeneralTileManager.ImageTile placeholder, BlockLoadRequest request) {
+            this.placeholder = placeholder;
+            this.request = request;
+        }
     }
 }
@@ -38,8 +38,18 @@ import java.awt.*;
 class OEColorScale implements ColorScale {
 
     public static final int defaultMaxOEVal = 5;
+    // every color of this scale is either (255, x, x) or (x, x, 255)
+    private static final Color[] RED_RAMP = new Color[256], BLUE_RAMP = new Color[256];
     private final MatrixType type;
     private double threshold;
+    private volatile ColorLookupTable lookupTable;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            RED_RAMP[i] = new Color(255, i, i);
+            BLUE_RAMP[i] = new Color(i, i, 255);
+        }
+    }
 
     public OEColorScale(MatrixType type) {
         super();
@@ -102,8 +112,27 @@ class OEColorScale implements ColorScale {
             }
         }
 
-        return new Color(R, G, B);
+        return B == 255 ? BLUE_RAMP[R] : RED_RAMP[G];
+    }
 
+    /**
+     * Colors are clamped at +/- threshold, so the table covers exactly that range.  Ratio scales take the log
+     * internally and get a logarithmic table; it is rebuilt lazily after the threshold changes.
+     *
+     * @return table for the current threshold, or null for the experimental HACK_COLORSCALE modes
+     */
+    public ColorLookupTable getColorLookupTable() {
+        if (HiCGlobals.HACK_COLORSCALE || HiCGlobals.HACK_COLORSCALE_LINEAR) return null;
+        ColorLookupTable table = lookupTable;
+        if (table == null) {
+            if (MatrixType.isSubtactType(type)) {
+                table = ColorLookupTable.createLinear(this, -threshold, threshold, true);
+            } else {
+                table = ColorLookupTable.createLogarithmic(this, Math.exp(-threshold), Math.exp(threshold), true);
+            }
+            lookupTable = table;
+        }
+        return table;
     }
 
     public Color getColor(String symbol) {
@@ -144,6 +173,7 @@ class OEColorScale implements ColorScale {
         } else {
             threshold = Math.log(max);
         }
+        lookupTable = null;
     }
 }
 
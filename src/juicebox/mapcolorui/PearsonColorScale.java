@@ -26,8 +26,8 @@
 package juicebox.mapcolorui;
 
 import java.awt.*;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Neva Cherniavsky
@@ -35,10 +35,18 @@ import java.util.Map;
  */
 public class PearsonColorScale {
 
-    private final Map<String, Float> posMinMap = new HashMap<>();
-    private final Map<String, Float> posMaxMap = new HashMap<>();
-    private final Map<String, Float> negMinMap = new HashMap<>();
-    private final Map<String, Float> negMaxMap = new HashMap<>();
+    private final Map<String, Float> posMinMap = new ConcurrentHashMap<>();
+    private final Map<String, Float> posMaxMap = new ConcurrentHashMap<>();
+    private final Map<String, Float> negMinMap = new ConcurrentHashMap<>();
+    private final Map<String, Float> negMaxMap = new ConcurrentHashMap<>();
+    private static final Color[] RED_RAMP = new Color[256], BLUE_RAMP = new Color[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            RED_RAMP[i] = new Color(i, 0, 0);
+            BLUE_RAMP[i] = new Color(0, 0, i);
+        }
+    }
 
     public PearsonColorScale() {
     }
@@ -77,20 +85,14 @@ public class PearsonColorScale {
             float min = getPosMin(key), max = getPosMax(key);
             score = (score - min) / (max - min);
             if (score > 0) {
-                int R = (int) (255 * Math.min(score, 1));
-                int G = 0;
-                int B = 0;
-                return new Color(R, G, B);
+                return RED_RAMP[(int) (255 * Math.min(score, 1))];
             }
         } else if (score < 0) {
             float min = getNegMin(key), max = getNegMax(key);
             score = (score - max) / (min - max);
             if (score > 0) {
                 //if (score < 0) score = -score; // this shouldn't happen but seems to be happening.
-                int R = 0;
-                int G = 0;
-                int B = (int) (255 * Math.min(score, 1));
-                return new Color(R, G, B);
+                return BLUE_RAMP[(int) (255 * Math.min(score, 1))];
             }
         }
         return Color.black;
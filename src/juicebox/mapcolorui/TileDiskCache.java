@@ -0,0 +1,148 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.mapcolorui;
+
+import juicebox.HiCGlobals;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Recently rendered tile scores kept on local disk across sessions, one file per tile, oldest (least recently
+ * read or written) files deleted once the directory exceeds its size budget.
+ */
+class TileDiskCache {
+
+    private static final int MAGIC = 0x4A425443;
+    private static final String SUFFIX = ".tile";
+    private static final long MAX_BYTES = 1L << 30;
+    private final File directory;
+    private long bytesOnDisk = -1;
+
+    TileDiskCache(File directory) {
+        this.directory = directory;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return scores saved under this key, or null if there are none (or they can not be read)
+     */
+    TileScores load(String key) {
+        File file = getFile(key);
+        if (!file.exists()) return null;
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != MAGIC || !key.equals(is.readUTF())) return null;
+            int width = is.readInt();
+            int height = is.readInt();
+            byte[] bytes = new byte[4 * width * height];
+            is.readFully(bytes);
+            float[] scores = new float[width * height];
+            ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(scores);
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            return new TileScores(width, height, scores);
+        } catch (IOException e) {
+            if (HiCGlobals.printVerboseComments) e.printStackTrace();
+            return null;
+        }
+    }
+
+    void save(String key, TileScores tileScores) {
+        File file = getFile(key);
+        try {
+            if (!directory.exists() && !directory.mkdirs()) return;
+            File tmp = File.createTempFile("tile", ".tmp", directory);
+            try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                os.writeInt(MAGIC);
+                os.writeUTF(key);
+                os.writeInt(tileScores.width);
+                os.writeInt(tileScores.height);
+                ByteBuffer buffer = ByteBuffer.allocate(4 * tileScores.scores.length).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.asFloatBuffer().put(tileScores.scores);
+                os.write(buffer.array());
+            }
+            long previousLength = file.length();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            updateSize(file.length() - previousLength);
+        } catch (IOException e) {
+            if (HiCGlobals.printVerboseComments) e.printStackTrace();
+        }
+    }
+
+    private synchronized void updateSize(long delta) {
+        if (bytesOnDisk < 0) {
+            bytesOnDisk = 0;
+            for (File file : listTileFiles()) {
+                bytesOnDisk += file.length();
+            }
+        } else {
+            bytesOnDisk += delta;
+        }
+        if (bytesOnDisk > MAX_BYTES) {
+            prune();
+        }
+    }
+
+    private void prune() {
+        File[] files = listTileFiles();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (bytesOnDisk <= MAX_BYTES * 3 / 4) break;
+            long length = file.length();
+            if (file.delete()) {
+                bytesOnDisk -= length;
+            }
+        }
+    }
+
+    private File[] listTileFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        return files == null ? new File[0] : files;
+    }
+
+    private File getFile(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(directory, name + SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            return new File(directory, Integer.toHexString(key.hashCode()) + SUFFIX);
+        }
+    }
+}
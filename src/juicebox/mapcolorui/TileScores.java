@@ -0,0 +1,79 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.mapcolorui;
+
+import org.broad.igv.renderer.ColorScale;
+
+import java.util.Arrays;
+
+/**
+ * Score behind every pixel of a rendered tile, so the tile can be colored again without reloading or
+ * renormalizing its blocks when only the color range changes.  NaN marks pixels that were not painted.
+ * A tile is recolorable only if all of its pixels were colored by a single ColorScale.
+ */
+class TileScores {
+
+    final int width, height;
+    final float[] scores;
+    private ColorScale colorScale;
+    private boolean isRecolorable = true;
+
+    TileScores(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.scores = new float[width * height];
+        Arrays.fill(scores, Float.NaN);
+    }
+
+    TileScores(int width, int height, float[] scores) {
+        this.width = width;
+        this.height = height;
+        this.scores = scores;
+    }
+
+    void setColorScale(ColorScale cs) {
+        if (colorScale == null) {
+            colorScale = cs;
+        } else if (colorScale != cs) {
+            isRecolorable = false;
+        }
+    }
+
+    ColorScale getColorScale() {
+        return colorScale;
+    }
+
+    void markNotRecolorable() {
+        isRecolorable = false;
+    }
+
+    boolean isRecolorable() {
+        return isRecolorable && colorScale != null;
+    }
+
+    long getBytes() {
+        return 4L * scores.length;
+    }
+}
@@ -30,10 +30,11 @@ import htsjdk.tribble.util.LittleEndianInputStream;
 import org.broad.igv.util.ObjectCache;
 import org.broad.igv.util.ParsingUtils;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Matrix class backed by a file layed out in "block" format.
@@ -59,7 +60,7 @@ import java.io.InputStream;
 public class DiskResidentBlockMatrix implements BasicMatrix {
 
     private final String path;
-    private final ObjectCache<String, float[][]> blockDataCache = new ObjectCache<>(200);
+    private final ObjectCache<Integer, float[]> blockDataCache = new ObjectCache<>(200);
     boolean isLoading = false;
     private String genome;
     private String chr1;
@@ -72,10 +73,13 @@ public class DiskResidentBlockMatrix implements BasicMatrix {
     private int remSize;   // Dimension of last block
     private int arrayStartPosition;
     private int nFullBlocks;
+    private int nBlocks;
+    private MappedByteBuffer[] blockRowBuffers = null;   // local files only, one mapping per row of blocks
 
     public DiskResidentBlockMatrix(String path) throws IOException {
         this.path = path;
         init();
+        mapLocalFile();
     }
 
     public String getChr1() {
@@ -87,11 +91,13 @@ public class DiskResidentBlockMatrix implements BasicMatrix {
 
         int blockRowIdx = row / blockSize;
         int blockColIdx = col / blockSize;
-        String key = "row" + blockRowIdx + "_col" + blockColIdx;
-        float[][] blockData = blockDataCache.get(key);
+        int key = blockRowIdx * nBlocks + blockColIdx;
+        float[] blockData = blockDataCache.get(key);
         if (blockData == null) {
             blockData = loadBlockData(blockRowIdx, blockColIdx);
-            blockDataCache.put(key, blockData);
+            if (blockData != null) {
+                blockDataCache.put(key, blockData);
+            }
         }
 
         if (blockData == null) {
@@ -99,57 +105,52 @@ public class DiskResidentBlockMatrix implements BasicMatrix {
         } else {
             int rowRelative = row - blockRowIdx * blockSize;
             int colRelative = col - blockColIdx * blockSize;
-            int totalRows = blockData.length;
-            int totalCols = blockData[0].length;
+            int totalRows = getBlockDimension(blockRowIdx);
+            int totalCols = getBlockDimension(blockColIdx);
             // TODO: note this should not happen, probably the bug in MatrixZoomData where there are too many columns.
             if (rowRelative < totalRows && colRelative < totalCols)
-                return blockData[rowRelative][colRelative];
+                return blockData[rowRelative * totalCols + colRelative];
             else return Float.NaN;
         }
 
     }
 
-    private synchronized float[][] loadBlockData(int blockRowIdx, int blockColIdx) {
+    private int getBlockDimension(int blockIdx) {
+        return blockIdx < nFullBlocks ? blockSize : remSize;
+    }
 
-        String key = "row" + blockRowIdx + "_col" + blockColIdx;
-        float[][] blockData = blockDataCache.get(key);
-        if (blockData != null) return blockData;    // In case this was calculated in another thread
+    /**
+     * Blocks are decoded without holding a lock; two threads may occasionally decode the same block, which is
+     * cheaper than making every reader wait on a single loader.
+     */
+    private float[] loadBlockData(int blockRowIdx, int blockColIdx) {
+        if (blockRowIdx >= nBlocks || blockColIdx >= nBlocks) return null;
+
+        int rowDim = getBlockDimension(blockRowIdx);
+        int colDim = getBlockDimension(blockColIdx);
+        int nDataPoints = rowDim * colDim;
+        // offset of the block within its row of blocks
+        long blockOffset = (long) blockColIdx * blockSize * rowDim * 4L;
+
+        float[] blockData = new float[nDataPoints];
+        if (blockRowBuffers != null) {
+            ByteBuffer buffer = blockRowBuffers[blockRowIdx].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position((int) blockOffset);
+            buffer.asFloatBuffer().get(blockData);
+            return blockData;
+        }
 
         SeekableStream is = null;
         try {
             is = SeekableStreamFactory.getInstance().getStreamFor(path);
 
-            int pointsPerBlockRow = blockSize * dim;  // Applies to all but the last row
-
-            int rowDim = blockRowIdx < nFullBlocks ? blockSize : remSize;
-            int colDim = blockColIdx < nFullBlocks ? blockSize : remSize;
-
-            int l1 = blockRowIdx * pointsPerBlockRow;
-            int l2 = blockColIdx * blockSize * rowDim;
-            long startFilePosition = arrayStartPosition + (l1 + l2) * 4L;
-
-
-            int nDataPoints = rowDim * colDim;
-            int nBytes = nDataPoints * 4;
-            byte[] byteArray = new byte[nBytes];
+            long startFilePosition = arrayStartPosition + (long) blockRowIdx * blockSize * dim * 4L + blockOffset;
+            byte[] byteArray = new byte[nDataPoints * 4];
 
             is.seek(startFilePosition);
             is.readFully(byteArray);
 
-            ByteArrayInputStream bis = new ByteArrayInputStream(byteArray);
-            LittleEndianInputStream les = new LittleEndianInputStream(bis);
-
-
-            blockData = new float[rowDim][colDim];
-
-            for (int r = 0; r < rowDim; r++) {
-                for (int c = 0; c < colDim; c++) {
-                    float f = les.readFloat();
-                    blockData[r][c] = f;
-                }
-            }
-
-            blockDataCache.put(key, blockData);
+            ByteBuffer.wrap(byteArray).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(blockData);
             return blockData;
 
         } catch (IOException e) {
@@ -165,6 +166,24 @@ public class DiskResidentBlockMatrix implements BasicMatrix {
         }
     }
 
+    /**
+     * Map each row of blocks of a local file; the mappings stay valid after the channel is closed.
+     */
+    private void mapLocalFile() throws IOException {
+        File file = new File(path);
+        if (!file.isFile()) return;
+
+        MappedByteBuffer[] buffers = new MappedByteBuffer[nBlocks];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            for (int blockRowIdx = 0; blockRowIdx < nBlocks; blockRowIdx++) {
+                long start = arrayStartPosition + (long) blockRowIdx * blockSize * dim * 4L;
+                long length = (long) getBlockDimension(blockRowIdx) * dim * 4L;
+                buffers[blockRowIdx] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+        }
+        blockRowBuffers = buffers;
+    }
 
     @Override
     public int getRowDimension() {
@@ -242,6 +261,7 @@ public class DiskResidentBlockMatrix implements BasicMatrix {
 
             nFullBlocks = dim / blockSize;
             remSize = dim - nFullBlocks * blockSize;
+            nBlocks = remSize > 0 ? nFullBlocks + 1 : nFullBlocks;
 
             this.arrayStartPosition = bytePosition;
 
@@ -0,0 +1,306 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.matrix;
+
+import juicebox.HiCGlobals;
+import org.broad.igv.util.collections.FloatArrayList;
+import org.broad.igv.util.collections.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pearson's correlation of an O/E matrix, kept implicit so that it can be used at resolutions where the dense
+ * correlation matrix would not fit in memory.  Only the sparse O/E entries are stored; the mean subtraction and
+ * row scaling done in Pearsons.computePearsons are applied as rank-one corrections during each product.
+ * <p>
+ * Rows are restricted to bins with at least one contact (and non-constant O/E), and the operator acts on vectors
+ * indexed by position in {@link #getValidBins()}.  Individual correlations can also be pulled out a tile at a time
+ * with {@link #fillCorrelations}.
+ */
+public class ImplicitPearsonsMatrix implements LanczosEigenSolver.SymmetricOperator {
+
+    private static final int ROWS_PER_TASK = 256;
+    private static final int numThreads = HiCGlobals.getIdealThreadCount();
+    // shared by all products, two of which are taken per Lanczos step
+    private static final ExecutorService productService = Executors.newFixedThreadPool(numThreads, runnable -> {
+        Thread thread = new Thread(runnable, "Pearson's products");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int dim;
+    private final BitSet bitSet;
+    private IntArrayList rowList = new IntArrayList();
+    private IntArrayList colList = new IntArrayList();
+    private FloatArrayList valueList = new FloatArrayList();
+
+    // both halves of the symmetric O/E, stored by row
+    private int[] rowStarts;
+    private int[] colIndices;
+    private float[] values;
+
+    private int[] validBins;
+    private double[] colMeans, rowSums, rowOffsets, rowNorms, oeTimesMeans;
+    private double sumColMeans, sumSquaredColMeans;
+    private double[] fullX, fullY;
+
+    public ImplicitPearsonsMatrix(int dim) {
+        this.dim = dim;
+        this.bitSet = new BitSet(dim);
+    }
+
+    /**
+     * Add an O/E value; each unordered pair (i, j) should be added at most once.
+     */
+    public void addEntry(int i, int j, float oeValue) {
+        if (Float.isNaN(oeValue) || Float.isInfinite(oeValue)) return;
+        rowList.add(i);
+        colList.add(j);
+        valueList.add(oeValue);
+        bitSet.set(i);
+        bitSet.set(j);
+    }
+
+    /**
+     * Must be called once after all entries have been added and before multiplying.
+     */
+    public void prepare() {
+        buildRows();
+        fullX = new double[dim];
+        fullY = new double[dim];
+
+        // the row mean of O/E row j is subtracted from column j (O/E is symmetric)
+        double[] ones = new double[dim];
+        Arrays.fill(ones, 1);
+        rowSums = new double[dim];
+        multiplyOE(ones, rowSums);
+        colMeans = new double[dim];
+        sumColMeans = 0;
+        sumSquaredColMeans = 0;
+        for (int j = 0; j < dim; j++) {
+            colMeans[j] = rowSums[j] / dim;
+            sumColMeans += colMeans[j];
+            sumSquaredColMeans += colMeans[j] * colMeans[j];
+        }
+
+        // each centered row is centered once more by its own mean before correlating
+        rowOffsets = new double[dim];
+        for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
+            rowOffsets[i] = (rowSums[i] - sumColMeans) / dim;
+        }
+
+        oeTimesMeans = new double[dim];
+        multiplyOE(colMeans, oeTimesMeans);
+
+        rowNorms = new double[dim];
+        BitSet usable = new BitSet(dim);
+        for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
+            double rowSquares = 0;
+            for (int e = rowStarts[i]; e < rowStarts[i + 1]; e++) {
+                rowSquares += (double) values[e] * values[e];
+            }
+            double norm2 = rowSquares + uncenteredCorrection(i, i);
+            if (norm2 > 0) {
+                rowNorms[i] = Math.sqrt(norm2);
+                usable.set(i);
+            }
+        }
+
+        validBins = new int[usable.cardinality()];
+        int count = 0;
+        for (int i = usable.nextSetBit(0); i >= 0; i = usable.nextSetBit(i + 1)) {
+            validBins[count++] = i;
+        }
+    }
+
+    private void buildRows() {
+        int[] rows = rowList.toArray();
+        int[] cols = colList.toArray();
+        float[] entries = valueList.toArray();
+        rowList = null;
+        colList = null;
+        valueList = null;
+
+        rowStarts = new int[dim + 1];
+        for (int e = 0; e < rows.length; e++) {
+            rowStarts[rows[e] + 1]++;
+            if (rows[e] != cols[e]) {
+                rowStarts[cols[e] + 1]++;
+            }
+        }
+        for (int i = 0; i < dim; i++) {
+            rowStarts[i + 1] += rowStarts[i];
+        }
+        colIndices = new int[rowStarts[dim]];
+        values = new float[rowStarts[dim]];
+        int[] next = Arrays.copyOf(rowStarts, dim);
+        for (int e = 0; e < rows.length; e++) {
+            int pos = next[rows[e]]++;
+            colIndices[pos] = cols[e];
+            values[pos] = entries[e];
+            if (rows[e] != cols[e]) {
+                pos = next[cols[e]]++;
+                colIndices[pos] = rows[e];
+                values[pos] = entries[e];
+            }
+        }
+    }
+
+    /**
+     * (O_i - c - m_i)(O_j - c - m_j) - O_i O_j, where c holds the column means and m the row offsets
+     */
+    private double uncenteredCorrection(int i, int j) {
+        return -oeTimesMeans[i] - oeTimesMeans[j] - rowOffsets[j] * rowSums[i] - rowOffsets[i] * rowSums[j]
+                + sumSquaredColMeans + (rowOffsets[i] + rowOffsets[j]) * sumColMeans
+                + dim * rowOffsets[i] * rowOffsets[j];
+    }
+
+    public int getMatrixDimension() {
+        return dim;
+    }
+
+    public int[] getValidBins() {
+        return validBins;
+    }
+
+    @Override
+    public int getDimension() {
+        return validBins.length;
+    }
+
+    /**
+     * C v = Z (Z^T v), where row i of Z is the doubly centered O/E row i scaled to unit length.
+     */
+    @Override
+    public void multiply(double[] vector, double[] result) {
+        // w = D^-1 v, scattered to full bin coordinates
+        Arrays.fill(fullX, 0);
+        double sumW = 0, sumOffsetW = 0;
+        for (int k = 0; k < validBins.length; k++) {
+            int bin = validBins[k];
+            double w = vector[k] / rowNorms[bin];
+            fullX[bin] = w;
+            sumW += w;
+            sumOffsetW += rowOffsets[bin] * w;
+        }
+
+        // u = Y^T w
+        multiplyOE(fullX, fullY);
+        double sumU = 0, meansDotU = 0;
+        for (int j = 0; j < dim; j++) {
+            double u = fullY[j] - colMeans[j] * sumW - sumOffsetW;
+            fullY[j] = u;
+            sumU += u;
+            meansDotU += colMeans[j] * u;
+        }
+
+        // D^-1 Y u, restricted to the valid rows
+        multiplyOE(fullY, fullX);
+        for (int k = 0; k < validBins.length; k++) {
+            int bin = validBins[k];
+            result[k] = (fullX[bin] - meansDotU - rowOffsets[bin] * sumU) / rowNorms[bin];
+        }
+    }
+
+    /**
+     * Pearson's correlations for bins [rowStart, rowEnd) x [colStart, colEnd), written row-major into block.
+     * Bins without data are NaN and the diagonal is 1, as in Pearsons.computePearsons.
+     *
+     * @param scratch zero-filled array of length getMatrixDimension(), returned zero-filled; one per thread
+     */
+    public void fillCorrelations(int rowStart, int rowEnd, int colStart, int colEnd, float[] block, double[] scratch) {
+        int width = colEnd - colStart;
+        for (int i = rowStart; i < rowEnd; i++) {
+            int offset = (i - rowStart) * width - colStart;
+            if (rowNorms[i] == 0) {
+                Arrays.fill(block, offset + colStart, offset + colEnd, Float.NaN);
+                continue;
+            }
+            for (int e = rowStarts[i]; e < rowStarts[i + 1]; e++) {
+                scratch[colIndices[e]] = values[e];
+            }
+            for (int j = colStart; j < colEnd; j++) {
+                if (rowNorms[j] == 0) {
+                    block[offset + j] = Float.NaN;
+                } else if (i == j) {
+                    block[offset + j] = 1;
+                } else {
+                    double dot = 0;
+                    for (int e = rowStarts[j]; e < rowStarts[j + 1]; e++) {
+                        dot += values[e] * scratch[colIndices[e]];
+                    }
+                    block[offset + j] = (float) ((dot + uncenteredCorrection(i, j)) / (rowNorms[i] * rowNorms[j]));
+                }
+            }
+            for (int e = rowStarts[i]; e < rowStarts[i + 1]; e++) {
+                scratch[colIndices[e]] = 0;
+            }
+        }
+    }
+
+    /**
+     * result = OE * vector, split by rows across threads
+     */
+    private void multiplyOE(final double[] vector, final double[] result) {
+        final AtomicInteger rowIndex = new AtomicInteger(0);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int start = rowIndex.getAndAdd(ROWS_PER_TASK);
+                while (start < dim) {
+                    int end = Math.min(start + ROWS_PER_TASK, dim);
+                    for (int i = start; i < end; i++) {
+                        double sum = 0;
+                        for (int e = rowStarts[i]; e < rowStarts[i + 1]; e++) {
+                            sum += values[e] * vector[colIndices[e]];
+                        }
+                        result[i] = sum;
+                    }
+                    start = rowIndex.getAndAdd(ROWS_PER_TASK);
+                }
+            }
+        };
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            futures.add(productService.submit(worker));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Error multiplying the O/E matrix", e);
+        }
+    }
+}
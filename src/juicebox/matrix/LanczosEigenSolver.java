@@ -0,0 +1,265 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package juicebox.matrix;
+
+import juicebox.HiCGlobals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Lanczos iteration with full reorthogonalization for the leading eigenvectors of a large symmetric matrix.
+ * The matrix is only ever touched through {@link SymmetricOperator#multiply}, so callers can keep it implicit
+ * (e.g. a Pearson's correlation matrix defined from sparse O/E values) and parallelize the product themselves.
+ * Eigenpairs are ordered by decreasing eigenvalue, matching EigenDecomposition for positive semidefinite input.
+ */
+public class LanczosEigenSolver {
+
+    private static final int CONVERGENCE_CHECK_INTERVAL = 10;
+    private static final int MIN_KRYLOV_STEPS = 300;
+    private static final double CONVERGENCE_TOLERANCE = 1e-10;
+    private static final double BREAKDOWN_TOLERANCE = 1e-12;
+    private static final long SEED = 0L;
+
+    /**
+     * @param operator   symmetric matrix to decompose
+     * @param numVectors how many of the leading eigenvectors to return
+     * @return unit eigenvectors, first index is the eigenvector rank (0 is principal)
+     */
+    public static double[][] computeTopEigenvectors(SymmetricOperator operator, int numVectors) {
+        int n = operator.getDimension();
+        int k = Math.min(numVectors, n);
+        if (k < 1) {
+            return new double[0][0];
+        }
+        int maxSteps = Math.min(n, MIN_KRYLOV_STEPS + 2 * k);
+
+        Random generator = new Random(SEED);
+        List<double[]> basis = new ArrayList<>();
+        double[] alpha = new double[maxSteps];
+        double[] beta = new double[maxSteps];
+
+        double[] q = randomOrthogonalVector(generator, basis, n);
+        double[][] ritzVectors = null;
+        double[] w = new double[n];
+
+        for (int step = 0; step < maxSteps; step++) {
+            basis.add(q);
+            operator.multiply(q, w);
+            alpha[step] = dot(q, w);
+            axpy(-alpha[step], q, w);
+            if (step > 0) {
+                axpy(-beta[step - 1], basis.get(step - 1), w);
+            }
+            // classical Gram-Schmidt applied twice keeps the basis orthogonal to working precision
+            reorthogonalize(basis, w);
+            reorthogonalize(basis, w);
+            double norm = Math.sqrt(dot(w, w));
+            boolean invariantSubspace = norm <= BREAKDOWN_TOLERANCE * Math.max(1, Math.abs(alpha[step]));
+            beta[step] = invariantSubspace ? 0 : norm;
+
+            int numSteps = step + 1;
+            boolean lastStep = numSteps == maxSteps;
+            if (numSteps >= k && (numSteps % CONVERGENCE_CHECK_INTERVAL == 0 || invariantSubspace || lastStep)) {
+                double[] d = new double[numSteps];
+                double[] e = new double[numSteps];
+                System.arraycopy(alpha, 0, d, 0, numSteps);
+                System.arraycopy(beta, 0, e, 0, numSteps - 1);
+                double[][] s = identity(numSteps);
+                tridiagonalQL(d, e, s);
+                int[] order = decreasingOrder(d);
+
+                boolean converged = true;
+                for (int r = 0; r < k && converged; r++) {
+                    double residual = Math.abs(beta[step] * s[numSteps - 1][order[r]]);
+                    converged = residual <= CONVERGENCE_TOLERANCE * Math.max(1, Math.abs(d[order[r]]));
+                }
+                if (converged || lastStep) {
+                    if (!converged && HiCGlobals.printVerboseComments) {
+                        System.out.println("Lanczos stopped after " + numSteps + " steps before full convergence");
+                    }
+                    ritzVectors = assembleRitzVectors(basis, s, order, k, n);
+                    break;
+                }
+            }
+
+            if (invariantSubspace) {
+                q = randomOrthogonalVector(generator, basis, n);
+            } else {
+                q = new double[n];
+                for (int i = 0; i < n; i++) {
+                    q[i] = w[i] / norm;
+                }
+            }
+        }
+        return ritzVectors;
+    }
+
+    private static double[][] assembleRitzVectors(List<double[]> basis, double[][] s, int[] order, int k, int n) {
+        double[][] vectors = new double[k][n];
+        for (int r = 0; r < k; r++) {
+            int col = order[r];
+            for (int j = 0; j < basis.size(); j++) {
+                axpy(s[j][col], basis.get(j), vectors[r]);
+            }
+        }
+        return vectors;
+    }
+
+    private static double[] randomOrthogonalVector(Random generator, List<double[]> basis, int n) {
+        double[] v = new double[n];
+        for (int i = 0; i < n; i++) {
+            v[i] = generator.nextDouble() - 0.5;
+        }
+        reorthogonalize(basis, v);
+        reorthogonalize(basis, v);
+        double norm = Math.sqrt(dot(v, v));
+        for (int i = 0; i < n; i++) {
+            v[i] /= norm;
+        }
+        return v;
+    }
+
+    private static void reorthogonalize(List<double[]> basis, double[] w) {
+        for (double[] q : basis) {
+            axpy(-dot(q, w), q, w);
+        }
+    }
+
+    private static double dot(double[] x, double[] y) {
+        double sum = 0;
+        for (int i = 0; i < x.length; i++) {
+            sum += x[i] * y[i];
+        }
+        return sum;
+    }
+
+    private static void axpy(double a, double[] x, double[] y) {
+        for (int i = 0; i < x.length; i++) {
+            y[i] += a * x[i];
+        }
+    }
+
+    private static double[][] identity(int n) {
+        double[][] matrix = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            matrix[i][i] = 1;
+        }
+        return matrix;
+    }
+
+    private static int[] decreasingOrder(double[] values) {
+        Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(values[b], values[a]));
+        int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    /**
+     * Implicit QL on a symmetric tridiagonal matrix (after the EISPACK tql2 routine).
+     *
+     * @param d diagonal; replaced by the eigenvalues
+     * @param e off diagonal, e[i] couples i and i+1 and the last entry is ignored; destroyed
+     * @param v identity on input; eigenvectors are accumulated as its columns
+     */
+    private static void tridiagonalQL(double[] d, double[] e, double[][] v) {
+        int n = d.length;
+        e[n - 1] = 0;
+        double f = 0;
+        double tst1 = 0;
+        double eps = Math.ulp(1.0);
+        for (int l = 0; l < n; l++) {
+            tst1 = Math.max(tst1, Math.abs(d[l]) + Math.abs(e[l]));
+            int m = l;
+            while (m < n - 1 && Math.abs(e[m]) > eps * tst1) {
+                m++;
+            }
+            if (m > l) {
+                do {
+                    double g = d[l];
+                    double p = (d[l + 1] - g) / (2 * e[l]);
+                    double r = Math.hypot(p, 1);
+                    if (p < 0) {
+                        r = -r;
+                    }
+                    d[l] = e[l] / (p + r);
+                    d[l + 1] = e[l] * (p + r);
+                    double dl1 = d[l + 1];
+                    double h = g - d[l];
+                    for (int i = l + 2; i < n; i++) {
+                        d[i] -= h;
+                    }
+                    f += h;
+
+                    p = d[m];
+                    double c = 1, c2 = 1, c3 = 1;
+                    double el1 = e[l + 1];
+                    double s = 0, s2 = 0;
+                    for (int i = m - 1; i >= l; i--) {
+                        c3 = c2;
+                        c2 = c;
+                        s2 = s;
+                        g = c * e[i];
+                        h = c * p;
+                        r = Math.hypot(p, e[i]);
+                        e[i + 1] = s * r;
+                        s = e[i] / r;
+                        c = p / r;
+                        p = c * d[i] - s * g;
+                        d[i + 1] = h + s * (c * g + s * d[i]);
+                        for (int row = 0; row < n; row++) {
+                            h = v[row][i + 1];
+                            v[row][i + 1] = s * v[row][i] + c * h;
+                            v[row][i] = c * v[row][i] - s * h;
+                        }
+                    }
+                    p = -s * s2 * c3 * el1 * e[l] / dl1;
+                    e[l] = s * p;
+                    d[l] = c * p;
+                } while (Math.abs(e[l]) > eps * tst1);
+            }
+            d[l] += f;
+            e[l] = 0;
+        }
+    }
+
+    public interface SymmetricOperator {
+
+        int getDimension();
+
+        /**
+         * result = A * vector; result is overwritten
+         */
+        void multiply(double[] vector, double[] result);
+    }
+}
@@ -48,8 +48,13 @@ public class SymmetricMatrix implements BasicMatrix {
 
     public SymmetricMatrix(int dim) {
         this.dim = dim;
-        int size = (dim * dim - dim) / 2 + dim;
-        data = new float[size];
+        long size = ((long) dim * dim - dim) / 2 + dim;
+        if (size > Integer.MAX_VALUE - 8) {
+            // the packed upper triangle is a single array, which limits it to ~65.5k bins
+            throw new IllegalArgumentException("Symmetric matrix of dimension " + dim + " is too large to store ("
+                    + size + " entries)");
+        }
+        data = new float[(int) size];
         nullColumns = new HashSet<>();
     }
 
@@ -73,9 +78,9 @@ public class SymmetricMatrix implements BasicMatrix {
 
     private int getIdx(int i, int j) {
 
-        return (i < j) ?
-                i * dim - (i - 1) * i / 2 + j - i :
-                j * dim - (j - 1) * j / 2 + i - j;
+        return (int) ((i < j) ?
+                (long) i * dim - (long) (i - 1) * i / 2 + j - i :
+                (long) j * dim - (long) (j - 1) * j / 2 + i - j);
     }
 
 
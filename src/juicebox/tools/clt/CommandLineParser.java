@@ -55,6 +55,8 @@ public class CommandLineParser extends CmdLineParser {
     private final Option throwIntraFragOption = addBooleanOption("skip-intra-frag");
     private final Option useMinRAM = addBooleanOption("conserve-ram");
     private final Option checkMemory = addBooleanOption("check-ram-usage");
+    private final Option resumeOption = addBooleanOption("resume");
+    private final Option offHeapVectorsOption = addBooleanOption("off-heap-vectors");
 
     // String
     private final Option fragmentOption = addStringOption('f', "restriction-fragment-site-file");
@@ -67,6 +69,7 @@ public class CommandLineParser extends CmdLineParser {
     private final Option mndIndexOption = addStringOption('i', "mndindex");
     private final Option ligationOption = addStringOption("ligation");
     private final Option shellOption = addStringOption("shell");
+    private final Option checkpointDirOption = addStringOption("checkpoint-dir");
 
     // ints
     private final Option blockCapacityOption = addIntegerOption("block-capacity");
@@ -146,6 +149,14 @@ public class CommandLineParser extends CmdLineParser {
         return optionToBoolean(checkMemory);
     }
 
+    public boolean getResumeOption() {
+        return optionToBoolean(resumeOption);
+    }
+
+    public boolean getOffHeapVectorsOption() {
+        return optionToBoolean(offHeapVectorsOption);
+    }
+
     /**
      * String flags
      */
@@ -188,6 +199,10 @@ public class CommandLineParser extends CmdLineParser {
         return optionToString(shellOption);
     }
 
+    public String getCheckpointDirOption() {
+        return optionToString(checkpointDirOption);
+    }
+
     public Alignment getAlignmentOption() {
         int alignmentInt = optionToInt(alignmentFilterOption);
 
@@ -65,6 +65,7 @@ public class CommandLineParserForJuicer extends CommandLineParser {
     private final Option thresholdOption = addStringOption('t', "postprocessing-thresholds");
     private final Option cpuVersionHiCCUPSOption = addBooleanOption('j', "cpu");
     private final Option restrictSearchRegionsOption = addBooleanOption('y', "restrict");
+    private final Option cacheRegionsOption = addBooleanOption("cache-regions");
 
     private final Option relativeLocationOption = addStringOption('l', "location-type");
     private final Option multipleAttributesOption = addStringOption('a', "attributes");
@@ -196,4 +197,8 @@ public class CommandLineParserForJuicer extends CommandLineParser {
     public boolean restrictSearchRegionsOptions() {
         return optionToBoolean(restrictSearchRegionsOption);
     }
+
+    public boolean getCacheRegionsOption() {
+        return optionToBoolean(cacheRegionsOption);
+    }
 }
\ No newline at end of file
@@ -101,7 +101,7 @@ class UnitTests {
         map.put(10000, Feature2DParser.loadFeatures(link2, "hg19", true, null, false));
         map.put(25000, Feature2DParser.loadFeatures(link3, "hg19", true, null, false));
 
-        Feature2DList newMerger = HiCCUPSUtils.mergeAllResolutions(map);
+        Feature2DList newMerger = HiCCUPSUtils.mergeAllResolutions(map, 1);
         newMerger.exportFeatureList(new File(outputPath), false, Feature2DList.ListFormat.FINAL);
 
         folder = "/Users/muhammad/Desktop/local_hiccups_gm12878/results3/";
@@ -123,7 +123,7 @@ class UnitTests {
         HiCCUPSUtils.postProcess(map, ds1, ds1.getChromosomeHandler(),
                 HiCCUPSConfiguration.getDefaultSetOfConfigsForUsers(),
                 NormalizationHandler.KR, outputDirectory,
-                false, outputMergedGivenFile);
+                false, outputMergedGivenFile, 1);
     }
 
     public static void testingHiCCUPSPostprocessing() {
@@ -148,7 +148,7 @@ class UnitTests {
         loopLists.put(10000, Feature2DParser.loadFeatures(link2, chromosomeHandler, true, null, false));
 
         HiCCUPSUtils.postProcess(loopLists, ds, chromosomeHandler,
-                filteredConfigurations, norm, outputDirectory, false, outputMergedFile);
+                filteredConfigurations, norm, outputDirectory, false, outputMergedFile, 1);
     }
 
     /*
@@ -34,7 +34,9 @@ import juicebox.data.MatrixZoomData;
 import juicebox.data.basics.Chromosome;
 import juicebox.tools.clt.CommandLineParserForJuicer;
 import juicebox.tools.clt.JuicerCLT;
+import juicebox.tools.dev.ParallelizedJuicerTools;
 import juicebox.tools.utils.juicer.apa.APADataStack;
+import juicebox.tools.utils.juicer.apa.APALoopBatch;
 import juicebox.tools.utils.juicer.apa.APARegionStatistics;
 import juicebox.tools.utils.juicer.apa.APAUtils;
 import juicebox.track.feature.Feature2D;
@@ -43,13 +45,10 @@ import juicebox.track.feature.Feature2DParser;
 import juicebox.track.feature.FeatureFilter;
 import juicebox.windowui.HiCZoom;
 import juicebox.windowui.NormalizationType;
-import org.apache.commons.math.linear.RealMatrix;
 
 import java.io.File;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -114,6 +113,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * > and save them under the results folder
  */
 public class APA extends JuicerCLT {
+    // loops whose centers are at most this many bins apart (in both dimensions) are read as one region
+    private static final int MAX_BATCH_SPAN = 256;
     private boolean saveAllData = false;
     private boolean dontIncludePlots = false;
     private String loopListPath;
@@ -277,98 +278,116 @@ public class APA extends JuicerCLT {
 
                 double maxProgressStatus = handler.size();
                 final AtomicInteger currentProgressStatus = new AtomicInteger(0);
-                Map<Integer,Chromosome[]> chromosomePairs = new ConcurrentHashMap<>();
-                int pairCounter = 1;
+                APADataStack.initializeDataSaveFolder(outputDirectory, "" + resolution);
+
+                // loops are grouped into position sorted batches whose windows share blocks; batches from
+                // all chromosome pairs are handed out one at a time so that large chromosomes don't hold up the run
+                final List<ChromosomePairWork> pairs = new ArrayList<>();
+                final List<ChromosomePairWork> batchOwners = new ArrayList<>();
+                final List<APALoopBatch> batches = new ArrayList<>();
                 for (Chromosome chr1 : handler.getChromosomeArrayWithoutAllByAll()) {
                     for (Chromosome chr2 : handler.getChromosomeArrayWithoutAllByAll()) {
-                        Chromosome[] chromosomePair = {chr1,chr2};
-                        chromosomePairs.put(pairCounter, chromosomePair);
-                        pairCounter++;
+                        if ((chr2.getIndex() > chr1.getIndex() && includeInterChr) || (chr2.getIndex() == chr1.getIndex())) {
+                            MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chr1, chr2, zoom);
+                            if (zd == null) continue;
+
+                            if (HiCGlobals.printVerboseComments) {
+                                System.out.println("CHR " + chr1.getName() + " " + chr1.getIndex() + " CHR " + chr2.getName() + " " + chr2.getIndex());
+                            }
+
+                            List<Feature2D> loops = loopList.get(chr1.getIndex(), chr2.getIndex());
+                            if (loops == null || loops.size() == 0) {
+                                if (HiCGlobals.printVerboseComments) {
+                                    System.out.println("CHR " + chr1.getName() + " CHR " + chr2.getName() + " - no loops, check loop filtering constraints");
+                                }
+                                continue;
+                            }
+
+                            Integer[] peakNumbers = filterMetrics.get(Feature2DList.getKey(chr1, chr2));
+
+                            if (loops.size() != peakNumbers[0])
+                                System.err.println("Error reading statistics from " + chr1 + chr2);
+
+                            for (int i = 0; i < peakNumbers.length; i++) {
+                                gwPeakNumbers[i].addAndGet(peakNumbers[i]);
+                            }
+
+                            List<APALoopBatch> pairBatches = APALoopBatch.createBatches(loops, resolution, window,
+                                    Math.min(zd.getBlockBinCount(), MAX_BATCH_SPAN));
+                            ChromosomePairWork pair = new ChromosomePairWork(chr1, chr2, zd, peakNumbers,
+                                    loops.size(), pairBatches.size());
+                            pairs.add(pair);
+                            for (APALoopBatch batch : pairBatches) {
+                                batchOwners.add(pair);
+                                batches.add(batch);
+                            }
+                        }
                     }
                 }
-                final int chromosomePairCounter = pairCounter;
 
-                final AtomicInteger chromosomePair = new AtomicInteger(1);
-
-                ExecutorService executor = Executors.newFixedThreadPool(numCPUThreads);
-                APADataStack.initializeDataSaveFolder(outputDirectory,"" + resolution);
+                final AtomicInteger batchCounter = new AtomicInteger(0);
+                ParallelizedJuicerTools.launchParallelizedCode(numCPUThreads, new Runnable() {
+                    @Override
+                    public void run() {
+                        float[] regionBuffer = null;
+                        float[] loopBuffer = new float[L * L];
+                        Map<ChromosomePairWork, APADataStack> threadStacks = new HashMap<>();
+
+                        int b = batchCounter.getAndIncrement();
+                        while (b < batches.size()) {
+                            ChromosomePairWork pair = batchOwners.get(b);
+                            APALoopBatch batch = batches.get(b);
+
+                            APADataStack apaDataStack = threadStacks.get(pair);
+                            if (apaDataStack == null) {
+                                apaDataStack = new APADataStack(L, outputDirectory, "" + resolution);
+                                threadStacks.put(pair, apaDataStack);
+                            }
 
-                for (int l = 0; l < numCPUThreads; l++) {
-                    Runnable worker = new Runnable() {
-                        @Override
-                        public void run() {
-                            int threadPair = chromosomePair.getAndIncrement();
-                            while (threadPair < chromosomePairCounter) {
-                                Chromosome chr1 = chromosomePairs.get(threadPair)[0];
-                                Chromosome chr2 = chromosomePairs.get(threadPair)[1];
-                                if ((chr2.getIndex() > chr1.getIndex() && includeInterChr) || (chr2.getIndex() == chr1.getIndex())) {
-                                    APADataStack apaDataStack = new APADataStack(L, outputDirectory, "" + resolution);
-
-                                    MatrixZoomData zd;
-                                    synchronized (key) {
-                                        zd = HiCFileTools.getMatrixZoomData(ds, chr1, chr2, zoom);
-                                    }
-
-                                    if (zd == null) {
-                                        threadPair = chromosomePair.getAndIncrement();
-                                        continue;
-                                    }
-
-                                    if (HiCGlobals.printVerboseComments) {
-                                        System.out.println("CHR " + chr1.getName() + " " + chr1.getIndex() + " CHR " + chr2.getName() + " " + chr2.getIndex());
-                                    }
-
-                                    List<Feature2D> loops = loopList.get(chr1.getIndex(), chr2.getIndex());
-                                    if (loops == null || loops.size() == 0) {
-                                        if (HiCGlobals.printVerboseComments) {
-                                            System.out.println("CHR " + chr1.getName() + " CHR " + chr2.getName() + " - no loops, check loop filtering constraints");
-                                        }
-                                        threadPair = chromosomePair.getAndIncrement();
-                                        continue;
-                                    }
-
-                                    Integer[] peakNumbers = filterMetrics.get(Feature2DList.getKey(chr1, chr2));
-
-                                    if (loops.size() != peakNumbers[0])
-                                        System.err.println("Error reading statistics from " + chr1 + chr2);
-
-                                    for (int i = 0; i < peakNumbers.length; i++) {
-                                        gwPeakNumbers[i].addAndGet(peakNumbers[i]);
-                                    }
-
-                                    for (Feature2D loop : loops) {
-                                        try {
-                                            RealMatrix newData;
-                                            synchronized (key) {
-                                                newData = APAUtils.extractLocalizedData(zd, loop, L, resolution, window, norm);
-                                            }
-                                            apaDataStack.addData(newData);
-                                            //apaDataStack.addData(APAUtils.extractLocalizedData(zd, loop, L, resolution, window, norm));
-                                        } catch (Exception e) {
-                                            System.err.println(e.getMessage());
-                                            System.err.println("Unable to find data for loop: " + loop);
-                                        }
-                                    }
-
-                                    apaDataStack.updateGenomeWideData();
-                                    if (saveAllData) {
-                                        apaDataStack.exportDataSet(chr1.getName() + 'v' + chr2.getName(), peakNumbers, finalCurrentRegionWidth, saveAllData, dontIncludePlots);
-                                    }
-                                    if (chr2.getIndex() == chr1.getIndex()) {
-                                        System.out.print(((int) Math.floor((100.0 * currentProgressStatus.incrementAndGet()) / maxProgressStatus)) + "% ");
-                                    }
+                            try {
+                                synchronized (key) {
+                                    regionBuffer = batch.fillRegion(regionBuffer, pair.zd, norm);
+                                }
+                                for (int i = 0; i < batch.size(); i++) {
+                                    batch.copyLoopWindow(regionBuffer, i, loopBuffer);
+                                    pair.enhancement[batch.getLoopIndex(i)] = apaDataStack.addDataWithoutEnhancement(loopBuffer);
                                 }
-                                threadPair = chromosomePair.getAndIncrement();
+                            } catch (Exception e) {
+                                System.err.println(e.getMessage());
+                                for (int i = 0; i < batch.size(); i++) {
+                                    System.err.println("Unable to find data for loop: " + batch.getLoop(i));
+                                }
+                            }
+
+                            if (pair.remainingBatches.decrementAndGet() == 0 && pair.chr1.getIndex() == pair.chr2.getIndex()) {
+                                System.out.print(((int) Math.floor((100.0 * currentProgressStatus.incrementAndGet()) / maxProgressStatus)) + "% ");
                             }
+                            b = batchCounter.getAndIncrement();
                         }
-                    };
-                    executor.execute(worker);
-                }
 
-                executor.shutdown();
+                        for (Map.Entry<ChromosomePairWork, APADataStack> entry : threadStacks.entrySet()) {
+                            entry.getKey().threadStacks.add(entry.getValue());
+                        }
+                    }
+                });
+
+                // merge per thread results; enhancements are listed in the order of the loop list
+                for (ChromosomePairWork pair : pairs) {
+                    APADataStack apaDataStack = new APADataStack(L, outputDirectory, "" + resolution);
+                    for (APADataStack threadStack : pair.threadStacks) {
+                        apaDataStack.merge(threadStack);
+                    }
+                    for (Double value : pair.enhancement) {
+                        if (value != null) {
+                            apaDataStack.addEnhancement(value);
+                        }
+                    }
 
-                // Wait until all threads finish
-                while (!executor.isTerminated()) {
+                    apaDataStack.updateGenomeWideData();
+                    if (saveAllData) {
+                        apaDataStack.exportDataSet(pair.chr1.getName() + 'v' + pair.chr2.getName(), pair.peakNumbers,
+                                finalCurrentRegionWidth, saveAllData, dontIncludePlots);
+                    }
                 }
 
                 System.out.println("Exporting APA results...");
@@ -386,4 +405,27 @@ public class APA extends JuicerCLT {
         return result;
         //if no data return null
     }
-}
\ No newline at end of file
+
+    /**
+     * Loops of one chromosome pair; each thread accumulates its share of the pair's batches
+     * in its own stack, and the stacks are merged once every batch is done
+     */
+    private static class ChromosomePairWork {
+        private final Chromosome chr1, chr2;
+        private final MatrixZoomData zd;
+        private final Integer[] peakNumbers;
+        private final Double[] enhancement;
+        private final AtomicInteger remainingBatches;
+        private final Queue<APADataStack> threadStacks = new ConcurrentLinkedQueue<>();
+
+        private ChromosomePairWork(Chromosome chr1, Chromosome chr2, MatrixZoomData zd, Integer[] peakNumbers,
+                                   int numLoops, int numBatches) {
+            this.chr1 = chr1;
+            this.chr2 = chr2;
+            this.zd = zd;
+            this.peakNumbers = peakNumbers;
+            this.enhancement = new Double[numLoops];
+            this.remainingBatches = new AtomicInteger(numBatches);
+        }
+    }
+}
@@ -36,6 +36,7 @@ import juicebox.data.basics.Chromosome;
 import juicebox.mapcolorui.Feature2DHandler;
 import juicebox.tools.clt.CommandLineParserForJuicer;
 import juicebox.tools.clt.JuicerCLT;
+import juicebox.tools.dev.ParallelizedJuicerTools;
 import juicebox.tools.utils.common.ArrayTools;
 import juicebox.tools.utils.juicer.hiccups.*;
 import juicebox.track.feature.Feature2D;
@@ -55,8 +56,8 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -200,10 +201,12 @@ public class HiCCUPS extends JuicerCLT {
     private List<HiCCUPSConfiguration> configurations;
     private Dataset ds;
     private boolean useCPUVersionHiCCUPS = false, restrictSearchRegions = false;
+    private boolean cacheRegionResults = false;
+    private File tmpDir = null;
 
     public HiCCUPS() {
         super("hiccups [-m matrixSize] [-k normalization (NONE/VC/VC_SQRT/KR)] " +
-                "[-c chromosome(s)] [-r resolution(s)] [--restrict] " +
+                "[-c chromosome(s)] [-r resolution(s)] [--restrict] [--cache-regions] [--tmpdir directory] " +
                 "[-f fdr] [-p peak width] [-i window] [-t thresholds] [-d centroid distances] " +
                 "<hicFile> <outputDirectory> [specified_loop_list]");
         Feature2D.allowHiCCUPSOrdering = true;
@@ -246,6 +249,18 @@ public class HiCCUPS extends JuicerCLT {
             System.out.println(CPU_VERSION_WARNING);
         }
 
+        if (juicerParser.getCacheRegionsOption()) {
+            cacheRegionResults = true;
+            String tmpDirName = juicerParser.getTmpdirOption();
+            if (tmpDirName != null) {
+                tmpDir = new File(tmpDirName);
+                if (!tmpDir.exists() && !tmpDir.mkdirs()) {
+                    System.err.println("Unable to create temp directory " + tmpDirName);
+                    System.exit(1);
+                }
+            }
+        }
+
         updateNumberOfCPUThreads(juicerParser);
     }
 
@@ -344,10 +359,10 @@ public class HiCCUPS extends JuicerCLT {
 
         if (dataShouldBePostProcessed) {
             HiCCUPSUtils.postProcess(loopLists, ds, commonChromosomesHandler,
-                    configurations, norm, outputDirectory, false, outputMergedFile);
+                    configurations, norm, outputDirectory, false, outputMergedFile, numCPUThreads);
             if (listGiven) {
                 HiCCUPSUtils.postProcess(givenLoopLists, ds, commonChromosomesHandler,
-                        configurations, norm, outputDirectory, true, outputMergedGivenFile);
+                        configurations, norm, outputDirectory, true, outputMergedGivenFile, numCPUThreads);
             }
         }
         System.out.println("HiCCUPS complete");
@@ -401,34 +416,58 @@ public class HiCCUPS extends JuicerCLT {
         final HiCCUPSRegionHandler regionHandler = new HiCCUPSRegionHandler(ds, chromosomeHandler, zoom, norm, conf, regionWidth,
                 regionMargin, restrictSearchRegions);
 
+        // candidate pixels from the 1st run are kept on disk so the 2nd run only applies the thresholds;
+        // requested loops can be anywhere in a region, so they still need the full 2nd run
+        HiCCUPSRegionCache cache = null;
+        if (cacheRegionResults) {
+            if (listGiven) {
+                System.out.println("Region caching is not used when a loop list is specified");
+            } else {
+                try {
+                    cache = new HiCCUPSRegionCache(tmpDir);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println("Unable to create region cache; regions will be processed in both runs");
+                }
+            }
+        }
+        final HiCCUPSRegionCache regionCache = cache;
+
         for (final int runNum : new int[]{0, 1}) {
 
             final AtomicInteger currentProgressStatus = new AtomicInteger(0);
             final AtomicInteger indexOfHiCCUPSRegion = new AtomicInteger(0);
 
-            ExecutorService executor = Executors.newFixedThreadPool(numCPUThreads);
-            for (int l = 0; l < numCPUThreads; l++) {
-                Runnable worker = new Runnable() {
-                    @Override
-                    public void run() {
-                        runCoreCodeForHiCCUPS(conf, indexOfHiCCUPSRegion, currentProgressStatus, regionHandler, matrixSize,
-                                thresholdBL, thresholdDonut, thresholdH, thresholdV, norm, zoom,
-                                histBL, histDonut, histH, histV, runNum, fdrLogBL, fdrLogDonut, fdrLogH, fdrLogV,
-                                inputListFeature2DHandler, requestedList, globalList);
-                    }
-                };
-                executor.execute(worker);
-            }
-            executor.shutdown();
+            // each worker fills its own histograms and pixel lists; they are combined once all workers finish
+            final Queue<HiCCUPSHistogramShard> histogramShards = new ConcurrentLinkedQueue<>();
+            final Queue<Feature2DList> globalListShards = new ConcurrentLinkedQueue<>();
+            final Queue<Feature2DList> requestedListShards = new ConcurrentLinkedQueue<>();
+
+            ParallelizedJuicerTools.launchParallelizedCode(numCPUThreads, new Runnable() {
+                @Override
+                public void run() {
+                    runCoreCodeForHiCCUPS(conf, indexOfHiCCUPSRegion, currentProgressStatus, regionHandler, matrixSize,
+                            thresholdBL, thresholdDonut, thresholdH, thresholdV, norm, zoom,
+                            histogramShards, runNum, fdrLogBL, fdrLogDonut, fdrLogH, fdrLogV,
+                            inputListFeature2DHandler, requestedListShards, globalListShards, regionCache);
+                }
+            });
 
-            // Wait until all threads finish
-            while (!executor.isTerminated()) {
+            for (Feature2DList peaksList : globalListShards) {
+                globalList.add(peaksList);
+            }
+            for (Feature2DList peaksList : requestedListShards) {
+                requestedList.add(peaksList);
             }
 
             if (runNum == 0) {
 
                 long thresh_time0 = System.currentTimeMillis();
 
+                for (HiCCUPSHistogramShard histogramShard : histogramShards) {
+                    histogramShard.addTo(histBL, histDonut, histH, histV);
+                }
+
                 long[][] rcsHistBL = ArrayTools.makeReverse2DCumulativeArray(histBL);
                 long[][] rcsHistDonut = ArrayTools.makeReverse2DCumulativeArray(histDonut);
                 long[][] rcsHistH = ArrayTools.makeReverse2DCumulativeArray(histH);
@@ -449,6 +488,10 @@ public class HiCCUPS extends JuicerCLT {
             }
         }
 
+        if (regionCache != null) {
+            regionCache.delete();
+        }
+
         globalList.exportFeatureList(new File(outputDirectory, HiCCUPSUtils.getEnrichedPixelFileName(conf.getResolution())),
                 true, Feature2DList.ListFormat.ENRICHED);
         if (listGiven) {
@@ -475,14 +518,19 @@ public class HiCCUPS extends JuicerCLT {
                                        HiCCUPSRegionHandler regionHandler, int matrixSize,
                                        float[] thresholdBL, float[] thresholdDonut, float[] thresholdH, float[] thresholdV,
                                        NormalizationType norm, HiCZoom zoom,
-                                       long[][] histBL, long[][] histDonut, long[][] histH, long[][] histV, int runNum,
+                                       Queue<HiCCUPSHistogramShard> histogramShards, int runNum,
                                        float[][] fdrLogBL, float[][] fdrLogDonut, float[][] fdrLogH, float[][] fdrLogV,
-                                       Feature2DHandler inputListFeature2DHandler, Feature2DList requestedList, Feature2DList globalList) {
+                                       Feature2DHandler inputListFeature2DHandler, Queue<Feature2DList> requestedListShards,
+                                       Queue<Feature2DList> globalListShards, HiCCUPSRegionCache regionCache) {
 
 
         int indexOfRegionForThread = indexOfHiCCUPSRegion.getAndIncrement();
 
-        GPUController gpuController = buildGPUController(conf);
+        HiCCUPSHistogramShard histograms = runNum == 0 ? new HiCCUPSHistogramShard(w1, w2) : null;
+        Feature2DList globalList = new Feature2DList();
+        Feature2DList requestedList = new Feature2DList();
+
+        GPUController gpuController = null;
 
         while (indexOfRegionForThread < regionHandler.getSize()) {
 
@@ -498,6 +546,29 @@ public class HiCCUPS extends JuicerCLT {
                 int[] rowBounds = regionContainer.getRowBounds();
                 int[] columnBounds = regionContainer.getColumnBounds();
 
+                if (runNum == 1 && regionCache != null && regionCache.contains(indexOfRegionForThread)) {
+                    Chromosome chromosome = regionContainer.getChromosome();
+                    try {
+                        Feature2DList peaksList = regionCache.extractPeaks(indexOfRegionForThread,
+                                thresholdBL, thresholdDonut, thresholdH, thresholdV, chromosome.getIndex(), chromosome.getName(),
+                                rowBounds[4], columnBounds[4], conf.getResolution());
+                        Feature2DTools.calculateFDR(peaksList, fdrLogBL, fdrLogDonut, fdrLogH, fdrLogV);
+                        globalList.add(peaksList);
+                        printProgress(currentProgressStatus, regionHandler);
+                        indexOfRegionForThread = indexOfHiCCUPSRegion.getAndIncrement();
+                        continue;
+                    } catch (IOException e) {
+                        System.err.println("Unable to read region " + indexOfRegionForThread
+                                + " from the region cache; processing it again");
+                        if (HiCGlobals.printVerboseComments) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+
+                if (gpuController == null) {
+                    gpuController = buildGPUController(conf);
+                }
                 GPUOutputContainer gpuOutputs = gpuController.process(regionHandler, regionContainer, matrixSize,
                         thresholdBL, thresholdDonut, thresholdH, thresholdV, norm, zoom);
 
@@ -506,7 +577,18 @@ public class HiCCUPS extends JuicerCLT {
                 if (runNum == 0) {
                     gpuOutputs.cleanUpBinNans();
                     gpuOutputs.cleanUpBinDiagonal(diagonalCorrection);
-                    gpuOutputs.updateHistograms(histBL, histDonut, histH, histV, w1, w2);
+                    gpuOutputs.updateHistograms(histograms);
+                    if (regionCache != null) {
+                        try {
+                            regionCache.save(indexOfRegionForThread, gpuOutputs, w1, w2);
+                        } catch (IOException e) {
+                            System.err.println("Unable to write region " + indexOfRegionForThread
+                                    + " to the region cache; it will be processed again in the 2nd run");
+                            if (HiCGlobals.printVerboseComments) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
 
                 } else if (runNum == 1) {
                     gpuOutputs.cleanUpPeakNaNs();
@@ -536,13 +618,7 @@ public class HiCCUPS extends JuicerCLT {
                     }
 
                 }
-                int currProg = currentProgressStatus.incrementAndGet();
-                int resonableDivisor = Math.max(regionHandler.getSize() / 20, 1);
-                if (HiCGlobals.printVerboseComments || currProg % resonableDivisor == 0) {
-                    DecimalFormat df = new DecimalFormat("#.####");
-                    df.setRoundingMode(RoundingMode.FLOOR);
-                    System.out.println(df.format(Math.floor((100.0 * currProg) / regionHandler.getSize())) + "% ");
-                }
+                printProgress(currentProgressStatus, regionHandler);
 
             } catch (IOException e) {
                 System.err.println("No data in map region");
@@ -550,6 +626,23 @@ public class HiCCUPS extends JuicerCLT {
 
             indexOfRegionForThread = indexOfHiCCUPSRegion.getAndIncrement();
         }
+
+        if (runNum == 0) {
+            histogramShards.add(histograms);
+        } else {
+            globalListShards.add(globalList);
+            requestedListShards.add(requestedList);
+        }
+    }
+
+    private void printProgress(AtomicInteger currentProgressStatus, HiCCUPSRegionHandler regionHandler) {
+        int currProg = currentProgressStatus.incrementAndGet();
+        int resonableDivisor = Math.max(regionHandler.getSize() / 20, 1);
+        if (HiCGlobals.printVerboseComments || currProg % resonableDivisor == 0) {
+            DecimalFormat df = new DecimalFormat("#.####");
+            df.setRoundingMode(RoundingMode.FLOOR);
+            System.out.println(df.format(Math.floor((100.0 * currProg) / regionHandler.getSize())) + "% ");
+        }
     }
 
     private GPUController buildGPUController(HiCCUPSConfiguration conf) {
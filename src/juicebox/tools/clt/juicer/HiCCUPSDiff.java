@@ -200,8 +200,8 @@ public class HiCCUPSDiff extends JuicerCLT {
         }
 
         // for every feature in second loop list, see if there's a reasonably close one in first list (and vice versa)
-        Feature2DList conservedLoopList2 = Feature2DTools.extractReproducibleCentroids(looplist1, looplist2, 50000, 0.2);
-        Feature2DList conservedLoopList1 = Feature2DTools.extractReproducibleCentroids(looplist2, looplist1, 50000, 0.2);
+        Feature2DList conservedLoopList2 = Feature2DTools.extractReproducibleCentroids(looplist1, looplist2, 50000, 0.2, numCPUThreads);
+        Feature2DList conservedLoopList1 = Feature2DTools.extractReproducibleCentroids(looplist2, looplist1, 50000, 0.2, numCPUThreads);
 
         // get the differences - loops that appear only in the respective loop list
         Feature2DList diff1 = Feature2DTools.compareLists(conservedLoopList1, looplist1, false);
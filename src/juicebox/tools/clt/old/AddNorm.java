@@ -33,6 +33,7 @@ import juicebox.tools.utils.norm.NormalizationVectorUpdater;
 import juicebox.windowui.NormalizationHandler;
 import juicebox.windowui.NormalizationType;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -46,6 +47,9 @@ public class AddNorm extends JuiceboxCLT {
     private String inputVectorFile = null;
     private int genomeWideResolution = -100;
     private String file;
+    private File tmpDir = null;
+    private File checkpointDir = null;
+    private boolean resume = false;
     private final List<NormalizationType> normalizationTypes = new ArrayList<>();
     private Map<NormalizationType, Integer> resolutionsToBuildTo;
 
@@ -58,7 +62,11 @@ public class AddNorm extends JuiceboxCLT {
                 + "           : -k normalizations to include\n"
                 + "           : -r resolutions for respective normalizations to build to\n"
                 + "           : -j number of CPU threads to use\n"
+                + "           : -t <tmpDir> Set a temporary directory for writing\n"
+                + "           : --checkpoint-dir <dir> save each finished vector so an interrupted run can be resumed\n"
+                + "           : --resume skip vectors already saved in the checkpoint directory [<input_HiC_file>_addNorm_checkpoint]\n"
                 + "           : --conserve-ram will minimize RAM usage\n"
+                + "           : --off-heap-vectors keep large vectors off the java heap (memory-mapped in tmpDir if -t is set)\n"
                 + "           : --check-ram-usage will check ram requirements prior to running"
         );
     }
@@ -67,6 +75,14 @@ public class AddNorm extends JuiceboxCLT {
         return "addNorm <input_HiC_file> [input_vector_file]";
     }
 
+    /**
+     * Vectors of 16M+ entries (e.g. genome-wide vectors at high resolution) are stored outside the java heap
+     */
+    public static void useOffHeapVectors(File tmpDir) {
+        HiCGlobals.OFF_HEAP_VECTOR_THRESHOLD = 1 << 24;
+        HiCGlobals.OFF_HEAP_VECTOR_DIRECTORY = tmpDir;
+    }
+
     public static Map<NormalizationType, Integer> defaultHashMapForResToBuildTo(List<NormalizationType> normalizationTypes) {
         HashMap<NormalizationType, Integer> map = new HashMap<>();
         for (NormalizationType norm : normalizationTypes) {
@@ -77,13 +93,24 @@ public class AddNorm extends JuiceboxCLT {
 
     public static void launch(String outputFile, List<NormalizationType> normalizationTypes, int genomeWide,
                               boolean noFragNorm, int numCPUThreads,
-                              Map<NormalizationType, Integer> resolutionsToBuildTo) throws IOException {
+                              Map<NormalizationType, Integer> resolutionsToBuildTo, File tmpDir) throws IOException {
+        launch(outputFile, normalizationTypes, genomeWide, noFragNorm, numCPUThreads, resolutionsToBuildTo, tmpDir,
+                null, false);
+    }
+
+    public static void launch(String outputFile, List<NormalizationType> normalizationTypes, int genomeWide,
+                              boolean noFragNorm, int numCPUThreads, Map<NormalizationType, Integer> resolutionsToBuildTo,
+                              File tmpDir, File checkpointDir, boolean resume) throws IOException {
         NormalizationVectorUpdater updater;
         if (numCPUThreads > 1) {
             updater = new MultithreadedNormalizationVectorUpdater(numCPUThreads);
         } else {
             updater = new NormalizationVectorUpdater();
         }
+        updater.setTmpDir(tmpDir);
+        if (checkpointDir != null) {
+            updater.setCheckpointDirectory(checkpointDir, resume);
+        }
         updater.updateHicFile(outputFile, normalizationTypes, resolutionsToBuildTo, genomeWide, noFragNorm);
     }
 
@@ -104,6 +131,18 @@ public class AddNorm extends JuiceboxCLT {
         updateNumberOfCPUThreads(parser);
         usingMultiThreadedVersion = numCPUThreads > 1;
 
+        String tmpDirName = parser.getTmpdirOption();
+        if (tmpDirName != null) {
+            tmpDir = new File(tmpDirName);
+            if (!tmpDir.exists()) {
+                System.err.println("Tmp directory does not exist: " + tmpDirName);
+                System.exit(59);
+            }
+        }
+        if (parser.getOffHeapVectorsOption()) {
+            useOffHeapVectors(tmpDir);
+        }
+
         genomeWideResolution = parser.getGenomeWideOption();
         normalizationTypes.addAll(parser.getAllNormalizationTypesOption());
         resolutionsToBuildTo = defaultHashMapForResToBuildTo(normalizationTypes);
@@ -127,6 +166,14 @@ public class AddNorm extends JuiceboxCLT {
         }
 
         file = args[1];
+
+        resume = parser.getResumeOption();
+        String checkpointDirName = parser.getCheckpointDirOption();
+        if (checkpointDirName != null) {
+            checkpointDir = new File(checkpointDirName);
+        } else if (resume) {
+            checkpointDir = new File(file + "_addNorm_checkpoint");
+        }
     }
 
     @Override
@@ -137,7 +184,7 @@ public class AddNorm extends JuiceboxCLT {
                 CustomNormVectorFileHandler.updateHicFile(file, inputVectorFile);
             } else {
                 launch(file, normalizationTypes, genomeWideResolution, noFragNorm,
-                        numCPUThreads, resolutionsToBuildTo);
+                        numCPUThreads, resolutionsToBuildTo, tmpDir, checkpointDir, resume);
             }
         } catch (Exception e) {
             e.printStackTrace();
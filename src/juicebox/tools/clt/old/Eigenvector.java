@@ -90,6 +90,11 @@ public class Eigenvector extends JuiceboxCLT {
             System.exit(21);
         }
 
+        if (unit == HiC.Unit.BP && binSize < HiCGlobals.MIN_EIGENVECTOR_ZOOM) {
+            System.err.println("Eigenvector calculation is not supported below " + HiCGlobals.MIN_EIGENVECTOR_ZOOM + " BP");
+            System.exit(21);
+        }
+
         if ((unit == HiC.Unit.BP && binSize < HiCGlobals.MAX_EIGENVECTOR_ZOOM) ||
                 (unit == HiC.Unit.FRAG && binSize < HiCGlobals.MAX_EIGENVECTOR_ZOOM / 1000)) {
             System.out.println("WARNING: Eigenvector calculation at high resolution can take a long time");
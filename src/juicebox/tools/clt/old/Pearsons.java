@@ -35,17 +35,25 @@ import juicebox.data.MatrixZoomData;
 import juicebox.data.basics.Chromosome;
 import juicebox.matrix.BasicMatrix;
 import juicebox.matrix.DiskResidentBlockMatrix;
-import juicebox.matrix.InMemoryMatrix;
+import juicebox.matrix.ImplicitPearsonsMatrix;
+import juicebox.matrix.SymmetricMatrix;
 import juicebox.tools.clt.CommandLineParser;
 import juicebox.tools.clt.JuiceboxCLT;
 import juicebox.tools.dev.ParallelizedJuicerTools;
-import juicebox.tools.utils.dev.PearsonCorrelationMetric;
 import juicebox.windowui.HiCZoom;
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.broad.igv.util.ParsingUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Class for calculating Pearsons (separated out from Dump)
@@ -54,6 +62,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class Pearsons extends JuiceboxCLT {
 
     private static final int BLOCK_TILE = 500;
+    private static final int CORRELATION_TILE = 64;
+    private static final int DEPTH_TILE = 512;
+    private static final long PERCENTILE_SAMPLE_SIZE = 1 << 20;
     private String ofile = null;
     private HiC.Unit unit = null;
     private int binSize = 0;
@@ -111,128 +122,173 @@ public class Pearsons extends JuiceboxCLT {
         return count == 0 ? 0 : sum / count;
     }
 
+    /**
+     * Pearson's correlation between the rows of the O/E matrix after subtracting the row means.  Each row is
+     * standardized once, so that the correlations are a symmetric product of standardized rows; that product is
+     * computed in tiles, each tile owned by one thread and written directly into a packed symmetric matrix.
+     * Rows of the given matrix are released as they are standardized: every row of a bin in bitSet is set to null,
+     * so the caller must not use the matrix afterwards.
+     *
+     * @param matrix O/E matrix, symmetric; its valid rows are nulled
+     * @param dim    dimension of the matrix
+     * @param bitSet bins with data; all other rows and columns are NaN
+     * @return Pearson's correlation matrix
+     */
     public static BasicMatrix computePearsons(double[][] matrix, int dim, BitSet bitSet) {
-
-        // Subtract row means
-        double[] rowMeans = new double[dim];
-        for (int i = 0; i < dim; i++) {
-            if (bitSet.get(i)) {
-                rowMeans[i] = getVectorMean(matrix[i]);
-            }
+        int[] validBins = new int[bitSet.cardinality()];
+        int count = 0;
+        for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
+            validBins[count++] = i;
         }
+        float[][] standardized = standardizeRows(matrix, dim, validBins);
 
-        for (int i = 0; i < dim; i++) {
-            if (bitSet.get(i)) {
-                for (int j = 0; j < dim; j++) {
-                    matrix[i][j] -= rowMeans[j];
-                }
-            }
+        SymmetricMatrix pearsons = new SymmetricMatrix(dim);
+        pearsons.fill(Float.NaN);
+        for (int i : validBins) {
+            pearsons.setEntry(i, i, 1.0f);
         }
 
-        BasicMatrix pearsons = new InMemoryMatrix(dim);
-
-        for (int i = 0; i < dim; i++) {
-            if (bitSet.get(i)) {
-                for (int j = i + 1; j < dim; j++) {
-                    if (bitSet.get(j)) {
-                        float corr = (float) PearsonCorrelationMetric.corr(matrix[i], matrix[j]);
-                        pearsons.setEntry(i, j, corr);
-                        pearsons.setEntry(j, i, corr);
-                    } else {
-                        pearsons.setEntry(i, j, Float.NaN);
-                        pearsons.setEntry(j, i, Float.NaN);
-                    }
-                }
-            } else {
-                for (int j = i + 1; j < dim; j++) {
-                    pearsons.setEntry(i, j, Float.NaN);
-                    pearsons.setEntry(j, i, Float.NaN);
-                }
+        int numTiles = (validBins.length + CORRELATION_TILE - 1) / CORRELATION_TILE;
+        int numTilePairs = numTiles * (numTiles + 1) / 2;
+        int[] tileRows = new int[numTilePairs];
+        int[] tileCols = new int[numTilePairs];
+        int pairIndex = 0;
+        for (int ti = 0; ti < numTiles; ti++) {
+            for (int tj = ti; tj < numTiles; tj++) {
+                tileRows[pairIndex] = ti;
+                tileCols[pairIndex] = tj;
+                pairIndex++;
             }
         }
-        // Set diagonal to 1, set centromere to NaN
-        for (int i = 0; i < dim; i++) {
-            if (bitSet.get(i)) {
-                pearsons.setEntry(i, i, 1.0f);
-            } else {
-                pearsons.setEntry(i, i, Float.NaN);
-            }
-        }
-        return pearsons;
-    }
-
-    public static BasicMatrix computeParallelizedPearsons(double[][] matrix, int dim, BitSet bitSet) {
-        // Subtract row means
-        inPlaceParallelSubtractRowMeans(matrix, dim, bitSet);
-
-        BasicMatrix pearsons = new InMemoryMatrix(dim);
 
-        // Set diagonal to 1, set centromere to NaN
-        AtomicInteger dCounter = new AtomicInteger(0);
+        AtomicInteger tileCounter = new AtomicInteger(0);
         ParallelizedJuicerTools.launchParallelizedCode(() -> {
-            int i = dCounter.getAndIncrement();
-            while (i < dim) {
-                if (bitSet.get(i)) {
-                    for (int j = i + 1; j < dim; j++) {
-                        float corr;
-                        if (bitSet.get(j)) {
-                            corr = (float) PearsonCorrelationMetric.corr(matrix[i], matrix[j]);
-                        } else {
-                            corr = Float.NaN;
-                        }
-                        synchronized (pearsons) {
-                            pearsons.setEntry(i, j, corr);
-                            pearsons.setEntry(j, i, corr);
-                        }
-                    }
-                } else {
-                    synchronized (pearsons) {
-                        for (int j = i + 1; j < dim; j++) {
-                            pearsons.setEntry(i, j, Float.NaN);
-                            pearsons.setEntry(j, i, Float.NaN);
-                        }
-                    }
-                }
-
-                i = dCounter.getAndIncrement();
+            double[] sums = new double[CORRELATION_TILE * CORRELATION_TILE];
+            int t = tileCounter.getAndIncrement();
+            while (t < numTilePairs) {
+                fillCorrelationTile(standardized, validBins, dim, tileRows[t] * CORRELATION_TILE,
+                        tileCols[t] * CORRELATION_TILE, sums, pearsons);
+                t = tileCounter.getAndIncrement();
             }
         });
 
-        for (int i = 0; i < dim; i++) {
-            if (bitSet.get(i)) {
-                pearsons.setEntry(i, i, 1.0f);
-            } else {
-                pearsons.setEntry(i, i, Float.NaN);
-            }
-        }
         return pearsons;
     }
 
-    private static void inPlaceParallelSubtractRowMeans(double[][] matrix, int dim, BitSet bitSet) {
+    /**
+     * Subtract the row means (column-wise, as the matrix is symmetric), then center and scale each valid row so that
+     * the dot product of two rows is their Pearson's correlation.
+     */
+    private static float[][] standardizeRows(double[][] matrix, int dim, int[] validBins) {
         double[] rowMeans = new double[dim];
         AtomicInteger index = new AtomicInteger(0);
         ParallelizedJuicerTools.launchParallelizedCode(() -> {
-            int i = index.getAndIncrement();
-            while (i < dim) {
-                if (bitSet.get(i)) {
-                    rowMeans[i] = getVectorMean(matrix[i]);
-                }
-                i = index.getAndIncrement();
+            int k = index.getAndIncrement();
+            while (k < validBins.length) {
+                rowMeans[validBins[k]] = getVectorMean(matrix[validBins[k]]);
+                k = index.getAndIncrement();
             }
         });
 
+        float[][] standardized = new float[validBins.length][];
         AtomicInteger index2 = new AtomicInteger(0);
         ParallelizedJuicerTools.launchParallelizedCode(() -> {
-            int i = index2.getAndIncrement();
-            while (i < dim) {
-                if (bitSet.get(i)) {
-                    for (int j = 0; j < dim; j++) {
-                        matrix[i][j] -= rowMeans[j];
-                    }
+            double[] centered = new double[dim];
+            int k = index2.getAndIncrement();
+            while (k < validBins.length) {
+                double[] row = matrix[validBins[k]];
+                double sum = 0;
+                for (int j = 0; j < dim; j++) {
+                    centered[j] = row[j] - rowMeans[j];
+                    sum += centered[j];
+                }
+                double mu = sum / dim;
+                double norm = 0;
+                for (int j = 0; j < dim; j++) {
+                    centered[j] -= mu;
+                    norm += centered[j] * centered[j];
+                }
+                norm = Math.sqrt(norm);
+
+                float[] z = new float[dim];
+                for (int j = 0; j < dim; j++) {
+                    z[j] = (float) (centered[j] / norm);
                 }
-                i = index2.getAndIncrement();
+                standardized[k] = z;
+                matrix[validBins[k]] = null;
+                k = index2.getAndIncrement();
             }
         });
+        return standardized;
+    }
+
+    /**
+     * Correlations between the standardized rows starting at rowStart and colStart (colStart >= rowStart).
+     * The shared dimension is walked in chunks so both panels of rows stay in cache.
+     */
+    private static void fillCorrelationTile(float[][] standardized, int[] validBins, int dim, int rowStart,
+                                            int colStart, double[] sums, SymmetricMatrix pearsons) {
+        int rowEnd = Math.min(rowStart + CORRELATION_TILE, validBins.length);
+        int colEnd = Math.min(colStart + CORRELATION_TILE, validBins.length);
+        boolean diagonalTile = rowStart == colStart;
+        Arrays.fill(sums, 0);
+
+        for (int kStart = 0; kStart < dim; kStart += DEPTH_TILE) {
+            int kEnd = Math.min(kStart + DEPTH_TILE, dim);
+            for (int a = rowStart; a < rowEnd; a++) {
+                float[] za = standardized[a];
+                int offset = (a - rowStart) * CORRELATION_TILE - colStart;
+                int b = diagonalTile ? a + 1 : colStart;
+                for (; b + 3 < colEnd; b += 4) {
+                    dot4(za, standardized[b], standardized[b + 1], standardized[b + 2], standardized[b + 3],
+                            kStart, kEnd, sums, offset + b);
+                }
+                for (; b < colEnd; b++) {
+                    sums[offset + b] += dot(za, standardized[b], kStart, kEnd);
+                }
+            }
+        }
+
+        for (int a = rowStart; a < rowEnd; a++) {
+            int offset = (a - rowStart) * CORRELATION_TILE - colStart;
+            for (int b = diagonalTile ? a + 1 : colStart; b < colEnd; b++) {
+                pearsons.setEntry(validBins[a], validBins[b], (float) sums[offset + b]);
+            }
+        }
+    }
+
+    /**
+     * Four dot products sharing the loads of x; adds them to sums[index..index+3]
+     */
+    private static void dot4(float[] x, float[] y0, float[] y1, float[] y2, float[] y3, int start, int end,
+                             double[] sums, int index) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (int k = start; k < end; k++) {
+            float xk = x[k];
+            s0 += xk * y0[k];
+            s1 += xk * y1[k];
+            s2 += xk * y2[k];
+            s3 += xk * y3[k];
+        }
+        sums[index] += s0;
+        sums[index + 1] += s1;
+        sums[index + 2] += s2;
+        sums[index + 3] += s3;
+    }
+
+    private static float dot(float[] x, float[] y, int start, int end) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = start;
+        for (; k + 3 < end; k += 4) {
+            s0 += x[k] * y[k];
+            s1 += x[k + 1] * y[k + 1];
+            s2 += x[k + 2] * y[k + 2];
+            s3 += x[k + 3] * y[k + 3];
+        }
+        for (; k < end; k++) {
+            s0 += x[k] * y[k];
+        }
+        return (s0 + s1) + (s2 + s3);
     }
 
     @Override
@@ -299,22 +355,27 @@ public class Pearsons extends JuiceboxCLT {
         }
         ExpectedValueFunction df = dataset.getExpectedValuesOrExit(zd.getZoom(), norm, chromosome1, true);
 
+        if (ofile != null && ofile.endsWith(".bin")) {
+            try {
+                zd.writePearsons(df, ofile, dataset.getGenomeId());
+            } catch (IOException error) {
+                System.err.println("Problem when writing Pearson's");
+                error.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+
         BasicMatrix pearsons = zd.getPearsons(df);
         if (pearsons == null) {
             System.err.println("Pearson's not available at zoom " + zoom  + ". For high resolution, try again with -p");
             System.exit(15);
         }
 
-        LittleEndianOutputStream les = null;
         PrintWriter txtWriter = null;
         if (ofile != null) {
             try {
-                if (ofile.endsWith(".bin")) {
-                    BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(ofile));
-                    les = new LittleEndianOutputStream(bos);
-                } else {
-                    txtWriter = new PrintWriter(new FileOutputStream(ofile));
-                }
+                txtWriter = new PrintWriter(new FileOutputStream(ofile));
             } catch (IOException error) {
                 System.err.println("Cannot write to " + ofile);
                 error.printStackTrace();
@@ -325,52 +386,140 @@ public class Pearsons extends JuiceboxCLT {
             txtWriter = new PrintWriter(System.out);
         }
 
-        if (les == null) {
-            int dim = pearsons.getRowDimension();
-            for (int i = 0; i < dim; i++) {
-                for (int j = 0; j < dim; j++) {
-                    float output = pearsons.getEntry(i, j);
-                    txtWriter.print(output + " ");
-                }
-                txtWriter.println();
+        int dim = pearsons.getRowDimension();
+        for (int i = 0; i < dim; i++) {
+            for (int j = 0; j < dim; j++) {
+                float output = pearsons.getEntry(i, j);
+                txtWriter.print(output + " ");
             }
-            txtWriter.flush();
+            txtWriter.println();
         }
-        else {
-            try {
-                int dim = pearsons.getRowDimension();
-                writeHeader(les, dim, pearsons.getLowerValue(), pearsons.getUpperValue());
-                int block_side = (int) Math.ceil((float) dim / (float) BLOCK_TILE);
-                for (int i = 0; i < block_side; i++) {
-                    int block_row_start = i * BLOCK_TILE;
-                    int block_row_end = Math.min(block_row_start + BLOCK_TILE, dim);
-                    int row_len = block_row_end - block_row_start;
-                    for (int j = 0; j < block_side; j++) {
-                        int block_col_start = j * BLOCK_TILE;
-                        int block_col_end = Math.min(block_col_start + BLOCK_TILE, dim);
-                        int col_len = block_col_end - block_col_start;
-                        for (int ui = 0; ui < row_len; ui++) {
-                            for (int uj = 0; uj < col_len; uj++) {
-                                int now_i = ui + block_row_start;
-                                int now_j = uj + block_col_start;
-                                float output = pearsons.getEntry(now_i, now_j);
-                                les.writeFloat(output);
+        txtWriter.flush();
+    }
+
+    /**
+     * Write the Pearson's in the block layout read by DiskResidentBlockMatrix without holding the dense matrix.
+     * Tiles on and above the diagonal are computed in parallel from the sparse O/E and written, along with their
+     * transposes, straight to their place in the file; memory stays at a few tiles per thread.  The scale bounds
+     * in the header are estimated from a fixed sample of the correlations and filled in at the end.
+     *
+     * @param pearsons prepared O/E for one chromosome
+     * @param path     output file
+     */
+    public static void writeBlockFile(ImplicitPearsonsMatrix pearsons, String path, String genomeId, String chrName,
+                                      int binSize) throws IOException {
+        int dim = pearsons.getMatrixDimension();
+        int headerLength = createHeader(genomeId, chrName, binSize, dim, Float.NaN, Float.NaN).length;
+        int numBlocks = (dim + BLOCK_TILE - 1) / BLOCK_TILE;
+        int numBlockPairs = numBlocks * (numBlocks + 1) / 2;
+        long numValid = pearsons.getDimension();
+        long sampleStride = Math.max(1, numValid * (numValid - 1) / 2 / PERCENTILE_SAMPLE_SIZE);
+
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            AtomicInteger pairCounter = new AtomicInteger(0);
+            AtomicReference<IOException> failure = new AtomicReference<>();
+            Queue<float[]> samples = new ConcurrentLinkedQueue<>();
+
+            ParallelizedJuicerTools.launchParallelizedCode(() -> {
+                double[] scratch = new double[dim];
+                float[] block = new float[BLOCK_TILE * BLOCK_TILE];
+                float[] transposed = new float[BLOCK_TILE * BLOCK_TILE];
+                ByteBuffer buffer = ByteBuffer.allocate(BLOCK_TILE * BLOCK_TILE * 4).order(ByteOrder.LITTLE_ENDIAN);
+                int p = pairCounter.getAndIncrement();
+                while (p < numBlockPairs && failure.get() == null) {
+                    // unrank p into the block pair (bi, bj) with bi <= bj
+                    int bi = 0, remaining = p;
+                    while (remaining >= numBlocks - bi) {
+                        remaining -= numBlocks - bi;
+                        bi++;
+                    }
+                    int bj = bi + remaining;
+
+                    int rowStart = bi * BLOCK_TILE, rowEnd = Math.min(rowStart + BLOCK_TILE, dim);
+                    int colStart = bj * BLOCK_TILE, colEnd = Math.min(colStart + BLOCK_TILE, dim);
+                    int rowDim = rowEnd - rowStart, colDim = colEnd - colStart;
+                    pearsons.fillCorrelations(rowStart, rowEnd, colStart, colEnd, block, scratch);
+                    samples.add(sampleBlock(block, rowStart, rowEnd, colStart, colEnd, dim, sampleStride));
+                    try {
+                        writeBlock(channel, buffer, block, rowDim * colDim,
+                                getBlockPosition(headerLength, dim, bi, bj, rowDim));
+                        if (bi != bj) {
+                            for (int r = 0; r < rowDim; r++) {
+                                for (int c = 0; c < colDim; c++) {
+                                    transposed[c * rowDim + r] = block[r * colDim + c];
+                                }
                             }
+                            writeBlock(channel, buffer, transposed, rowDim * colDim,
+                                    getBlockPosition(headerLength, dim, bj, bi, colDim));
                         }
-
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
                     }
+                    p = pairCounter.getAndIncrement();
                 }
-                les.close();
+            });
+            if (failure.get() != null) {
+                throw failure.get();
             }
-            catch (IOException error) {
-                System.err.println("Problem when writing Pearson's");
-                error.printStackTrace();
-                System.exit(1);
+
+            DescriptiveStatistics stats = new DescriptiveStatistics();
+            for (float[] sample : samples) {
+                for (float value : sample) {
+                    stats.addValue(value);
+                }
+            }
+            byte[] header = createHeader(genomeId, chrName, binSize, dim,
+                    (float) stats.getPercentile(5), (float) stats.getPercentile(95));
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            long position = 0;
+            while (headerBuffer.hasRemaining()) {
+                position += channel.write(headerBuffer, position);
+            }
+        }
+    }
+
+    private static long getBlockPosition(int headerLength, int dim, int blockRow, int blockCol, int blockRowDim) {
+        return headerLength + ((long) blockRow * BLOCK_TILE * dim + (long) blockCol * BLOCK_TILE * blockRowDim) * 4L;
+    }
+
+    private static void writeBlock(FileChannel channel, ByteBuffer buffer, float[] data, int length, long position)
+            throws IOException {
+        buffer.clear();
+        buffer.asFloatBuffer().put(data, 0, length);
+        buffer.limit(length * 4);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Off-diagonal correlations above the diagonal at a fixed stride, for estimating the color scale bounds
+     */
+    private static float[] sampleBlock(float[] block, int rowStart, int rowEnd, int colStart, int colEnd, int dim,
+                                       long sampleStride) {
+        int width = colEnd - colStart;
+        float[] sample = new float[16];
+        int count = 0;
+        for (int i = rowStart; i < rowEnd; i++) {
+            for (int j = Math.max(colStart, i + 1); j < colEnd; j++) {
+                float value = block[(i - rowStart) * width + j - colStart];
+                if (((long) i * dim + j) % sampleStride == 0 && !Float.isNaN(value)) {
+                    if (count == sample.length) {
+                        sample = Arrays.copyOf(sample, 2 * count);
+                    }
+                    sample[count++] = value;
+                }
             }
         }
+        return Arrays.copyOf(sample, count);
     }
 
-    private void writeHeader(LittleEndianOutputStream les, int dim, float lower, float upper) throws IOException {
+    private static byte[] createHeader(String genomeId, String chrName, int binSize, int dim, float lower,
+                                       float upper) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianOutputStream les = new LittleEndianOutputStream(bytes);
 
         // Magic number - 4 bytes
         les.writeByte('h');
@@ -382,11 +531,11 @@ public class Pearsons extends JuiceboxCLT {
         les.writeInt(1);
 
         // Genome --
-        les.writeString(dataset.getGenomeId());
+        les.writeString(genomeId);
 
         // Chromosomes
-        les.writeString(chromosome1.getName());
-        les.writeString(chromosome1.getName());
+        les.writeString(chrName);
+        les.writeString(chrName);
 
         // Resolution (bin size)
         les.writeInt(binSize);
@@ -397,5 +546,7 @@ public class Pearsons extends JuiceboxCLT {
         les.writeInt(dim);  // # rows
         les.writeInt(dim);  // # cols
         les.writeInt(BLOCK_TILE);
+        les.flush();
+        return bytes.toByteArray();
     }
 }
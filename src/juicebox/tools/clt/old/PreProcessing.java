@@ -49,6 +49,7 @@ public class PreProcessing extends JuiceboxCLT {
     private boolean noFragNorm = false;
     private int genomeWide;
     private String shell = "sh";
+    private File tmpDir = null;
     private final List<NormalizationType> normalizationTypes = new ArrayList<>();
 
     public PreProcessing() {
@@ -73,6 +74,7 @@ public class PreProcessing extends JuiceboxCLT {
                 + "           : --threads <int> number of threads \n"
                 + "           : --mndindex <filepath> to mnd chr block indices\n"
                 + "           : --conserve-ram will minimize RAM usage\n"
+                + "           : --off-heap-vectors keep large norm vectors off the java heap (memory-mapped in tmpDir if -t is set)\n"
                 + "           : --check-ram-usage will check ram requirements prior to running\n"
                 + "           : --shell how to execute shell (sh, bash, zsh, etc); default: sh"
         );
@@ -124,6 +126,9 @@ public class PreProcessing extends JuiceboxCLT {
         preprocessor.setFragmentFile(parser.getFragmentOption());
         preprocessor.setExpectedVectorFile(parser.getExpectedVectorOption());
         preprocessor.setTmpdir(tmpDir);
+        if (tmpDir != null) {
+            this.tmpDir = new File(tmpDir);
+        }
         preprocessor.setStatisticsFile(parser.getStatsOption());
         preprocessor.setGraphFile(parser.getGraphOption());
         preprocessor.setGenome(parser.getGenomeOption());
@@ -148,6 +153,9 @@ public class PreProcessing extends JuiceboxCLT {
         normalizationTypes.addAll(parser.getAllNormalizationTypesOption());
         HiCGlobals.USE_ITERATOR_NOT_ALL_IN_RAM = parser.getDontPutAllContactsIntoRAM();
         HiCGlobals.CHECK_RAM_USAGE = parser.shouldCheckRAMUsage();
+        if (parser.getOffHeapVectorsOption()) {
+            AddNorm.useOffHeapVectors(this.tmpDir);
+        }
     }
 
     @Override
@@ -167,7 +175,7 @@ public class PreProcessing extends JuiceboxCLT {
 
             if (!noNorm) {
                 Map<NormalizationType, Integer> resolutionsToBuildTo = AddNorm.defaultHashMapForResToBuildTo(normalizationTypes);
-                AddNorm.launch(outputFile, normalizationTypes, genomeWide, noFragNorm, numCPUThreads, resolutionsToBuildTo);
+                AddNorm.launch(outputFile, normalizationTypes, genomeWide, noFragNorm, numCPUThreads, resolutionsToBuildTo, tmpDir);
             } else {
                 System.out.println("Done creating .hic file. Normalization not calculated due to -n flag.");
                 System.out.println("To run normalization, run: java -jar juicer_tools.jar addNorm <hicfile>");
@@ -24,8 +24,11 @@
 
 package juicebox.tools.dev;
 
+import juicebox.HiCGlobals;
+
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class ParallelizedJuicerTools {
 
@@ -47,7 +50,13 @@ public class ParallelizedJuicerTools {
         executor.shutdown();
 
         // Wait until all threads finish
-        while (!executor.isTerminated()) {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            System.err.println("Error waiting for parallel tasks " + e.getLocalizedMessage());
+            if (HiCGlobals.printVerboseComments) {
+                e.printStackTrace();
+            }
         }
     }
 }
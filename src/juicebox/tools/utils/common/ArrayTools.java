@@ -141,6 +141,22 @@ public class ArrayTools {
         return paddedArray;
     }
 
+    /**
+     * Copies source[from, to) into the start of destination, converting to float;
+     * positions past the end of source are 0 (as with Arrays.copyOfRange) and the rest of destination is padded with val
+     */
+    public static void copyRangeToFloatArray(double[] source, int from, int to, float[] destination, float val) {
+        int length = to - from;
+        int available = Math.max(0, Math.min(Math.min(source.length, to) - from, destination.length));
+        for (int i = 0; i < available; i++) {
+            destination[i] = (float) source[from + i];
+        }
+        Arrays.fill(destination, available, Math.min(length, destination.length), 0);
+        if (length < destination.length) {
+            Arrays.fill(destination, Math.max(length, 0), destination.length, val);
+        }
+    }
+
     public static int[] extractIntegers(List<String> stringList) {
         int[] array = new int[stringList.size()];
 
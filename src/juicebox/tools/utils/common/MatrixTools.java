@@ -259,6 +259,33 @@ public class MatrixTools {
         return matrix;
     }
 
+    /**
+     * Reshape row major array (e.g. a region buffer) into a RealMatrix
+     *
+     * @param flatMatrix
+     * @param numRows
+     * @param numCols
+     * @return properly dimensioned matrix
+     */
+    public static RealMatrix reshapeFlatMatrixToRealMatrix(float[] flatMatrix, int numRows, int numCols) {
+        double[][] matrix = new double[numRows][numCols];
+        for (int i = 0; i < numRows; i++) {
+            int offset = i * numCols;
+            for (int j = 0; j < numCols; j++) {
+                matrix[i][j] = flatMatrix[offset + j];
+            }
+        }
+        return new Array2DRowRealMatrix(matrix, false);
+    }
+
+    public static RealMatrix reshapeFlatMatrixToRealMatrix(double[] flatMatrix, int numRows, int numCols) {
+        double[][] matrix = new double[numRows][numCols];
+        for (int i = 0; i < numRows; i++) {
+            System.arraycopy(flatMatrix, i * numCols, matrix[i], 0, numCols);
+        }
+        return new Array2DRowRealMatrix(matrix, false);
+    }
+
     /**
      * From Matrix M, extract out M[r1:r2,c1:c2]
      * r2, c2 not inclusive (~python numpy)
@@ -548,6 +575,15 @@ public class MatrixTools {
         return matrix;
     }
 
+    /**
+     * Row major version of fillLowerLeftTriangle for an n x n buffer
+     */
+    public static void fillLowerLeftTriangle(float[] flatMatrix, int n) {
+        for (int r = 0; r < n; r++)
+            for (int c = r + 1; c < n; c++)
+                flatMatrix[c * n + r] = flatMatrix[r * n + c];
+    }
+
     public static void thresholdValues(RealMatrix matrix, int val) {
         for (int i = 0; i < matrix.getRowDimension(); i++) {
             for (int j = 0; j < matrix.getColumnDimension(); j++) {
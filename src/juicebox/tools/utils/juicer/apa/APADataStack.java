@@ -42,10 +42,11 @@ public class APADataStack {
 
     // genome wide variables
     private static boolean genomeWideVariablesNotSet = true;
-    private static RealMatrix gwAPAMatrix;
-    private static RealMatrix gwNormedAPAMatrix;
-    private static RealMatrix gwCenterNormedAPAMatrix;
-    private static RealMatrix gwRankAPAMatrix;
+    private static int matrixWidth;
+    private static double[] gwAPAMatrix;
+    private static double[] gwNormedAPAMatrix;
+    private static double[] gwCenterNormedAPAMatrix;
+    private static double[] gwRankAPAMatrix;
     private static List<Double> gwEnhancement;
     private static final Object key = new Object();
 
@@ -53,12 +54,14 @@ public class APADataStack {
     private static int[] axesRange;
     private static File dataDirectory;
 
-    // chr variables
+    // chr variables; matrices are n x n in row major order
+    private final int n;
     private final List<Double> enhancement;
-    private RealMatrix APAMatrix;
-    private RealMatrix normedAPAMatrix;
-    private RealMatrix centerNormedAPAMatrix;
-    private RealMatrix rankAPAMatrix;
+    private final double[] APAMatrix;
+    private final double[] normedAPAMatrix;
+    private final double[] centerNormedAPAMatrix;
+    private final double[] rankAPAMatrix;
+    private final double[] sortBuffer;
 
     /**
      * class for saving data from chromosme wide run of APA, keeps static class to store genomide data
@@ -68,10 +71,12 @@ public class APADataStack {
      * @param customPrefix     optional file/folder prefix
      */
     public APADataStack(int n, File outputFolder, String customPrefix) {
-        APAMatrix = MatrixTools.cleanArray2DMatrix(n, n);
-        normedAPAMatrix = MatrixTools.cleanArray2DMatrix(n, n);
-        centerNormedAPAMatrix = MatrixTools.cleanArray2DMatrix(n, n);
-        rankAPAMatrix = MatrixTools.cleanArray2DMatrix(n, n);
+        this.n = n;
+        APAMatrix = new double[n * n];
+        normedAPAMatrix = new double[n * n];
+        centerNormedAPAMatrix = new double[n * n];
+        rankAPAMatrix = new double[n * n];
+        sortBuffer = new double[n * n];
         enhancement = new ArrayList<>();
 
         initializeGenomeWideVariables(n);
@@ -97,10 +102,11 @@ public class APADataStack {
 
     private static void initializeGenomeWideVariables(int n) {
         if (genomeWideVariablesNotSet) {
-            gwAPAMatrix = MatrixTools.cleanArray2DMatrix(n, n);
-            gwNormedAPAMatrix = MatrixTools.cleanArray2DMatrix(n, n);
-            gwCenterNormedAPAMatrix = MatrixTools.cleanArray2DMatrix(n, n);
-            gwRankAPAMatrix = MatrixTools.cleanArray2DMatrix(n, n);
+            matrixWidth = n;
+            gwAPAMatrix = new double[n * n];
+            gwNormedAPAMatrix = new double[n * n];
+            gwCenterNormedAPAMatrix = new double[n * n];
+            gwRankAPAMatrix = new double[n * n];
             //gwCoverage = APAUtils.cleanArray2DMatrix(n, n);
             gwEnhancement = new ArrayList<>();
             genomeWideVariablesNotSet = false;
@@ -109,18 +115,39 @@ public class APADataStack {
 
     public static void exportGenomeWideData(Integer[] peakNumbers, int currentRegionWidth, boolean saveAllData, boolean dontIncludePlots) {
         double gwNPeaksUsedInv = 1. / peakNumbers[0];
-        gwNormedAPAMatrix = gwNormedAPAMatrix.scalarMultiply(gwNPeaksUsedInv);
-        gwCenterNormedAPAMatrix = gwCenterNormedAPAMatrix.scalarMultiply(gwNPeaksUsedInv);
-        gwRankAPAMatrix = gwRankAPAMatrix.scalarMultiply(gwNPeaksUsedInv);
+        scale(gwNormedAPAMatrix, gwNPeaksUsedInv);
+        scale(gwCenterNormedAPAMatrix, gwNPeaksUsedInv);
+        scale(gwRankAPAMatrix, gwNPeaksUsedInv);
 
-        RealMatrix[] matrices = {gwAPAMatrix, gwNormedAPAMatrix, gwCenterNormedAPAMatrix, gwRankAPAMatrix};
+        RealMatrix[] matrices = toMatrices(matrixWidth, gwAPAMatrix, gwNormedAPAMatrix, gwCenterNormedAPAMatrix, gwRankAPAMatrix);
         String[] titles = {"APA", "normedAPA", "centerNormedAPA", "rankAPA"};
 
         saveDataSet("gw", matrices, titles, gwEnhancement, peakNumbers, currentRegionWidth, saveAllData, dontIncludePlots);
     }
 
     public static APARegionStatistics retrieveDataStatistics(int currentRegionWidth){
-        return new APARegionStatistics(gwAPAMatrix, currentRegionWidth);
+        return new APARegionStatistics(MatrixTools.reshapeFlatMatrixToRealMatrix(gwAPAMatrix, matrixWidth, matrixWidth),
+                currentRegionWidth);
+    }
+
+    private static void scale(double[] matrix, double scalar) {
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] *= scalar;
+        }
+    }
+
+    private static void add(double[] matrix, double[] other) {
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] += other[i];
+        }
+    }
+
+    private static RealMatrix[] toMatrices(int n, double[]... flatMatrices) {
+        RealMatrix[] matrices = new RealMatrix[flatMatrices.length];
+        for (int i = 0; i < flatMatrices.length; i++) {
+            matrices[i] = MatrixTools.reshapeFlatMatrixToRealMatrix(flatMatrices[i], n, n);
+        }
+        return matrices;
     }
 
     private static void saveDataSet(String prefix,
@@ -170,38 +197,74 @@ public class APADataStack {
         gwEnhancement = null;
     }
 
-    public void addData(RealMatrix newData) {
-        MatrixTools.cleanUpNaNs(newData);
-        APAMatrix = APAMatrix.add(newData);
-        normedAPAMatrix = normedAPAMatrix.add(APAUtils.standardNormalization(newData));
-        centerNormedAPAMatrix = centerNormedAPAMatrix.add(APAUtils.centerNormalization(newData));
-        rankAPAMatrix = rankAPAMatrix.add(APAUtils.rankPercentile(newData));
-        enhancement.add(APAUtils.peakEnhancement(newData));
+    /**
+     * @param newData n x n region in row major order; NaNs are zeroed in place
+     */
+    public void addData(float[] newData) {
+        enhancement.add(addDataWithoutEnhancement(newData));
+    }
+
+    /**
+     * Accumulates newData but leaves its peak enhancement to the caller,
+     * for when loops are not added in the order their enhancements should be listed
+     *
+     * @return peak enhancement of newData
+     */
+    public double addDataWithoutEnhancement(float[] newData) {
+        for (int i = 0; i < n * n; i++) {
+            if (Float.isNaN(newData[i])) {
+                newData[i] = 0;
+            }
+            APAMatrix[i] += newData[i];
+        }
+        APAUtils.addStandardNormalization(newData, n, normedAPAMatrix);
+        APAUtils.addCenterNormalization(newData, n, centerNormedAPAMatrix);
+        APAUtils.addRankPercentile(newData, n, sortBuffer, rankAPAMatrix);
+        return APAUtils.peakEnhancement(newData, n);
+    }
+
+    public void addEnhancement(double value) {
+        enhancement.add(value);
+    }
+
+    /**
+     * Adds the data accumulated by another stack (e.g. one kept by a single thread) to this one
+     */
+    public void merge(APADataStack other) {
+        add(APAMatrix, other.APAMatrix);
+        add(normedAPAMatrix, other.normedAPAMatrix);
+        add(centerNormedAPAMatrix, other.centerNormedAPAMatrix);
+        add(rankAPAMatrix, other.rankAPAMatrix);
+        enhancement.addAll(other.enhancement);
     }
 
     public synchronized void updateGenomeWideData() {
         synchronized (key) {
-            gwAPAMatrix = gwAPAMatrix.add(APAMatrix);
-            gwNormedAPAMatrix = gwNormedAPAMatrix.add(normedAPAMatrix);
-            gwCenterNormedAPAMatrix = gwCenterNormedAPAMatrix.add(centerNormedAPAMatrix);
-            gwRankAPAMatrix = gwRankAPAMatrix.add(rankAPAMatrix);
+            add(gwAPAMatrix, APAMatrix);
+            add(gwNormedAPAMatrix, normedAPAMatrix);
+            add(gwCenterNormedAPAMatrix, centerNormedAPAMatrix);
+            add(gwRankAPAMatrix, rankAPAMatrix);
             gwEnhancement.addAll(enhancement);
         }
     }
 
     public void exportDataSet(String subFolderName, Integer[] peakNumbers, int currentRegionWidth, boolean saveAllData, boolean dontIncludePlots) {
         double nPeaksUsedInv = 1. / peakNumbers[0];
-        normedAPAMatrix = normedAPAMatrix.scalarMultiply(nPeaksUsedInv);
-        centerNormedAPAMatrix = centerNormedAPAMatrix.scalarMultiply(nPeaksUsedInv);
-        rankAPAMatrix = rankAPAMatrix.scalarMultiply(nPeaksUsedInv);
+        scale(normedAPAMatrix, nPeaksUsedInv);
+        scale(centerNormedAPAMatrix, nPeaksUsedInv);
+        scale(rankAPAMatrix, nPeaksUsedInv);
 
-        RealMatrix[] matrices = {APAMatrix, normedAPAMatrix, centerNormedAPAMatrix, rankAPAMatrix};
+        RealMatrix[] matrices = toMatrices(n, APAMatrix, normedAPAMatrix, centerNormedAPAMatrix, rankAPAMatrix);
         String[] titles = {"APA", "normedAPA", "centerNormedAPA", "rankAPA", "enhancement", "measures"};
 
         saveDataSet(subFolderName, matrices, titles, enhancement, peakNumbers, currentRegionWidth, saveAllData, dontIncludePlots);
     }
 
     public void thresholdPlots(int val) {
-        MatrixTools.thresholdValues(APAMatrix, val);
+        for (int i = 0; i < APAMatrix.length; i++) {
+            if (APAMatrix[i] > val) {
+                APAMatrix[i] = val;
+            }
+        }
     }
 }
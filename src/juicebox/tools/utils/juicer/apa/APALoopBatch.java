@@ -0,0 +1,159 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.apa;
+
+import juicebox.data.MatrixZoomData;
+import juicebox.track.feature.Feature2D;
+import juicebox.windowui.NormalizationType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Loops from one chromosome pair whose APA windows fit inside a single bounded region,
+ * so that the blocks under them are read once for the whole batch instead of once per loop.
+ */
+public class APALoopBatch {
+
+    private final int window;
+    private final List<Feature2D> loops = new ArrayList<>();
+    private final List<Integer> loopIndices = new ArrayList<>();
+    private final List<long[]> loopBins = new ArrayList<>();
+    private long minBinX = Long.MAX_VALUE, maxBinX = Long.MIN_VALUE;
+    private long minBinY = Long.MAX_VALUE, maxBinY = Long.MIN_VALUE;
+
+    private APALoopBatch(int window) {
+        this.window = window;
+    }
+
+    /**
+     * Sorts the loops by genomic position and groups neighboring loops into batches
+     *
+     * @param maxSpan maximum distance in bins between loop centers in a batch, in either dimension
+     * @return batches in genomic order; loop indices refer to positions in the given list
+     */
+    public static List<APALoopBatch> createBatches(List<Feature2D> loops, int resolution, int window, int maxSpan) {
+        final long[][] bins = new long[loops.size()][];
+        Integer[] order = new Integer[loops.size()];
+        for (int i = 0; i < loops.size(); i++) {
+            bins[i] = new long[]{loops.get(i).getMidPt1() / resolution, loops.get(i).getMidPt2() / resolution};
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                int c = Long.compare(bins[o1][0], bins[o2][0]);
+                if (c != 0) return c;
+                return Long.compare(bins[o1][1], bins[o2][1]);
+            }
+        });
+
+        List<APALoopBatch> batches = new ArrayList<>();
+        APALoopBatch batch = new APALoopBatch(window);
+        for (int i : order) {
+            if (batch.size() > 0 && !batch.fits(bins[i], maxSpan)) {
+                batches.add(batch);
+                batch = new APALoopBatch(window);
+            }
+            batch.add(loops.get(i), i, bins[i]);
+        }
+        if (batch.size() > 0) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private boolean fits(long[] bins, int maxSpan) {
+        return Math.max(maxBinX, bins[0]) - Math.min(minBinX, bins[0]) <= maxSpan
+                && Math.max(maxBinY, bins[1]) - Math.min(minBinY, bins[1]) <= maxSpan;
+    }
+
+    private void add(Feature2D loop, int index, long[] bins) {
+        loops.add(loop);
+        loopIndices.add(index);
+        loopBins.add(bins);
+        minBinX = Math.min(minBinX, bins[0]);
+        maxBinX = Math.max(maxBinX, bins[0]);
+        minBinY = Math.min(minBinY, bins[1]);
+        maxBinY = Math.max(maxBinY, bins[1]);
+    }
+
+    public int size() {
+        return loops.size();
+    }
+
+    public Feature2D getLoop(int i) {
+        return loops.get(i);
+    }
+
+    /**
+     * @return position of the i-th loop of this batch in the list the batches were created from
+     */
+    public int getLoopIndex(int i) {
+        return loopIndices.get(i);
+    }
+
+    private int getNumRows() {
+        return (int) (maxBinX - minBinX) + 2 * window + 1;
+    }
+
+    private int getNumCols() {
+        return (int) (maxBinY - minBinY) + 2 * window + 1;
+    }
+
+    /**
+     * Reads the region covering the windows of every loop in this batch
+     *
+     * @param buffer reused if large enough
+     * @return buffer holding the region (row major)
+     */
+    public float[] fillRegion(float[] buffer, MatrixZoomData zd, NormalizationType norm) throws IOException {
+        int numRows = getNumRows(), numCols = getNumCols();
+        if (buffer == null || buffer.length < numRows * numCols) {
+            buffer = new float[numRows * numCols];
+        }
+        zd.fillLocalBoundedRegion(buffer, minBinX - window, maxBinX + window + 1,
+                minBinY - window, maxBinY + window + 1, numRows, numCols, norm, false);
+        return buffer;
+    }
+
+    /**
+     * Copies the window of the i-th loop out of a region filled by fillRegion;
+     * same values as APAUtils.fillLocalizedData for that loop
+     */
+    public void copyLoopWindow(float[] region, int i, float[] dest) {
+        int L = 2 * window + 1;
+        int numCols = getNumCols();
+        int rowOffset = (int) (loopBins.get(i)[0] - minBinX);
+        int colOffset = (int) (loopBins.get(i)[1] - minBinY);
+        for (int r = 0; r < L; r++) {
+            System.arraycopy(region, (rowOffset + r) * numCols + colOffset, dest, r * L, L);
+        }
+    }
+}
@@ -36,6 +36,7 @@ import org.apache.commons.math.linear.RealMatrix;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -145,6 +146,100 @@ public class APAUtils {
         return matrix;
     }
 
+    /*
+     * Primitive versions of the normalizations above, for an n x n row major region.
+     * Each one adds its result straight into an accumulator instead of building a new matrix;
+     * the arithmetic is the same so the accumulated values match the RealMatrix versions.
+     */
+
+    /**
+     * @return mean computed as commons-math's Mean does (sum / n, then a correction pass)
+     */
+    private static double mean(float[] data, int length) {
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += data[i];
+        }
+        double xbar = sum / length;
+        double correction = 0;
+        for (int i = 0; i < length; i++) {
+            correction += data[i] - xbar;
+        }
+        return xbar + (correction / length);
+    }
+
+    public static void addStandardNormalization(float[] data, int n, double[] accumulator) {
+        double scale = 1. / Math.max(1., mean(data, n * n));
+        for (int i = 0; i < n * n; i++) {
+            accumulator[i] += data[i] * scale;
+        }
+    }
+
+    public static void addCenterNormalization(float[] data, int n, double[] accumulator) {
+        int center = n / 2;
+        double centerVal = data[center * n + center];
+
+        if (centerVal == 0) {
+            centerVal = Double.MAX_VALUE;
+            for (int i = 0; i < n * n; i++) {
+                if (data[i] > 0 && data[i] < centerVal)
+                    centerVal = data[i];
+            }
+            if (centerVal == Double.MAX_VALUE)
+                centerVal = 1;
+        }
+
+        double scale = 1. / centerVal;
+        for (int i = 0; i < n * n; i++) {
+            accumulator[i] += data[i] * scale;
+        }
+    }
+
+    public static double peakEnhancement(float[] data, int n) {
+        int center = n / 2;
+        double centerVal = data[center * n + center];
+        double sum = 0;
+        for (int i = 0; i < n * n; i++) {
+            sum += data[i];
+        }
+        double remainingSum = sum - centerVal;
+        double remainingAverage = remainingSum / (n * n - 1);
+        return centerVal / remainingAverage;
+    }
+
+    /**
+     * Same percentiles as StatPercentile: the first position of a value among the sorted values,
+     * averaged over its ties exactly as StatPercentile does it
+     *
+     * @param sortBuffer reused between calls, at least n * n long
+     */
+    public static void addRankPercentile(float[] data, int n, double[] sortBuffer, double[] accumulator) {
+        int length = n * n;
+        for (int i = 0; i < length; i++) {
+            sortBuffer[i] = data[i];
+        }
+        Arrays.sort(sortBuffer, 0, length);
+
+        for (int i = 0; i < length; i++) {
+            double currValue = data[i];
+            if (currValue == 0) continue;
+
+            int first = 0, last = length;
+            while (first < last) {
+                int mid = (first + last) >>> 1;
+                if (sortBuffer[mid] < currValue) first = mid + 1;
+                else last = mid;
+            }
+            int num = 0;
+            double percentile = 0;
+            for (int j = first; j < length && sortBuffer[j] <= currValue; j++) {
+                percentile += ((double) first) / length;
+                num++;
+            }
+            accumulator[i] += (percentile / num) * 100;
+        }
+    }
+
     /**
      * Size filtering of loops
      *
@@ -183,6 +278,21 @@ public class APAUtils {
 		return HiCFileTools.extractLocalBoundedRegion(zd, binXStart, binXEnd, binYStart, binYEnd, L, L, norm, false);
 	}
 
+	/**
+	 * Same region as extractLocalizedData, written into a reusable L x L row major buffer
+	 */
+	public static void fillLocalizedData(float[] buffer, MatrixZoomData zd, Feature2D loop,
+										 int L, int resolution, int window, NormalizationType norm) throws IOException {
+		long loopX = loop.getMidPt1() / resolution;
+		long loopY = loop.getMidPt2() / resolution;
+		long binXStart = loopX - window;
+		long binXEnd = loopX + (window + 1);
+		long binYStart = loopY - window;
+		long binYEnd = loopY + (window + 1);
+
+		zd.fillLocalBoundedRegion(buffer, binXStart, binXEnd, binYStart, binYEnd, L, L, norm, false);
+	}
+
     public static RealMatrix extractLocalizedDataForAFA(MatrixZoomData zd, Feature2D loop,
                                                         int resolution, int window, NormalizationType norm) throws IOException {
 		long loopX = loop.getMidPt1() / resolution;
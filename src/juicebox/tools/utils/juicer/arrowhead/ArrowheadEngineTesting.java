@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.arrowhead;
+
+import juicebox.data.basics.Chromosome;
+import juicebox.tools.utils.common.MatrixTools;
+import juicebox.track.feature.Feature2D;
+import juicebox.track.feature.Feature2DList;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Parity check of the flat array block score calculation against the RealMatrix version
+ * on synthetic regions with nested domains; the called blocks should be identical, as should
+ * the scores given to the blocks of the list and control inputs.
+ */
+class ArrowheadEngineTesting {
+
+    private static final int RESOLUTION = 5000;
+
+    public static void main(String[] args) {
+        test();
+    }
+
+    public static void test() {
+        Random random = new Random(0);
+        int maxN = 301;
+        FlatMatrixTriangles triangles = new FlatMatrixTriangles(maxN);
+        double[][] thresholds = {{Double.NaN, 0.4}, {0.2, 0.5}};
+
+        boolean passed = true;
+        for (int t = 0; t < 6; t++) {
+            int n = t == 0 ? maxN : 100 + random.nextInt(maxN - 100);
+            float[] region = generateRegion(random, n);
+            for (double[] threshold : thresholds) {
+                BlockResults reference = new BlockResults(MatrixTools.reshapeFlatMatrixToRealMatrix(region, n, n),
+                        threshold[0], threshold[1], new ArrowheadScoreList(1), new ArrowheadScoreList(1), 0, n);
+                BlockResults flat = new BlockResults(triangles, region, n, threshold[0], threshold[1],
+                        new ArrowheadScoreList(1), new ArrowheadScoreList(1), 0, n);
+
+                String name = "n=" + n + " var=" + threshold[0] + " sign=" + threshold[1];
+                passed &= compare(name, reference.getResults(), flat.getResults());
+            }
+
+            // window somewhere along the chromosome, scoring blocks of non-empty list and control inputs
+            int limStart = random.nextInt(1000);
+            int limEnd = limStart + n - 1;
+            ArrowheadScoreList list = generateScoreList(random, limStart, limEnd);
+            ArrowheadScoreList control = generateScoreList(random, limStart, limEnd);
+            for (double[] threshold : thresholds) {
+                BlockResults reference = new BlockResults(MatrixTools.reshapeFlatMatrixToRealMatrix(region, n, n),
+                        threshold[0], threshold[1], list.deepCopy(), control.deepCopy(), limStart, limEnd);
+                BlockResults flat = new BlockResults(triangles, region, n, threshold[0], threshold[1],
+                        list.deepCopy(), control.deepCopy(), limStart, limEnd);
+
+                String name = "n=" + n + " lim=" + limStart + " var=" + threshold[0] + " sign=" + threshold[1];
+                passed &= compare(name, reference.getResults(), flat.getResults());
+                passed &= compareScores(name + " list", reference.getInternalList(), flat.getInternalList());
+                passed &= compareScores(name + " control", reference.getInternalControl(), flat.getInternalControl());
+            }
+        }
+        System.out.println(passed ? "Arrowhead engine parity passed" : "Arrowhead engine parity FAILED");
+    }
+
+    private static float[] generateRegion(Random random, int n) {
+        int[] domain = new int[n];
+        int d = 0;
+        for (int i = 0; i < n; i++) {
+            if (random.nextInt(40) == 0) d++;
+            domain[i] = d;
+        }
+
+        float[] region = new float[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                double enrichment = domain[i] == domain[j] ? 3 : 1;
+                region[i * n + j] = random.nextInt(15) == 0 ? 0 :
+                        (float) (enrichment * 50.0 / (1 + j - i) * (0.5 + random.nextDouble()));
+            }
+        }
+        MatrixTools.fillLowerLeftTriangle(region, n);
+        return region;
+    }
+
+    /**
+     * Blocks in genomic coordinates, mostly within the window; the others must be left out by both versions
+     */
+    private static ArrowheadScoreList generateScoreList(Random random, int limStart, int limEnd) {
+        Chromosome chr = new Chromosome(1, "1", (long) (limEnd + 100) * RESOLUTION);
+        Feature2DList features = new Feature2DList();
+        for (int k = 0; k < 40; k++) {
+            int maxBin = random.nextInt(5) == 0 ? limEnd + 50 : limEnd;
+            int x1 = limStart + random.nextInt(maxBin - limStart + 1);
+            int x2 = x1 + random.nextInt(maxBin - x1 + 1);
+            int y1 = x1 + random.nextInt(maxBin - x1 + 1);
+            int y2 = y1 + random.nextInt(maxBin - y1 + 1);
+            long[] indices = new long[]{(long) x1 * RESOLUTION, (long) x2 * RESOLUTION,
+                    (long) y1 * RESOLUTION, (long) y2 * RESOLUTION};
+            features.add(chr.getIndex(), chr.getIndex(), new ArrowheadScore(indices).toFeature2D(chr.getName()));
+        }
+        return new ArrowheadScoreList(features, chr, RESOLUTION);
+    }
+
+    private static boolean compareScores(String name, ArrowheadScoreList reference, ArrowheadScoreList flat) {
+        List<Feature2D> referenceScores = reference.toFeature2DList(1, "1").get(1, 1);
+        List<Feature2D> flatScores = flat.toFeature2DList(1, "1").get(1, 1);
+        boolean same = referenceScores.size() == flatScores.size();
+        for (int k = 0; same && k < referenceScores.size(); k++) {
+            Feature2D r = referenceScores.get(k);
+            Feature2D f = flatScores.get(k);
+            same = r.getStart1() == f.getStart1() && r.getEnd1() == f.getEnd1()
+                    && r.getStart2() == f.getStart2() && r.getEnd2() == f.getEnd2()
+                    && r.getAttribute("score").equals(f.getAttribute("score"));
+        }
+        if (referenceScores.isEmpty()) {
+            System.err.println(name + ": no blocks of the input were scored");
+            same = false;
+        } else if (!same) {
+            System.err.println(name + ": scored blocks differ");
+        }
+        return same;
+    }
+
+    private static boolean compare(String name, List<HighScore> reference, List<HighScore> flat) {
+        boolean same = reference.size() == flat.size();
+        for (int k = 0; same && k < reference.size(); k++) {
+            same = reference.get(k).toString().equals(flat.get(k).toString());
+        }
+        if (!same) {
+            System.err.println(name + ": " + reference.size() + " reference blocks vs " + flat.size() + " flat blocks");
+        }
+        return same;
+    }
+}
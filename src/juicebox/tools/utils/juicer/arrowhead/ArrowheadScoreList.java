@@ -79,6 +79,37 @@ public class ArrowheadScoreList {
         return scoredList;
     }
 
+    /**
+     * Same as above for an n x n row major block score matrix
+     */
+    public ArrowheadScoreList updateActiveIndexScores(double[] blockScore, int n, int limStart, int limEnd) {
+
+        setActiveListElements(limStart, limEnd);
+
+        ArrowheadScoreList scoredList = new ArrowheadScoreList(resolution);
+
+        for (ArrowheadScore score : arrowheadScores) {
+            if (score.isActive) {
+                int[] t = scaleAndTranslateIndices(score.indices, resolution, limStart);
+                if (t[0] < 0 || t[1] >= n || t[0] > t[1] || t[2] < 0 || t[3] >= n || t[2] > t[3]) {
+                    throw new IllegalArgumentException("Invalid submatrix indices " + t[0] + ":" + t[1] + ", " + t[2] + ":" + t[3]);
+                }
+                double max = blockScore[t[0] * n + t[2]];
+                for (int r = t[0]; r <= t[1]; r++) {
+                    for (int c = t[2]; c <= t[3]; c++) {
+                        if (max < blockScore[r * n + c]) {
+                            max = blockScore[r * n + c];
+                        }
+                    }
+                }
+                score.updateScore(max);
+                scoredList.arrowheadScores.add(new ArrowheadScore(score));
+            }
+        }
+
+        return scoredList;
+    }
+
     private int[] scaleAndTranslateIndices(long[] indices, int resolution, int limStart) {
 		int[] transformedIndices = new int[indices.length];
 		for (int i = 0; i < indices.length; i++) {
@@ -25,14 +25,12 @@
 package juicebox.tools.utils.juicer.arrowhead;
 
 import juicebox.HiCGlobals;
-import juicebox.data.HiCFileTools;
 import juicebox.data.MatrixZoomData;
 import juicebox.data.basics.Chromosome;
 import juicebox.tools.utils.common.MatrixTools;
 import juicebox.track.feature.Feature2DList;
 import juicebox.track.feature.Feature2DParser;
 import juicebox.windowui.NormalizationType;
-import org.apache.commons.math.linear.RealMatrix;
 
 import java.io.IOException;
 import java.util.*;
@@ -66,21 +64,25 @@ public class BlockBuster {
         int increment = matrixWidth / 2;
         int maxDataLengthAtResolution = (int) Math.ceil(((double) chrLength) / resolution);
 
+        // scratch space for the block score calculations and window data, reused for every window
+        FlatMatrixTriangles triangles = new FlatMatrixTriangles(matrixWidth + 1);
+        SlidingWindowRegion windows = new SlidingWindowRegion(zd, norm, matrixWidth + 1);
+
         try {
             // get large number of blocks (lower confidence)
             CumulativeBlockResults results = null;
             for (double signThreshold = maxLowSignThreshold; signThreshold >= minLowSignThreshold; signThreshold -= decrementLowSignThreshold) {
-                results = callSubBlockbuster(zd, maxDataLengthAtResolution, Double.NaN, signThreshold, matrixWidth,
-                        increment, list, control, norm, resolution);
+                results = callSubBlockbuster(maxDataLengthAtResolution, Double.NaN, signThreshold, matrixWidth,
+                        increment, list, control, resolution, triangles, windows);
                 if (results.getCumulativeResults().size() > 0) {
                     break;
                 }
             }
 
             // high variance threshold, fewer blocks, high confidence
-            CumulativeBlockResults highConfidenceResults = callSubBlockbuster(zd, maxDataLengthAtResolution,
+            CumulativeBlockResults highConfidenceResults = callSubBlockbuster(maxDataLengthAtResolution,
                     varThreshold, highSignThreshold, matrixWidth, increment, new ArrowheadScoreList(resolution),
-                    new ArrowheadScoreList(resolution), norm, resolution);
+                    new ArrowheadScoreList(resolution), resolution, triangles, windows);
 
             List<HighScore> uniqueBlocks = orderedSetDifference(results.getCumulativeResults(),
                     highConfidenceResults.getCumulativeResults());
@@ -130,7 +132,6 @@ public class BlockBuster {
     /**
      * Runs blockbuster for a sliding window along the diagonal of the matrix
      *
-     * @param zd            - zoomData from hic file
      * @param chrLength
      * @param varThreshold
      * @param signThreshold
@@ -138,12 +139,15 @@ public class BlockBuster {
      * @param increment
      * @param list
      * @param control
+     * @param triangles     - reusable buffers for the block scores
+     * @param windows       - reads window data from the hic file
      * @return contact domain results for given thresholds and parameters
      */
-    private static CumulativeBlockResults callSubBlockbuster(MatrixZoomData zd, int chrLength, double varThreshold,
+    private static CumulativeBlockResults callSubBlockbuster(int chrLength, double varThreshold,
                                                              double signThreshold, int matrixWidth, int increment,
                                                              ArrowheadScoreList list, ArrowheadScoreList control,
-                                                             NormalizationType norm, int resolution) throws IOException {
+                                                             int resolution, FlatMatrixTriangles triangles,
+                                                             SlidingWindowRegion windows) throws IOException {
 
         // container for results
         CumulativeBlockResults cumulativeBlockResults = new CumulativeBlockResults(resolution);
@@ -151,6 +155,9 @@ public class BlockBuster {
             System.out.println("Loading incr " + increment + " chrLength " + chrLength);
         }
 
+        // reused for every window
+        float[] regionBuffer = new float[(matrixWidth + 1) * (matrixWidth + 1)];
+
         // slide across chromosome diagonal
         for (int limStart = 0; limStart < chrLength; limStart += increment) {
             // appropriate boundaries of window
@@ -165,14 +172,14 @@ public class BlockBuster {
                 System.out.println("Reading " + limStart + ":" + limEnd);
             }
 
-            // get data for window from hic file
+            // get data for window from hic file; only the part not shared with the previous window is read
             int n = limEnd - adjustedLimStart + 1;
-            RealMatrix observed = HiCFileTools.extractLocalBoundedRegion(zd, limStart, limEnd, n, norm, false);
-            observed = MatrixTools.fillLowerLeftTriangle(observed);
+            windows.fill(regionBuffer, limStart, limEnd, n);
+            MatrixTools.fillLowerLeftTriangle(regionBuffer, n);
 
             // get contact domains in window
-            BlockResults results = new BlockResults(observed, varThreshold, signThreshold, list, control,
-                    adjustedLimStart, limEnd);
+            BlockResults results = new BlockResults(triangles, regionBuffer, n, varThreshold, signThreshold, list,
+                    control, adjustedLimStart, limEnd);
 
             if (HiCGlobals.printVerboseComments) {
                 System.out.println("Found " + results.getResults().size() + " blocks");
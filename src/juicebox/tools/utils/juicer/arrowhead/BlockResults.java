@@ -65,6 +65,22 @@ class BlockResults {
         // TODO plotArrowheadFigures();
     }
 
+    /**
+     * Same results as above, calculated on a flat n x n row major region with the given reusable buffers
+     */
+    public BlockResults(FlatMatrixTriangles triangles, float[] observed, int n, double varThreshold, double signThreshold,
+                        ArrowheadScoreList list, ArrowheadScoreList control, int limStart, int limEnd) {
+        int gap = 7;
+
+        triangles.calculateBlockScores(observed, n, gap);
+        internalList = triangles.updateScoresUsingList(list, limStart, limEnd);
+        internalControl = triangles.updateScoresUsingList(control, limStart, limEnd);
+        triangles.thresholdScoreValues(varThreshold, signThreshold);
+
+        List<Set<Point>> connectedComponents = triangles.extractConnectedComponents();
+        results = triangles.calculateResults(connectedComponents);
+    }
+
     /**
      * calculate D upstream, directionality index upstream
      *
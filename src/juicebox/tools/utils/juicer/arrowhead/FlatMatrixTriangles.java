@@ -0,0 +1,284 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.arrowhead;
+
+import juicebox.tools.utils.juicer.arrowhead.connectedcomponents.BinaryConnectedComponents;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Block score calculation of BlockResults/MatrixTriangles on flat row major arrays.
+ * <p>
+ * The directionality index, the "right"/"upper" dynamic programming tables and the
+ * up/lo triangle means are computed in a few fused passes over buffers that are reused
+ * for every window, rather than as a few dozen freshly allocated RealMatrix objects.
+ * The arithmetic matches MatrixTriangles operation for operation, so scores are identical.
+ * One instance per thread.
+ */
+class FlatMatrixTriangles {
+
+    private final int maxN;
+    private int n;
+
+    // directionality index; reused for the block scores once the tables are built
+    private final double[] blockScore;
+    // column sums from row i down to the diagonal (DynamicProgrammingUtils.right)
+    private final double[] rSum, rSquared;
+    private final int[] rSign;
+    // row sums from the diagonal out to column j (DynamicProgrammingUtils.upper)
+    private final double[] uSum, uSquared;
+    private final int[] uSign;
+
+    private final double[] upSign, loSign, upVar, loVar;
+
+    private boolean blockScoresNotCalculated = true;
+    private boolean blockScoresNotThresholded = true;
+
+    FlatMatrixTriangles(int maxN) {
+        this.maxN = maxN;
+        int size = maxN * maxN;
+        blockScore = new double[size];
+        rSum = new double[size];
+        rSquared = new double[size];
+        rSign = new int[size];
+        uSum = new double[size];
+        uSquared = new double[size];
+        uSign = new int[size];
+        upSign = new double[size];
+        loSign = new double[size];
+        upVar = new double[size];
+        loVar = new double[size];
+    }
+
+    private static int sign(double val) {
+        if (val > 0) return 1;
+        if (val < 0) return -1;
+        return 0;
+    }
+
+    /**
+     * @return max element in the first length entries, same traversal as MatrixTools.calculateMax
+     */
+    private static double calculateMax(double[] values, int length) {
+        double max = values[0];
+        for (int k = 0; k < length; k++) {
+            if (max < values[k]) {
+                max = values[k];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @param observed n x n row major region with both triangles filled
+     */
+    void calculateBlockScores(float[] observed, int n, int gap) {
+        if (n > maxN) {
+            System.err.println("Arrowhead window of " + n + " exceeds buffer size " + maxN);
+            System.exit(45);
+        }
+        this.n = n;
+        int nn = n * n;
+
+        // directionality index upstream (BlockResults), NaNs set to 0 as in MatrixTriangles
+        double[] m = blockScore;
+        Arrays.fill(m, 0, nn, 0);
+        for (int i = 0; i < n; i++) {
+            int window = Math.min(n - (i + gap), i - gap);
+            window = Math.min(window, n);
+            if (window >= gap) {
+                int row = i * n;
+                for (int k = 0; k <= window - gap; k++) {
+                    double a = observed[row + i - gap - k];
+                    double b = observed[row + i + gap + k];
+                    double preference = (a - b) / (a + b);
+                    m[row + i + gap + k] = Double.isNaN(preference) ? 0 : preference;
+                }
+            }
+        }
+
+        // right tables, built from the bottom row up so each row reads the one below it
+        for (int i = n - 1; i >= 0; i--) {
+            int d = i * n + i;
+            rSum[d] = m[d];
+            rSign[d] = sign(m[d]);
+            rSquared[d] = m[d] * m[d];
+            for (int j = i + 1; j < n; j++) {
+                int k = i * n + j;
+                double val = m[k];
+                rSum[k] = val + rSum[k + n];
+                rSign[k] = sign(val) + rSign[k + n];
+                rSquared[k] = val * val + rSquared[k + n];
+            }
+        }
+
+        // upper tables
+        for (int i = 0; i < n; i++) {
+            int d = i * n + i;
+            uSum[d] = m[d];
+            uSign[d] = sign(m[d]);
+            uSquared[d] = m[d] * m[d];
+            for (int j = i + 1; j < n; j++) {
+                int k = i * n + j;
+                double val = m[k];
+                uSum[k] = val + uSum[k - 1];
+                uSign[k] = sign(val) + uSign[k - 1];
+                uSquared[k] = val * val + uSquared[k - 1];
+            }
+        }
+
+        // up and lo triangle means; both only depend on the previous column of the same row,
+        // so they are carried as running sums and normalized as they are written
+        double[] diff = blockScore;
+        Arrays.fill(diff, 0, nn, 0);
+        Arrays.fill(upSign, 0, nn, 0);
+        Arrays.fill(loSign, 0, nn, 0);
+        Arrays.fill(upVar, 0, nn, 0);
+        Arrays.fill(loVar, 0, nn, 0);
+        for (int i = 0; i < n; i++) {
+            double upS = 0, upSg = 0, upSq = 0, upC = 0;
+            double loS = 0, loSg = 0, loSq = 0, loC = 0;
+            for (int j = i + 1; j < n; j++) {
+                int bottom = (j - i + 1) / 2;
+                int endpt = Math.min(2 * j - i, n - 1);
+                int k = i * n + j;
+                int kBottom = (i + bottom) * n + j;
+                int kEnd = j * n + endpt;
+
+                upS = upS + rSum[k] - rSum[kBottom];
+                upSg = upSg + rSign[k] - rSign[kBottom];
+                upSq = upSq + rSquared[k] - rSquared[kBottom];
+                upC = upC + (j - i + 1) - (j - (i + bottom) + 1);
+
+                loS = loS + uSum[kEnd] - rSum[kBottom];
+                loSg = loSg + uSign[kEnd] - rSign[kBottom];
+                loSq = loSq + uSquared[kEnd] - rSquared[kBottom];
+                loC = loC + (endpt - j + 1) - (j - (i + bottom) + 1);
+
+                double upCount = upC == 0 ? 1 : upC;
+                double loCount = loC == 0 ? 1 : loC;
+                double up = upS / upCount;
+                double lo = loS / loCount;
+                upSign[k] = upSg / upCount;
+                loSign[k] = loSg / loCount;
+                upVar[k] = upSq / upCount - up * up;
+                loVar[k] = loSq / loCount - lo * lo;
+                diff[k] = lo - up;
+            }
+        }
+
+        // block score = normalized diff + normalized sign diff - normalized variance
+        double diffMax = calculateMax(diff, nn);
+        double signMax = loSign[0] - upSign[0];
+        double varMax = upVar[0] + loVar[0];
+        for (int k = 0; k < nn; k++) {
+            double signDiff = loSign[k] - upSign[k];
+            if (signMax < signDiff) signMax = signDiff;
+            double varSum = upVar[k] + loVar[k];
+            if (varMax < varSum) varMax = varSum;
+        }
+        double diffScale = 1 / diffMax, signScale = 1 / signMax, varScale = 1 / varMax;
+        for (int k = 0; k < nn; k++) {
+            blockScore[k] = (diff[k] * diffScale + (loSign[k] - upSign[k]) * signScale)
+                    - (upVar[k] + loVar[k]) * varScale;
+        }
+
+        blockScoresNotCalculated = false;
+        blockScoresNotThresholded = true;
+    }
+
+    /**
+     * Use give thresholds to eliminate extremes
+     */
+    public void thresholdScoreValues(double varThreshold, double signThreshold) {
+        if (blockScoresNotCalculated) {
+            System.out.println("Block scores not calculated");
+            System.exit(46);
+        }
+
+        int nn = n * n;
+        for (int k = 0; k < nn; k++) {
+            if ((-upSign[k]) < signThreshold || loSign[k] < signThreshold) {
+                blockScore[k] = 0;
+            }
+        }
+        if (!Double.isNaN(varThreshold)) {
+            for (int k = 0; k < nn; k++) {
+                if (upVar[k] + loVar[k] > varThreshold) {
+                    blockScore[k] = 0;
+                }
+            }
+        }
+        blockScoresNotThresholded = false;
+    }
+
+    public ArrowheadScoreList updateScoresUsingList(ArrowheadScoreList scoreList, int limStart, int limEnd) {
+        if (blockScoresNotCalculated) {
+            System.out.println("Block scores not calculated");
+            System.exit(47);
+        }
+
+        return scoreList.updateActiveIndexScores(blockScore, n, limStart, limEnd);
+    }
+
+    public List<Set<Point>> extractConnectedComponents() {
+        if (blockScoresNotThresholded) {
+            System.out.println("Scores not fixed for threshold");
+            System.exit(48);
+        }
+
+        return BinaryConnectedComponents.detection(blockScore, n, n, 0);
+    }
+
+    public List<HighScore> calculateResults(List<Set<Point>> connectedComponents) {
+        List<HighScore> results = new ArrayList<>();
+        for (Set<Point> connectedComponent : connectedComponents) {
+            Point score = getHighestScoringPoint(connectedComponent);
+            int k = score.x * n + score.y;
+            results.add(new HighScore(score.x, score.y, blockScore[k], upVar[k], loVar[k],
+                    -upSign[k], loSign[k]));
+        }
+        return results;
+    }
+
+    private Point getHighestScoringPoint(Set<Point> component) {
+        Point scorePoint = component.iterator().next();
+        double highestScore = blockScore[scorePoint.x * n + scorePoint.y];
+
+        for (Point point : component) {
+            double score = blockScore[point.x * n + point.y];
+            if (score > highestScore) {
+                highestScore = score;
+                scorePoint = new Point(point);
+            }
+        }
+        return new Point(scorePoint);
+    }
+}
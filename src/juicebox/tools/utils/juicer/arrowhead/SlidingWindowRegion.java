@@ -0,0 +1,97 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.arrowhead;
+
+import juicebox.data.MatrixZoomData;
+import juicebox.windowui.NormalizationType;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads the consecutive windows Arrowhead slides along the diagonal of a chromosome.
+ * <p>
+ * Consecutive windows overlap by half, so the square shared with the previous window is
+ * shifted over from the data already read and only the strip of new columns is read from
+ * the file. Only the upper triangle (and diagonal) is kept consistent with a full read,
+ * which is all BlockBuster uses before it mirrors the window into the lower triangle.
+ */
+class SlidingWindowRegion {
+
+    private final MatrixZoomData zd;
+    private final NormalizationType norm;
+    private float[] data, scratch;
+    private final float[] strip;
+    private long start = -1;
+    private int size = 0;
+
+    SlidingWindowRegion(MatrixZoomData zd, NormalizationType norm, int maxN) {
+        this.zd = zd;
+        this.norm = norm;
+        data = new float[maxN * maxN];
+        scratch = new float[maxN * maxN];
+        strip = new float[maxN * maxN];
+    }
+
+    /**
+     * Fills dest as zd.fillLocalBoundedRegion(dest, limStart, limEnd, limStart, limEnd, n, n, norm, false)
+     * would, at least in the upper triangle
+     */
+    void fill(float[] dest, int limStart, int limEnd, int n) throws IOException {
+        int overlap = 0;
+        if (start >= 0 && limStart >= start) {
+            overlap = (int) Math.max(Math.min(start + size - limStart, n), 0);
+        }
+
+        if (overlap == 0) {
+            zd.fillLocalBoundedRegion(scratch, limStart, limEnd, limStart, limEnd, n, n, norm, false);
+        } else {
+            int shift = (int) (limStart - start);
+            Arrays.fill(scratch, 0, n * n, 0);
+            for (int i = 0; i < overlap; i++) {
+                System.arraycopy(data, (i + shift) * size + shift, scratch, i * n, overlap);
+            }
+
+            // columns past the previous window; nothing to read if they start beyond the query
+            int numNewCols = n - overlap;
+            if (numNewCols > 0 && limStart + overlap <= limEnd) {
+                zd.fillLocalBoundedRegion(strip, limStart, limEnd, limStart + overlap, limEnd,
+                        n, numNewCols, norm, false);
+                for (int i = 0; i < n; i++) {
+                    System.arraycopy(strip, i * numNewCols, scratch, i * n + overlap, numNewCols);
+                }
+            }
+        }
+
+        float[] temp = data;
+        data = scratch;
+        scratch = temp;
+        start = limStart;
+        size = n;
+
+        System.arraycopy(data, 0, dest, 0, n * n);
+    }
+}
@@ -65,6 +65,28 @@ public class BinaryConnectedComponents {
         return processLabeledIndices(indices);
     }
 
+    /**
+     * @param image r x c row major image
+     * @param threshold
+     * @return list of connected components in image
+     */
+    public synchronized static List<Set<Point>> detection(double[] image, int r, int c, double threshold) {
+        int[][] labels = new int[r][c];
+
+        List<IndexNode> indices = new ArrayList<>();
+        indices.add(new IndexNode(-1));
+        nextLabel = 1;
+
+        for (int i = 0; i < r; i++) {
+            for (int j = 0; j < c; j++) {
+                if (image[i * c + j] > threshold) {
+                    processNeighbors(labels, indices, i, j, Math.max(i - 1, 0), Math.min(i + 1, r - 1), Math.max(j - 1, 0), Math.min(j + 1, c - 1));
+                }
+            }
+        }
+        return processLabeledIndices(indices);
+    }
+
     /**
      * 2nd pass of algorithm
      *
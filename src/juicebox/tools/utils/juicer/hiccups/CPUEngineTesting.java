@@ -0,0 +1,174 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import juicebox.tools.clt.juicer.HiCCUPS;
+
+import java.util.Random;
+
+/**
+ * Parity check of the prefix sum CPU engine against the direct port of the kernel on synthetic regions.
+ * Sums are accumulated in a different order, so expected values are compared with a relative tolerance
+ * and bins may only disagree by one where the expected value sits on a bin boundary.
+ */
+class CPUEngineTesting {
+
+    private static final int MATRIX_SIZE = 512;
+    private static final float RELATIVE_TOLERANCE = 1e-4f;
+
+    public static void main(String[] args) {
+        test();
+    }
+
+    public static void test() {
+        Random random = new Random(0);
+        int[][] windowAndPeak = {{3, 1}, {5, 2}, {7, 4}, {10, 5}};
+        int regionWidth = MATRIX_SIZE - 2 * HiCCUPS.regionMargin;
+        int[] columnOffsets = {0, 1, regionWidth, 3 * regionWidth};
+
+        float[] thresholds = new float[HiCCUPS.w1];
+        for (int k = 0; k < thresholds.length; k++) {
+            thresholds[k] = k + random.nextFloat();
+        }
+
+        boolean passed = true;
+        for (int[] wp : windowAndPeak) {
+            HiCCUPSCPUEngine engine = new HiCCUPSCPUEngine(wp[0], MATRIX_SIZE, wp[1]);
+            for (int offset : columnOffsets) {
+                int[] rowBounds = getBounds(1000, regionWidth);
+                int[] columnBounds = getBounds(1000 + offset, regionWidth);
+                float[] d = new float[10000];
+                for (int k = 0; k < d.length; k++) {
+                    d[k] = 200f / (1 + k);
+                }
+                float[] c = generateRegion(random, d, rowBounds[0] - columnBounds[0]);
+                float[] kr1 = generateNormVector(random);
+                float[] kr2 = generateNormVector(random);
+
+                HiCCUPSCPUEngine.KernelOutput direct = engine.runDirect(c, d, kr1, kr2, rowBounds, columnBounds,
+                        thresholds, thresholds, thresholds, thresholds);
+                HiCCUPSCPUEngine.KernelOutput fast = engine.runWithPrefixSums(c, d, kr1, kr2, rowBounds, columnBounds,
+                        thresholds, thresholds, thresholds, thresholds);
+
+                String name = "w=" + wp[0] + " p=" + wp[1] + " offset=" + offset;
+                passed &= compare(name, direct, fast);
+            }
+        }
+        System.out.println(passed ? "CPU engine parity passed" : "CPU engine parity FAILED");
+    }
+
+    private static int[] getBounds(int start, int regionWidth) {
+        int margin = HiCCUPS.regionMargin;
+        return new int[]{start, start + MATRIX_SIZE, margin, margin, start + margin, start + margin + regionWidth};
+    }
+
+    private static float[] generateRegion(Random random, float[] d, int diff) {
+        float[] c = new float[MATRIX_SIZE * MATRIX_SIZE];
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            for (int j = 0; j < MATRIX_SIZE; j++) {
+                double lambda = d[Math.abs(i + diff - j)];
+                c[i * MATRIX_SIZE + j] = (float) Math.floor(-Math.log(1 - random.nextDouble()) * lambda);
+            }
+        }
+        // rows and columns without coverage, plus a few enriched pixels
+        for (int k = 0; k < 6; k++) {
+            int index = random.nextInt(MATRIX_SIZE);
+            for (int m = 0; m < MATRIX_SIZE; m++) {
+                c[index * MATRIX_SIZE + m] = Float.NaN;
+                c[m * MATRIX_SIZE + (index * 7) % MATRIX_SIZE] = Float.NaN;
+            }
+        }
+        for (int k = 0; k < 200; k++) {
+            c[random.nextInt(MATRIX_SIZE * MATRIX_SIZE)] += 50 + random.nextInt(200);
+        }
+        // exercises the fallback to the direct sums
+        c[random.nextInt(MATRIX_SIZE * MATRIX_SIZE)] = Float.POSITIVE_INFINITY;
+        return c;
+    }
+
+    private static float[] generateNormVector(Random random) {
+        float[] kr = new float[MATRIX_SIZE];
+        for (int k = 0; k < kr.length; k++) {
+            kr[k] = 0.5f + random.nextFloat();
+        }
+        return kr;
+    }
+
+    private static boolean compare(String name, HiCCUPSCPUEngine.KernelOutput direct, HiCCUPSCPUEngine.KernelOutput fast) {
+        float[][][] directExpected = {direct.expectedBL, direct.expectedDonut, direct.expectedH, direct.expectedV};
+        float[][][] fastExpected = {fast.expectedBL, fast.expectedDonut, fast.expectedH, fast.expectedV};
+        float[][][] directBins = {direct.binBL, direct.binDonut, direct.binH, direct.binV};
+        float[][][] fastBins = {fast.binBL, fast.binDonut, fast.binH, fast.binV};
+
+        int numPixels = 0, observedMismatches = 0, expectedMismatches = 0, binMismatches = 0, boundaryBins = 0;
+        float maxRelativeError = 0;
+        for (int i = 0; i < direct.observed.length; i++) {
+            for (int j = 0; j < direct.observed[i].length; j++) {
+                numPixels++;
+                if (Float.compare(direct.observed[i][j], fast.observed[i][j]) != 0) {
+                    observedMismatches++;
+                }
+                boolean binsMatch = true;
+                for (int k = 0; k < 4; k++) {
+                    float a = directExpected[k][i][j], b = fastExpected[k][i][j];
+                    if (Float.isNaN(a) || Float.isInfinite(a) || Float.isNaN(b) || Float.isInfinite(b)) {
+                        if (Float.compare(a, b) != 0) {
+                            expectedMismatches++;
+                        }
+                    } else {
+                        float error = Math.abs(a - b) / Math.max(Math.abs(a), 1e-6f);
+                        maxRelativeError = Math.max(maxRelativeError, error);
+                        if (error > RELATIVE_TOLERANCE) {
+                            expectedMismatches++;
+                        }
+                    }
+                    if (directBins[k][i][j] != fastBins[k][i][j]) {
+                        binsMatch = false;
+                        if (Math.abs(directBins[k][i][j] - fastBins[k][i][j]) == 1 && isNearBinBoundary(a)) {
+                            boundaryBins++;
+                        } else {
+                            binMismatches++;
+                        }
+                    }
+                }
+                if (binsMatch && Float.compare(direct.peak[i][j], fast.peak[i][j]) != 0) {
+                    observedMismatches++;
+                }
+            }
+        }
+
+        boolean passed = observedMismatches == 0 && expectedMismatches == 0 && binMismatches == 0;
+        System.out.println(name + " pixels " + numPixels + " max relative error " + maxRelativeError
+                + " boundary bins " + boundaryBins + (passed ? " ok" : " observed/peak mismatches " + observedMismatches
+                + " expected mismatches " + expectedMismatches + " bin mismatches " + binMismatches));
+        return passed;
+    }
+
+    private static boolean isNearBinBoundary(float e) {
+        double position = Math.log(e) / Math.log(Math.pow(2.0, .33));
+        return Math.abs(position - Math.rint(position)) < 1e-3;
+    }
+}
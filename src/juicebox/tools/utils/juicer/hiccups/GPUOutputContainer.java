@@ -24,11 +24,12 @@
 
 package juicebox.tools.utils.juicer.hiccups;
 
-import juicebox.HiCGlobals;
 import juicebox.tools.utils.common.ArrayTools;
 import juicebox.track.feature.Feature2D;
 import juicebox.track.feature.Feature2DList;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -103,37 +104,64 @@ public class GPUOutputContainer {
         }
     }
 
-    public synchronized void updateHistograms(long[][] histBL, long[][] histDonut, long[][] histH, long[][] histV, int maxRows, int maxColumns) {
+    public void updateHistograms(HiCCUPSHistogramShard histograms) {
         for (int i = 0; i < numRows; i++) {
             for (int j = 0; j < numColumns; j++) {
 
                 if (Float.isNaN(observed[i][j]) || Float.isInfinite(observed[i][j]))
                     continue;
 
-                int val = (int) observed[i][j];
-                processHistogramValue(binBL[i][j], val, histBL, maxRows, maxColumns);
-                processHistogramValue(binDonut[i][j], val, histDonut, maxRows, maxColumns);
-                processHistogramValue(binH[i][j], val, histH, maxRows, maxColumns);
-                processHistogramValue(binV[i][j], val, histV, maxRows, maxColumns);
+                histograms.add(binBL[i][j], binDonut[i][j], binH[i][j], binV[i][j], (int) observed[i][j]);
             }
         }
     }
 
-    private void processHistogramValue(float potentialRowIndex, int columnIndex, long[][] histogram, int maxRows, int maxColumns) {
-        if (Float.isNaN(potentialRowIndex))
-            return;
+    /**
+     * Writes the pixels which could still be called as peaks once the thresholds are known,
+     * i.e. observed counts within the histogram and bins that survived cleanUpBinNans/cleanUpBinDiagonal.
+     * Records are read back by HiCCUPSRegionCache.
+     */
+    public void writeCandidatePixels(DataOutputStream dos, int w1, int w2) throws IOException {
+        int numCandidates = 0;
+        for (int i = 0; i < numRows; i++) {
+            for (int j = 0; j < numColumns; j++) {
+                if (isCandidatePixel(i, j, w1, w2)) numCandidates++;
+            }
+        }
 
-        int rowIndex = (int) potentialRowIndex;
-        if (rowIndex >= 0 && rowIndex < maxRows) {
-            if (columnIndex >= 0 && columnIndex < maxColumns) {
-                histogram[rowIndex][columnIndex] += 1;
-                if (HiCGlobals.printVerboseComments && histogram[rowIndex][columnIndex] < 0) {
-                    System.out.println("earlier source row " + rowIndex + " col " + columnIndex + " -- " + histogram[rowIndex][columnIndex]);
+        dos.writeInt(numCandidates);
+        for (int i = 0; i < numRows; i++) {
+            for (int j = 0; j < numColumns; j++) {
+                if (isCandidatePixel(i, j, w1, w2)) {
+                    dos.writeChar(i);
+                    dos.writeChar(j);
+                    dos.writeFloat(observed[i][j]);
+                    dos.writeByte((int) binBL[i][j]);
+                    dos.writeByte((int) binDonut[i][j]);
+                    dos.writeByte((int) binH[i][j]);
+                    dos.writeByte((int) binV[i][j]);
+                    dos.writeFloat(expectedBL[i][j]);
+                    dos.writeFloat(expectedDonut[i][j]);
+                    dos.writeFloat(expectedH[i][j]);
+                    dos.writeFloat(expectedV[i][j]);
                 }
             }
         }
     }
 
+    private boolean isCandidatePixel(int i, int j, int w1, int w2) {
+        // thresholds are never negative, so a peak needs at least one count
+        float observedVal = observed[i][j];
+        if (Float.isNaN(observedVal) || observedVal < 1 || observedVal >= w2) return false;
+
+        return isValidBin(binBL[i][j], w1) && isValidBin(binDonut[i][j], w1)
+                && isValidBin(binH[i][j], w1) && isValidBin(binV[i][j], w1);
+    }
+
+    private boolean isValidBin(float bin, int w1) {
+        return !Float.isNaN(bin) && bin >= 0 && bin < w1;
+    }
+
     public void cleanUpBinDiagonal(int relativeDiagonal) {
 
         // correction for diagonal (don't need to double number of calculations)
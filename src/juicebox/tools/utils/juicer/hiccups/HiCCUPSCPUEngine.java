@@ -0,0 +1,477 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import juicebox.tools.clt.juicer.HiCCUPS;
+
+/**
+ * CPU implementations of the HiCCUPS kernel (HiCCUPSKernel.cu)
+ * <p/>
+ * runDirect is a direct port of the kernel; for every pixel it loops over the bottom left, donut,
+ * horizontal, and vertical neighborhoods, so each region costs O(n^2 w^2).
+ * runWithPrefixSums gets the same neighborhood sums in O(1) per pixel from summed-area tables
+ * of the observed and distance-expected values of the region, built with the same masks the kernel uses
+ * (NaNs skipped, upper triangle only for the bottom left and donut boxes).
+ * Pixels whose neighborhood includes infinite values, or a distance not covered by the expected vector,
+ * fall back to the direct sums so the two versions agree everywhere.
+ */
+class HiCCUPSCPUEngine {
+
+    // indices into the neighborhood sums
+    static final int BL = 0, BL_EXPECTED = 1, DONUT = 2, DONUT_EXPECTED = 3, H = 4, H_EXPECTED = 5, V = 6, V_EXPECTED = 7;
+
+    private final int window;
+    private final int matrixSize;
+    private final int peakWidth;
+    private final int stride;
+
+    // summed-area tables of size (matrixSize + 1)^2, reused for every region this engine processes
+    private final double[] upperObserved, upperExpected;
+    private final double[] validObserved, validExpected;
+    private final double[] rawObserved, rawExpected;
+    private final int[] nanCounts, unsafeCounts;
+
+    HiCCUPSCPUEngine(int window, int matrixSize, int peakWidth) {
+        this.window = window;
+        this.matrixSize = matrixSize;
+        this.peakWidth = peakWidth;
+        stride = matrixSize + 1;
+        int tableSize = stride * stride;
+        upperObserved = new double[tableSize];
+        upperExpected = new double[tableSize];
+        validObserved = new double[tableSize];
+        validExpected = new double[tableSize];
+        rawObserved = new double[tableSize];
+        rawExpected = new double[tableSize];
+        nanCounts = new int[tableSize];
+        unsafeCounts = new int[tableSize];
+    }
+
+    /**
+     * @param c   observed (normalized) values of the region, row major (matrixSize x matrixSize)
+     * @param d   distance expected vector
+     * @param kr1 norm vector slice for the rows
+     * @param kr2 norm vector slice for the columns
+     */
+    KernelOutput runWithPrefixSums(float[] c, float[] d, float[] kr1, float[] kr2, int[] rowBounds, int[] columnBounds,
+                                   float[] thresholdBL, float[] thresholdDonut, float[] thresholdH, float[] thresholdV) {
+        int diff = rowBounds[0] - columnBounds[0];
+        buildTables(c, d, diff);
+
+        KernelOutput output = new KernelOutput(rowBounds, columnBounds);
+        float[] sums = new float[8];
+
+        int margin = HiCCUPS.regionMargin;
+        int rowStart = Math.max(output.x1, margin), rowEnd = Math.min(output.x2, matrixSize - margin);
+        int colStart = Math.max(output.y1, margin), colEnd = Math.min(output.y2, matrixSize - margin);
+        for (int t_row = rowStart; t_row < rowEnd; t_row++) {
+            for (int t_col = colStart; t_col < colEnd; t_col++) {
+                int diagDist = Math.abs(t_row + diff - t_col);
+                if (sumRect(unsafeCounts, t_row - margin, t_row + margin, t_col - margin, t_col + margin) > 0) {
+                    computeSumsDirectly(c, d, diff, t_row, t_col, sums);
+                } else {
+                    computeSumsFromTables(diagDist, t_row, t_col, sums);
+                }
+                output.writePixel(t_row, t_col, sums, c[t_row * matrixSize + t_col], d[diagDist], kr1, kr2,
+                        thresholdBL, thresholdDonut, thresholdH, thresholdV);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Reference implementation; direct port of the CUDA kernel
+     */
+    KernelOutput runDirect(float[] c, float[] d, float[] kr1, float[] kr2, int[] rowBounds, int[] columnBounds,
+                           float[] thresholdBL, float[] thresholdDonut, float[] thresholdH, float[] thresholdV) {
+        int diff = rowBounds[0] - columnBounds[0];
+        KernelOutput output = new KernelOutput(rowBounds, columnBounds);
+        float[] sums = new float[8];
+
+        int margin = HiCCUPS.regionMargin;
+        int rowStart = Math.max(output.x1, margin), rowEnd = Math.min(output.x2, matrixSize - margin);
+        int colStart = Math.max(output.y1, margin), colEnd = Math.min(output.y2, matrixSize - margin);
+        for (int t_row = rowStart; t_row < rowEnd; t_row++) {
+            for (int t_col = colStart; t_col < colEnd; t_col++) {
+                int diagDist = Math.abs(t_row + diff - t_col);
+                computeSumsDirectly(c, d, diff, t_row, t_col, sums);
+                output.writePixel(t_row, t_col, sums, c[t_row * matrixSize + t_col], d[diagDist], kr1, kr2,
+                        thresholdBL, thresholdDonut, thresholdH, thresholdV);
+            }
+        }
+        return output;
+    }
+
+    private int getInitialWindowSize(int diagDist) {
+        int wsize = Math.min(window, (diagDist - 1) / 2);
+        if (wsize <= peakWidth) {
+            wsize = peakWidth + 1;
+        }
+        return Math.min(wsize, HiCCUPS.regionMargin);
+    }
+
+    private void buildTables(float[] c, float[] d, int diff) {
+        for (int i = 0; i < matrixSize; i++) {
+            double rowUpperObserved = 0, rowUpperExpected = 0, rowValidObserved = 0, rowValidExpected = 0;
+            double rowRawObserved = 0, rowRawExpected = 0;
+            int rowNaNs = 0, rowUnsafe = 0;
+            int above = i * stride + 1;
+            int current = above + stride;
+
+            for (int j = 0; j < matrixSize; j++) {
+                double value = c[i * matrixSize + j];
+                int dist = Math.abs(i + diff - j);
+                float expected = dist < d.length ? d[dist] : Float.NaN;
+
+                if (Double.isInfinite(value) || Float.isNaN(expected) || Float.isInfinite(expected)) {
+                    rowUnsafe++;
+                } else if (Double.isNaN(value)) {
+                    rowNaNs++;
+                    rowRawExpected += expected;
+                } else {
+                    rowRawObserved += value;
+                    rowRawExpected += expected;
+                    rowValidObserved += value;
+                    rowValidExpected += expected;
+                    if (i + diff - j < 0) {
+                        rowUpperObserved += value;
+                        rowUpperExpected += expected;
+                    }
+                }
+
+                upperObserved[current + j] = upperObserved[above + j] + rowUpperObserved;
+                upperExpected[current + j] = upperExpected[above + j] + rowUpperExpected;
+                validObserved[current + j] = validObserved[above + j] + rowValidObserved;
+                validExpected[current + j] = validExpected[above + j] + rowValidExpected;
+                rawObserved[current + j] = rawObserved[above + j] + rowRawObserved;
+                rawExpected[current + j] = rawExpected[above + j] + rowRawExpected;
+                nanCounts[current + j] = nanCounts[above + j] + rowNaNs;
+                unsafeCounts[current + j] = unsafeCounts[above + j] + rowUnsafe;
+            }
+        }
+    }
+
+    /**
+     * Sum of rows r1..r2 and columns c1..c2 (inclusive); empty ranges sum to 0
+     */
+    private double sumRect(double[] table, int r1, int r2, int c1, int c2) {
+        if (r2 < r1 || c2 < c1) return 0;
+        int top = r1 * stride, bottom = (r2 + 1) * stride;
+        return table[bottom + c2 + 1] - table[top + c2 + 1] - table[bottom + c1] + table[top + c1];
+    }
+
+    private int sumRect(int[] table, int r1, int r2, int c1, int c2) {
+        if (r2 < r1 || c2 < c1) return 0;
+        int top = r1 * stride, bottom = (r2 + 1) * stride;
+        return table[bottom + c2 + 1] - table[top + c2 + 1] - table[bottom + c1] + table[top + c1];
+    }
+
+    private double sumBottomLeft(double[] table, int t_row, int t_col, int wsize) {
+        return sumRect(table, t_row + 1, t_row + wsize, t_col - wsize, t_col - 1)
+                - sumRect(table, t_row + 1, t_row + peakWidth, t_col - peakWidth, t_col - 1);
+    }
+
+    private double sumDonut(double[] upperTable, double[] validTable, int t_row, int t_col, int wsize) {
+        int p = peakWidth;
+        return sumRect(upperTable, t_row - wsize, t_row + wsize, t_col - wsize, t_col + wsize)
+                - sumRect(upperTable, t_row - p, t_row + p, t_col - p, t_col + p)
+                // the kernel subtracts the cross hairs without checking the triangle
+                - sumRect(validTable, t_row - wsize, t_row - p - 1, t_col, t_col)
+                - sumRect(validTable, t_row + p + 1, t_row + wsize, t_col, t_col)
+                - sumRect(validTable, t_row, t_row, t_col - wsize, t_col - p - 1)
+                - sumRect(validTable, t_row, t_row, t_col + p + 1, t_col + wsize);
+    }
+
+    private double sumVertical(double[] table, int t_row, int t_col, int wsize) {
+        return sumRect(table, t_row - wsize, t_row - peakWidth - 1, t_col - 1, t_col + 1)
+                + sumRect(table, t_row + peakWidth + 1, t_row + wsize, t_col - 1, t_col + 1);
+    }
+
+    private double sumHorizontal(double[] table, int t_row, int t_col, int wsize) {
+        return sumRect(table, t_row - 1, t_row + 1, t_col - wsize, t_col - peakWidth - 1)
+                + sumRect(table, t_row - 1, t_row + 1, t_col + peakWidth + 1, t_col + wsize);
+    }
+
+    private void computeSumsFromTables(int diagDist, int t_row, int t_col, float[] sums) {
+        int bufferWidth = HiCCUPS.regionMargin;
+        int wsize = getInitialWindowSize(diagDist);
+
+        float evalueBL = (float) sumBottomLeft(upperObserved, t_row, t_col, wsize);
+        float edistvalueBL = (float) sumBottomLeft(upperExpected, t_row, t_col, wsize);
+        // grow the box until it holds enough counts
+        while (evalueBL < 16) {
+            wsize += 1;
+            evalueBL = (float) sumBottomLeft(upperObserved, t_row, t_col, wsize);
+            edistvalueBL = (float) sumBottomLeft(upperExpected, t_row, t_col, wsize);
+            if (wsize >= bufferWidth) {
+                break;
+            }
+            if (2 * wsize >= diagDist) {
+                break;
+            }
+        }
+        sums[BL] = evalueBL;
+        sums[BL_EXPECTED] = edistvalueBL;
+
+        sums[DONUT] = (float) sumDonut(upperObserved, validObserved, t_row, t_col, wsize);
+        sums[DONUT_EXPECTED] = (float) sumDonut(upperExpected, validExpected, t_row, t_col, wsize);
+
+        // NaNs are not skipped for the horizontal and vertical sums
+        int p = peakWidth;
+        int nansV = sumRect(nanCounts, t_row - wsize, t_row - p - 1, t_col - 1, t_col + 1)
+                + sumRect(nanCounts, t_row + p + 1, t_row + wsize, t_col - 1, t_col + 1);
+        int nansH = sumRect(nanCounts, t_row - 1, t_row + 1, t_col - wsize, t_col - p - 1)
+                + sumRect(nanCounts, t_row - 1, t_row + 1, t_col + p + 1, t_col + wsize);
+        sums[V] = nansV > 0 ? Float.NaN : (float) sumVertical(rawObserved, t_row, t_col, wsize);
+        sums[V_EXPECTED] = (float) sumVertical(rawExpected, t_row, t_col, wsize);
+        sums[H] = nansH > 0 ? Float.NaN : (float) sumHorizontal(rawObserved, t_row, t_col, wsize);
+        sums[H_EXPECTED] = (float) sumHorizontal(rawExpected, t_row, t_col, wsize);
+    }
+
+    /**
+     * Neighborhood sums exactly as computed by the kernel
+     */
+    private void computeSumsDirectly(float[] c, float[] d, int diff, int t_row, int t_col, float[] sums) {
+        float Evalue_bl = 0;
+        float Edistvalue_bl = 0;
+        float Evalue_donut = 0;
+        float Edistvalue_donut = 0;
+        float Evalue_h = 0;
+        float Edistvalue_h = 0;
+        float Evalue_v = 0;
+        float Edistvalue_v = 0;
+
+        int pwidth = peakWidth;
+        int buffer_width = HiCCUPS.regionMargin;
+        int diagDist = Math.abs(t_row + diff - t_col);
+        int wsize = getInitialWindowSize(diagDist);
+
+        // calculate initial bottom left box
+        for (int i = t_row + 1; i <= t_row + wsize; i++) {
+            for (int j = t_col - wsize; j < t_col; j++) {
+                if (!Float.isNaN(c[i * matrixSize + j])) {
+                    if (i + diff - j < 0) {
+                        Evalue_bl += c[i * matrixSize + j];
+                        Edistvalue_bl += d[Math.abs(i + diff - j)];
+                    }
+                }
+            }
+        }
+        //Subtract off the middle peak
+        for (int i = t_row + 1; i <= t_row + pwidth; i++) {
+            for (int j = t_col - pwidth; j < t_col; j++) {
+                if (!Float.isNaN(c[i * matrixSize + j])) {
+                    if (i + diff - j < 0) {
+                        Evalue_bl -= c[i * matrixSize + j];
+                        Edistvalue_bl -= d[Math.abs(i + diff - j)];
+                    }
+                }
+            }
+        }
+
+        //fix box dimensions
+        while (Evalue_bl < 16) {
+            Evalue_bl = 0;
+            Edistvalue_bl = 0;
+            wsize += 1;
+            for (int i = t_row + 1; i <= t_row + wsize; i++) {
+                for (int j = t_col - wsize; j < t_col; j++) {
+                    if (!Float.isNaN(c[i * matrixSize + j])) {
+                        if (i + diff - j < 0) {
+                            Evalue_bl += c[i * matrixSize + j];
+                            int distVal = Math.abs(i + diff - j);
+                            Edistvalue_bl += d[distVal];
+                            if (i < t_row + pwidth + 1 && j >= t_col - pwidth) {
+                                Evalue_bl -= c[i * matrixSize + j];
+                                Edistvalue_bl -= d[distVal];
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (wsize >= buffer_width) {
+                break;
+            }
+            if (2 * wsize >= diagDist) {
+                break;
+            }
+        }
+
+        // calculate donut
+        for (int i = t_row - wsize; i <= t_row + wsize; ++i) {
+            for (int j = t_col - wsize; j <= t_col + wsize; ++j) {
+                if (!Float.isNaN(c[i * matrixSize + j])) {
+                    if (i + diff - j < 0) {
+                        Evalue_donut += c[i * matrixSize + j];
+                        Edistvalue_donut += d[Math.abs(i + diff - j)];
+                    }
+                }
+            }
+        }
+        //Subtract off the middle peak
+        for (int i = t_row - pwidth; i <= t_row + pwidth; ++i) {
+            for (int j = t_col - pwidth; j <= t_col + pwidth; ++j) {
+                if (!Float.isNaN(c[i * matrixSize + j])) {
+                    if (i + diff - j < 0) {
+                        Evalue_donut -= c[i * matrixSize + j];
+                        Edistvalue_donut -= d[Math.abs(i + diff - j)];
+                    }
+                }
+            }
+        }
+        //Subtract off the cross hairs left side
+        for (int i = t_row - wsize; i < t_row - pwidth; i++) {
+            if (!Float.isNaN(c[i * matrixSize + t_col])) {
+                Evalue_donut -= c[i * matrixSize + t_col];
+                Edistvalue_donut -= d[Math.abs(i + diff - t_col)];
+            }
+            for (int j = -1; j <= 1; j++) {
+                Evalue_v += c[i * matrixSize + t_col + j];
+                Edistvalue_v += d[Math.abs(i + diff - t_col - j)];
+            }
+        }
+        //Subtract off the cross hairs right side
+        for (int i = t_row + pwidth + 1; i <= t_row + wsize; ++i) {
+            if (!Float.isNaN(c[i * matrixSize + t_col])) {
+                Evalue_donut -= c[i * matrixSize + t_col];
+                Edistvalue_donut -= d[Math.abs(i + diff - t_col)];
+            }
+            for (int j = -1; j <= 1; ++j) {
+                Evalue_v += c[i * matrixSize + t_col + j];
+                Edistvalue_v += d[Math.abs(i + diff - t_col - j)];
+            }
+        }
+        //Subtract off the cross hairs top side
+        for (int j = t_col - wsize; j < t_col - pwidth; ++j) {
+            if (!Float.isNaN(c[t_row * matrixSize + j])) {
+                Evalue_donut -= c[t_row * matrixSize + j];
+                Edistvalue_donut -= d[Math.abs(t_row + diff - j)];
+            }
+            for (int i = -1; i <= 1; ++i) {
+                Evalue_h += c[(t_row + i) * matrixSize + j];
+                Edistvalue_h += d[Math.abs(t_row + i + diff - j)];
+            }
+        }
+        //Subtract off the cross hairs bottom side
+        for (int j = t_col + pwidth + 1; j <= t_col + wsize; ++j) {
+            if (!Float.isNaN(c[t_row * matrixSize + j])) {
+                Evalue_donut -= c[t_row * matrixSize + j];
+                Edistvalue_donut -= d[Math.abs(t_row + diff - j)];
+            }
+            for (int i = -1; i <= 1; ++i) {
+                Evalue_h += c[(t_row + i) * matrixSize + j];
+                Edistvalue_h += d[Math.abs(t_row + i + diff - j)];
+            }
+        }
+
+        sums[BL] = Evalue_bl;
+        sums[BL_EXPECTED] = Edistvalue_bl;
+        sums[DONUT] = Evalue_donut;
+        sums[DONUT_EXPECTED] = Edistvalue_donut;
+        sums[H] = Evalue_h;
+        sums[H_EXPECTED] = Edistvalue_h;
+        sums[V] = Evalue_v;
+        sums[V_EXPECTED] = Edistvalue_v;
+    }
+
+    /**
+     * Kernel outputs for the part of the region that is kept (the region without its margins)
+     */
+    static class KernelOutput {
+
+        private static final float LOG_NORM = (float) Math.log(Math.pow(2.0, .33));
+
+        final int x1, x2, y1, y2;
+        final float[][] observed, peak;
+        final float[][] binBL, binDonut, binH, binV;
+        final float[][] expectedBL, expectedDonut, expectedH, expectedV;
+
+        KernelOutput(int[] rowBounds, int[] columnBounds) {
+            // x2, y2 not inclusive here
+            x1 = rowBounds[2];
+            y1 = columnBounds[2];
+            x2 = x1 + rowBounds[5] - rowBounds[4];
+            y2 = y1 + columnBounds[5] - columnBounds[4];
+            int numRows = x2 - x1, numColumns = y2 - y1;
+
+            observed = new float[numRows][numColumns];
+            peak = new float[numRows][numColumns];
+            binBL = new float[numRows][numColumns];
+            binDonut = new float[numRows][numColumns];
+            binH = new float[numRows][numColumns];
+            binV = new float[numRows][numColumns];
+            expectedBL = new float[numRows][numColumns];
+            expectedDonut = new float[numRows][numColumns];
+            expectedH = new float[numRows][numColumns];
+            expectedV = new float[numRows][numColumns];
+        }
+
+        private static float getBin(float e) {
+            float bvalue = 0;
+            if (!Float.isNaN(e) && !Float.isInfinite(e) && e > 1) {
+                bvalue = (float) Math.floor(Math.log(e) / LOG_NORM);
+            }
+            return Math.min(bvalue, HiCCUPS.w1 - 1);
+        }
+
+        void writePixel(int t_row, int t_col, float[] sums, float cValue, float dDiag, float[] kr1, float[] kr2,
+                        float[] thresholdBL, float[] thresholdDonut, float[] thresholdH, float[] thresholdV) {
+            float e_bl = ((sums[BL] * dDiag) / sums[BL_EXPECTED]) * kr1[t_row] * kr2[t_col];
+            float e_donut = ((sums[DONUT] * dDiag) / sums[DONUT_EXPECTED]) * kr1[t_row] * kr2[t_col];
+            float e_h = ((sums[H] * dDiag) / sums[H_EXPECTED]) * kr1[t_row] * kr2[t_col];
+            float e_v = ((sums[V] * dDiag) / sums[V_EXPECTED]) * kr1[t_row] * kr2[t_col];
+
+            float bvalue_bl = getBin(e_bl);
+            float bvalue_donut = getBin(e_donut);
+            float bvalue_h = getBin(e_h);
+            float bvalue_v = getBin(e_v);
+
+            float o = Math.round(cValue * kr1[t_row] * kr2[t_col]);
+
+            int i = t_row - x1, j = t_col - y1;
+            expectedBL[i][j] = e_bl;
+            expectedDonut[i][j] = e_donut;
+            expectedH[i][j] = e_h;
+            expectedV[i][j] = e_v;
+            observed[i][j] = o;
+            binBL[i][j] = bvalue_bl;
+            binDonut[i][j] = bvalue_donut;
+            binH[i][j] = bvalue_h;
+            binV[i][j] = bvalue_v;
+
+            float sbtrkt = Math.max(thresholdBL[(int) bvalue_bl], thresholdDonut[(int) bvalue_donut]);
+            sbtrkt = Math.max(sbtrkt, thresholdH[(int) bvalue_h]);
+            sbtrkt = Math.max(sbtrkt, thresholdV[(int) bvalue_v]);
+            peak[i][j] = o - sbtrkt;
+        }
+
+        GPUOutputContainer toContainer() {
+            return new GPUOutputContainer(observed, peak, binBL, binDonut, binH, binV,
+                    expectedBL, expectedDonut, expectedH, expectedV);
+        }
+    }
+}
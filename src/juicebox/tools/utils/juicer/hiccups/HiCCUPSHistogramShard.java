@@ -0,0 +1,103 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+/**
+ * Histograms of observed counts by expected value bin (BL, donut, H, V) filled by a single HiCCUPS worker.
+ * Each worker owns its shard, so regions are processed without locking; the shards are
+ * added into the full w1 x w2 histograms once all workers are done.
+ * Rows are only grown as far as the largest observed count seen, which keeps a shard small.
+ */
+public class HiCCUPSHistogramShard {
+
+    private static final int INITIAL_ROW_LENGTH = 64;
+
+    private final long[][] histBL, histDonut, histH, histV;
+    private final int maxRows, maxColumns;
+
+    public HiCCUPSHistogramShard(int maxRows, int maxColumns) {
+        this.maxRows = maxRows;
+        this.maxColumns = maxColumns;
+        histBL = new long[maxRows][];
+        histDonut = new long[maxRows][];
+        histH = new long[maxRows][];
+        histV = new long[maxRows][];
+    }
+
+    void add(float binBL, float binDonut, float binH, float binV, int observed) {
+        if (observed < 0 || observed >= maxColumns) return;
+        increment(histBL, binBL, observed);
+        increment(histDonut, binDonut, observed);
+        increment(histH, binH, observed);
+        increment(histV, binV, observed);
+    }
+
+    private void increment(long[][] histogram, float potentialRowIndex, int columnIndex) {
+        if (Float.isNaN(potentialRowIndex))
+            return;
+
+        int rowIndex = (int) potentialRowIndex;
+        if (rowIndex >= 0 && rowIndex < maxRows) {
+            long[] row = histogram[rowIndex];
+            if (row == null || columnIndex >= row.length) {
+                row = growRow(row, columnIndex);
+                histogram[rowIndex] = row;
+            }
+            row[columnIndex] += 1;
+        }
+    }
+
+    private long[] growRow(long[] row, int columnIndex) {
+        int newLength = Math.max(INITIAL_ROW_LENGTH, row == null ? 0 : row.length);
+        while (newLength <= columnIndex) {
+            newLength *= 2;
+        }
+        long[] newRow = new long[Math.min(newLength, maxColumns)];
+        if (row != null) {
+            System.arraycopy(row, 0, newRow, 0, row.length);
+        }
+        return newRow;
+    }
+
+    /**
+     * Adds this shard into the full histograms; not thread safe, call once the workers are done
+     */
+    public void addTo(long[][] fullHistBL, long[][] fullHistDonut, long[][] fullHistH, long[][] fullHistV) {
+        addTo(histBL, fullHistBL);
+        addTo(histDonut, fullHistDonut);
+        addTo(histH, fullHistH);
+        addTo(histV, fullHistV);
+    }
+
+    private void addTo(long[][] shard, long[][] histogram) {
+        for (int i = 0; i < maxRows; i++) {
+            if (shard[i] == null) continue;
+            for (int j = 0; j < shard[i].length; j++) {
+                histogram[i][j] += shard[i][j];
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.juicer.hiccups;
+
+import juicebox.HiCGlobals;
+import juicebox.track.feature.Feature2DList;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the candidate pixels of every region from the first (histogram) pass of HiCCUPS on disk,
+ * so that the second pass only has to apply the thresholds instead of reloading and
+ * reprocessing each region.
+ */
+public class HiCCUPSRegionCache {
+
+    private final File directory;
+    private final Set<Integer> savedRegions = ConcurrentHashMap.newKeySet();
+
+    public HiCCUPSRegionCache(File tmpDir) throws IOException {
+        if (tmpDir == null) {
+            directory = Files.createTempDirectory("hiccups_regions").toFile();
+        } else {
+            directory = Files.createTempDirectory(tmpDir.toPath(), "hiccups_regions").toFile();
+        }
+        directory.deleteOnExit();
+    }
+
+    private File getRegionFile(int regionIndex) {
+        return new File(directory, "region_" + regionIndex + ".bin");
+    }
+
+    /**
+     * A region whose file could not be written is not marked as saved, and so gets processed again in the second run
+     */
+    public void save(int regionIndex, GPUOutputContainer gpuOutputs, int w1, int w2) throws IOException {
+        File file = getRegionFile(regionIndex);
+        file.deleteOnExit();
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), HiCGlobals.bufferSize))) {
+            gpuOutputs.writeCandidatePixels(dos, w1, w2);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        savedRegions.add(regionIndex);
+    }
+
+    public boolean contains(int regionIndex) {
+        return savedRegions.contains(regionIndex);
+    }
+
+    /**
+     * Equivalent of GPUOutputContainer.extractPeaks for a region saved in the first pass
+     */
+    public Feature2DList extractPeaks(int regionIndex, float[] thresholdBL, float[] thresholdDonut,
+                                      float[] thresholdH, float[] thresholdV, int chrIndex, String chrName,
+                                      int rowOffset, int columnOffset, int resolution) throws IOException {
+        Feature2DList peaks = new Feature2DList();
+        File file = getRegionFile(regionIndex);
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), HiCGlobals.bufferSize))) {
+            int numCandidates = dis.readInt();
+            for (int k = 0; k < numCandidates; k++) {
+                int i = dis.readChar();
+                int j = dis.readChar();
+                float observedVal = dis.readFloat();
+                float binBLVal = dis.readByte();
+                float binDonutVal = dis.readByte();
+                float binHVal = dis.readByte();
+                float binVVal = dis.readByte();
+                float expectedBLVal = dis.readFloat();
+                float expectedDonutVal = dis.readFloat();
+                float expectedHVal = dis.readFloat();
+                float expectedVVal = dis.readFloat();
+
+                // same as the kernel
+                float sbtrkt = Math.max(thresholdBL[(int) binBLVal], thresholdDonut[(int) binDonutVal]);
+                sbtrkt = Math.max(sbtrkt, thresholdH[(int) binHVal]);
+                sbtrkt = Math.max(sbtrkt, thresholdV[(int) binVVal]);
+                float peakVal = observedVal - sbtrkt;
+
+                if (peakVal > 0) {
+                    int rowPos = (i + rowOffset) * resolution;
+                    int colPos = (j + columnOffset) * resolution;
+                    peaks.add(chrIndex, chrIndex, HiCCUPSUtils.generatePeak(chrName, observedVal, peakVal,
+                            rowPos, colPos, expectedBLVal, expectedDonutVal, expectedHVal, expectedVVal,
+                            binBLVal, binDonutVal, binHVal, binVVal, resolution));
+                }
+            }
+        }
+
+        if (!file.delete() && HiCGlobals.printVerboseComments) {
+            System.err.println("Unable to delete " + file.getAbsolutePath());
+        }
+        return peaks;
+    }
+
+    public void delete() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
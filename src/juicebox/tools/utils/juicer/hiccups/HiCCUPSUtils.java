@@ -160,13 +160,14 @@ public class HiCCUPSUtils {
 
     }
 
-    private static void coalesceFeaturesToCentroid(Feature2DList list, final int resolution, final int centroidRadius) {
-        list.filterLists(new FeatureFilter() {
+    private static void coalesceFeaturesToCentroid(Feature2DList list, final int resolution, final int centroidRadius,
+                                                   int numThreads) {
+        list.parallelizedFilterLists(new FeatureFilter() {
             @Override
             public List<Feature2D> filter(String chr, List<Feature2D> feature2DList) {
                 return coalescePixelsToCentroid(resolution, feature2DList, centroidRadius);
             }
-        });
+        }, numThreads);
     }
 
     public static void filterOutFeaturesByEnrichment(Feature2DList list, final float maxEnrich) {
@@ -239,18 +240,22 @@ public class HiCCUPSUtils {
      */
     private static List<Feature2D> coalescePixelsToCentroid(int resolution, List<Feature2D> feature2DList,
                                                             int originalClusterRadius) {
-        // HashSet intermediate for removing duplicates; LinkedList used so that we can pop out highest obs values
-        LinkedList<Feature2D> featureLL = new LinkedList<>(new HashSet<>(feature2DList));
+        // HashSet intermediate for removing duplicates; sorted once so that highest obs values come first (see Feature2D)
+        // the order is total, so the remaining pixels stay in this order as clusters are pulled out
+        List<Feature2D> featureLL = new ArrayList<>(new HashSet<>(feature2DList));
+        Collections.sort(featureLL);
+        Collections.reverse(featureLL);
+
+        // pixels lie on the resolution grid, so cells smaller than that would mostly be empty
+        Feature2DGridIndex index = new Feature2DGridIndex(featureLL, Math.max(originalClusterRadius, resolution));
+        boolean[] clustered = new boolean[featureLL.size()];
         List<Feature2D> coalesced = new ArrayList<>();
 
-        while (!featureLL.isEmpty()) {
-    
-            // See Feature2D
-            Collections.sort(featureLL);
-            Collections.reverse(featureLL);
-    
-            Feature2D pixel = featureLL.pollFirst();
-            featureLL.remove(pixel);
+        for (int seed = 0; seed < featureLL.size(); seed++) {
+            if (clustered[seed]) continue;
+
+            Feature2D pixel = featureLL.get(seed);
+            clustered[seed] = true;
             List<Feature2D> pixelList = new ArrayList<>();
             pixelList.add(pixel);
     
@@ -258,29 +263,30 @@ public class HiCCUPSUtils {
             int pixelListY = (int) pixel.getStart2();
             double r = 0;
             double pixelClusterRadius = originalClusterRadius;
-    
-            for (Feature2D px : featureLL) {
-                // TODO should likely reduce radius or at least start with default?
-                //System.out.println("Radius " + HiCCUPS.pixelClusterRadius);
-                if (hypotenuse(pixelListX - px.getStart1(), pixelListY - px.getStart2()) <= pixelClusterRadius) {
-                    pixelList.add(px);
-                    pixelListX = mean(pixelList, 1);
-                    pixelListY = mean(pixelList, 2);
-
-                    List<Double> distances = new ArrayList<>();
-                    for (Feature2D px2 : pixelList) {
-                        double dist = hypotenuse(pixelListX - px2.getStart1(), pixelListY - px2.getStart2());
-                        if (Double.isNaN(dist) || dist < 0) {
-                            System.err.println("Invalid distance while merging centroid");
-                            System.exit(29);
-                        }
-                        distances.add(dist);
+
+            // remaining pixels are visited in sorted order; the next one to join is the first after
+            // the last addition that lies within the (possibly grown) radius of the current centroid
+            int next = index.nextWithinRadius(pixelListX, pixelListY, pixelClusterRadius, seed, clustered);
+            while (next > -1) {
+                Feature2D px = featureLL.get(next);
+                clustered[next] = true;
+                pixelList.add(px);
+                pixelListX = mean(pixelList, 1);
+                pixelListY = mean(pixelList, 2);
+
+                List<Double> distances = new ArrayList<>();
+                for (Feature2D px2 : pixelList) {
+                    double dist = hypotenuse(pixelListX - px2.getStart1(), pixelListY - px2.getStart2());
+                    if (Double.isNaN(dist) || dist < 0) {
+                        System.err.println("Invalid distance while merging centroid");
+                        System.exit(29);
                     }
-                    //System.out.println("Radii "+distances);
-                    r = Math.round(Collections.max(distances));
-            
-                    pixelClusterRadius = originalClusterRadius + r;
+                    distances.add(dist);
                 }
+                r = Math.round(Collections.max(distances));
+
+                pixelClusterRadius = originalClusterRadius + r;
+                next = index.nextWithinRadius(pixelListX, pixelListY, pixelClusterRadius, next, clustered);
             }
     
             pixel.setEnd1((int) pixel.getStart1() + resolution);
@@ -291,8 +297,6 @@ public class HiCCUPSUtils {
             pixel.addIntAttribute(NUMCOLLAPSED, (pixelList.size()));
             setPixelColor(pixel);
             coalesced.add(pixel);
-    
-            featureLL.removeAll(pixelList);
         }
 
         return coalesced;
@@ -374,9 +378,10 @@ public class HiCCUPSUtils {
      * If at least one of these resolutions are found, any other resolution (e.g. 50 kB) will be thrown out
      * If none of these expected resolutions are found, all remaining resolutions will be merged without any filtering
      *
+     * @param numThreads maximum number of chromosome pairs matched at once
      * @return loop list merged across resolutions
      */
-    public static Feature2DList mergeAllResolutions(Map<Integer, Feature2DList> hiccupsLooplists) {
+    public static Feature2DList mergeAllResolutions(Map<Integer, Feature2DList> hiccupsLooplists, int numThreads) {
 
         Feature2DList mergedList = new Feature2DList();
         boolean listHasBeenAltered = false;
@@ -387,7 +392,7 @@ public class HiCCUPSUtils {
                 if (HiCGlobals.printVerboseComments) {
                     System.out.println("Merge 5k and 10k res loops");
                 }
-                mergedList.add(handleFiveAndTenKBMerger(hiccupsLooplists.get(5000), hiccupsLooplists.get(10000)));
+                mergedList.add(handleFiveAndTenKBMerger(hiccupsLooplists.get(5000), hiccupsLooplists.get(10000), numThreads));
 
             } else if (hiccupsLooplists.containsKey(5000)) {
 
@@ -414,7 +419,7 @@ public class HiCCUPSUtils {
                 if (HiCGlobals.printVerboseComments) {
                     System.out.println("Merge with 25k res loops");
                 }
-                handleExistingMergerWithTwentyFiveKB(mergedList, hiccupsLooplists.get(25000));
+                handleExistingMergerWithTwentyFiveKB(mergedList, hiccupsLooplists.get(25000), numThreads);
 
             } else {
 
@@ -440,20 +445,22 @@ public class HiCCUPSUtils {
         return mergedList;
     }
 
-    private static void handleExistingMergerWithTwentyFiveKB(Feature2DList mergedList, Feature2DList twentyFiveKBList) {
+    private static void handleExistingMergerWithTwentyFiveKB(Feature2DList mergedList, Feature2DList twentyFiveKBList,
+                                                             int numThreads) {
         // add peaks unique to 25 kB
-        Feature2DList centroidsTwentyFiveKB = Feature2DTools.extractReproducibleCentroids(mergedList, twentyFiveKBList, 2 * 25000);
+        Feature2DList centroidsTwentyFiveKB = Feature2DTools.extractReproducibleCentroids(mergedList, twentyFiveKBList, 2 * 25000, numThreads);
         Feature2DList distant25 = Feature2DTools.extractPeaksNotNearCentroids(twentyFiveKBList, centroidsTwentyFiveKB);
         mergedList.add(distant25);
     }
 
-    private static Feature2DList handleFiveAndTenKBMerger(Feature2DList fiveKBList, Feature2DList tenKBList) {
+    private static Feature2DList handleFiveAndTenKBMerger(Feature2DList fiveKBList, Feature2DList tenKBList,
+                                                          int numThreads) {
         // add peaks commonly found between 5 and 10 kB
-        Feature2DList centroidsFiveKB = Feature2DTools.extractReproducibleCentroids(tenKBList, fiveKBList, 2 * 10000);
+        Feature2DList centroidsFiveKB = Feature2DTools.extractReproducibleCentroids(tenKBList, fiveKBList, 2 * 10000, numThreads);
         Feature2DList mergedList = Feature2DTools.extractPeaksNearCentroids(fiveKBList, centroidsFiveKB, "5->centroids");
 
         // add peaks unique to 10 kB
-        Feature2DList centroidsTenKB = Feature2DTools.extractReproducibleCentroids(fiveKBList, tenKBList, 2 * 10000);
+        Feature2DList centroidsTenKB = Feature2DTools.extractReproducibleCentroids(fiveKBList, tenKBList, 2 * 10000, numThreads);
         Feature2DList distant10 = Feature2DTools.extractPeaksNotNearCentroids(tenKBList, centroidsTenKB);
         mergedList.add(distant10);
 
@@ -520,18 +527,19 @@ public class HiCCUPSUtils {
 
     public static Feature2DList postProcess(Map<Integer, Feature2DList> looplists, Dataset ds,
                                             ChromosomeHandler chromosomeHandler, List<HiCCUPSConfiguration> configurations,
-                                            NormalizationType norm, File outputDirectory, boolean isRequested, File outputFile) {
+                                            NormalizationType norm, File outputDirectory, boolean isRequested, File outputFile,
+                                            int numThreads) {
         for (HiCCUPSConfiguration conf : configurations) {
 
             int res = conf.getResolution();
             removeLowMapQFeatures(looplists.get(res), res, ds, chromosomeHandler, norm);
-            coalesceFeaturesToCentroid(looplists.get(res), res, conf.getClusterRadius());
+            coalesceFeaturesToCentroid(looplists.get(res), res, conf.getClusterRadius(), numThreads);
             filterOutFeaturesByFDR(looplists.get(res));
             looplists.get(res).exportFeatureList(new File(outputDirectory, getPostprocessedLoopsFileName(res, isRequested)),
                     true, Feature2DList.ListFormat.FINAL);
         }
 
-        Feature2DList mergedList = mergeAllResolutions(looplists);
+        Feature2DList mergedList = mergeAllResolutions(looplists, numThreads);
         mergedList.exportFeatureList(outputFile, true, Feature2DList.ListFormat.FINAL);
         return mergedList;
     }
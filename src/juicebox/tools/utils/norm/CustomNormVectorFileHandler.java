@@ -34,7 +34,6 @@ import juicebox.tools.utils.original.ExpectedValueCalculation;
 import juicebox.windowui.HiCZoom;
 import juicebox.windowui.NormalizationHandler;
 import juicebox.windowui.NormalizationType;
-import org.broad.igv.tdf.BufferedByteWriter;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -50,9 +49,11 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
         HiCGlobals.verifySupportedHiCFileVersion(reader.getVersion());
 
         String[] vectorPaths = vectorPath.split(",");
-        NormVectorInfo normVectorInfo = completeCalculationsNecessaryForUpdatingCustomNormalizations(ds, vectorPaths, true);
-        writeNormsToUpdateFile(reader, path, false, null, normVectorInfo.getExpectedValueFunctionMap(),
-                normVectorInfo.getNormVectorIndices(), normVectorInfo.getNormVectorBuffers(), "Finished adding another normalization.");
+        try (NormVectorStreamWriter normVectorWriter = new NormVectorStreamWriter(null)) {
+            NormVectorInfo normVectorInfo = completeCalculationsNecessaryForUpdatingCustomNormalizations(ds, vectorPaths, normVectorWriter);
+            writeNormsToUpdateFile(reader, path, false, null, normVectorInfo.getExpectedValueFunctionMap(),
+                    normVectorInfo.getNormVectorIndices(), normVectorInfo.getNormVectorWriter(), "Finished adding another normalization.");
+        }
 
         System.out.println("all custom norms added");
     }
@@ -70,7 +71,7 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
         }
 
         try {
-            NormVectorInfo normVectorInfo = completeCalculationsNecessaryForUpdatingCustomNormalizations(ds, filePaths, false);
+            NormVectorInfo normVectorInfo = completeCalculationsNecessaryForUpdatingCustomNormalizations(ds, filePaths, null);
 
             for (NormalizationType customNormType : normVectorInfo.getNormalizationVectorsMap().keySet()) {
                 ds.addNormalizationType(customNormType);
@@ -88,8 +89,11 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
         }
     }
 
+    /**
+     * @param normVectorWriter destination for the vectors of the rewritten footer; null if the footer won't be rewritten
+     */
     private static NormVectorInfo completeCalculationsNecessaryForUpdatingCustomNormalizations(
-            final Dataset ds, String[] filePaths, boolean overwriteHicFileFooter) throws IOException {
+            final Dataset ds, String[] filePaths, NormVectorStreamWriter normVectorWriter) throws IOException {
 
         Map<NormalizationType, Map<String, NormalizationVector>> normalizationVectorMap = readVectorFile(filePaths,
                 ds.getChromosomeHandler(), ds.getNormalizationHandler());
@@ -98,7 +102,6 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
         Map<String, Integer> fragCountMap = ds.getFragmentCounts();
         List<HiCZoom> resolutions = ds.getAllPossibleResolutions();
 
-        List<BufferedByteWriter> normVectorBuffers = new ArrayList<>();
         List<NormalizationVectorIndexEntry> normVectorIndices = new ArrayList<>();
         Map<String, ExpectedValueFunction> expectedValueFunctionMap = ds.getExpectedValueFunctionMap();
 
@@ -110,26 +113,14 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
         }
 
         // Get existing norm vectors so we don't lose them
-        if (overwriteHicFileFooter) {
+        if (normVectorWriter != null) {
             for (HiCZoom zoom : resolutions) {
                 for (NormalizationType type : NormalizationHandler.getAllNormTypes()) {
                     for (Chromosome chr : chromosomeHandler.getChromosomeArrayWithoutAllByAll()) {
                         NormalizationVector existingNorm = ds.getNormalizationVector(chr.getIndex(), zoom, type);
                         if (existingNorm != null) {
-                            long position = 0;
-                            for (int i=0; i < normVectorBuffers.size(); i++) {
-                                position += normVectorBuffers.get(i).bytesWritten();
-                            }
-                            // todo @suhas
-                            putFloatArraysIntoBufferList(normVectorBuffers, existingNorm.getData().convertToFloats().getValues());
-
-                            long newPos = 0;
-                            for (int i=0; i < normVectorBuffers.size(); i++) {
-                                newPos += normVectorBuffers.get(i).bytesWritten();
-                            }
-                            int sizeInBytes = (int) (newPos - position);
-                            normVectorIndices.add(new NormalizationVectorIndexEntry(
-                                    type.toString(), chr.getIndex(), zoom.getUnit().toString(), zoom.getBinSize(), position, sizeInBytes));
+                            updateNormVectorIndexWithVector(normVectorIndices, normVectorWriter,
+                                    existingNorm.getData().convertToFloats(), chr.getIndex(), type, zoom);
                         }
                     }
                 }
@@ -191,18 +182,18 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
                     if (zd == null) continue;
 
                     handleLoadedVector(customNormType, chr.getIndex(), zoom, normalizationVectorMap.get(customNormType),
-                                normVectorBuffers, normVectorIndices, zd, evLoaded);
+                                normVectorWriter, normVectorIndices, zd, evLoaded);
                 }
                 expectedValueFunctionMap.put(key, evLoaded.getExpectedValueFunction());
             }
         }
 
         ds.setExpectedValueFunctionMap(expectedValueFunctionMap);
-        return new NormVectorInfo(normalizationVectorMap, normVectorBuffers, normVectorIndices, expectedValueFunctionMap);
+        return new NormVectorInfo(normalizationVectorMap, normVectorWriter, normVectorIndices, expectedValueFunctionMap);
     }
 
     private static void handleLoadedVector(NormalizationType customNormType, final int chrIndx, HiCZoom zoom, Map<String, NormalizationVector> normVectors,
-                                           List<BufferedByteWriter> normVectorBuffers, List<NormalizationVectorIndexEntry> normVectorIndex,
+                                           NormVectorStreamWriter normVectorWriter, List<NormalizationVectorIndexEntry> normVectorIndex,
                                            MatrixZoomData zd, ExpectedValueCalculation evLoaded) throws IOException {
 
         String key = NormalizationVector.getKey(customNormType, chrIndx, zoom.getUnit().toString(), zoom.getBinSize());
@@ -210,22 +201,11 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
             NormalizationVector vector = normVectors.get(key);
             if (vector == null || vector.getData() == null) return;
             // Write custom norm
-            long position = 0;
-            for (int i=0; i < normVectorBuffers.size(); i++) {
-                position += normVectorBuffers.get(i).bytesWritten();
+            if (normVectorWriter != null) {
+                updateNormVectorIndexWithVector(normVectorIndex, normVectorWriter, vector.getData().convertToFloats(),
+                        chrIndx, customNormType, zoom);
             }
-            // todo @suhas
-            putFloatArraysIntoBufferList(normVectorBuffers, vector.getData().convertToFloats().getValues());
 
-            long newPos = 0;
-            for (int i=0; i < normVectorBuffers.size(); i++) {
-                newPos += normVectorBuffers.get(i).bytesWritten();
-            }
-
-            int sizeInBytes = (int) (newPos - position);
-            normVectorIndex.add(new NormalizationVectorIndexEntry(
-                    customNormType.toString(), chrIndx, zoom.getUnit().toString(), zoom.getBinSize(), position, sizeInBytes));
-    
             evLoaded.addDistancesFromIterator(chrIndx, zd.getIteratorContainer(), vector.getData().convertToFloats());
         }
     }
@@ -35,11 +35,9 @@ import juicebox.tools.utils.original.ExpectedValueCalculation;
 import juicebox.windowui.HiCZoom;
 import juicebox.windowui.NormalizationHandler;
 import juicebox.windowui.NormalizationType;
-import org.broad.igv.tdf.BufferedByteWriter;
 import org.broad.igv.util.Pair;
 
 import java.io.IOException;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -124,24 +122,42 @@ public class GenomeWideNormalizationVectorUpdater extends NormVectorUpdater {
 
     public static void updateHicFileForGWfromPreAddNormOnly(Dataset ds, HiCZoom zoom, List<NormalizationType> normalizationsToBuild,
                                                             Map<NormalizationType, Integer> resolutionsToBuildTo, List<NormalizationVectorIndexEntry> normVectorIndices,
-                                                            List<BufferedByteWriter> normVectorBuffers, List<ExpectedValueCalculation> expectedValueCalculations) throws IOException {
+                                                            NormVectorStreamWriter normVectorWriter, List<ExpectedValueCalculation> expectedValueCalculations,
+                                                            int numCPUThreads, NormCheckpointHandler checkpoint) throws IOException {
         for (NormalizationType normType : normalizationsToBuild) {
             if (NormalizationHandler.isGenomeWideNorm(normType)) {
                 if (zoom.getBinSize() >= resolutionsToBuildTo.get(normType)) {
 
+                    final int gwIdx = NormCheckpointHandler.GENOME_WIDE_INDEX;
+                    if (checkpoint != null && checkpoint.contains(normType, zoom, gwIdx)) {
+                        ExpectedValueCalculation restored = new ExpectedValueCalculation(ds.getChromosomeHandler(), zoom.getBinSize(), null, normType);
+                        if (checkpoint.restore(normType, zoom, gwIdx, normVectorWriter, normVectorIndices, restored)) {
+                            expectedValueCalculations.add(restored);
+                        }
+                        continue;
+                    }
+
                     long currentTime = System.currentTimeMillis();
-                    Pair<Map<Chromosome, NormalizationVector>, ExpectedValueCalculation> wgVectors = getWGVectors(ds, zoom, normType);
+                    Pair<Map<Chromosome, NormalizationVector>, ExpectedValueCalculation> wgVectors = getWGVectors(ds, zoom, normType, numCPUThreads);
                     if (HiCGlobals.printVerboseComments) {
                         System.out.println("\n" + normType.getLabel() + " normalization genome wide at " + zoom + " took " + (System.currentTimeMillis() - currentTime) + " milliseconds");
                     }
 
                     if (wgVectors != null) {
                         Map<Chromosome, NormalizationVector> nvMap = wgVectors.getFirst();
+                        Map<Integer, ListOfFloatArrays> finishedVectors = new LinkedHashMap<>();
                         for (Chromosome chromosome : nvMap.keySet()) {
-                            updateNormVectorIndexWithVector(normVectorIndices, normVectorBuffers, nvMap.get(chromosome).getData().convertToFloats(), chromosome.getIndex(), normType, zoom);
+                            ListOfFloatArrays vec = nvMap.get(chromosome).getData().convertToFloats();
+                            updateNormVectorIndexWithVector(normVectorIndices, normVectorWriter, vec, chromosome.getIndex(), normType, zoom);
+                            finishedVectors.put(chromosome.getIndex(), vec);
                         }
 
                         expectedValueCalculations.add(wgVectors.getSecond());
+                        if (checkpoint != null) {
+                            checkpoint.save(normType, zoom, gwIdx, finishedVectors, wgVectors.getSecond());
+                        }
+                    } else if (checkpoint != null) {
+                        checkpoint.saveFailure(normType, zoom, gwIdx);
                     }
                 }
             }
@@ -154,12 +170,13 @@ public class GenomeWideNormalizationVectorUpdater extends NormVectorUpdater {
 
     private static Pair<Map<Chromosome, NormalizationVector>, ExpectedValueCalculation> getWGVectors(Dataset dataset,
                                                                                                      HiCZoom zoom,
-                                                                                                     NormalizationType norm) {
+                                                                                                     NormalizationType norm,
+                                                                                                     int numCPUThreads) {
         boolean includeIntraData = NormalizationHandler.isGenomeWideNormIntra(norm); // default INTER type
         final ChromosomeHandler chromosomeHandler = dataset.getChromosomeHandler();
         final int resolution = zoom.getBinSize();
         final IteratorContainer ic = ListOfListGenerator.createForWholeGenome(dataset, chromosomeHandler, zoom,
-                includeIntraData);
+                includeIntraData, numCPUThreads);
 
         NormalizationCalculations calculations = new NormalizationCalculations(ic);
         ListOfFloatArrays vector = calculations.getNorm(norm);
@@ -168,25 +185,12 @@ public class GenomeWideNormalizationVectorUpdater extends NormVectorUpdater {
         }
 
         ExpectedValueCalculation expectedValueCalculation = new ExpectedValueCalculation(chromosomeHandler, resolution, null, norm);
-        int addY = 0;
+        long addY = 0;
         // Loop through chromosomes
         for (Chromosome chr : chromosomeHandler.getChromosomeArrayWithoutAllByAll()) {
-            final int chrIdx = chr.getIndex();
-
             MatrixZoomData zd = HiCFileTools.getMatrixZoomData(dataset, chr, chr, zoom);
-            if (zd == null) continue;
-
-            Iterator<ContactRecord> iterator = zd.getIteratorContainer().getNewContactRecordIterator();
-            while (iterator.hasNext()) {
-                ContactRecord cr = iterator.next();
-                int x = cr.getBinX();
-                int y = cr.getBinY();
-                final float vx = vector.get(x + addY);
-                final float vy = vector.get(y + addY);
-                if (isValidNormValue(vx) && isValidNormValue(vy)) {
-                    double value = cr.getCounts() / (vx * vy);
-                    expectedValueCalculation.addDistance(chrIdx, x, y, value);
-                }
+            if (zd != null) {
+                expectedValueCalculation.addDistancesFromIterator(chr.getIndex(), zd.getIteratorContainer(), vector, addY, numCPUThreads);
             }
             addY += chr.getLength() / resolution + 1;
         }
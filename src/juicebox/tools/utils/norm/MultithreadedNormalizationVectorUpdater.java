@@ -33,7 +33,6 @@ import juicebox.tools.utils.original.ExpectedValueCalculation;
 import juicebox.windowui.HiCZoom;
 import juicebox.windowui.NormalizationHandler;
 import juicebox.windowui.NormalizationType;
-import org.broad.igv.tdf.BufferedByteWriter;
 
 import java.io.IOException;
 import java.util.*;
@@ -75,13 +74,29 @@ public class MultithreadedNormalizationVectorUpdater extends NormalizationVector
         Dataset ds = reader.read();
         HiCGlobals.verifySupportedHiCFileVersion(reader.getVersion());
 
-        ChromosomeHandler chromosomeHandler = ds.getChromosomeHandler();
-        Map<String, Integer> fragCountMap = ds.getFragmentCounts();
         List<HiCZoom> resolutions = ds.getAllPossibleResolutions();
 
         reEvaluateWhichIntraNormsToBuild(normalizationsToBuild);
 
-        normVectorBuffers.add(new BufferedByteWriter());
+        initCheckpoint(path, reader);
+        normVectorWriter = new NormVectorStreamWriter(tmpDir);
+        try {
+            buildNormsForAllResolutions(ds, resolutions, normalizationsToBuild, resolutionsToBuildTo, minResolution,
+                    genomeWideLowestResolutionAllowed, noFrag, path);
+            writeNormsToUpdateFile(reader, path, true, expectedValueCalculations, null, normVectorIndices,
+                    normVectorWriter, "Finished writing norms");
+            deleteCheckpoint();
+        } finally {
+            normVectorWriter.close();
+        }
+    }
+
+    protected void buildNormsForAllResolutions(Dataset ds, List<HiCZoom> resolutions, List<NormalizationType> normalizationsToBuild,
+                                               Map<NormalizationType, Integer> resolutionsToBuildTo, int minResolution,
+                                               int genomeWideLowestResolutionAllowed, boolean noFrag, String path) throws IOException {
+        ChromosomeHandler chromosomeHandler = ds.getChromosomeHandler();
+        Map<String, Integer> fragCountMap = ds.getFragmentCounts();
+
         for (HiCZoom zoom : resolutions) {
             if (zoom.getBinSize() < minResolution) {
                 System.out.println("skipping zoom" + zoom);
@@ -92,7 +107,7 @@ public class MultithreadedNormalizationVectorUpdater extends NormalizationVector
             // compute genome-wide normalizations
             if (zoom.getUnit() == HiC.Unit.BP && zoom.getBinSize() >= genomeWideLowestResolutionAllowed) {
                 GenomeWideNormalizationVectorUpdater.updateHicFileForGWfromPreAddNormOnly(ds, zoom, normalizationsToBuild, resolutionsToBuildTo,
-                        normVectorIndices, normVectorBuffers, expectedValueCalculations);
+                        normVectorIndices, normVectorWriter, expectedValueCalculations, numCPUThreads, checkpoint);
             }
 
             System.out.println();
@@ -163,41 +178,51 @@ public class MultithreadedNormalizationVectorUpdater extends NormalizationVector
             // Loop through chromosomes
             for (Chromosome chr : chromosomeHandler.getChromosomeArrayWithoutAllByAll()) {
 
+                // anything finished in an earlier run was skipped by the workers
+                boolean restoredVC = weShouldBuildVC && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC)
+                        && restoreFromCheckpoint(NormalizationHandler.VC, zoom, chr, evVC);
+                boolean restoredVCSqrt = weShouldBuildVCSqrt && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC_SQRT)
+                        && restoreFromCheckpoint(NormalizationHandler.VC_SQRT, zoom, chr, evVCSqrt);
+                boolean restoredKR = weShouldBuildKR && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.KR)
+                        && restoreFromCheckpoint(NormalizationHandler.KR, zoom, chr, evKR);
+                boolean restoredScale = weShouldBuildScale && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.SCALE)
+                        && restoreFromCheckpoint(NormalizationHandler.SCALE, zoom, chr, evSCALE);
+
                 if (allChrZoomData.get(chr.getIndex()) == null) continue;
 
 
-                if (weShouldBuildVC && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC)) {
+                if (!restoredVC && weShouldBuildVC && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC)) {
                     if (withinZoomVCSumFactors.get(chr.getIndex())!=null&&withinZoomVCVectors.get(chr.getIndex())!=null) {
                         updateExpectedValueCalculationForChr(chr.getIndex(), withinZoomVCSumFactors.get(chr.getIndex()),
                                 withinZoomVCVectors.get(chr.getIndex()), NormalizationHandler.VC,
-                                zoom, allChrZoomData.get(chr.getIndex()), evVC, normVectorBuffers, normVectorIndices);
+                                zoom, allChrZoomData.get(chr.getIndex()), evVC, normVectorWriter, normVectorIndices, checkpoint);
                     }
                 }
-                if (weShouldBuildVCSqrt && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC_SQRT)) {
+                if (!restoredVCSqrt && weShouldBuildVCSqrt && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC_SQRT)) {
                     if (withinZoomVCSQRTSumFactors.get(chr.getIndex())!=null&&withinZoomVCSQRTVectors.get(chr.getIndex())!=null) {
                         updateExpectedValueCalculationForChr(chr.getIndex(), withinZoomVCSQRTSumFactors.get(chr.getIndex()),
                                 withinZoomVCSQRTVectors.get(chr.getIndex()), NormalizationHandler.VC_SQRT,
-                                zoom, allChrZoomData.get(chr.getIndex()), evVCSqrt, normVectorBuffers, normVectorIndices);
+                                zoom, allChrZoomData.get(chr.getIndex()), evVCSqrt, normVectorWriter, normVectorIndices, checkpoint);
                     }
                 }
 
                 // KR normalization
-                if (weShouldBuildKR && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.KR)) {
+                if (!restoredKR && weShouldBuildKR && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.KR)) {
                     Set<Chromosome> withinZoomFailureSetKR = zoom.getUnit() == HiC.Unit.FRAG ? withinZoomSynckrFragFailedChromosomes : withinZoomSynckrBPFailedChromosomes;
                     if (!withinZoomFailureSetKR.contains(chr)&&withinZoomKRSumFactors.get(chr.getIndex())!=null&&withinZoomKRVectors.get(chr.getIndex())!=null) {
                         updateExpectedValueCalculationForChr(chr.getIndex(), withinZoomKRSumFactors.get(chr.getIndex()),
                                 withinZoomKRVectors.get(chr.getIndex()), NormalizationHandler.KR,
-                                zoom, allChrZoomData.get(chr.getIndex()), evKR, normVectorBuffers, normVectorIndices);
+                                zoom, allChrZoomData.get(chr.getIndex()), evKR, normVectorWriter, normVectorIndices, checkpoint);
                     }
                 }
 
                 // Fast scaling normalization
-                if (weShouldBuildScale && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.SCALE)) {
+                if (!restoredScale && weShouldBuildScale && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.SCALE)) {
                     Set<Chromosome> withinZoomFailureSetMMBA = zoom.getUnit() == HiC.Unit.FRAG ? withinZoomSyncmmbaFragFailedChromosomes : withinZoomSyncmmbaBPFailedChromosomes;
                     if (!withinZoomFailureSetMMBA.contains(chr)&&withinZoomSCALESumFactors.get(chr.getIndex())!=null&&withinZoomSCALEVectors.get(chr.getIndex())!=null) {
                         updateExpectedValueCalculationForChr(chr.getIndex(), withinZoomSCALESumFactors.get(chr.getIndex()),
                                 withinZoomSCALEVectors.get(chr.getIndex()), NormalizationHandler.SCALE,
-                                zoom, allChrZoomData.get(chr.getIndex()), evSCALE, normVectorBuffers, normVectorIndices);
+                                zoom, allChrZoomData.get(chr.getIndex()), evSCALE, normVectorWriter, normVectorIndices, checkpoint);
                     }
                 }
             }
@@ -217,18 +242,16 @@ public class MultithreadedNormalizationVectorUpdater extends NormalizationVector
 
 
         }
-        writeNormsToUpdateFile(reader, path, true, expectedValueCalculations, null, normVectorIndices,
-                normVectorBuffers, "Finished writing norms");
-
     }
 
     protected static void updateExpectedValueCalculationForChr(final int chrIdx, double factor, ListOfFloatArrays vec, NormalizationType type, HiCZoom zoom, MatrixZoomData zd,
-                                                               ExpectedValueCalculation ev, List<BufferedByteWriter> normVectorBuffers, List<NormalizationVectorIndexEntry> normVectorIndex) throws IOException {
+                                                               ExpectedValueCalculation ev, NormVectorStreamWriter normVectorWriter, List<NormalizationVectorIndexEntry> normVectorIndex,
+                                                               NormCheckpointHandler checkpoint) throws IOException {
         vec.multiplyEverythingBy(factor);
 
-        updateNormVectorIndexWithVector(normVectorIndex, normVectorBuffers, vec, chrIdx, type, zoom);
+        updateNormVectorIndexWithVector(normVectorIndex, normVectorWriter, vec, chrIdx, type, zoom);
 
-        ev.addDistancesFromIterator(chrIdx, zd.getIteratorContainer(), vec);
+        addDistancesForChr(chrIdx, vec, type, zoom, zd, ev, checkpoint, numCPUThreads);
 
     }
 
@@ -270,6 +293,7 @@ public class MultithreadedNormalizationVectorUpdater extends NormalizationVector
             if (kr == null) {
                 failureSetKR.add(chr);
                 withinZoomFailureSetKR.add(chr);
+                checkpointFailure(NormalizationHandler.KR, zoom, chr);
                 printNormTiming("FAILED KR", chr, zoom, currentTime);
             } else {
                 withinZoomKRSumFactors.put(chrIdx, nc.getSumFactor(kr));
@@ -296,6 +320,7 @@ public class MultithreadedNormalizationVectorUpdater extends NormalizationVector
             if (mmba == null) {
                 failureSetMMBA.add(chr);
                 withinZoomFailureSetMMBA.add(chr);
+                checkpointFailure(NormalizationHandler.SCALE, zoom, chr);
                 printNormTiming("FAILED SCALE", chr, zoom, currentTime);
             } else {
                 withinZoomSCALESumFactors.put(chrIdx, nc.getSumFactor(mmba));
@@ -320,6 +345,20 @@ public class MultithreadedNormalizationVectorUpdater extends NormalizationVector
         int i = chromosomeIndex.getAndIncrement();
         while (i < chromosomeHandler.getChromosomeArrayWithoutAllByAll().length) {
             Chromosome chr = chromosomeHandler.getChromosomeArrayWithoutAllByAll()[i];
+
+            boolean buildVC = weShouldBuildVC && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC)
+                    && !isCheckpointed(NormalizationHandler.VC, zoom, chr);
+            boolean buildVCSqrt = weShouldBuildVCSqrt && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC_SQRT)
+                    && !isCheckpointed(NormalizationHandler.VC_SQRT, zoom, chr);
+            boolean buildKR = weShouldBuildKR && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.KR)
+                    && !isCheckpointed(NormalizationHandler.KR, zoom, chr);
+            boolean buildScale = weShouldBuildScale && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.SCALE)
+                    && !isCheckpointed(NormalizationHandler.SCALE, zoom, chr);
+            if (!(buildVC || buildVCSqrt || buildKR || buildScale)) {
+                i = chromosomeIndex.getAndIncrement();
+                continue;
+            }
+
             MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chr, chr, zoom);
 
             if (zd == null) {
@@ -334,17 +373,16 @@ public class MultithreadedNormalizationVectorUpdater extends NormalizationVector
             }
             allChrZoomData.put(chr.getIndex(), zd);
 
-            if (weShouldBuildVC || weShouldBuildVCSqrt) {
+            if (buildVC || buildVCSqrt) {
 
-                buildVCOrVCSQRT(weShouldBuildVC && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC),
-                        weShouldBuildVCSqrt && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC_SQRT),
+                buildVCOrVCSQRT(buildVC, buildVCSqrt,
                         chr, nc, zoom, withinZoomVCSumFactors, withinZoomVCVectors, withinZoomVCSQRTSumFactors, withinZoomVCSQRTVectors);
             }
-            if (weShouldBuildKR && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.KR)) {
+            if (buildKR) {
                 buildKR(chr, nc, zoom, withinZoomKRSumFactors, withinZoomKRVectors, withinZoomSynckrBPFailedChromosomes,
                         withinZoomSynckrFragFailedChromosomes);
             }
-            if (weShouldBuildScale && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.SCALE)) {
+            if (buildScale) {
                 buildScale(chr, nc, zoom, withinZoomSCALESumFactors, withinZoomSCALEVectors, withinZoomSyncmmbaBPFailedChromosomes,
                         withinZoomSyncmmbaFragFailedChromosomes);
             }
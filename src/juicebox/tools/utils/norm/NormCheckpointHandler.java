@@ -0,0 +1,189 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.norm;
+
+import htsjdk.tribble.util.LittleEndianInputStream;
+import htsjdk.tribble.util.LittleEndianOutputStream;
+import juicebox.HiCGlobals;
+import juicebox.data.basics.ListOfFloatArrays;
+import juicebox.tools.utils.original.ExpectedValueCalculation;
+import juicebox.windowui.HiCZoom;
+import juicebox.windowui.NormalizationType;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves every finished normalization vector, along with its contribution to the expected vector,
+ * to a sidecar directory so that an interrupted addNorm can be resumed without recalculating it.
+ * <p/>
+ * Entries are keyed by (normalization, zoom, chromosome index); genome-wide normalizations
+ * are stored as a single entry under the index of the All chromosome (0).
+ * Chromosomes that failed to converge are recorded too, so they are not attempted again.
+ */
+class NormCheckpointHandler {
+
+    static final int GENOME_WIDE_INDEX = 0;
+    private static final String MANIFEST = "manifest.txt";
+    private static final String SUFFIX = ".ckpt";
+    private static final int FAILED = 0;
+    private static final int FINISHED = 1;
+
+    private final File directory;
+
+    /**
+     * @param directory       sidecar directory, created if needed
+     * @param hicPath         .hic file being normalized
+     * @param normFilePosition start of the norm section of the .hic file, used to detect a checkpoint from another file
+     * @param resume          keep matching entries from an earlier run; otherwise start over
+     */
+    NormCheckpointHandler(File directory, String hicPath, long normFilePosition, boolean resume) throws IOException {
+        this.directory = directory;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create checkpoint directory " + directory.getAbsolutePath());
+        }
+
+        String signature = new File(hicPath).getCanonicalPath() + "\t" + normFilePosition;
+        File manifest = new File(directory, MANIFEST);
+        if (resume) {
+            if (!manifest.exists()) {
+                System.err.println("No checkpoint found in " + directory.getAbsolutePath() + "; starting from the beginning");
+            } else if (signature.equals(new String(Files.readAllBytes(manifest.toPath())).trim())) {
+                System.out.println("Resuming from checkpoint " + directory.getAbsolutePath());
+                return;
+            } else {
+                System.err.println("Checkpoint in " + directory.getAbsolutePath() + " does not match " + hicPath + "; starting over");
+            }
+        }
+        deleteEntries();
+        Files.write(manifest.toPath(), signature.getBytes());
+    }
+
+    private static String getName(NormalizationType type, HiCZoom zoom, int chrIdx) {
+        return type.getLabel() + "_" + zoom.getKey() + "_" + chrIdx + SUFFIX;
+    }
+
+    boolean contains(NormalizationType type, HiCZoom zoom, int chrIdx) {
+        return new File(directory, getName(type, zoom, chrIdx)).exists();
+    }
+
+    /**
+     * Record a finished calculation
+     *
+     * @param vectors finished (i.e. scaled) normalization vectors by chromosome index
+     * @param ev      only the counts contributed by these vectors
+     */
+    void save(NormalizationType type, HiCZoom zoom, int chrIdx, Map<Integer, ListOfFloatArrays> vectors,
+              ExpectedValueCalculation ev) throws IOException {
+        File tmpFile = new File(directory, getName(type, zoom, chrIdx) + ".tmp");
+        try (LittleEndianOutputStream los = new LittleEndianOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), HiCGlobals.bufferSize))) {
+            los.writeInt(FINISHED);
+            los.writeInt(vectors.size());
+            for (Map.Entry<Integer, ListOfFloatArrays> entry : vectors.entrySet()) {
+                los.writeInt(entry.getKey());
+                ListOfFloatArrays vector = entry.getValue();
+                los.writeLong(vector.getLength());
+                for (long i = 0; i < vector.getLength(); i++) {
+                    los.writeFloat(vector.get(i));
+                }
+            }
+            ev.writeSums(los);
+        }
+        commit(tmpFile, type, zoom, chrIdx);
+    }
+
+    /**
+     * Record a calculation that did not converge
+     */
+    void saveFailure(NormalizationType type, HiCZoom zoom, int chrIdx) throws IOException {
+        File tmpFile = new File(directory, getName(type, zoom, chrIdx) + ".tmp");
+        try (LittleEndianOutputStream los = new LittleEndianOutputStream(new FileOutputStream(tmpFile))) {
+            los.writeInt(FAILED);
+        }
+        commit(tmpFile, type, zoom, chrIdx);
+    }
+
+    // the rename is what marks the entry as complete, so a crash mid-write leaves nothing behind
+    private void commit(File tmpFile, NormalizationType type, HiCZoom zoom, int chrIdx) throws IOException {
+        Files.move(tmpFile.toPath(), new File(directory, getName(type, zoom, chrIdx)).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write the saved vectors to the stream writer and add the saved counts to the expected value calculation
+     *
+     * @return false if the checkpoint records that this calculation failed
+     */
+    boolean restore(NormalizationType type, HiCZoom zoom, int chrIdx, NormVectorStreamWriter normVectorWriter,
+                    List<NormalizationVectorIndexEntry> normVectorIndex, ExpectedValueCalculation ev) throws IOException {
+        File file = new File(directory, getName(type, zoom, chrIdx));
+        try (LittleEndianInputStream lis = new LittleEndianInputStream(new BufferedInputStream(new FileInputStream(file), HiCGlobals.bufferSize))) {
+            if (lis.readInt() == FAILED) {
+                return false;
+            }
+            int numVectors = lis.readInt();
+            for (int k = 0; k < numVectors; k++) {
+                int vectorChrIdx = lis.readInt();
+                ListOfFloatArrays vec = new ListOfFloatArrays(lis.readLong());
+                for (long i = 0; i < vec.getLength(); i++) {
+                    vec.set(i, lis.readFloat());
+                }
+                normVectorWriter.writeVector(normVectorIndex, vec, vectorChrIdx, type, zoom);
+            }
+            ev.readAndAddSums(lis);
+        }
+        if (HiCGlobals.printVerboseComments) {
+            System.out.println("Restored " + type.getLabel() + " at " + zoom + " for chromosome index " + chrIdx + " from checkpoint");
+        }
+        return true;
+    }
+
+    /**
+     * Remove the checkpoint once the norms have been written to the .hic file
+     */
+    void delete() {
+        deleteEntries();
+        File manifest = new File(directory, MANIFEST);
+        if (!manifest.delete() || !directory.delete()) {
+            System.err.println("Unable to delete checkpoint directory " + directory.getAbsolutePath());
+        }
+    }
+
+    private void deleteEntries() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX) || file.getName().endsWith(SUFFIX + ".tmp")) {
+                if (!file.delete()) {
+                    System.err.println("Unable to delete checkpoint file " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+}
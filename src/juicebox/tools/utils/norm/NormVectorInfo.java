@@ -27,29 +27,28 @@ package juicebox.tools.utils.norm;
 import juicebox.data.ExpectedValueFunction;
 import juicebox.data.NormalizationVector;
 import juicebox.windowui.NormalizationType;
-import org.broad.igv.tdf.BufferedByteWriter;
 
 import java.util.List;
 import java.util.Map;
 
 class NormVectorInfo {
 
-    private final List<BufferedByteWriter> normVectorBuffers;
+    private final NormVectorStreamWriter normVectorWriter;
     private final List<NormalizationVectorIndexEntry> normVectorIndices;
     private final Map<String, ExpectedValueFunction> expectedValueFunctionMap;
     private final Map<NormalizationType, Map<String, NormalizationVector>> normalizationVectorsMap;
 
-    NormVectorInfo(Map<NormalizationType, Map<String, NormalizationVector>> normalizationVectorsMap, List<BufferedByteWriter> normVectorBuffers, List<NormalizationVectorIndexEntry> normVectorIndices,
+    NormVectorInfo(Map<NormalizationType, Map<String, NormalizationVector>> normalizationVectorsMap, NormVectorStreamWriter normVectorWriter, List<NormalizationVectorIndexEntry> normVectorIndices,
                    Map<String, ExpectedValueFunction> expectedValueFunctionMap) {
         this.normalizationVectorsMap = normalizationVectorsMap;
-        this.normVectorBuffers = normVectorBuffers;
+        this.normVectorWriter = normVectorWriter;
         this.normVectorIndices = normVectorIndices;
         this.expectedValueFunctionMap = expectedValueFunctionMap;
 
     }
 
-    public List<BufferedByteWriter> getNormVectorBuffers() {
-        return normVectorBuffers;
+    public NormVectorStreamWriter getNormVectorWriter() {
+        return normVectorWriter;
     }
 
     public List<NormalizationVectorIndexEntry> getNormVectorIndices() {
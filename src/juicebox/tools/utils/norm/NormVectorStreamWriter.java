@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.tools.utils.norm;
+
+import htsjdk.tribble.util.LittleEndianOutputStream;
+import juicebox.HiCGlobals;
+import juicebox.data.basics.ListOfFloatArrays;
+import juicebox.windowui.HiCZoom;
+import juicebox.windowui.NormalizationType;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Streams normalization vectors to a temporary file as soon as they are calculated,
+ * rather than holding every vector for every resolution in memory until the footer is rewritten.
+ * Index entries are created with positions relative to the start of the temporary region;
+ * they get offset and the region is spliced into the .hic file by {@link #transferTo(RandomAccessFile)}.
+ */
+class NormVectorStreamWriter implements Closeable {
+
+    private final File tmpFile;
+    private final LittleEndianOutputStream los;
+
+    NormVectorStreamWriter(File tmpDir) throws IOException {
+        tmpFile = tmpDir == null ? File.createTempFile("normVectors", "bin") : File.createTempFile("normVectors", "bin", tmpDir);
+        tmpFile.deleteOnExit();
+        los = new LittleEndianOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), HiCGlobals.bufferSize));
+    }
+
+    synchronized long bytesWritten() {
+        return los.getWrittenCount();
+    }
+
+    /**
+     * Write the vector to the temporary region and record its location in the index
+     */
+    synchronized void writeVector(List<NormalizationVectorIndexEntry> normVectorIndex, ListOfFloatArrays vec,
+                                  int chrIdx, NormalizationType type, HiCZoom zoom) throws IOException {
+        long position = los.getWrittenCount();
+        los.writeLong(vec.getLength());
+        // element by element, so off-heap vectors are not copied back onto the heap
+        for (long i = 0; i < vec.getLength(); i++) {
+            los.writeFloat(vec.get(i));
+        }
+        long sizeInBytes = los.getWrittenCount() - position;
+        normVectorIndex.add(new NormalizationVectorIndexEntry(type.toString(), chrIdx, zoom.getUnit().toString(),
+                zoom.getBinSize(), position, sizeInBytes));
+    }
+
+    /**
+     * Copy all vectors written so far to the current position of the file
+     *
+     * @param raf destination; its pointer is left at the end of the copied region
+     */
+    synchronized void transferTo(RandomAccessFile raf) throws IOException {
+        los.flush();
+        FileChannel destination = raf.getChannel();
+        try (FileChannel source = new FileInputStream(tmpFile).getChannel()) {
+            long size = source.size();
+            long transferred = 0;
+            while (transferred < size) {
+                transferred += source.transferTo(transferred, size - transferred, destination);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        los.close();
+        if (!tmpFile.delete()) {
+            System.err.println("Unable to delete temporary file " + tmpFile.getAbsolutePath());
+        }
+    }
+}
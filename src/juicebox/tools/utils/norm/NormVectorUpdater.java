@@ -42,21 +42,9 @@ import java.util.Map;
 
 public class NormVectorUpdater {
 
-    static void updateNormVectorIndexWithVector(List<NormalizationVectorIndexEntry> normVectorIndex, List<BufferedByteWriter> normVectorBufferList, ListOfFloatArrays vec,
+    static void updateNormVectorIndexWithVector(List<NormalizationVectorIndexEntry> normVectorIndex, NormVectorStreamWriter normVectorWriter, ListOfFloatArrays vec,
                                                 int chrIdx, NormalizationType type, HiCZoom zoom) throws IOException {
-        long position = 0;
-        for (int i=0; i < normVectorBufferList.size(); i++) {
-            position += normVectorBufferList.get(i).bytesWritten();
-        }
-
-        putFloatArraysIntoBufferList(normVectorBufferList, vec.getValues());
-
-        long newPos = 0;
-        for (int i=0; i < normVectorBufferList.size(); i++) {
-            newPos += normVectorBufferList.get(i).bytesWritten();
-        }
-        int sizeInBytes = (int) (newPos - position);
-        normVectorIndex.add(new NormalizationVectorIndexEntry(type.toString(), chrIdx, zoom.getUnit().toString(), zoom.getBinSize(), position, sizeInBytes));
+        normVectorWriter.writeVector(normVectorIndex, vec, chrIdx, type, zoom);
     }
 
     public static boolean isValidNormValue(float v) {
@@ -124,12 +112,19 @@ public class NormVectorUpdater {
         }
     }
 
-    private static void writeExpectedToBuffer(RandomAccessFile raf, List<BufferedByteWriter> expectedBuffers, long filePosition) throws IOException {
-        raf.getChannel().position(filePosition);
-        for (int i=0;i<expectedBuffers.size();i+=1) {
-            byte[] evBytes = expectedBuffers.get(i).getBytes();
-            raf.write(evBytes);
+    private static void writeBuffersToFile(RandomAccessFile raf, List<BufferedByteWriter> buffers) throws IOException {
+        for (BufferedByteWriter buffer : buffers) {
+            raf.write(buffer.getBytes());
+        }
+    }
+
+    private static BufferedByteWriter getBufferWithSpace(List<BufferedByteWriter> bufferList, long bytesNeeded) {
+        BufferedByteWriter buffer = bufferList.get(bufferList.size() - 1);
+        if (bytesNeeded >= Integer.MAX_VALUE - buffer.bytesWritten()) {
+            buffer = new BufferedByteWriter();
+            bufferList.add(buffer);
         }
+        return buffer;
     }
 
     private static void handleVersionSix(RandomAccessFile raf, int version) throws IOException {
@@ -166,154 +161,77 @@ public class NormVectorUpdater {
                                        List<ExpectedValueCalculation> expectedValueCalculations,
                                        Map<String, ExpectedValueFunction> expectedValueFunctionMap,
                                        List<NormalizationVectorIndexEntry> normVectorIndices,
-                                       List<BufferedByteWriter> normVectorBuffers, String message) throws IOException {
+                                       NormVectorStreamWriter normVectorWriter, String message) throws IOException {
         int version = reader.getVersion();
         long filePosition = reader.getNormFilePosition();
         long nviHeaderPosition = reader.getNviHeaderPosition();
 
-        if (useCalcNotFunc) {
-            update(path, version, filePosition, expectedValueCalculations, normVectorIndices,
-                    normVectorBuffers, nviHeaderPosition);
-        } else {
-            update(path, version, filePosition, expectedValueFunctionMap, normVectorIndices,
-                    normVectorBuffers, nviHeaderPosition);
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            handleVersionSix(raf, version);
+            raf.getChannel().position(filePosition);
+            if (useCalcNotFunc) {
+                writeExpectedValues(raf, expectedValueCalculations);
+            } else {
+                writeExpectedValues(raf, expectedValueFunctionMap);
+            }
+            writeNormsToFile(raf, normVectorIndices, normVectorWriter, nviHeaderPosition);
         }
 
         System.out.println(message);
     }
 
+    /**
+     * Expected vectors are serialized and written one at a time, so that only a single
+     * expected vector is ever buffered in memory.
+     */
+    private static void writeExpectedValues(RandomAccessFile raf, List<ExpectedValueCalculation> expectedValueCalculations) throws IOException {
+        BufferedByteWriter countBuffer = new BufferedByteWriter();
+        countBuffer.putInt(expectedValueCalculations.size());
+        raf.write(countBuffer.getBytes());
 
-    private static void update(String hicfile, int version, final long filePosition, List<ExpectedValueCalculation> expectedValueCalculations,
-                               List<NormalizationVectorIndexEntry> normVectorIndex, List<BufferedByteWriter> normVectorBuffers, long nviHeaderPosition) throws IOException {
-
-        try (RandomAccessFile raf = new RandomAccessFile(hicfile, "rw")) {
-            handleVersionSix(raf, version);
-            List<BufferedByteWriter> expectedBuffers = new ArrayList<>();
-            expectedBuffers.add(new BufferedByteWriter());
-            writeExpectedValues(expectedBuffers, expectedValueCalculations);
-            writeExpectedToBuffer(raf, expectedBuffers, filePosition);
-            writeNormsToBuffer(raf, normVectorIndex, normVectorBuffers, nviHeaderPosition);
-        }
-    }
-
-    static void update(String hicfile, int version, final long filePosition, Map<String, ExpectedValueFunction> expectedValueFunctionMap,
-                       List<NormalizationVectorIndexEntry> normVectorIndex, List<BufferedByteWriter> normVectorBuffers, long nviHeaderPosition) throws IOException {
-        try (RandomAccessFile raf = new RandomAccessFile(hicfile, "rw")) {
-            handleVersionSix(raf, version);
+        for (ExpectedValueCalculation ev : expectedValueCalculations) {
+            ev.computeDensity();
+            HiC.Unit unit = ev.isFrag ? HiC.Unit.FRAG : HiC.Unit.BP;
             List<BufferedByteWriter> expectedBuffers = new ArrayList<>();
             expectedBuffers.add(new BufferedByteWriter());
-            writeExpectedValues(expectedBuffers, expectedValueFunctionMap);
-            writeExpectedToBuffer(raf, expectedBuffers, filePosition);
-            writeNormsToBuffer(raf, normVectorIndex, normVectorBuffers, nviHeaderPosition);
+            writeExpectedVector(expectedBuffers, ev.getType().toString(), unit.toString(), ev.getGridSize(),
+                    ev.getDensityAvg().convertToFloats().getValues(), ev.getChrScaleFactors());
+            writeBuffersToFile(raf, expectedBuffers);
         }
     }
 
-    private static void writeExpectedValues(List<BufferedByteWriter> expectedBuffers, List<ExpectedValueCalculation> expectedValueCalculations) throws IOException {
+    private static void writeExpectedValues(RandomAccessFile raf, Map<String, ExpectedValueFunction> expectedValueFunctionMap) throws IOException {
+        BufferedByteWriter countBuffer = new BufferedByteWriter();
+        countBuffer.putInt(expectedValueFunctionMap.size());
+        raf.write(countBuffer.getBytes());
 
-        BufferedByteWriter buffer = expectedBuffers.get(expectedBuffers.size()-1);
-        int freeBytes = Integer.MAX_VALUE - buffer.bytesWritten();
-        int bytesNeeded = 4;
-        if (bytesNeeded >= freeBytes) {
+        for (ExpectedValueFunction function : expectedValueFunctionMap.values()) {
+            List<BufferedByteWriter> expectedBuffers = new ArrayList<>();
             expectedBuffers.add(new BufferedByteWriter());
-            buffer = expectedBuffers.get(expectedBuffers.size()-1);
-        }
-        expectedBuffers.get(expectedBuffers.size()-1).putInt(expectedValueCalculations.size());
-
-        for (ExpectedValueCalculation ev : expectedValueCalculations) {
-            ev.computeDensity();
-            freeBytes = Integer.MAX_VALUE - buffer.bytesWritten();
-            bytesNeeded = ev.getType().toString().length()+1;
-            if (bytesNeeded >= freeBytes) {
-                expectedBuffers.add(new BufferedByteWriter());
-                buffer = expectedBuffers.get(expectedBuffers.size()-1);
-            }
-            buffer.putNullTerminatedString(ev.getType().toString());
-
-            HiC.Unit unit = ev.isFrag ? HiC.Unit.FRAG : HiC.Unit.BP;
-            freeBytes = Integer.MAX_VALUE - buffer.bytesWritten();
-            bytesNeeded = unit.toString().length()+1;
-            if (bytesNeeded >= freeBytes) {
-                expectedBuffers.add(new BufferedByteWriter());
-                buffer = expectedBuffers.get(expectedBuffers.size()-1);
-            }
-            buffer.putNullTerminatedString(unit.toString());
-
-            freeBytes = Integer.MAX_VALUE - buffer.bytesWritten();
-            bytesNeeded = 4;
-            if (bytesNeeded >= freeBytes) {
-                expectedBuffers.add(new BufferedByteWriter());
-                buffer = expectedBuffers.get(expectedBuffers.size()-1);
-            }
-            buffer.putInt(ev.getGridSize());
-
-            putFloatArraysIntoBufferList(expectedBuffers, ev.getDensityAvg().convertToFloats().getValues());
-
-
-            buffer = expectedBuffers.get(expectedBuffers.size()-1);
-            freeBytes = Integer.MAX_VALUE - buffer.bytesWritten();
-            bytesNeeded = 4+(12*ev.getChrScaleFactors().size());
-            if (bytesNeeded >= freeBytes) {
-                expectedBuffers.add(new BufferedByteWriter());
-                buffer = expectedBuffers.get(expectedBuffers.size()-1);
-            }
-            putMapValuesIntoBuffer(buffer, ev.getChrScaleFactors());
+            writeExpectedVector(expectedBuffers, function.getNormalizationType().toString(), function.getUnit().toString(),
+                    function.getBinSize(), function.getExpectedValuesNoNormalization().convertToFloats().getValues(),
+                    ((ExpectedValueFunctionImpl) function).getNormFactors());
+            writeBuffersToFile(raf, expectedBuffers);
         }
     }
 
-    private static void writeExpectedValues(List<BufferedByteWriter> expectedBuffers, Map<String, ExpectedValueFunction> expectedValueFunctionMap) throws IOException {
-        BufferedByteWriter buffer = expectedBuffers.get(expectedBuffers.size()-1);
-        int freeBytes = Integer.MAX_VALUE - buffer.bytesWritten();
-        int bytesNeeded = 4;
-        if (bytesNeeded >= freeBytes) {
-            expectedBuffers.add(new BufferedByteWriter());
-            buffer = expectedBuffers.get(expectedBuffers.size()-1);
-        }
-        expectedBuffers.get(expectedBuffers.size()-1).putInt(expectedValueFunctionMap.size());
-
-        for (ExpectedValueFunction function : expectedValueFunctionMap.values()) {
-            freeBytes = Integer.MAX_VALUE - buffer.bytesWritten();
-            bytesNeeded = function.getNormalizationType().toString().length()+1;
-            if (bytesNeeded >= freeBytes) {
-                expectedBuffers.add(new BufferedByteWriter());
-                buffer = expectedBuffers.get(expectedBuffers.size()-1);
-            }
-            buffer.putNullTerminatedString(function.getNormalizationType().toString());
-            freeBytes = Integer.MAX_VALUE - buffer.bytesWritten();
-            bytesNeeded = function.getUnit().toString().length()+1;
-            if (bytesNeeded >= freeBytes) {
-                expectedBuffers.add(new BufferedByteWriter());
-                buffer = expectedBuffers.get(expectedBuffers.size()-1);
-            }
-            buffer.putNullTerminatedString(function.getUnit().toString());
-
-            freeBytes = Integer.MAX_VALUE - buffer.bytesWritten();
-            bytesNeeded = 4;
-            if (bytesNeeded >= freeBytes) {
-                expectedBuffers.add(new BufferedByteWriter());
-                buffer = expectedBuffers.get(expectedBuffers.size()-1);
-            }
-            buffer.putInt(function.getBinSize());
-
-            putFloatArraysIntoBufferList(expectedBuffers, function.getExpectedValuesNoNormalization().convertToFloats().getValues());
-
-            buffer = expectedBuffers.get(expectedBuffers.size()-1);
-            freeBytes = Integer.MAX_VALUE - buffer.bytesWritten();
-            bytesNeeded = 4+(12*((ExpectedValueFunctionImpl) function).getNormFactors().size());
-            if (bytesNeeded >= freeBytes) {
-                expectedBuffers.add(new BufferedByteWriter());
-                buffer = expectedBuffers.get(expectedBuffers.size()-1);
-            }
-            putMapValuesIntoBuffer(buffer, ((ExpectedValueFunctionImpl) function).getNormFactors());
-        }
+    private static void writeExpectedVector(List<BufferedByteWriter> expectedBuffers, String type, String unit, int binSize,
+                                            List<float[]> expectedValues, Map<Integer, Double> normFactors) throws IOException {
+        getBufferWithSpace(expectedBuffers, type.length() + 1).putNullTerminatedString(type);
+        getBufferWithSpace(expectedBuffers, unit.length() + 1).putNullTerminatedString(unit);
+        getBufferWithSpace(expectedBuffers, 4).putInt(binSize);
+        putFloatArraysIntoBufferList(expectedBuffers, expectedValues);
+        putMapValuesIntoBuffer(getBufferWithSpace(expectedBuffers, 4 + (12L * normFactors.size())), normFactors);
     }
 
-    private static void writeNormsToBuffer(RandomAccessFile raf, List<NormalizationVectorIndexEntry> normVectorIndex, List<BufferedByteWriter> normVectorBuffers, long nviHeaderPosition) throws IOException {
+    private static void writeNormsToFile(RandomAccessFile raf, List<NormalizationVectorIndexEntry> normVectorIndex,
+                                         NormVectorStreamWriter normVectorWriter, long nviHeaderPosition) throws IOException {
         // Get the size of the index in bytes, to compute an offset for the actual entries.
         BufferedByteWriter buffer = new BufferedByteWriter();
         writeNormIndex(buffer, normVectorIndex);
-        long normVectorStartPosition = raf.getChannel().position() + buffer.bytesWritten();
+        long NVI = raf.getChannel().position();
         long size = buffer.bytesWritten();
-        long NVI =  normVectorStartPosition - size;
+        long normVectorStartPosition = NVI + size;
         // write NVI, size
         raf.getChannel().position(nviHeaderPosition);
 
@@ -334,9 +252,7 @@ public class NormVectorUpdater {
         buffer = new BufferedByteWriter();
         writeNormIndex(buffer, normVectorIndex);
         raf.write(buffer.getBytes());
-        // Finally the norm vectors
-        for (int i=0; i<normVectorBuffers.size(); i+=1) {
-            raf.write(normVectorBuffers.get(i).getBytes());
-        }
+        // Finally splice in the norm vectors streamed to the temporary file
+        normVectorWriter.transferTo(raf);
     }
 }
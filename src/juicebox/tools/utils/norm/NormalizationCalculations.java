@@ -59,30 +59,6 @@ public class NormalizationCalculations {
         isEnoughMemory = ic.getIsThereEnoughMemoryForNormCalculation();
     }
 
-    private static ListOfDoubleArrays sparseMultiplyFromContactRecords(ListOfIntArrays offset,
-                                                                       Iterator<ContactRecord> iterator, ListOfDoubleArrays vector) {
-        ListOfDoubleArrays result = new ListOfDoubleArrays(vector.getLength());
-
-        while (iterator.hasNext()) {
-            ContactRecord cr = iterator.next();
-            int row = cr.getBinX();
-            int col = cr.getBinY();
-            float value = cr.getCounts();
-
-            row = offset.get(row);
-            col = offset.get(col);
-
-            if (row != -1 && col != -1) {
-                result.addTo(row, vector.get(col) * value);
-                if (row != col) {
-                    result.addTo(col, vector.get(row) * value);
-                }
-            }
-        }
-
-        return result;
-    }
-
     /*
     function [x,res] = bnewt(A,tol,x0,delta,fl)
           % BNEWT A balancing algorithm for symmetric matrices
@@ -114,17 +90,15 @@ public class NormalizationCalculations {
 
         double rt = Math.pow(tol, 2);
 
-        ListOfDoubleArrays v = sparseMultiplyFromContactRecords(offset, getIterator(), x0);
+        ListOfDoubleArrays v = ic.sparseMultiply(offset, x0);
         ListOfDoubleArrays rk = new ListOfDoubleArrays(v.getLength());
         for (long i = 0; i < v.getLength(); i++) {
             v.multiplyBy(i, x0.get(i));
             rk.set(i, 1 - v.get(i));
         }
         double rho_km1 = 0;
-        for (double[] aRkArray : rk.getValues()) {
-            for (double aRk : aRkArray) {
-                rho_km1 += aRk * aRk;
-            }
+        for (long i = 0; i < rk.getLength(); i++) {
+            rho_km1 += rk.get(i) * rk.get(i);
         }
         double rout = rho_km1;
         double rold = rout;
@@ -169,7 +143,7 @@ public class NormalizationCalculations {
                 for (long i = 0; i < tmp.getLength(); i++) {
                     tmp.set(i, x0.get(i) * p.get(i));
                 }
-                tmp = sparseMultiplyFromContactRecords(offset, getIterator(), tmp);
+                tmp = ic.sparseMultiply(offset, tmp);
                 alpha = 0;
                 // Update search direction efficiently.
                 for (long i = 0; i < tmp.getLength(); i++) {
@@ -219,7 +193,7 @@ public class NormalizationCalculations {
             for (long i = 0; i < x0.getLength(); i++) {
                 x0.multiplyBy(i, y.get(i));
             }
-            v = sparseMultiplyFromContactRecords(offset, getIterator(), x0);
+            v = ic.sparseMultiply(offset, x0);
             rho_km1 = 0;
             for (long i = 0; i < v.getLength(); i++) {
                 v.multiplyBy(i, x0.get(i));
@@ -364,10 +338,8 @@ public class NormalizationCalculations {
             // create new matrix indices upon every iteration, because we've thrown out rows
             // newSize is size of new sparse matrix (non-sparse rows)
             long newSize = 0;
-            for (int[] array : offset.getValues()) {
-                for (int offset1 : array) {
-                    if (offset1 != -1) newSize++;
-                }
+            for (long i = 0; i < offset.getLength(); i++) {
+                if (offset.get(i) != -1) newSize++;
             }
             
             // initialize x0 for call the compute KR norm
@@ -392,14 +364,12 @@ public class NormalizationCalculations {
                 // otherwise, check to be sure there are no tiny KR values
                 // create true KR vector
                 kr = new ListOfFloatArrays(matrixSize);
-                int krIndex = 0;
-                for (int[] offsetArray : offset.getValues()) {
-                    for (int offset1 : offsetArray) {
-                        if (offset1 == -1) {
-                            kr.set(krIndex++, Float.NaN);
-                        } else {
-                            kr.set(krIndex++, (float) (1.0f / x0.get(offset1)));
-                        }
+                for (long i = 0; i < offset.getLength(); i++) {
+                    int offset1 = offset.get(i);
+                    if (offset1 == -1) {
+                        kr.set(i, Float.NaN);
+                    } else {
+                        kr.set(i, (float) (1.0f / x0.get(offset1)));
                     }
                 }
                 // find scaling factor
@@ -33,8 +33,8 @@ import juicebox.tools.utils.original.ExpectedValueCalculation;
 import juicebox.windowui.HiCZoom;
 import juicebox.windowui.NormalizationHandler;
 import juicebox.windowui.NormalizationType;
-import org.broad.igv.tdf.BufferedByteWriter;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
@@ -46,7 +46,7 @@ import java.util.*;
  */
 public class NormalizationVectorUpdater extends NormVectorUpdater {
 
-    protected List<BufferedByteWriter> normVectorBuffers = new ArrayList<>();
+    protected NormVectorStreamWriter normVectorWriter;
     protected List<NormalizationVectorIndexEntry> normVectorIndices = new ArrayList<>();
     protected List<ExpectedValueCalculation> expectedValueCalculations = new ArrayList<>();
 
@@ -62,6 +62,11 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
     protected boolean weShouldBuildKR = true;
     protected boolean weShouldBuildScale = true;
 
+    protected File tmpDir = null;
+    protected File checkpointDirectory = null;
+    protected boolean resumeFromCheckpoint = false;
+    protected NormCheckpointHandler checkpoint = null;
+
     protected static void printNormTiming(String norm, Chromosome chr, HiCZoom zoom, long currentTime) {
         if (HiCGlobals.printVerboseComments) {
             System.out.println(norm + " normalization of " + chr + " at " + zoom + " took " + (System.currentTimeMillis() - currentTime) + " milliseconds");
@@ -69,13 +74,91 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
     }
 
     protected static void updateExpectedValueCalculationForChr(final int chrIdx, NormalizationCalculations nc, ListOfFloatArrays vec, NormalizationType type, HiCZoom zoom, MatrixZoomData zd,
-                                                               ExpectedValueCalculation ev, List<BufferedByteWriter> normVectorBuffers, List<NormalizationVectorIndexEntry> normVectorIndex) throws IOException {
+                                                               ExpectedValueCalculation ev, NormVectorStreamWriter normVectorWriter, List<NormalizationVectorIndexEntry> normVectorIndex,
+                                                               NormCheckpointHandler checkpoint) throws IOException {
         double factor = nc.getSumFactor(vec);
         vec.multiplyEverythingBy(factor);
 
-        updateNormVectorIndexWithVector(normVectorIndex, normVectorBuffers, vec, chrIdx, type, zoom);
+        updateNormVectorIndexWithVector(normVectorIndex, normVectorWriter, vec, chrIdx, type, zoom);
+
+        addDistancesForChr(chrIdx, vec, type, zoom, zd, ev, checkpoint, 1);
+    }
+
+    protected static void addDistancesForChr(final int chrIdx, ListOfFloatArrays vec, NormalizationType type, HiCZoom zoom, MatrixZoomData zd,
+                                             ExpectedValueCalculation ev, NormCheckpointHandler checkpoint, int numCPUThreads) throws IOException {
+        if (checkpoint == null) {
+            ev.addDistancesFromIterator(chrIdx, zd.getIteratorContainer(), vec, numCPUThreads);
+        } else {
+            // keep this chromosome's counts separate so they can be checkpointed with its vector
+            ExpectedValueCalculation chrEV = ev.createEmptyCopy();
+            chrEV.addDistancesFromIterator(chrIdx, zd.getIteratorContainer(), vec, numCPUThreads);
+            checkpoint.save(type, zoom, chrIdx, Collections.singletonMap(chrIdx, vec), chrEV);
+            ev.merge(chrEV);
+        }
+    }
+
+    public void setTmpDir(File tmpDir) {
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Save finished vectors to the given directory as they are calculated
+     *
+     * @param resume skip anything already saved there by an earlier run of the same file
+     */
+    public void setCheckpointDirectory(File checkpointDirectory, boolean resume) {
+        this.checkpointDirectory = checkpointDirectory;
+        this.resumeFromCheckpoint = resume;
+    }
+
+    protected void initCheckpoint(String path, DatasetReaderV2 reader) throws IOException {
+        if (checkpointDirectory != null) {
+            checkpoint = new NormCheckpointHandler(checkpointDirectory, path, reader.getNormFilePosition(), resumeFromCheckpoint);
+        }
+    }
+
+    protected void deleteCheckpoint() {
+        if (checkpoint != null) {
+            checkpoint.delete();
+            checkpoint = null;
+        }
+    }
+
+    protected boolean isCheckpointed(NormalizationType type, HiCZoom zoom, Chromosome chr) {
+        return checkpoint != null && checkpoint.contains(type, zoom, chr.getIndex());
+    }
+
+    /**
+     * @return true if this vector was finished in an earlier run; it is then written out and
+     * added to the expected value calculation just as if it had been calculated
+     */
+    protected boolean restoreFromCheckpoint(NormalizationType type, HiCZoom zoom, Chromosome chr, ExpectedValueCalculation ev) throws IOException {
+        if (!isCheckpointed(type, zoom, chr)) {
+            return false;
+        }
+        if (!checkpoint.restore(type, zoom, chr.getIndex(), normVectorWriter, normVectorIndices, ev)) {
+            Set<Chromosome> failureSet = getFailureSet(type, zoom);
+            if (failureSet != null) {
+                failureSet.add(chr);
+            }
+        }
+        return true;
+    }
 
-        ev.addDistancesFromIterator(chrIdx, zd.getIteratorContainer(), vec);
+    protected Set<Chromosome> getFailureSet(NormalizationType type, HiCZoom zoom) {
+        boolean isFrag = zoom.getUnit() == HiC.Unit.FRAG;
+        if (type.equals(NormalizationHandler.KR)) {
+            return isFrag ? krFragFailedChromosomes : krBPFailedChromosomes;
+        } else if (type.equals(NormalizationHandler.SCALE)) {
+            return isFrag ? mmbaFragFailedChromosomes : mmbaBPFailedChromosomes;
+        }
+        return null;
+    }
+
+    protected void checkpointFailure(NormalizationType type, HiCZoom zoom, Chromosome chr) throws IOException {
+        if (checkpoint != null) {
+            checkpoint.saveFailure(type, zoom, chr.getIndex());
+        }
     }
 
     protected void reEvaluateWhichIntraNormsToBuild(List<NormalizationType> normalizationsToBuild) {
@@ -99,10 +182,10 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
             }
         }
         if (weShouldBuildVC) {
-            updateExpectedValueCalculationForChr(chrIdx, nc, vc, NormalizationHandler.VC, zoom, zd, evVC, normVectorBuffers, normVectorIndices);
+            updateExpectedValueCalculationForChr(chrIdx, nc, vc, NormalizationHandler.VC, zoom, zd, evVC, normVectorWriter, normVectorIndices, checkpoint);
         }
         if (weShouldBuildVCSqrt) {
-            updateExpectedValueCalculationForChr(chrIdx, nc, vcSqrt, NormalizationHandler.VC_SQRT, zoom, zd, evVCSqrt, normVectorBuffers, normVectorIndices);
+            updateExpectedValueCalculationForChr(chrIdx, nc, vcSqrt, NormalizationHandler.VC_SQRT, zoom, zd, evVCSqrt, normVectorWriter, normVectorIndices, checkpoint);
         }
     }
 
@@ -115,9 +198,10 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
             ListOfFloatArrays kr = nc.computeKR();
             if (kr == null) {
                 failureSetKR.add(chr);
+                checkpointFailure(NormalizationHandler.KR, zoom, chr);
                 printNormTiming("FAILED KR", chr, zoom, currentTime);
             } else {
-                updateExpectedValueCalculationForChr(chrIdx, nc, kr, NormalizationHandler.KR, zoom, zd, evKR, normVectorBuffers, normVectorIndices);
+                updateExpectedValueCalculationForChr(chrIdx, nc, kr, NormalizationHandler.KR, zoom, zd, evKR, normVectorWriter, normVectorIndices, checkpoint);
                 printNormTiming("KR", chr, zoom, currentTime);
             }
         }
@@ -138,13 +222,29 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
         Dataset ds = reader.read();
         HiCGlobals.verifySupportedHiCFileWritingVersion(reader.getVersion());
 
-        ChromosomeHandler chromosomeHandler = ds.getChromosomeHandler();
-        Map<String, Integer> fragCountMap = ds.getFragmentCounts();
         List<HiCZoom> resolutions = ds.getAllPossibleResolutions();
 
         reEvaluateWhichIntraNormsToBuild(normalizationsToBuild);
 
-        normVectorBuffers.add(new BufferedByteWriter());
+        initCheckpoint(path, reader);
+        normVectorWriter = new NormVectorStreamWriter(tmpDir);
+        try {
+            buildNormsForAllResolutions(ds, resolutions, normalizationsToBuild, resolutionsToBuildTo, minResolution,
+                    genomeWideLowestResolutionAllowed, noFrag);
+            writeNormsToUpdateFile(reader, path, true, expectedValueCalculations, null, normVectorIndices,
+                    normVectorWriter, "Finished writing norms");
+            deleteCheckpoint();
+        } finally {
+            normVectorWriter.close();
+        }
+    }
+
+    protected void buildNormsForAllResolutions(Dataset ds, List<HiCZoom> resolutions, List<NormalizationType> normalizationsToBuild,
+                                               Map<NormalizationType, Integer> resolutionsToBuildTo, int minResolution,
+                                               int genomeWideLowestResolutionAllowed, boolean noFrag) throws IOException {
+        ChromosomeHandler chromosomeHandler = ds.getChromosomeHandler();
+        Map<String, Integer> fragCountMap = ds.getFragmentCounts();
+
         for (HiCZoom zoom : resolutions) {
             if (zoom.getBinSize() < minResolution) {
                 System.out.println("skipping zoom" + zoom);
@@ -155,7 +255,7 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
             // compute genome-wide normalizations
             if (zoom.getUnit() == HiC.Unit.BP && zoom.getBinSize() >= genomeWideLowestResolutionAllowed) {
                 GenomeWideNormalizationVectorUpdater.updateHicFileForGWfromPreAddNormOnly(ds, zoom, normalizationsToBuild, resolutionsToBuildTo,
-                        normVectorIndices, normVectorBuffers, expectedValueCalculations);
+                        normVectorIndices, normVectorWriter, expectedValueCalculations, 1, checkpoint);
             }
 
             //System.out.println("genomewide normalization: " + Duration.between(A,B).toMillis());
@@ -172,6 +272,16 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
             // Loop through chromosomes
             for (Chromosome chr : chromosomeHandler.getChromosomeArrayWithoutAllByAll()) {
 
+                boolean buildVC = weShouldBuildVC && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC)
+                        && !restoreFromCheckpoint(NormalizationHandler.VC, zoom, chr, evVC);
+                boolean buildVCSqrt = weShouldBuildVCSqrt && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC_SQRT)
+                        && !restoreFromCheckpoint(NormalizationHandler.VC_SQRT, zoom, chr, evVCSqrt);
+                boolean buildKR = weShouldBuildKR && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.KR)
+                        && !restoreFromCheckpoint(NormalizationHandler.KR, zoom, chr, evKR);
+                boolean buildScale = weShouldBuildScale && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.SCALE)
+                        && !restoreFromCheckpoint(NormalizationHandler.SCALE, zoom, chr, evSCALE);
+                if (!(buildVC || buildVCSqrt || buildKR || buildScale)) continue;
+
                 MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chr, chr, zoom);
                 if (zd == null) continue;
 
@@ -181,19 +291,17 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
                     continue;
                 }
 
-                if (weShouldBuildVC || weShouldBuildVCSqrt) {
-                    buildVCOrVCSQRT(weShouldBuildVC && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC),
-                            weShouldBuildVCSqrt && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.VC_SQRT),
-                            chr, nc, zoom, zd, evVC, evVCSqrt);
+                if (buildVC || buildVCSqrt) {
+                    buildVCOrVCSQRT(buildVC, buildVCSqrt, chr, nc, zoom, zd, evVC, evVCSqrt);
                 }
 
                 // KR normalization
-                if (weShouldBuildKR && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.KR)) {
+                if (buildKR) {
                     buildKR(chr, nc, zoom, zd, evKR);
                 }
 
                 // Fast scaling normalization
-                if (weShouldBuildScale && zoom.getBinSize() >= resolutionsToBuildTo.get(NormalizationHandler.SCALE)) {
+                if (buildScale) {
                     buildScale(chr, nc, zoom, zd, evSCALE);
                 }
             }
@@ -211,8 +319,6 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
                 expectedValueCalculations.add(evSCALE);
             }
         }
-        writeNormsToUpdateFile(reader, path, true, expectedValueCalculations, null, normVectorIndices,
-                normVectorBuffers, "Finished writing norms");
     }
     
     protected void buildScale(Chromosome chr, NormalizationCalculations nc, HiCZoom zoom, MatrixZoomData zd, ExpectedValueCalculation evSCALE) throws IOException {
@@ -225,9 +331,10 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
             
             if (mmba == null) {
                 failureSetMMBA.add(chr);
+                checkpointFailure(NormalizationHandler.SCALE, zoom, chr);
                 printNormTiming("FAILED SCALE", chr, zoom, currentTime);
             } else {
-                updateExpectedValueCalculationForChr(chrIdx, nc, mmba, NormalizationHandler.SCALE, zoom, zd, evSCALE, normVectorBuffers, normVectorIndices);
+                updateExpectedValueCalculationForChr(chrIdx, nc, mmba, NormalizationHandler.SCALE, zoom, zd, evSCALE, normVectorWriter, normVectorIndices, checkpoint);
                 printNormTiming("SCALE", chr, zoom, currentTime);
             }
         }
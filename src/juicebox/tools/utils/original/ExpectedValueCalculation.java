@@ -25,6 +25,8 @@
 
 package juicebox.tools.utils.original;
 
+import htsjdk.tribble.util.LittleEndianInputStream;
+import htsjdk.tribble.util.LittleEndianOutputStream;
 import juicebox.HiC;
 import juicebox.data.ChromosomeHandler;
 import juicebox.data.ContactRecord;
@@ -33,13 +35,17 @@ import juicebox.data.basics.Chromosome;
 import juicebox.data.basics.ListOfDoubleArrays;
 import juicebox.data.basics.ListOfFloatArrays;
 import juicebox.data.iterator.IteratorContainer;
+import juicebox.tools.dev.ParallelizedJuicerTools;
 import juicebox.tools.utils.norm.NormVectorUpdater;
 import juicebox.windowui.NormalizationType;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Computes an "expected" density vector.  Essentially there are 3 steps to using this class
@@ -142,6 +148,23 @@ public class ExpectedValueCalculation {
         Arrays.fill(actualDistances, 0);
     }
 
+    /**
+     * Empty calculation for the same genome, grid size, and type; used to isolate the contribution of one chromosome
+     */
+    private ExpectedValueCalculation(ExpectedValueCalculation other) {
+        this.type = other.type;
+        this.gridSize = other.gridSize;
+        this.isFrag = other.isFrag;
+        this.fragmentCountMap = other.fragmentCountMap;
+        this.numberOfBins = other.numberOfBins;
+        this.chromosomesMap.putAll(other.chromosomesMap);
+        actualDistances = new double[numberOfBins];
+    }
+
+    public ExpectedValueCalculation createEmptyCopy() {
+        return new ExpectedValueCalculation(this);
+    }
+
     public int getGridSize() {
         return gridSize;
     }
@@ -169,7 +192,7 @@ public class ExpectedValueCalculation {
 		actualDistances[dist] += weight;
 	}
 
-    public void merge(ExpectedValueCalculation otherEVCalc) {
+    public synchronized void merge(ExpectedValueCalculation otherEVCalc) {
         for (Map.Entry<Integer, Chromosome> entry : otherEVCalc.chromosomesMap.entrySet()) {
             Chromosome chr = chromosomesMap.get(entry.getKey());
             if (chr != null) {
@@ -188,6 +211,40 @@ public class ExpectedValueCalculation {
         }
     }
 
+    /**
+     * Write the accumulated counts (not the computed density) so they can be restored with readAndAddSums
+     */
+    public synchronized void writeSums(LittleEndianOutputStream los) throws IOException {
+        los.writeInt(chromosomeCounts.size());
+        for (Map.Entry<Integer, Double> entry : chromosomeCounts.entrySet()) {
+            los.writeInt(entry.getKey());
+            los.writeDouble(entry.getValue());
+        }
+        int numDistances = actualDistances.length;
+        while (numDistances > 0 && actualDistances[numDistances - 1] == 0) {
+            numDistances--;
+        }
+        los.writeInt(numDistances);
+        for (int i = 0; i < numDistances; i++) {
+            los.writeDouble(actualDistances[i]);
+        }
+    }
+
+    public synchronized void readAndAddSums(LittleEndianInputStream lis) throws IOException {
+        int numChromosomes = lis.readInt();
+        for (int i = 0; i < numChromosomes; i++) {
+            int chrIdx = lis.readInt();
+            double count = lis.readDouble();
+            if (chromosomesMap.containsKey(chrIdx)) {
+                chromosomeCounts.merge(chrIdx, count, Double::sum);
+            }
+        }
+        int numDistances = lis.readInt();
+        for (int i = 0; i < numDistances; i++) {
+            actualDistances[i] += lis.readDouble();
+        }
+    }
+
     public boolean hasData() {
         return !chromosomeCounts.isEmpty();
     }
@@ -333,19 +390,68 @@ public class ExpectedValueCalculation {
 
     // TODO: this is often inefficient, we have all of the contact records when we leave norm calculations, should do this there if possible
     public void addDistancesFromIterator(int chrIndx, IteratorContainer ic, ListOfFloatArrays vector) {
-        Iterator<ContactRecord> iterator = ic.getNewContactRecordIterator();
+        addDistancesFromIterator(chrIndx, ic, vector, 0, 1);
+    }
+
+    public void addDistancesFromIterator(int chrIndx, IteratorContainer ic, ListOfFloatArrays vector, int numCPUThreads) {
+        addDistancesFromIterator(chrIndx, ic, vector, 0, numCPUThreads);
+    }
+
+    /**
+     * Add the normalized distances of every contact in the container.  Each partition of the contacts
+     * is accumulated into its own primitive arrays and added in once at the end, so no lock is taken per contact.
+     *
+     * @param vectorOffset position of this chromosome's bins within the vector (non-zero for genome-wide vectors)
+     */
+    public void addDistancesFromIterator(int chrIndx, IteratorContainer ic, ListOfFloatArrays vector, long vectorOffset,
+                                         int numCPUThreads) {
+        if (!chromosomesMap.containsKey(chrIndx)) return;
+
+        final List<Iterator<ContactRecord>> iterators = ic.getPartitionedIterators(Math.max(1, numCPUThreads));
+        if (iterators.size() == 1) {
+            addDistancesFromIterator(chrIndx, iterators.get(0), vector, vectorOffset);
+            return;
+        }
+
+        final AtomicInteger index = new AtomicInteger(0);
+        ParallelizedJuicerTools.launchParallelizedCode(Math.min(numCPUThreads, iterators.size()), () -> {
+            int i = index.getAndIncrement();
+            while (i < iterators.size()) {
+                addDistancesFromIterator(chrIndx, iterators.get(i), vector, vectorOffset);
+                i = index.getAndIncrement();
+            }
+        });
+    }
+
+    private void addDistancesFromIterator(int chrIndx, Iterator<ContactRecord> iterator, ListOfFloatArrays vector, long vectorOffset) {
+        double[] localDistances = new double[numberOfBins];
+        double localCount = 0;
+        int maxDist = -1;
         while (iterator.hasNext()) {
             ContactRecord cr = iterator.next();
             int x = cr.getBinX();
             int y = cr.getBinY();
             final float counts = cr.getCounts();
-            float xVal = vector.get(x);
-            float yVal = vector.get(y);
+            float xVal = vector.get(x + vectorOffset);
+            float yVal = vector.get(y + vectorOffset);
             if (NormVectorUpdater.isValidNormValue(xVal) & NormVectorUpdater.isValidNormValue(yVal)) {
                 double value = counts / (xVal * yVal);
-                addDistance(chrIndx, x, y, value);
+                if (Double.isNaN(value)) continue;
+                int dist = Math.abs(x - y);
+                localDistances[dist] += value;
+                localCount += value;
+                maxDist = Math.max(maxDist, dist);
             }
         }
+        addLocalSums(chrIndx, localCount, localDistances, maxDist);
+    }
+
+    private synchronized void addLocalSums(int chrIndx, double count, double[] distances, int maxDist) {
+        if (maxDist < 0) return;
+        chromosomeCounts.merge(chrIndx, count, Double::sum);
+        for (int i = 0; i <= maxDist; i++) {
+            actualDistances[i] += distances[i];
+        }
     }
 }
 
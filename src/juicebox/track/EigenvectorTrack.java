@@ -26,6 +26,7 @@ package juicebox.track;
 
 import juicebox.Context;
 import juicebox.HiC;
+import juicebox.HiCGlobals;
 import juicebox.data.MatrixZoomData;
 import juicebox.gui.SuperAdapter;
 import juicebox.tools.utils.common.ArrayTools;
@@ -42,7 +43,11 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.geom.AffineTransform;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author Jim Robinson
@@ -50,12 +55,20 @@ import java.util.Map;
  */
 public class EigenvectorTrack extends HiCTrack {
 
+    // eigenvectors at fine resolutions take a while (sparse solve over every record), so none are computed on the EDT
+    private static final ExecutorService eigenvectorService = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Eigenvector calculation");
+        thread.setDaemon(true);
+        return thread;
+    });
     // actual dataset object saves more; we will just save 6 most recent ones here
     private final LRUCache<String, double[]> dataCache = new LRUCache<>(6);
     //private final Map<String, double[]> dataCache = new HashMap<>();
     private final Map<String, Double> dataMaxCache = new HashMap<>();
     private final Map<String, Double> medianCache = new HashMap<>();
     private final Map<String, Integer> flippingRecordCache = new HashMap<>();
+    // cache keys with an eigenvector being calculated; only accessed on the EDT
+    private final Set<String> pendingKeys = new HashSet<>();
     private final HiC hic;
 
     private int currentZoomBinSize = -1;
@@ -188,21 +201,18 @@ public class EigenvectorTrack extends HiCTrack {
         String cacheKey = getCacheKey(chrIdx, zoomBinSize);
         double[] eigen = dataCache.get(cacheKey);
         if (eigen == null) {
-            eigen = loadData(chrIdx, zoomBinSize);
+            if (hic.isEigenvectorCached(chrIdx, 0, isControl)) {
+                eigen = loadData(chrIdx, zoomBinSize);
+            } else {
+                loadInBackground(chrIdx, cacheKey);
+                drawMessage(g, rect, orientation, "Calculating eigenvector...");
+                return;
+            }
         }
 
 
         if (eigen == null || eigen.length == 0) {
-            Font original = g.getFont();
-            g.setFont(FontManager.getFont(12));
-
-            if (orientation == TrackPanel.Orientation.X) {
-                GraphicUtils.drawCenteredText("Eigenvector not available at this resolution", rect, g);
-            } else {
-                drawRotatedString((Graphics2D) g, "Eigenvector not available at this resolution", (2 * rect.height) / 3, rect.x + 15);
-            }
-
-            g.setFont(original);
+            drawMessage(g, rect, orientation, "Eigenvector not available at this resolution");
             return;
         }
 
@@ -240,6 +250,54 @@ public class EigenvectorTrack extends HiCTrack {
 
     }
 
+    /**
+     * Calculate the eigenvector into the dataset's cache, then repaint so that it is picked up from there
+     */
+    private void loadInBackground(int chrIdx, final String cacheKey) {
+        if (pendingKeys.contains(cacheKey)) return;
+        final Runnable loader = hic.getEigenvectorLoader(chrIdx, 0, isControl);
+        if (loader == null) {
+            dataCache.put(cacheKey, new double[0]);
+            return;
+        }
+
+        pendingKeys.add(cacheKey);
+        eigenvectorService.execute(() -> {
+            boolean failed = false;
+            try {
+                loader.run();
+            } catch (Exception e) {
+                System.err.println("Unable to calculate eigenvector " + e.getLocalizedMessage());
+                if (HiCGlobals.printVerboseComments) {
+                    e.printStackTrace();
+                }
+                failed = true;
+            }
+            final boolean showUnavailable = failed;
+            SwingUtilities.invokeLater(() -> {
+                pendingKeys.remove(cacheKey);
+                if (showUnavailable) {
+                    // not retried until the cache is refreshed
+                    dataCache.put(cacheKey, new double[0]);
+                }
+                hic.repaintTrackPanels();
+            });
+        });
+    }
+
+    private void drawMessage(Graphics g, Rectangle rect, TrackPanel.Orientation orientation, String message) {
+        Font original = g.getFont();
+        g.setFont(FontManager.getFont(12));
+
+        if (orientation == TrackPanel.Orientation.X) {
+            GraphicUtils.drawCenteredText(message, rect, g);
+        } else {
+            drawRotatedString((Graphics2D) g, message, (2 * rect.height) / 3, rect.x + 15);
+        }
+
+        g.setFont(original);
+    }
+
     private MatrixZoomData getAppropriateZD() {
         try {
             if (isControl) {
@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2021 Broad Institute, Aiden Lab, Rice University, Baylor College of Medicine
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+
+package juicebox.track.feature;
+
+import juicebox.tools.utils.juicer.hiccups.HiCCUPSUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Grid hash over the upper left corner (start1, start2) of each feature in a list,
+ * so that features near a point can be found without scanning the whole list.
+ * Features are referred to by their index in the list, and each cell holds its
+ * indices in ascending order so list order can be respected by the callers.
+ */
+public class Feature2DGridIndex {
+
+    private final List<Feature2D> features;
+    private final long cellSize;
+    private final Map<Long, List<Integer>> cells = new HashMap<>();
+
+    public Feature2DGridIndex(List<Feature2D> features, long cellSize) {
+        this.features = features;
+        this.cellSize = Math.max(cellSize, 1);
+        for (int i = 0; i < features.size(); i++) {
+            Feature2D feature = features.get(i);
+            long key = getCellKey(getCell(feature.getStart1()), getCell(feature.getStart2()));
+            List<Integer> cell = cells.get(key);
+            if (cell == null) {
+                cell = new ArrayList<>();
+                cells.put(key, cell);
+            }
+            cell.add(i);
+        }
+    }
+
+    private long getCell(double position) {
+        return (long) Math.floor(position / cellSize);
+    }
+
+    private static long getCellKey(long cellX, long cellY) {
+        return (cellX << 32) ^ (cellY & 0xffffffffL);
+    }
+
+    private static double distance(double x, double y, Feature2D feature) {
+        return HiCCUPSUtils.hypotenuse(x - feature.getStart1(), y - feature.getStart2());
+    }
+
+    /**
+     * @return lowest index greater than afterIndex whose feature is not excluded and lies within
+     * radius of (x, y), or -1 if there is no such feature
+     */
+    public int nextWithinRadius(long x, long y, double radius, int afterIndex, boolean[] excluded) {
+        long minCellX = getCell(x - radius), maxCellX = getCell(x + radius);
+        long minCellY = getCell(y - radius), maxCellY = getCell(y + radius);
+
+        // a very large radius touches more cells than there are features; scanning the list is cheaper
+        if ((maxCellX - minCellX + 1) * (maxCellY - minCellY + 1) > features.size()) {
+            for (int i = afterIndex + 1; i < features.size(); i++) {
+                if (!excluded[i] && distance(x, y, features.get(i)) <= radius) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int best = -1;
+        for (long cx = minCellX; cx <= maxCellX; cx++) {
+            for (long cy = minCellY; cy <= maxCellY; cy++) {
+                List<Integer> cell = cells.get(getCellKey(cx, cy));
+                if (cell == null) continue;
+                for (int i : cell) {
+                    if (best > -1 && i >= best) break;
+                    if (i <= afterIndex || excluded[i]) continue;
+                    if (distance(x, y, features.get(i)) <= radius) {
+                        best = i;
+                        break;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return smallest distance from (x, y) to a feature lying within radius of it, or -1 if there is none
+     */
+    public double nearestDistanceWithinRadius(long x, long y, double radius) {
+        double lowestDistance = -1;
+        for (long cx = getCell(x - radius); cx <= getCell(x + radius); cx++) {
+            for (long cy = getCell(y - radius); cy <= getCell(y + radius); cy++) {
+                List<Integer> cell = cells.get(getCellKey(cx, cy));
+                if (cell == null) continue;
+                for (int i : cell) {
+                    double d = distance(x, y, features.get(i));
+                    if (d <= radius && (d < lowestDistance || lowestDistance == -1)) {
+                        lowestDistance = d;
+                    }
+                }
+            }
+        }
+        return lowestDistance;
+    }
+
+    public boolean hasFeatureWithinRadius(long x, long y, double radius) {
+        return nearestDistanceWithinRadius(x, y, radius) > -1;
+    }
+}
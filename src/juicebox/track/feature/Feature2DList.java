@@ -33,8 +33,7 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.util.List;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
 
 /**
  * List of two-dimensional features.  Hashtable for each chromosome for quick viewing.
@@ -86,6 +85,61 @@ public class Feature2DList {
         }
     }
 
+    /**
+     * Same as filterLists, but the chromosome pairs are filtered in parallel.
+     * Results are stored in sorted key order, so the list ends up as it would after filterLists.
+     *
+     * @param filter     must be safe to run on different chromosome pairs at the same time
+     * @param numThreads maximum number of chromosome pairs filtered at once
+     */
+    public synchronized void parallelizedFilterLists(FeatureFilter filter, int numThreads) {
+        featureList.putAll(parallelizedApplyFilter(filter, numThreads));
+    }
+
+    /**
+     * Runs the filter over each chromosome pair in parallel without modifying this list
+     *
+     * @param filter     must be safe to run on different chromosome pairs at the same time
+     * @param numThreads maximum number of chromosome pairs filtered at once
+     * @return filtered features for each key, iterated in sorted key order
+     */
+    public synchronized Map<String, List<Feature2D>> parallelizedApplyFilter(final FeatureFilter filter, int numThreads) {
+        List<String> keys = new ArrayList<>(featureList.keySet());
+        Collections.sort(keys);
+        Map<String, List<Feature2D>> results = new LinkedHashMap<>();
+        if (keys.isEmpty()) return results;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(keys.size(), numThreads)));
+        List<Future<List<Feature2D>>> futures = new ArrayList<>();
+        for (final String key : keys) {
+            final List<Feature2D> features = featureList.get(key);
+            futures.add(executor.submit(new Callable<List<Feature2D>>() {
+                @Override
+                public List<Feature2D> call() {
+                    return filter.filter(key, features);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                results.put(keys.get(i), futures.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while filtering feature lists", e);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
     public Feature2DList() {
     }
 
@@ -28,8 +28,10 @@ import juicebox.HiCGlobals;
 import juicebox.tools.clt.juicer.CompareLists;
 import juicebox.tools.utils.juicer.hiccups.HiCCUPSUtils;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -121,64 +123,51 @@ public class Feature2DTools {
     }
 
 
-    public static Feature2DList extractReproducibleCentroids(final Feature2DList firstFeatureList, Feature2DList secondFeatureList, final int radius) {
-
-        final Feature2DList centroids = new Feature2DList();
-
-        secondFeatureList.processLists(new FeatureFunction() {
-            @Override
-            public void process(String chr, List<Feature2D> secondFeature2DList) {
-                if (firstFeatureList.containsKey(chr)) {
-                    List<Feature2D> base1FeatureList = firstFeatureList.getFeatureList(chr);
-                    for (Feature2D f2 : secondFeature2DList) {
-                        for (Feature2D f1 : base1FeatureList) {
-							int dx = (int) (f1.getStart1() - f2.getStart1());
-							int dy = (int) (f1.getStart2() - f2.getStart2());
-							double d = HiCCUPSUtils.hypotenuse(dx, dy);
-							if (d <= radius) {
-								//f2.setAttribute(HiCCUPSUtils.centroidAttr, "" + d);
-								centroids.addByKey(chr, f2);
-								break;
-							}
-						}
-                    }
-                }
-            }
-        });
-        return centroids;
+    /**
+     * @return features from the second list with a feature from the first list within radius of them
+     */
+    public static Feature2DList extractReproducibleCentroids(final Feature2DList firstFeatureList, Feature2DList secondFeatureList, final int radius,
+                                                             int numThreads) {
+        return extractReproducibleCentroids(firstFeatureList, secondFeatureList, radius, -1, numThreads);
     }
 
-    public static Feature2DList extractReproducibleCentroids(final Feature2DList firstFeatureList, Feature2DList secondFeatureList, final int radius, final double fraction) {
-
-        final Feature2DList centroids = new Feature2DList();
+    /**
+     * @param fraction if non-negative, the distance to the nearest feature from the first list must also be
+     *                 within this fraction of the feature's distance from the diagonal
+     * @param numThreads maximum number of chromosome pairs matched at once
+     * @return features from the second list with a feature from the first list within radius of them
+     */
+    public static Feature2DList extractReproducibleCentroids(final Feature2DList firstFeatureList, Feature2DList secondFeatureList, final int radius, final double fraction,
+                                                             int numThreads) {
 
-        secondFeatureList.processLists(new FeatureFunction() {
+        // chromosome pairs are independent, but results are added in sorted key order as before
+        Map<String, List<Feature2D>> reproducible = secondFeatureList.parallelizedApplyFilter(new FeatureFilter() {
             @Override
-            public void process(String chr, List<Feature2D> secondFeature2DList) {
+            public List<Feature2D> filter(String chr, List<Feature2D> secondFeature2DList) {
+                List<Feature2D> matches = new ArrayList<>();
                 if (firstFeatureList.containsKey(chr)) {
-                    List<Feature2D> base1FeatureList = firstFeatureList.getFeatureList(chr);
+                    Feature2DGridIndex base1Index = new Feature2DGridIndex(firstFeatureList.getFeatureList(chr), radius);
                     for (Feature2D f2 : secondFeature2DList) {
-                        double lowestDistance = -1;
-                        //Feature2D overlap = null;
-                        for (Feature2D f1 : base1FeatureList) {
-							int dx = (int) (f1.getStart1() - f2.getStart1());
-							int dy = (int) (f1.getStart2() - f2.getStart2());
-							double d = HiCCUPSUtils.hypotenuse(dx, dy);
-							if (d < lowestDistance || lowestDistance == -1) {
-								//overlap = f1;
-								lowestDistance = d;
-							}
-						}
+                        // anything within radius lies in the neighboring grid cells, so the nearest
+                        // feature there decides the outcome just as the nearest overall would
+                        double lowestDistance = base1Index.nearestDistanceWithinRadius(f2.getStart1(), f2.getStart2(), radius);
                         if (lowestDistance != -1) {
-                            double f = lowestDistance / (f2.getStart2() - f2.getStart1());
-                            if (lowestDistance <= radius && f <= fraction) {
-                                centroids.addByKey(chr, f2);
+                            if (fraction < 0 || lowestDistance / (f2.getStart2() - f2.getStart1()) <= fraction) {
+                                matches.add(f2);
                             }
                         }
                     }
                 }
+                return matches;
             }
-        });
+        }, numThreads);
+
+        final Feature2DList centroids = new Feature2DList();
+        for (Map.Entry<String, List<Feature2D>> entry : reproducible.entrySet()) {
+            if (entry.getValue().size() > 0) {
+                centroids.addByKey(entry.getKey(), entry.getValue());
+            }
+        }
         return centroids;
     }
 